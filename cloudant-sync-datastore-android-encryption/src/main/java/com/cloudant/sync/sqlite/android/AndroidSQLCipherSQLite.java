@@ -72,6 +72,20 @@ public class AndroidSQLCipherSQLite extends SQLDatabase {
         return new AndroidSQLCipherSQLite(db);
     }
 
+    /**
+     * Constructor for opening a read-only connection to a SQLCipher-based SQLite database.
+     * @param path full file path of the db file
+     * @param provider Provider object that contains the key to encrypt the SQLCipher database
+     * @return
+     */
+    public static AndroidSQLCipherSQLite openReadOnlyAndroidSQLite(String path, KeyProvider provider) {
+
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path,
+                KeyUtils.sqlCipherKeyForKeyProvider(provider), null, SQLiteDatabase.OPEN_READONLY);
+
+        return new AndroidSQLCipherSQLite(db);
+    }
+
     public AndroidSQLCipherSQLite(final SQLiteDatabase database) {
         this.database = database;
     }
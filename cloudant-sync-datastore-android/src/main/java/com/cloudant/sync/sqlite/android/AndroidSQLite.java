@@ -16,10 +16,12 @@ package com.cloudant.sync.sqlite.android;
 
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.cloudant.android.ContentValues;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.StatementCache;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
@@ -30,14 +32,33 @@ import java.sql.SQLException;
  */
 public class AndroidSQLite extends SQLDatabase {
 
+    private static final String[] CONFLICT_VALUES = new String[]
+            {"", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE "};
+
     android.database.sqlite.SQLiteDatabase database = null;
 
+    /**
+     * Compiled insert statements keyed by the generated SQL. Updates and deletes
+     * rely on the SQLiteDatabase's own statement cache.
+     */
+    private final StatementCache<SQLiteStatement> statementCache =
+            new StatementCache<SQLiteStatement>(StatementCache.DEFAULT_SIZE) {
+                @Override
+                protected void dispose(SQLiteStatement statement) {
+                    statement.close();
+                }
+            };
 
     public static AndroidSQLite createAndroidSQLite(String path) {
         SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.CREATE_IF_NECESSARY);
         return new AndroidSQLite(db);
     }
 
+    public static AndroidSQLite openReadOnlyAndroidSQLite(String path) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+        return new AndroidSQLite(db);
+    }
+
     public AndroidSQLite(final android.database.sqlite.SQLiteDatabase database) {
         this.database = database;
 
@@ -55,9 +76,24 @@ public class AndroidSQLite extends SQLDatabase {
 
     @Override
     public void close() {
+        this.statementCache.clear();
         this.database.close();
     }
 
+    @Override
+    public void setStatementCacheSize(int size) {
+        this.statementCache.setMaxSize(size);
+        this.database.setMaxSqlCacheSize(Math.min(size, SQLiteDatabase.MAX_SQL_CACHE_SIZE));
+    }
+
+    /**
+     * @return the cache of compiled insert statements for this connection
+     */
+    @Override
+    public StatementCache<SQLiteStatement> getStatementCache() {
+        return statementCache;
+    }
+
     // This implementation of isOpen will only return true if the database is open AND the current
     // thread has not called the close() method on this object previously, this makes it compatible
     // with the JavaSE SQLiteWrapper, where each thread closes its own connection.
@@ -122,13 +158,74 @@ public class AndroidSQLite extends SQLDatabase {
 
     @Override
     public long insertWithOnConflict(String table, ContentValues initialValues, int conflictAlgorithm) {
-        //android DB will thrown an exception rather than return a -1 row id if there is a failure
-        // so we catch constraintException and return -1
+        if (initialValues == null || initialValues.size() == 0) {
+            // android DB will throw an exception rather than return a -1 row id if there is a
+            // failure so we catch constraintException and return -1
+            try {
+                return this.database.insertWithOnConflict("\"" + table + "\"", null,
+                        createAndroidContentValues(initialValues), conflictAlgorithm);
+            } catch (SQLiteConstraintException sqlce) {
+                return -1;
+            }
+        }
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("INSERT");
+        sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+        sql.append(" INTO \"");
+        sql.append(table);
+        sql.append("\"(");
+        Object[] bindArgs = new Object[initialValues.size()];
+        int i = 0;
+        for (String colName : initialValues.keySet()) {
+            sql.append((i > 0) ? "," : "");
+            sql.append(colName);
+            bindArgs[i++] = initialValues.get(colName);
+        }
+        sql.append(") VALUES (");
+        for (i = 0; i < bindArgs.length; i++) {
+            sql.append((i > 0) ? ",?" : "?");
+        }
+        sql.append(')');
+
+        String insertSql = sql.toString();
+        SQLiteStatement statement = this.statementCache.get(insertSql);
+        if (statement == null) {
+            statement = this.database.compileStatement(insertSql);
+        }
         try {
-        return this.database.insertWithOnConflict("\""+table+"\"", null,
-                createAndroidContentValues(initialValues), conflictAlgorithm);
+            bindArguments(statement, bindArgs);
+            return statement.executeInsert();
         } catch (SQLiteConstraintException sqlce){
+            //android DB will thrown an exception rather than return a -1 row id if there is a
+            // failure so we catch constraintException and return -1
             return -1;
+        } finally {
+            // don't retain bound values while the statement is cached
+            statement.clearBindings();
+            this.statementCache.put(insertSql, statement);
+        }
+    }
+
+    private static void bindArguments(SQLiteStatement statement, Object[] bindArgs) {
+        for (int i = 0; i < bindArgs.length; i++) {
+            Object value = bindArgs[i];
+            int index = i + 1;
+            if (value == null) {
+                statement.bindNull(index);
+            } else if (value instanceof Boolean) {
+                statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+            } else if (value instanceof byte[]) {
+                statement.bindBlob(index, (byte[]) value);
+            } else if (value instanceof Double || value instanceof Float) {
+                statement.bindDouble(index, ((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                statement.bindLong(index, ((Number) value).longValue());
+            } else if (value instanceof String) {
+                statement.bindString(index, (String) value);
+            } else {
+                throw new IllegalArgumentException("Unsupported data type: " + value.getClass());
+            }
         }
     }
 
@@ -47,6 +47,11 @@ public class AndroidSQLiteCursor implements Cursor {
         return this.internalCursor.moveToFirst();
     }
 
+    @Override
+    public boolean moveToPosition(int position) {
+        return this.internalCursor.moveToPosition(position);
+    }
+
     @Override
     public String getString(int index) {
         return this.internalCursor.getString(index);
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.notifications.DocumentCreated;
+import com.cloudant.sync.notifications.DocumentModified;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>Non-blocking access to a {@link Datastore}.</p>
+ *
+ * <p>Each method submits its work to the datastore's database queue and returns
+ * straight away with a {@link ListenableFuture}, rather than holding the calling
+ * thread until the work is done. This allows many operations to be in flight at
+ * once without a thread waiting on each of them.</p>
+ *
+ * <p>Futures are completed on the executor passed to
+ * {@link #AsyncDatastore(Datastore, Executor)}, as are the notifications posted to the
+ * datastore's {@link Datastore#getEventBus() event bus} for writes. Callbacks should
+ * be added with that executor, or a direct executor to run them as part of the
+ * completion:</p>
+ *
+ * <pre>
+ * AsyncDatastore async = new AsyncDatastore(datastore, executor);
+ * Futures.addCallback(async.getDocument("doc1"), new FutureCallback&lt;DocumentRevision&gt;() {
+ *     public void onSuccess(DocumentRevision rev) { ... }
+ *     public void onFailure(Throwable t) { ... }
+ * }, executor);
+ * </pre>
+ *
+ * <p>A future which fails does so with the exception raised by the operation, for
+ * example a {@link DocumentNotFoundException}, as the cause of the
+ * {@link java.util.concurrent.ExecutionException}. Invalid arguments and a closed
+ * datastore are reported by the method itself, as for the {@link Datastore}
+ * methods.</p>
+ *
+ * @api_public
+ */
+public class AsyncDatastore {
+
+    private final DatastoreImpl datastore;
+    private final Executor executor;
+
+    /**
+     * Creates non-blocking access to a datastore.
+     *
+     * @param datastore the datastore, as returned by {@link DatastoreManager}
+     * @param executor the executor futures are completed on
+     */
+    public AsyncDatastore(Datastore datastore, Executor executor) {
+        Preconditions.checkNotNull(datastore, "Datastore cannot be null");
+        Preconditions.checkNotNull(executor, "Executor cannot be null");
+        Preconditions.checkArgument(datastore instanceof DatastoreImpl,
+                "Datastore must have been opened by a DatastoreManager");
+        this.datastore = (DatastoreImpl) datastore;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the datastore accessed by this object
+     */
+    public Datastore getDatastore() {
+        return datastore;
+    }
+
+    /**
+     * Retrieves the current winning revision of a document.
+     *
+     * @param documentId ID of the document
+     * @return future for the {@code DocumentRevision}
+     * @see Datastore#getDocument(String)
+     */
+    public ListenableFuture<DocumentRevision> getDocument(String documentId) {
+        return getDocument(documentId, null);
+    }
+
+    /**
+     * Retrieves a given revision of a document.
+     *
+     * @param documentId ID of the document
+     * @param revisionId revision ID of the revision, or {@code null} for the current
+     *                   winning revision
+     * @return future for the {@code DocumentRevision}
+     * @see Datastore#getDocument(String, String)
+     */
+    public ListenableFuture<DocumentRevision> getDocument(String documentId, String revisionId) {
+        return completeOnExecutor(datastore.getDocumentAsync(documentId, revisionId));
+    }
+
+    /**
+     * Retrieves the current revisions of several documents.
+     *
+     * @param documentIds IDs of the documents
+     * @return future for the revisions, in the same order as {@code documentIds}
+     * @see Datastore#getDocumentsWithIds(List)
+     */
+    public ListenableFuture<List<DocumentRevision>> getDocumentsWithIds(List<String> documentIds) {
+        return completeOnExecutor(datastore.getDocumentsWithIdsAsync(documentIds));
+    }
+
+    /**
+     * <p>Adds a new document with the body and attachments of {@code rev}.</p>
+     *
+     * <p>New attachments are prepared on the calling thread before the document is
+     * queued for creation. A {@link DocumentCreated} notification is posted before the
+     * future completes.</p>
+     *
+     * @param rev the revision to create
+     * @return future for the created revision
+     * @see Datastore#createDocumentFromRevision(DocumentRevision)
+     */
+    public ListenableFuture<DocumentRevision> createDocumentFromRevision(DocumentRevision rev) {
+        ListenableFuture<DocumentRevision> created;
+        try {
+            created = datastore.createDocumentFromRevisionAsync(rev);
+        } catch (AttachmentException e) {
+            created = Futures.immediateFailedFuture(e);
+        }
+        return Futures.transform(created, new Function<DocumentRevision, DocumentRevision>() {
+            @Override
+            public DocumentRevision apply(DocumentRevision revision) {
+                datastore.getEventBus().post(new DocumentCreated(revision));
+                return revision;
+            }
+        }, executor);
+    }
+
+    /**
+     * Retrieves changes made since a given sequence number.
+     *
+     * @param since sequence number to return changes after
+     * @param limit maximum number of changes to return
+     * @return future for the changes
+     * @see Datastore#changes(long, int)
+     */
+    public ListenableFuture<Changes> changes(long since, int limit) {
+        return completeOnExecutor(datastore.changesAsync(since, limit));
+    }
+
+    /**
+     * <p>Inserts revisions of documents with existing revision IDs, as done by pull
+     * replication.</p>
+     *
+     * <p>Notifications for the inserted revisions are posted before the future
+     * completes.</p>
+     *
+     * @param items the revisions to insert
+     * @return future which completes once the revisions have been inserted
+     * @see DatastoreImpl#forceInsert(List)
+     */
+    public ListenableFuture<Void> forceInsert(List<ForceInsertItem> items) {
+        return Futures.transform(datastore.forceInsertAsync(items),
+                new Function<List<DocumentModified>, Void>() {
+            @Override
+            public Void apply(List<DocumentModified> events) {
+                for (DocumentModified event : events) {
+                    datastore.getEventBus().post(event);
+                }
+                return null;
+            }
+        }, executor);
+    }
+
+    private <T> ListenableFuture<T> completeOnExecutor(ListenableFuture<T> future) {
+        return Futures.transform(future, Functions.<T>identity(), executor);
+    }
+}
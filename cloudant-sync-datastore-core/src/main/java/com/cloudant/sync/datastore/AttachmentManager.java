@@ -19,6 +19,7 @@ import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.util.CouchUtils;
 import com.cloudant.sync.util.DatabaseUtils;
+import com.google.common.collect.Lists;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileExistsException;
@@ -31,13 +32,16 @@ import java.nio.charset.Charset;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * An AttachmentManager handles attachment related tasks: adding, removing and retrieving
@@ -76,8 +80,19 @@ class AttachmentManager {
             "FROM attachments " +
             "WHERE sequence = ?";
 
-    private static final String SQL_ATTACHMENTS_SELECT_ALL_KEYS = "SELECT key " +
-            "FROM attachments";
+    private static final String SQL_ATTACHMENTS_SELECT_ALL_FOR_SEQUENCES = "SELECT sequence, " +
+            "filename, " +
+            "key, " +
+            "type, " +
+            "encoding, " +
+            "length, " +
+            "encoded_length, " +
+            "revpos " +
+            "FROM attachments " +
+            "WHERE sequence IN (%s)";
+
+    private static final String SQL_ATTACHMENTS_KEY_USED = "SELECT EXISTS " +
+            "(SELECT 1 FROM attachments WHERE key = X'%s')";
 
     /**
      * Name of database mapping key to filename.
@@ -89,10 +104,19 @@ class AttachmentManager {
     private static final String SQL_FILENAME_LOOKUP_QUERY = String.format(
             "SELECT filename FROM %1$s WHERE key=?", ATTACHMENTS_KEY_FILENAME);
     /**
-     * SQL statement to return all key,filename mappings.
+     * SQL statement to look up filenames for several keys.
+     */
+    private static final String SQL_FILENAMES_LOOKUP_QUERY = String.format(
+            "SELECT key,filename FROM %1$s WHERE key IN (%%s)", ATTACHMENTS_KEY_FILENAME);
+    /**
+     * SQL statement to return the keys after a key, in key order.
      */
-    private static final String SQL_ATTACHMENTS_SELECT_KEYS_FILENAMES = String.format(
-            "SELECT key,filename FROM %1$s", ATTACHMENTS_KEY_FILENAME);
+    private static final String SQL_ATTACHMENTS_SELECT_KEYS_AFTER = String.format(
+            "SELECT key FROM %1$s WHERE key > ? ORDER BY key LIMIT ?", ATTACHMENTS_KEY_FILENAME);
+    /**
+     * Attachment keys are SHA-1 digests written as hex.
+     */
+    private static final Pattern HEX_KEY = Pattern.compile("([0-9a-fA-F]{2})+");
     /**
      * Random number generator used to generate filenames.
      */
@@ -346,6 +370,123 @@ class AttachmentManager {
         }
     }
 
+    /**
+     * Retrieves the attachments of several revisions.
+     *
+     * Unlike calling {@link #attachmentsForRevision(SQLDatabase, String, AttachmentStreamFactory,
+     * long)} for each revision, which queries the database once per revision and once more per
+     * attachment, this queries the attachments and their filenames for up to
+     * {@link DatastoreImpl#SQLITE_QUERY_PLACEHOLDERS_LIMIT} revisions at a time.
+     *
+     * @param sequences sequences of the revisions
+     * @return the attachments of each revision, keyed by sequence. Revisions without
+     * attachments map to an empty list.
+     */
+    protected static Map<Long, List<SavedAttachment>> attachmentsForRevisions(SQLDatabase db,
+            String attachmentsDir, AttachmentStreamFactory attachmentStreamFactory,
+            Collection<Long> sequences) throws AttachmentException {
+        Map<Long, List<SavedAttachment>> attachments = new HashMap<Long, List<SavedAttachment>>();
+        for (Long sequence : sequences) {
+            attachments.put(sequence, new LinkedList<SavedAttachment>());
+        }
+
+        Cursor c = null;
+        try {
+            for (List<Long> batch : Lists.partition(new ArrayList<Long>(attachments.keySet()),
+                    DatastoreImpl.SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+                String[] args = new String[batch.size()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = String.valueOf(batch.get(i));
+                }
+                c = db.rawQuery(String.format(SQL_ATTACHMENTS_SELECT_ALL_FOR_SEQUENCES,
+                        DatabaseUtils.makePlaceholders(args.length)), args);
+                List<AttachmentRow> rows = new ArrayList<AttachmentRow>();
+                while (c.moveToNext()) {
+                    rows.add(new AttachmentRow(c));
+                }
+                c.close();
+                if (rows.isEmpty()) {
+                    continue;
+                }
+
+                Map<String, File> files = filesFromKeys(db, rows, attachmentsDir);
+                for (AttachmentRow row : rows) {
+                    File file = files.get(keyToString(row.key));
+                    if (file == null) {
+                        throw new AttachmentException("Couldn't retrieve filename for attachment");
+                    }
+                    attachments.get(row.sequence).add(new SavedAttachment(row.sequence,
+                            row.filename, row.key, row.type,
+                            Attachment.Encoding.values()[row.encoding], row.length,
+                            row.encodedLength, row.revpos, file, attachmentStreamFactory));
+                }
+            }
+            return attachments;
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Failed to get attachments", e);
+            throw new AttachmentException(e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(c);
+        }
+    }
+
+    /**
+     * Looks up the on disk files for the keys of several attachments, in batches of up to
+     * {@link DatastoreImpl#SQLITE_QUERY_PLACEHOLDERS_LIMIT} keys.
+     *
+     * @return map from key, as returned by {@link #keyToString(byte[])}, to file. Keys without
+     * a filename are missing from the map.
+     */
+    private static Map<String, File> filesFromKeys(SQLDatabase db, List<AttachmentRow> rows,
+                                                   String attachmentsDir) throws SQLException {
+        Set<String> keys = new HashSet<String>();
+        for (AttachmentRow row : rows) {
+            keys.add(keyToString(row.key));
+        }
+        Map<String, File> files = new HashMap<String, File>();
+        Cursor c = null;
+        try {
+            for (List<String> batch : Lists.partition(new ArrayList<String>(keys),
+                    DatastoreImpl.SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+                c = db.rawQuery(String.format(SQL_FILENAMES_LOOKUP_QUERY,
+                        DatabaseUtils.makePlaceholders(batch.size())),
+                        batch.toArray(new String[batch.size()]));
+                while (c.moveToNext()) {
+                    files.put(c.getString(0), new File(attachmentsDir, c.getString(1)));
+                }
+                c.close();
+            }
+            return files;
+        } finally {
+            DatabaseUtils.closeCursorQuietly(c);
+        }
+    }
+
+    /**
+     * A row of the attachments table, read before its file is looked up.
+     */
+    private static class AttachmentRow {
+        final long sequence;
+        final String filename;
+        final byte[] key;
+        final String type;
+        final int encoding;
+        final long length;
+        final long encodedLength;
+        final int revpos;
+
+        AttachmentRow(Cursor c) {
+            this.sequence = c.getLong(c.getColumnIndex("sequence"));
+            this.filename = c.getString(c.getColumnIndex("filename"));
+            this.key = c.getBlob(c.getColumnIndex("key"));
+            this.type = c.getString(c.getColumnIndex("type"));
+            this.encoding = c.getInt(c.getColumnIndex("encoding"));
+            this.length = c.getInt(c.getColumnIndex("length"));
+            this.encodedLength = c.getInt(c.getColumnIndex("encoded_length"));
+            this.revpos = c.getInt(c.getColumnIndex("revpos"));
+        }
+    }
+
     private static void copyCursorValuesToNewSequence(SQLDatabase db, Cursor c, long newSequence) {
         while (c.moveToNext()) {
             String filename = c.getString(1);
@@ -406,63 +547,106 @@ class AttachmentManager {
     }
 
     /**
-     * Called by BasicDatastore on the execution queue, this needs have the db passed ot it
-     * @param db database to purge attachments from
+     * Removes the attachments of revisions with sequences in {@code (lower, upper]} whose
+     * bodies have been removed by compaction. Their files are deleted by
+     * {@link #purgeUnusedAttachments(SQLDatabase, String, List)} once no other revision
+     * uses them.
+     *
+     * @param db database to remove attachments from
+     * @return the number of attachments removed
+     */
+    protected static int removeAttachmentsOfCompactedRevisions(SQLDatabase db, long lower,
+                                                               long upper) {
+        String[] range = new String[]{Long.toString(lower), Long.toString(upper)};
+        return db.delete("attachments", "sequence > ? AND sequence <= ? AND sequence IN " +
+                "(SELECT sequence FROM revs WHERE json IS null " +
+                "AND sequence > ? AND sequence <= ?)",
+                new String[]{range[0], range[1], range[0], range[1]});
+    }
+
+    /**
+     * @param db database to read attachment keys from
+     * @param afterKey key to start after, or the empty string to start from the first
+     * @param limit maximum number of keys to return
+     * @return the keys of attachment files after {@code afterKey}, in key order
      */
-    protected static void purgeAttachments(SQLDatabase db, String attachmentsDir) {
-        // it's easier to deal with Strings since java doesn't know how to compare byte[]s
-        Set<String> currentKeys = new HashSet<String>();
+    protected static List<String> attachmentKeysAfter(SQLDatabase db, String afterKey,
+                                                      int limit) throws SQLException {
+        List<String> keys = new ArrayList<String>();
         Cursor c = null;
         try {
-            // delete attachment table entries for revs which have been purged
-            db.delete("attachments", "sequence IN " +
-                    "(SELECT sequence from revs WHERE json IS null)", null);
-
-            // get all keys from attachments table
-            c = db.rawQuery(SQL_ATTACHMENTS_SELECT_ALL_KEYS, null);
+            c = db.rawQuery(SQL_ATTACHMENTS_SELECT_KEYS_AFTER,
+                    new String[]{afterKey, Integer.toString(limit)});
             while (c.moveToNext()) {
-                byte[] key = c.getBlob(0);
-                currentKeys.add(keyToString(key));
+                keys.add(c.getString(0));
             }
-
-        } catch (SQLException e) {
-            logger.log(Level.SEVERE,
-                    "SQL exception in purgeAttachments when updating attachments table", e);
-            return;  // not safe to continue
         } finally {
             DatabaseUtils.closeCursorQuietly(c);
         }
+        return keys;
+    }
 
-        try {
+    /**
+     * Called by Compaction on the execution queue, this needs have the db passed to it.
+     * Deletes the files of the given attachment keys which no revision uses any more.
+     *
+     * @param db database to purge attachments from
+     * @param keys keys of attachment files to check, as returned by
+     *             {@link #attachmentKeysAfter(SQLDatabase, String, int)}
+     * @return the total size in bytes of the attachment files deleted
+     */
+    protected static long purgeUnusedAttachments(SQLDatabase db, String attachmentsDir,
+                                                 List<String> keys) throws SQLException {
+        long bytesDeleted = 0;
+        File attachments = new File(attachmentsDir);
+        for (String key : keys) {
+            // keys are written as hex, so are safe to use as a blob literal, which lets
+            // the lookup use the attachments_by_key index
+            if (!HEX_KEY.matcher(key).matches()) {
+                continue;
+            }
+            if (isKeyUsed(db, key)) {
+                continue;
+            }
+            String filename = null;
+            Cursor c = null;
+            try {
+                c = db.rawQuery(SQL_FILENAME_LOOKUP_QUERY, new String[]{key});
+                if (c.moveToFirst()) {
+                    filename = c.getString(0);
+                }
+            } finally {
+                DatabaseUtils.closeCursorQuietly(c);
+            }
+            if (filename == null) {
+                continue;
+            }
 
-            // Now iterate through the attachments_key_filename, deleting items we need to
-            // (both db row and file on disk).
-            File attachments = new File(attachmentsDir);
-            c = db.rawQuery(SQL_ATTACHMENTS_SELECT_KEYS_FILENAMES, null);
-            while (c.moveToNext()) {
-                String keyForFile = c.getString(0);
-
-                if (!currentKeys.contains(keyForFile)) {
-                    File f = new File(attachments, c.getString(1));
-                    try {
-                        boolean deleted = f.delete();
-                        if (deleted) {
-                            db.delete(ATTACHMENTS_KEY_FILENAME, "key = ?", new String[]{keyForFile});
-                        } else {
-                            logger.warning("Could not delete file from BLOB store: " +
-                                    f.getAbsolutePath());
-                        }
-                    } catch (SecurityException e) {
-                        String msg = String.format("SecurityException deleting %s from blob store",
-                                f.getAbsolutePath());
-                        logger.log(Level.WARNING, msg, e);
-                    }
+            File f = new File(attachments, filename);
+            try {
+                long length = f.length();
+                boolean deleted = f.delete();
+                if (deleted) {
+                    bytesDeleted += length;
+                    db.delete(ATTACHMENTS_KEY_FILENAME, "key = ?", new String[]{key});
+                } else {
+                    logger.warning("Could not delete file from BLOB store: " +
+                            f.getAbsolutePath());
                 }
+            } catch (SecurityException e) {
+                String msg = String.format("SecurityException deleting %s from blob store",
+                        f.getAbsolutePath());
+                logger.log(Level.WARNING, msg, e);
             }
+        }
+        return bytesDeleted;
+    }
 
-        } catch (SQLException e) {
-            logger.log(Level.SEVERE,
-                    "SQL exception in purgeAttachments when removing redundant attachments", e);
+    private static boolean isKeyUsed(SQLDatabase db, String key) throws SQLException {
+        Cursor c = null;
+        try {
+            c = db.rawQuery(String.format(SQL_ATTACHMENTS_KEY_USED, key), null);
+            return c.moveToFirst() && c.getInt(0) > 0;
         } finally {
             DatabaseUtils.closeCursorQuietly(c);
         }
@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Converts document bodies between JSON and the binary form stored for
+ * {@link BodyEncoding#BINARY}.</p>
+ *
+ * <p>The binary form starts with a zero byte, which can't start JSON text, so binary
+ * and JSON bodies can be told apart in the {@code json} column of the {@code revs}
+ * table. The next byte is the version of the format, followed by one tag byte per
+ * JSON token:</p>
+ *
+ * <ul>
+ *     <li>Objects and arrays are bracketed by start and end tags.</li>
+ *     <li>{@code null}, {@code true} and {@code false} are a tag alone.</li>
+ *     <li>Integers which fit in a {@code long} are a zigzag encoded varint.</li>
+ *     <li>Strings, larger integers and floating point numbers are a varint length
+ *     followed by their UTF-8 text, so numbers keep their original form.</li>
+ *     <li>The first use of a field name is stored like a string; later uses of the same
+ *     name are stored as a varint index into the names used so far.</li>
+ * </ul>
+ *
+ * <p>Maps are decoded directly from the binary form, using the same types as
+ * {@link com.cloudant.sync.util.JSONUtils#deserialize(byte[])}.</p>
+ *
+ * @api_private
+ */
+final class BinaryJson {
+
+    static final byte MARKER = 0x00;
+    static final byte VERSION = 0x01;
+
+    private static final int START_OBJECT = 1;
+    private static final int END_OBJECT = 2;
+    private static final int START_ARRAY = 3;
+    private static final int END_ARRAY = 4;
+    private static final int NULL = 5;
+    private static final int TRUE = 6;
+    private static final int FALSE = 7;
+    private static final int INT = 8;
+    private static final int BIG_INT = 9;
+    private static final int FLOAT = 10;
+    private static final int STRING = 11;
+    private static final int NEW_NAME = 12;
+    private static final int NAME_REF = 13;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private BinaryJson() {
+        // static methods only
+    }
+
+    /**
+     * @param stored value of the {@code json} column, may be {@code null}
+     * @return true if {@code stored} is in the binary form
+     */
+    static boolean isBinary(byte[] stored) {
+        return stored != null && stored.length > 1 && stored[0] == MARKER
+                && stored[1] == VERSION;
+    }
+
+    /**
+     * @param json JSON text of a body
+     * @return the binary form of {@code json}
+     * @throws IllegalArgumentException if {@code json} isn't valid JSON
+     */
+    static byte[] fromJson(byte[] json) {
+        Output out = new Output(json.length);
+        out.write(MARKER);
+        out.write(VERSION);
+        Map<String, Integer> names = new HashMap<String, Integer>();
+        try {
+            JsonParser parser = FACTORY.createParser(json);
+            try {
+                JsonToken token;
+                while ((token = parser.nextToken()) != null) {
+                    switch (token) {
+                        case START_OBJECT:
+                            out.write(START_OBJECT);
+                            break;
+                        case END_OBJECT:
+                            out.write(END_OBJECT);
+                            break;
+                        case START_ARRAY:
+                            out.write(START_ARRAY);
+                            break;
+                        case END_ARRAY:
+                            out.write(END_ARRAY);
+                            break;
+                        case VALUE_NULL:
+                            out.write(NULL);
+                            break;
+                        case VALUE_TRUE:
+                            out.write(TRUE);
+                            break;
+                        case VALUE_FALSE:
+                            out.write(FALSE);
+                            break;
+                        case VALUE_NUMBER_INT:
+                            if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                                out.write(BIG_INT);
+                                out.writeString(parser.getText());
+                            } else {
+                                long value = parser.getLongValue();
+                                out.write(INT);
+                                out.writeVarint((value << 1) ^ (value >> 63));
+                            }
+                            break;
+                        case VALUE_NUMBER_FLOAT:
+                            out.write(FLOAT);
+                            out.writeString(parser.getText());
+                            break;
+                        case VALUE_STRING:
+                            out.write(STRING);
+                            out.writeString(parser.getText());
+                            break;
+                        case FIELD_NAME:
+                            String name = parser.getCurrentName();
+                            Integer index = names.get(name);
+                            if (index == null) {
+                                names.put(name, names.size());
+                                out.write(NEW_NAME);
+                                out.writeString(name);
+                            } else {
+                                out.write(NAME_REF);
+                                out.writeVarint(index);
+                            }
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unexpected JSON token " + token);
+                    }
+                }
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Input bytes is not valid json data.", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param binary a body in the binary form
+     * @return the JSON text of the body
+     */
+    static byte[] toJson(byte[] binary) {
+        ByteArrayOutputStream json = new ByteArrayOutputStream(binary.length * 2);
+        Input in = new Input(binary);
+        try {
+            JsonGenerator generator = FACTORY.createGenerator(json);
+            while (in.hasMore()) {
+                int tag = in.read();
+                switch (tag) {
+                    case START_OBJECT:
+                        generator.writeStartObject();
+                        break;
+                    case END_OBJECT:
+                        generator.writeEndObject();
+                        break;
+                    case START_ARRAY:
+                        generator.writeStartArray();
+                        break;
+                    case END_ARRAY:
+                        generator.writeEndArray();
+                        break;
+                    case NULL:
+                        generator.writeNull();
+                        break;
+                    case TRUE:
+                        generator.writeBoolean(true);
+                        break;
+                    case FALSE:
+                        generator.writeBoolean(false);
+                        break;
+                    case INT:
+                        generator.writeNumber(in.readZigzag());
+                        break;
+                    case BIG_INT:
+                    case FLOAT:
+                        generator.writeNumber(in.readString());
+                        break;
+                    case STRING:
+                        generator.writeString(in.readString());
+                        break;
+                    case NEW_NAME:
+                    case NAME_REF:
+                        generator.writeFieldName(in.readName(tag));
+                        break;
+                    default:
+                        throw in.unexpected(tag);
+                }
+            }
+            generator.close();
+        } catch (IOException e) {
+            // only thrown by the output stream, which doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return json.toByteArray();
+    }
+
+    /**
+     * @param binary a body in the binary form
+     * @return the body as a map
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> toMap(byte[] binary) {
+        Input in = new Input(binary);
+        Object value = in.readValue(in.read());
+        if (!(value instanceof Map) || in.hasMore()) {
+            throw new IllegalArgumentException("Binary body is not a single JSON object");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    /**
+     * Puts the values of the fields selected by {@code root} into {@code values}, skipping
+     * the values of other fields.
+     *
+     * @see FieldExtractor
+     */
+    static void extractFields(byte[] binary, FieldExtractor.Node root,
+                              Map<String, Object> values) {
+        Input in = new Input(binary);
+        if (in.read() == START_OBJECT) {
+            in.extractFromObject(root, values);
+        }
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+
+        Output(int size) {
+            super(size);
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = value.getBytes(UTF_8);
+            writeVarint(utf8.length);
+            write(utf8, 0, utf8.length);
+        }
+    }
+
+    private static class Input {
+
+        private final byte[] data;
+        private int position = 2;
+        private final List<String> names = new ArrayList<String>();
+
+        Input(byte[] data) {
+            if (!isBinary(data)) {
+                throw new IllegalArgumentException("Not a binary body");
+            }
+            this.data = data;
+        }
+
+        boolean hasMore() {
+            return position < data.length;
+        }
+
+        int read() {
+            if (position >= data.length) {
+                throw new IllegalArgumentException("Binary body is truncated");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in binary body");
+        }
+
+        long readZigzag() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() {
+            long length = readVarint();
+            if (length > data.length - position) {
+                throw new IllegalArgumentException("Binary body is truncated");
+            }
+            String value = new String(data, position, (int) length, UTF_8);
+            position += (int) length;
+            return value;
+        }
+
+        String readName(int tag) {
+            if (tag == NEW_NAME) {
+                String name = readString();
+                names.add(name);
+                return name;
+            }
+            long index = readVarint();
+            if (index >= names.size()) {
+                throw new IllegalArgumentException("Unknown field name in binary body");
+            }
+            return names.get((int) index);
+        }
+
+        // called after the start of an object, returns after its end
+        void extractFromObject(FieldExtractor.Node node, Map<String, Object> values) {
+            for (int tag = read(); tag != END_OBJECT; tag = read()) {
+                if (tag != NEW_NAME && tag != NAME_REF) {
+                    throw unexpected(tag);
+                }
+                FieldExtractor.Node child = node.children.get(readName(tag));
+                int valueTag = read();
+                if (child == null) {
+                    skipValue(valueTag);
+                    continue;
+                }
+                child.clear(values);
+                if (child.field != null) {
+                    Object value = readValue(valueTag);
+                    values.put(child.field, value);
+                    if (value instanceof Map && !child.children.isEmpty()) {
+                        FieldExtractor.extractFromMap((Map<?, ?>) value, child, values);
+                    }
+                } else if (valueTag == START_OBJECT) {
+                    extractFromObject(child, values);
+                } else {
+                    skipValue(valueTag);
+                }
+            }
+        }
+
+        void skipValue(int tag) {
+            switch (tag) {
+                case START_OBJECT:
+                    for (int next = read(); next != END_OBJECT; next = read()) {
+                        if (next != NEW_NAME && next != NAME_REF) {
+                            throw unexpected(next);
+                        }
+                        // names are kept, as later names may refer to them
+                        readName(next);
+                        skipValue(read());
+                    }
+                    break;
+                case START_ARRAY:
+                    for (int next = read(); next != END_ARRAY; next = read()) {
+                        skipValue(next);
+                    }
+                    break;
+                case NULL:
+                case TRUE:
+                case FALSE:
+                    break;
+                case INT:
+                    readVarint();
+                    break;
+                case BIG_INT:
+                case FLOAT:
+                case STRING:
+                    long length = readVarint();
+                    if (length > data.length - position) {
+                        throw new IllegalArgumentException("Binary body is truncated");
+                    }
+                    position += (int) length;
+                    break;
+                default:
+                    throw unexpected(tag);
+            }
+        }
+
+        Object readValue(int tag) {
+            switch (tag) {
+                case START_OBJECT:
+                    Map<String, Object> map = new LinkedHashMap<String, Object>();
+                    for (int next = read(); next != END_OBJECT; next = read()) {
+                        if (next != NEW_NAME && next != NAME_REF) {
+                            throw unexpected(next);
+                        }
+                        String name = readName(next);
+                        map.put(name, readValue(read()));
+                    }
+                    return map;
+                case START_ARRAY:
+                    List<Object> list = new ArrayList<Object>();
+                    for (int next = read(); next != END_ARRAY; next = read()) {
+                        list.add(readValue(next));
+                    }
+                    return list;
+                case NULL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case INT:
+                    long value = readZigzag();
+                    if (value == (int) value) {
+                        return (int) value;
+                    }
+                    return value;
+                case BIG_INT:
+                    return new BigInteger(readString());
+                case FLOAT:
+                    return Double.valueOf(readString());
+                case STRING:
+                    return readString();
+                default:
+                    throw unexpected(tag);
+            }
+        }
+
+        IllegalArgumentException unexpected(int tag) {
+            return new IllegalArgumentException(String.format(
+                    "Unexpected tag %d at offset %d of binary body", tag, position - 1));
+        }
+    }
+}
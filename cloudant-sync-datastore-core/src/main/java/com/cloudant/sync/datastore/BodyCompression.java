@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Compresses stored document bodies with deflate.</p>
+ *
+ * <p>A compressed body starts with the same zero byte as the binary form written by
+ * {@link BinaryJson}, followed by the byte {@value #DEFLATE}, the length of the
+ * uncompressed body as a varint and the raw deflate data. The uncompressed body is
+ * the stored body as it would be without compression, so it can be either JSON or
+ * binary.</p>
+ *
+ * @see DatastoreOptions#setBodyCompressionThreshold(int)
+ * @api_private
+ */
+final class BodyCompression {
+
+    static final byte DEFLATE = 0x02;
+
+    private BodyCompression() {
+        // static methods only
+    }
+
+    /**
+     * @param stored value of the {@code json} column, may be {@code null}
+     * @return true if {@code stored} is compressed
+     */
+    static boolean isCompressed(byte[] stored) {
+        return stored != null && stored.length > 1 && stored[0] == BinaryJson.MARKER
+                && stored[1] == DEFLATE;
+    }
+
+    /**
+     * @param body stored body, JSON or binary
+     * @return the compressed body, or {@code null} if compressing doesn't make the body
+     *         smaller
+     */
+    static byte[] compress(byte[] body) {
+        if (body.length < 3) {
+            return null;
+        }
+        byte[] out = new byte[body.length];
+        out[0] = BinaryJson.MARKER;
+        out[1] = DEFLATE;
+        int position = 2;
+        for (int length = body.length; ; length >>>= 7) {
+            if (position == out.length) {
+                return null;
+            }
+            if ((length & ~0x7F) == 0) {
+                out[position++] = (byte) length;
+                break;
+            }
+            out[position++] = (byte) ((length & 0x7F) | 0x80);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            // stop once the output is as large as the input
+            while (!deflater.finished() && position < out.length) {
+                position += deflater.deflate(out, position, out.length - position);
+            }
+            return deflater.finished() ? Arrays.copyOf(out, position) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param compressed a compressed body
+     * @return the stored body which was compressed
+     * @throws IllegalArgumentException if {@code compressed} is corrupt
+     */
+    static byte[] decompress(byte[] compressed) {
+        return inflate(compressed, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param compressed a compressed body
+     * @return true if the body which was compressed is in the binary form, found without
+     *         decompressing the whole body
+     * @throws IllegalArgumentException if {@code compressed} is corrupt
+     */
+    static boolean isCompressedBinary(byte[] compressed) {
+        return BinaryJson.isBinary(inflate(compressed, 2));
+    }
+
+    private static byte[] inflate(byte[] compressed, int limit) {
+        if (!isCompressed(compressed)) {
+            throw new IllegalArgumentException("Not a compressed body");
+        }
+        int position = 2;
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position == compressed.length || shift > 28) {
+                throw new IllegalArgumentException("Malformed length in compressed body");
+            }
+            int b = compressed[position++] & 0xFF;
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Malformed length in compressed body");
+        }
+        byte[] body = new byte[(int) Math.min(length, limit)];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed, position, compressed.length - position);
+            int inflated = 0;
+            while (inflated < body.length) {
+                int n = inflater.inflate(body, inflated, body.length - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Compressed body is truncated");
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Compressed body is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        return body;
+    }
+}
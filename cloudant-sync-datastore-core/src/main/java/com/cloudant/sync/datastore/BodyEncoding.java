@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+/**
+ * <p>Formats in which a datastore stores the bodies of document revisions.</p>
+ *
+ * <p>The encoding only affects how bodies are stored on disk. Bodies are always
+ * returned as JSON by {@link DocumentBody#asBytes()}, which is also what is sent
+ * during replication. Revisions stored in either encoding can be read by any datastore,
+ * so the encoding of an existing datastore can be changed when it is next opened; bodies
+ * stored before the change are converted by {@link Datastore#compact()}.</p>
+ *
+ * @see DatastoreOptions#setBodyEncoding(BodyEncoding)
+ * @api_public
+ */
+public enum BodyEncoding {
+
+    /**
+     * Bodies are stored as UTF-8 JSON text. This is the default.
+     */
+    JSON,
+
+    /**
+     * <p>Bodies are stored in a binary form of JSON, in which numbers are stored as
+     * binary values and each field name is stored once per body, with later uses of the
+     * same name referring back to it.</p>
+     *
+     * <p>Bodies take less space, particularly those with arrays of similar objects, and
+     * {@link DocumentBody#asMap()} is faster for bodies read from the database, at the
+     * cost of converting bodies to JSON when {@link DocumentBody#asBytes()} is called,
+     * for example when they are replicated.</p>
+     *
+     * <p>Datastores containing binary bodies can't be read by earlier versions of this
+     * library.</p>
+     */
+    BINARY
+}
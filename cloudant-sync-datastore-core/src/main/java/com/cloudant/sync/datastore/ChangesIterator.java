@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Iterates over the changes made to a datastore after a given sequence number,
+ * reading them a page at a time.</p>
+ *
+ * <p>Each page is a window of {@code pageSize} sequence numbers read with
+ * {@link Datastore#changes(long, int)}, so at most one page of revisions is held in
+ * memory however many changes there are. Windows without any changes, left for
+ * example by documents which have been updated many times, are skipped rather than
+ * ending the iteration early. Changes committed after the iteration has reached the
+ * end of the datastore are not returned.</p>
+ *
+ * <p>{@link #getLastSequence()} gives a sequence number which can be stored as a
+ * checkpoint: every change up to it has been returned, so iterating again from it
+ * will not miss any changes.</p>
+ *
+ * <p>Instances are not thread safe.</p>
+ *
+ * @api_public
+ */
+public class ChangesIterator implements Iterator<DocumentRevision> {
+
+    private final Datastore datastore;
+    private final int pageSize;
+
+    // sequence number the next page is read after
+    private long since;
+    // sequence number every returned change is covered by
+    private long lastSequence;
+    // last sequence of the page being returned
+    private long pageLastSequence;
+    private Iterator<DocumentRevision> page = Collections.<DocumentRevision>emptyList().iterator();
+    private boolean exhausted = false;
+
+    ChangesIterator(Datastore datastore, long since, int pageSize) {
+        Preconditions.checkNotNull(datastore, "Datastore cannot be null");
+        Preconditions.checkArgument(pageSize > 0, "Page size must be positive number");
+        this.datastore = datastore;
+        this.pageSize = pageSize;
+        this.since = since >= 0 ? since : 0;
+        this.lastSequence = this.since;
+        this.pageLastSequence = this.since;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!page.hasNext()) {
+            fetchPage();
+        }
+        return page.hasNext();
+    }
+
+    @Override
+    public DocumentRevision next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more changes");
+        }
+        DocumentRevision revision = page.next();
+        if (!page.hasNext()) {
+            lastSequence = pageLastSequence;
+        }
+        return revision;
+    }
+
+    /**
+     * <p>Returns the changes not yet returned from the current page, reading the
+     * next page if they have all been returned.</p>
+     *
+     * <p>This allows changes to be processed in batches, checkpointing at the
+     * {@link Changes#getLastSequence() last sequence} of each batch.</p>
+     *
+     * @return the next batch of changes, which is empty once there are no more
+     *      changes
+     */
+    public Changes nextBatch() {
+        List<DocumentRevision> results = new ArrayList<DocumentRevision>();
+        if (hasNext()) {
+            while (page.hasNext()) {
+                results.add(page.next());
+            }
+            lastSequence = pageLastSequence;
+        }
+        return new Changes(lastSequence, results);
+    }
+
+    /**
+     * <p>Returns the sequence number up to which all changes have been returned.</p>
+     *
+     * <p>This only advances once every change in a page has been returned, so it
+     * may be behind the sequence number of the last revision returned.</p>
+     *
+     * @return the sequence number to resume iterating from
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Not supported.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Changes cannot be removed");
+    }
+
+    private void fetchPage() {
+        if (exhausted) {
+            return;
+        }
+        // Read the last sequence before the page so an empty window before it is
+        // known to be a gap rather than the end of the changes.
+        long datastoreLastSequence = datastore.getLastSequence();
+        while (true) {
+            Changes changes = datastore.changes(since, pageSize);
+            if (changes == null) {
+                throw new IllegalStateException("Failed to read changes since " + since);
+            }
+            if (changes.size() > 0) {
+                since = changes.getLastSequence();
+                pageLastSequence = since;
+                page = changes.getResults().iterator();
+                return;
+            }
+            if (since + pageSize >= datastoreLastSequence) {
+                exhausted = true;
+                return;
+            }
+            since += pageSize;
+            lastSequence = since;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.android.ContentValues;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLDatabaseQueue;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Compacts a datastore in a series of short tasks, so that reads and writes made
+ * while the compaction runs wait for at most one task rather than the whole
+ * compaction.</p>
+ *
+ * <p>A compaction works through each {@link Phase} in turn. Each task runs for around
+ * {@value #TASK_MILLIS} ms at {@link SQLDatabaseQueue.Priority#BACKGROUND background}
+ * priority before the next is queued behind any other work. Free pages are returned to
+ * the file system with SQLite's {@code incremental_vacuum} rather than a {@code VACUUM}
+ * of the whole database. Databases created before incremental vacuuming was enabled
+ * are converted with a single {@code VACUUM} the first time they are compacted.</p>
+ *
+ * <p>A compaction can be paused between tasks with {@link #pause()}, and resumed by
+ * calling {@link #start()} again:</p>
+ *
+ * <pre>
+ * Compaction compaction = datastore.createCompaction();
+ * ListenableFuture&lt;CompactionProgress&gt; done = compaction.start();
+ * ...
+ * compaction.pause();
+ * ...
+ * compaction.start();
+ * </pre>
+ *
+ * <p>Non-current revisions written while the compaction runs may keep their bodies
+ * until the next compaction.</p>
+ *
+ * @api_public
+ */
+public class Compaction {
+
+    /**
+     * The steps of a compaction, in the order they are run.
+     */
+    public enum Phase {
+        /**
+         * Removing revisions beyond the {@link DatastoreOptions#setRevsLimit(int) revs
+         * limit}, if one is set.
+         */
+        STEMMING,
+        /**
+         * Removing the bodies of non-current revisions.
+         */
+        REMOVING_BODIES,
+        /**
+         * Converting bodies stored in another encoding to the datastore's
+         * {@link DatastoreOptions#setBodyEncoding(BodyEncoding) body encoding}, and
+         * compressing or decompressing them to match its
+         * {@link DatastoreOptions#setBodyCompressionThreshold(int) compression
+         * threshold}.
+         */
+        ENCODING_BODIES,
+        /**
+         * Deleting attachment files no longer used by any revision.
+         */
+        PURGING_ATTACHMENTS,
+        /**
+         * Returning free database pages to the file system.
+         */
+        VACUUMING,
+        /**
+         * The compaction has finished.
+         */
+        COMPLETE
+    }
+
+    /**
+     * Approximate time each task of a compaction runs for, in milliseconds.
+     */
+    public static final long TASK_MILLIS = 25;
+
+    // Work done by each step of a task, chosen to take a few milliseconds.
+    static final int DOCUMENTS_PER_STEP = 20;
+    static final int SEQUENCES_PER_STEP = 1000;
+    static final int BODIES_PER_STEP = 100;
+    static final int ATTACHMENTS_PER_STEP = 100;
+    static final int PAGES_PER_STEP = 128;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final Logger logger = Logger.getLogger(Compaction.class.getCanonicalName());
+
+    private final DatastoreImpl datastore;
+    private final SQLDatabaseQueue queue;
+    private final String attachmentsDir;
+    private final SettableFuture<CompactionProgress> completion = SettableFuture.create();
+
+    // Guarded by this: whether a task is queued or running, and whether to queue another
+    // once it finishes.
+    private boolean running = false;
+    private volatile boolean paused = false;
+
+    private volatile CompactionProgress progress =
+            new CompactionProgress(Phase.STEMMING, 0, 0, 0, 0, 0, 0);
+
+    // State of the phases, only used by tasks running on the database queue.
+    private Phase phase = Phase.STEMMING;
+    private long maxDocId = -1;
+    private long stemmedDocId;
+    private int documentsStemmed;
+    private long maxSequence = -1;
+    private long compactedSequence;
+    private long revisionsCompacted;
+    private long encodedSequence;
+    private long revisionsEncoded;
+    private long purgedSequence;
+    // key of the last attachment file checked, once attachments of compacted revisions
+    // have been removed
+    private String purgedKey = "";
+    private long attachmentBytesReclaimed;
+    private long pageSize;
+    private long initialPageCount = -1;
+    private long pageCount;
+    private long initialFreePages;
+    private long pagesVacuumed;
+
+    Compaction(DatastoreImpl datastore, SQLDatabaseQueue queue, String attachmentsDir) {
+        this.datastore = datastore;
+        this.queue = queue;
+        this.attachmentsDir = attachmentsDir;
+    }
+
+    /**
+     * <p>Starts the compaction, or resumes it if it has been paused.</p>
+     *
+     * @return future which completes with the final progress once the compaction has
+     *      finished. The same future is returned by every call.
+     */
+    public synchronized ListenableFuture<CompactionProgress> start() {
+        paused = false;
+        if (!running && !completion.isDone()) {
+            running = true;
+            submitTask();
+        }
+        return completion;
+    }
+
+    /**
+     * <p>Pauses the compaction once its current task has finished. Call
+     * {@link #start()} to resume it.</p>
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    /**
+     * @return {@code true} if the compaction has been paused
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return the progress of the compaction as at the end of its most recent task
+     */
+    public CompactionProgress getProgress() {
+        return progress;
+    }
+
+    private void submitTask() {
+        ListenableFuture<Boolean> task;
+        try {
+            task = queue.submit(new SQLQueueCallable<Boolean>() {
+                @Override
+                public Boolean call(SQLDatabase db) throws Exception {
+                    return runTask(db);
+                }
+            }, SQLDatabaseQueue.Priority.BACKGROUND);
+        } catch (RuntimeException e) {
+            // the datastore has been closed
+            running = false;
+            completion.setException(e);
+            return;
+        }
+        Futures.addCallback(task, new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean complete) {
+                taskFinished(complete);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.log(Level.SEVERE, "Failed to compact database", t);
+                synchronized (Compaction.this) {
+                    running = false;
+                    completion.setException(t);
+                }
+            }
+        });
+    }
+
+    private synchronized void taskFinished(boolean complete) {
+        if (complete) {
+            running = false;
+            completion.set(progress);
+        } else if (paused) {
+            running = false;
+        } else {
+            submitTask();
+        }
+    }
+
+    /**
+     * Runs steps of the compaction for around {@link #TASK_MILLIS}.
+     *
+     * @return {@code true} if the compaction has completed
+     */
+    private boolean runTask(SQLDatabase db) throws DatastoreException, SQLException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TASK_MILLIS);
+        do {
+            runStep(db);
+        } while (phase != Phase.COMPLETE && !paused && System.nanoTime() < deadline);
+        progress = new CompactionProgress(phase, phaseProgress(), documentsStemmed,
+                revisionsCompacted, revisionsEncoded, attachmentBytesReclaimed,
+                Math.max(0, initialPageCount - pageCount) * pageSize);
+        return phase == Phase.COMPLETE;
+    }
+
+    private void runStep(SQLDatabase db) throws DatastoreException, SQLException {
+        switch (phase) {
+            case STEMMING:
+                if (maxDocId < 0) {
+                    maxDocId = longForQuery(db, "SELECT IFNULL(MAX(doc_id), 0) FROM docs");
+                }
+                // documents are found in a range of numeric IDs at a time, so the whole
+                // of revs isn't read in one step
+                long upperDocId = stemmedDocId + DOCUMENTS_PER_STEP;
+                for (Long docId : datastore.getDocumentsToStemInQueue(db, stemmedDocId,
+                        upperDocId)) {
+                    datastore.stemDocumentInQueue(db, docId);
+                    documentsStemmed++;
+                }
+                stemmedDocId = upperDocId;
+                if (stemmedDocId >= maxDocId) {
+                    datastore.clearDocumentCache();
+                    phase = Phase.REMOVING_BODIES;
+                }
+                break;
+            case REMOVING_BODIES:
+                if (maxSequence < 0) {
+                    maxSequence = longForQuery(db, "SELECT IFNULL(MAX(sequence), 0) FROM revs");
+                }
+                long upper = compactedSequence + SEQUENCES_PER_STEP;
+                ContentValues args = new ContentValues();
+                args.put("json", (String) null);
+                revisionsCompacted += db.update("revs", args,
+                        "current = 0 AND json IS NOT NULL AND sequence > ? AND sequence <= ?",
+                        new String[]{Long.toString(compactedSequence), Long.toString(upper)});
+                compactedSequence = upper;
+                if (compactedSequence >= maxSequence) {
+                    // bodies of non-current revisions have been removed
+                    datastore.clearDocumentCache();
+                    phase = Phase.ENCODING_BODIES;
+                }
+                break;
+            case ENCODING_BODIES:
+                upper = encodedSequence + BODIES_PER_STEP;
+                revisionsEncoded += encodeBodies(db, encodedSequence, upper);
+                encodedSequence = upper;
+                if (encodedSequence >= maxSequence) {
+                    phase = Phase.PURGING_ATTACHMENTS;
+                }
+                break;
+            case PURGING_ATTACHMENTS:
+                if (purgedSequence < maxSequence) {
+                    upper = purgedSequence + SEQUENCES_PER_STEP;
+                    AttachmentManager.removeAttachmentsOfCompactedRevisions(db, purgedSequence,
+                            upper);
+                    purgedSequence = upper;
+                    break;
+                }
+                // then delete the files no attachment uses, a range of keys at a time
+                List<String> keys = AttachmentManager.attachmentKeysAfter(db, purgedKey,
+                        ATTACHMENTS_PER_STEP);
+                attachmentBytesReclaimed += AttachmentManager.purgeUnusedAttachments(db,
+                        attachmentsDir, keys);
+                if (keys.size() < ATTACHMENTS_PER_STEP) {
+                    phase = Phase.VACUUMING;
+                } else {
+                    purgedKey = keys.get(keys.size() - 1);
+                }
+                break;
+            case VACUUMING:
+                if (initialPageCount < 0) {
+                    pageSize = longForQuery(db, "PRAGMA page_size;");
+                    initialPageCount = longForQuery(db, "PRAGMA page_count;");
+                    if (longForQuery(db, "PRAGMA auto_vacuum;") != AUTO_VACUUM_INCREMENTAL) {
+                        logger.info("Converting database to incremental vacuum");
+                        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+                        db.compactDatabase();
+                    }
+                    initialFreePages = longForQuery(db, "PRAGMA freelist_count;");
+                    pageCount = longForQuery(db, "PRAGMA page_count;");
+                    if (initialFreePages == 0) {
+                        phase = Phase.COMPLETE;
+                    }
+                } else {
+                    long previousPageCount = longForQuery(db, "PRAGMA page_count;");
+                    // run as a query, as some platforms only free pages while the
+                    // statement is stepped through
+                    Cursor cursor = null;
+                    try {
+                        cursor = db.rawQuery("PRAGMA incremental_vacuum(" + PAGES_PER_STEP + ");",
+                                null);
+                        while (cursor.moveToNext()) {
+                            // nothing to read
+                        }
+                    } finally {
+                        DatabaseUtils.closeCursorQuietly(cursor);
+                    }
+                    pageCount = longForQuery(db, "PRAGMA page_count;");
+                    long freed = previousPageCount - pageCount;
+                    pagesVacuumed += Math.max(0, freed);
+                    // writes between steps may free more pages, so stop once as many
+                    // pages as were free at the start have been vacuumed, rather than
+                    // when none are free, or once a step doesn't free any
+                    if (pagesVacuumed >= initialFreePages || freed <= 0) {
+                        phase = Phase.COMPLETE;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private double phaseProgress() {
+        switch (phase) {
+            case STEMMING:
+                return maxDocId <= 0 ? 0 : Math.min(1, (double) stemmedDocId / maxDocId);
+            case REMOVING_BODIES:
+                return maxSequence <= 0 ? 0 :
+                        Math.min(1, (double) compactedSequence / maxSequence);
+            case ENCODING_BODIES:
+                return maxSequence <= 0 ? 0 :
+                        Math.min(1, (double) encodedSequence / maxSequence);
+            case PURGING_ATTACHMENTS:
+                return maxSequence <= 0 ? 0 :
+                        Math.min(1, (double) purgedSequence / maxSequence);
+            case VACUUMING:
+                return initialFreePages <= 0 ? 0 :
+                        Math.min(1, (double) pagesVacuumed / initialFreePages);
+            case COMPLETE:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Converts bodies of revisions with sequences in {@code (lower, upper]} which aren't
+     * stored in the datastore's body encoding, or aren't compressed to match its body
+     * compression threshold. The bodies are unchanged as JSON, so revisions already in the
+     * document cache remain valid.
+     *
+     * @return the number of bodies converted
+     */
+    private int encodeBodies(SQLDatabase db, long lower, long upper) throws SQLException {
+        BodyEncoding encoding = datastore.getBodyEncoding();
+        int threshold = datastore.getBodyCompressionThreshold();
+        // skip reading bodies which are uncompressed in the right encoding: binary bodies
+        // start with X'0001' and compressed ones with X'0002', which JSON can't
+        String candidates = encoding == BodyEncoding.BINARY ?
+                "substr(json, 1, 2) != X'0001'" : "substr(json, 1, 1) = X'00'";
+        if (threshold > 0) {
+            candidates = "(" + candidates + " OR length(json) >= " + threshold + ")";
+        }
+        Cursor cursor = null;
+        int encoded = 0;
+        try {
+            cursor = db.rawQuery("SELECT sequence, json FROM revs WHERE json IS NOT NULL " +
+                    "AND sequence > ? AND sequence <= ? AND " + candidates,
+                    new String[]{Long.toString(lower), Long.toString(upper)});
+            while (cursor.moveToNext()) {
+                byte[] stored = cursor.getBlob(1);
+                if (DocumentBodyImpl.isStoredAs(stored, encoding, threshold)) {
+                    continue;
+                }
+                byte[] converted = DocumentBodyImpl.toStored(
+                        DocumentBodyImpl.storedBodyWith(stored), encoding, threshold);
+                if (Arrays.equals(stored, converted)) {
+                    // too large to be left uncompressed, but doesn't compress
+                    continue;
+                }
+                ContentValues args = new ContentValues();
+                args.put("json", converted);
+                encoded += db.update("revs", args, "sequence = ?",
+                        new String[]{Long.toString(cursor.getLong(0))});
+            }
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+        return encoded;
+    }
+
+    private static long longForQuery(SQLDatabase db, String sql) throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+}
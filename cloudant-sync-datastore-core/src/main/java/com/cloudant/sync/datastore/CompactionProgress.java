@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+/**
+ * <p>Progress of a {@link Compaction}, as at the end of its most recent task.</p>
+ *
+ * @api_public
+ */
+public class CompactionProgress {
+
+    private final Compaction.Phase phase;
+    private final double phaseProgress;
+    private final long documentsStemmed;
+    private final long revisionsCompacted;
+    private final long revisionsEncoded;
+    private final long attachmentBytesReclaimed;
+    private final long databaseBytesReclaimed;
+
+    CompactionProgress(Compaction.Phase phase, double phaseProgress, long documentsStemmed,
+                       long revisionsCompacted, long revisionsEncoded,
+                       long attachmentBytesReclaimed, long databaseBytesReclaimed) {
+        this.phase = phase;
+        this.phaseProgress = phaseProgress;
+        this.documentsStemmed = documentsStemmed;
+        this.revisionsCompacted = revisionsCompacted;
+        this.revisionsEncoded = revisionsEncoded;
+        this.attachmentBytesReclaimed = attachmentBytesReclaimed;
+        this.databaseBytesReclaimed = databaseBytesReclaimed;
+    }
+
+    /**
+     * @return the phase the compaction is in
+     */
+    public Compaction.Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the estimated fraction of the current phase completed, from 0 to 1
+     */
+    public double getPhaseProgress() {
+        return phaseProgress;
+    }
+
+    /**
+     * @return the number of documents whose revision history has been checked against
+     *      the {@link DatastoreOptions#setRevsLimit(int) revs limit}
+     */
+    public long getDocumentsStemmed() {
+        return documentsStemmed;
+    }
+
+    /**
+     * @return the number of non-current revisions whose bodies have been removed
+     */
+    public long getRevisionsCompacted() {
+        return revisionsCompacted;
+    }
+
+    /**
+     * @return the number of revisions whose bodies have been converted to the datastore's
+     *      {@link DatastoreOptions#setBodyEncoding(BodyEncoding) body encoding} or
+     *      {@link DatastoreOptions#setBodyCompressionThreshold(int) compression threshold}
+     */
+    public long getRevisionsEncoded() {
+        return revisionsEncoded;
+    }
+
+    /**
+     * @return the total size in bytes of the attachment files deleted
+     */
+    public long getAttachmentBytesReclaimed() {
+        return attachmentBytesReclaimed;
+    }
+
+    /**
+     * @return the number of bytes the database file has shrunk by
+     */
+    public long getDatabaseBytesReclaimed() {
+        return databaseBytesReclaimed;
+    }
+
+    /**
+     * @return the total number of bytes of storage reclaimed
+     */
+    public long getBytesReclaimed() {
+        return attachmentBytesReclaimed + databaseBytesReclaimed;
+    }
+
+    /**
+     * @return {@code true} if the compaction has completed
+     */
+    public boolean isComplete() {
+        return phase == Compaction.Phase.COMPLETE;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Outcome of resolving the conflicts of one document with
+ * {@link Datastore#resolveConflictsForDocuments(java.util.Collection, ConflictResolver,
+ * java.util.concurrent.Executor)}.</p>
+ *
+ * <p>The time spent in {@link ConflictResolver#resolve(String, java.util.List)} and writing
+ * the resolution to the datastore are recorded separately, so slow resolvers can be told
+ * apart from slow writes.</p>
+ *
+ * @api_public
+ */
+public class ConflictResolutionResult {
+
+    /**
+     * What happened to a document's conflicts.
+     */
+    public enum Outcome {
+        /**
+         * The conflicts were resolved, and {@link #getRevision()} is the new winning revision.
+         */
+        RESOLVED,
+        /**
+         * The document does not exist or has no conflicts, so the resolver was not called.
+         */
+        NOT_CONFLICTED,
+        /**
+         * The resolver returned {@code null} or threw an exception, so the document was not
+         * changed.
+         */
+        UNRESOLVED,
+        /**
+         * The resolution could not be written, for example because the document was modified
+         * while the resolver was running. The document was not changed.
+         */
+        FAILED
+    }
+
+    private final String documentId;
+    private final Outcome outcome;
+    private final DocumentRevision revision;
+    private final Exception exception;
+    private final long resolveNanos;
+    private final long writeNanos;
+
+    ConflictResolutionResult(String documentId, Outcome outcome, DocumentRevision revision,
+                             Exception exception, long resolveNanos, long writeNanos) {
+        this.documentId = documentId;
+        this.outcome = outcome;
+        this.revision = revision;
+        this.exception = exception;
+        this.resolveNanos = resolveNanos;
+        this.writeNanos = writeNanos;
+    }
+
+    /**
+     * @return the ID of the document
+     */
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    /**
+     * @return what happened to the document's conflicts
+     */
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return the new winning revision if the conflicts were {@link Outcome#RESOLVED},
+     *      otherwise {@code null}
+     */
+    public DocumentRevision getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return the exception thrown by the resolver for {@link Outcome#UNRESOLVED}, or the
+     *      reason the resolution could not be written for {@link Outcome#FAILED}, otherwise
+     *      {@code null}
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    /**
+     * @param unit unit of the returned time
+     * @return time spent running the resolver for this document
+     */
+    public long getResolveTime(TimeUnit unit) {
+        return unit.convert(resolveNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit unit of the returned time
+     * @return time spent writing the resolution of this document, within the transaction
+     *      which committed it
+     */
+    public long getWriteTime(TimeUnit unit) {
+        return unit.convert(writeNanos, TimeUnit.NANOSECONDS);
+    }
+}
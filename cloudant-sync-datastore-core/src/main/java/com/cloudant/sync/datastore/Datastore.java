@@ -19,8 +19,10 @@ package com.cloudant.sync.datastore;
 
 import com.cloudant.sync.event.EventBus;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * <p>The Datastore is the core interaction point for create, delete and update
@@ -144,6 +146,78 @@ public interface Datastore {
      */
     List<DocumentRevision> getAllDocuments(int offset, int limit, boolean descending);
 
+    /**
+     * <p>Enumerates the current winning revision for all documents in the
+     * datastore, a page at a time.</p>
+     *
+     * <p>Documents are returned in the same order as
+     * {@link #getAllDocuments(int, int, boolean)}. Rather than skipping
+     * {@code offset} documents, each page starts directly after the last
+     * document of the previous page, so paging through all the documents
+     * takes time proportional to the number of documents.</p>
+     *
+     * <p>Documents deleted between pages are not returned; documents created
+     * between pages are returned in a later page when reading in ascending
+     * order.</p>
+     *
+     * @param pageToken {@code null} for the first page, otherwise the
+     *                  {@link DocumentPage#getNextPageToken()} of the
+     *                  previous page
+     * @param limit maximum number of documents to return, greater than zero
+     * @param descending whether the documents are read in ascending or
+     *                   descending order. This must be the same for every
+     *                   page.
+     * @return page of at most {@code limit} documents
+     * @throws DatastoreException if there was an error reading the documents
+     */
+    DocumentPage getAllDocuments(String pageToken, int limit, boolean descending)
+            throws DatastoreException;
+
+    /**
+     * <p>Returns the current winning revisions of the documents whose IDs
+     * fall between {@code startKey} and {@code endKey}, inclusive, a page at a
+     * time.</p>
+     *
+     * <p>Documents are ordered by ID, comparing the IDs' Unicode code points.
+     * When reading in descending order {@code startKey} should be greater
+     * than or equal to {@code endKey}, as in CouchDB.</p>
+     *
+     * @param startKey ID to start at, or {@code null} to start at the first
+     *                 document in the requested order
+     * @param endKey ID to end at, or {@code null} to end at the last
+     *               document in the requested order
+     * @param pageToken {@code null} for the first page, otherwise the
+     *                  {@link DocumentPage#getNextPageToken()} of the
+     *                  previous page
+     * @param limit maximum number of documents to return, greater than zero
+     * @param descending whether the documents are read in descending order
+     *                   of ID
+     * @return page of at most {@code limit} documents
+     * @throws DatastoreException if there was an error reading the documents
+     */
+    DocumentPage getDocumentsInIdRange(String startKey, String endKey, String pageToken,
+                                       int limit, boolean descending)
+            throws DatastoreException;
+
+    /**
+     * <p>Returns the current winning revisions of the documents whose IDs
+     * start with {@code prefix}, a page at a time, ordered as for
+     * {@link #getDocumentsInIdRange(String, String, String, int, boolean)}.</p>
+     *
+     * @param prefix prefix of the document IDs
+     * @param pageToken {@code null} for the first page, otherwise the
+     *                  {@link DocumentPage#getNextPageToken()} of the
+     *                  previous page
+     * @param limit maximum number of documents to return, greater than zero
+     * @param descending whether the documents are read in descending order
+     *                   of ID
+     * @return page of at most {@code limit} documents
+     * @throws DatastoreException if there was an error reading the documents
+     */
+    DocumentPage getDocumentsWithIdPrefix(String prefix, String pageToken, int limit,
+                                          boolean descending)
+            throws DatastoreException;
+
     /**
      * <p>Enumerates the current winning revision for all documents in the
      * datastore and return a list of their document identifiers.</p>
@@ -203,6 +277,20 @@ public interface Datastore {
      */
     Changes changes(long since, int limit);
 
+    /**
+     * <p>Returns an iterator over the documents changed after {@code since},
+     * which reads the changes {@code pageSize} sequence numbers at a time.</p>
+     *
+     * <p>Unlike {@link #changes(long, int)}, this returns every change up to the
+     * end of the datastore without holding them all in memory.</p>
+     *
+     * @param since the lower bound (exclusive) of the changes sequence number
+     * @param pageSize number of sequence numbers to read changes for at a time
+     * @return iterator over the changed documents
+     * @see ChangesIterator
+     */
+    ChangesIterator changesIterator(long since, int pageSize);
+
     /**
      * <p>Returns the EventBus which this Datastore posts
      * {@link com.cloudant.sync.notifications.DocumentModified Document Notification Events} to.</p>
@@ -248,6 +336,38 @@ public interface Datastore {
     void resolveConflictsForDocument(String docId, ConflictResolver resolver)
         throws ConflictException;
 
+    /**
+     * <p>
+     * Resolve conflicts for several Documents using the given
+     * {@code ConflictResolver}.
+     * </p>
+     *
+     * <p>The leaf revisions of the documents are read in batches, and the
+     * resolver is called for each conflicted document on {@code executor},
+     * so a resolver which can run concurrently resolves several documents in
+     * parallel. The resolutions of each batch are written in a single
+     * transaction. A document which is modified between reading its leaf
+     * revisions and writing its resolution is left unchanged, with a
+     * {@link ConflictResolutionResult.Outcome#FAILED FAILED} outcome holding
+     * a {@link ConflictException}.</p>
+     *
+     * @param docIds ids of Documents to resolve conflicts
+     * @param resolver the ConflictResolver used to resolve
+     *                 conflicts
+     * @param executor the executor the resolver is called on
+     * @return results for each document, in the order of {@code docIds}
+     *         with duplicates removed
+     * @throws DatastoreException if the revisions could not be read or the
+     *         resolutions could not be written. Resolutions of earlier batches
+     *         may already have been written.
+     *
+     * @see #resolveConflictsForDocument(String, ConflictResolver)
+     */
+    List<ConflictResolutionResult> resolveConflictsForDocuments(Collection<String> docIds,
+                                                                ConflictResolver resolver,
+                                                                Executor executor)
+        throws DatastoreException;
+
     /**
      * Close the datastore
      */
@@ -334,7 +454,67 @@ public interface Datastore {
     List<DocumentRevision> deleteDocument(String id) throws DocumentException;
 
     /**
-     * Compacts the sqlDatabase storage by removing the bodies and attachments of obsolete revisions.
+     * <p>Adds new documents with the bodies and attachments of {@code revs}, in a
+     * single transaction.</p>
+     *
+     * <p>Each revision is created as by
+     * {@link #createDocumentFromRevision(DocumentRevision)}, but a revision which
+     * cannot be created, for example because a document with its ID already exists,
+     * does not prevent the others from being created. A
+     * {@link com.cloudant.sync.notifications.DocumentCreated DocumentCreated} event is
+     * posted for each created document once the transaction has been committed.</p>
+     *
+     * @param revs the revisions to create
+     * @return results for each revision, in the same order as {@code revs}
+     * @throws DatastoreException if the transaction failed, in which case no documents
+     *      were created
+     * @see Datastore#getEventBus()
+     */
+    List<DocumentWriteResult> createDocumentsFromRevisions(List<DocumentRevision> revs)
+            throws DatastoreException;
+
+    /**
+     * <p>Updates documents with the bodies and attachments of {@code revs}, in a
+     * single transaction.</p>
+     *
+     * <p>Each revision is updated as by
+     * {@link #updateDocumentFromRevision(DocumentRevision)}; a revision which is not
+     * the current revision of its document fails with a {@link ConflictException}
+     * without preventing the others from being updated. A
+     * {@link com.cloudant.sync.notifications.DocumentUpdated DocumentUpdated} event is
+     * posted for each updated document once the transaction has been committed.</p>
+     *
+     * @param revs the revisions to update
+     * @return results for each revision, in the same order as {@code revs}
+     * @throws DatastoreException if the transaction failed, in which case no documents
+     *      were updated
+     * @see Datastore#getEventBus()
+     */
+    List<DocumentWriteResult> updateDocumentsFromRevisions(List<DocumentRevision> revs)
+            throws DatastoreException;
+
+    /**
+     * <p>Deletes the documents of {@code revs}, in a single transaction.</p>
+     *
+     * <p>Each revision is deleted as by
+     * {@link #deleteDocumentFromRevision(DocumentRevision)}, but a revision which
+     * cannot be deleted does not prevent the others from being deleted. A
+     * {@link com.cloudant.sync.notifications.DocumentDeleted DocumentDeleted} event is
+     * posted for each deleted document once the transaction has been committed.</p>
+     *
+     * @param revs the revisions to delete
+     * @return results for each revision, in the same order as {@code revs}; the
+     *      revision of a successful result is the "tombstone" revision
+     * @throws DatastoreException if the transaction failed, in which case no documents
+     *      were deleted
+     * @see Datastore#getEventBus()
+     */
+    List<DocumentWriteResult> deleteDocumentsFromRevisions(List<DocumentRevision> revs)
+            throws DatastoreException;
+
+    /**
+     * Compacts the sqlDatabase storage by removing the bodies and attachments of obsolete revisions,
+     * and revisions beyond the {@link DatastoreOptions#setRevsLimit(int) revs limit} if one is set.
      */
     void compact();
 
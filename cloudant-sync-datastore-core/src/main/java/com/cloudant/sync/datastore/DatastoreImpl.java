@@ -28,6 +28,10 @@ import com.cloudant.sync.datastore.callables.PickWinningRevisionCallable;
 import com.cloudant.sync.datastore.encryption.KeyProvider;
 import com.cloudant.sync.datastore.encryption.NullKeyProvider;
 import com.cloudant.sync.datastore.migrations.MigrateDatabase100To200;
+import com.cloudant.sync.datastore.migrations.MigrateDatabase200To201;
+import com.cloudant.sync.datastore.migrations.MigrateDatabase201To202;
+import com.cloudant.sync.datastore.migrations.MigrateDatabase202To203;
+import com.cloudant.sync.datastore.migrations.MigrateDatabase203To300;
 import com.cloudant.sync.datastore.migrations.MigrateDatabase6To100;
 import com.cloudant.sync.datastore.migrations.SchemaOnlyMigration;
 import com.cloudant.sync.event.EventBus;
@@ -40,6 +44,8 @@ import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.sqlite.SQLDatabaseQueue;
 import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.sqlite.StatementCacheStatistics;
+import com.cloudant.sync.sqlite.TaskMetrics;
 import com.cloudant.sync.util.CouchUtils;
 import com.cloudant.sync.util.DatabaseUtils;
 import com.cloudant.sync.util.JSONUtils;
@@ -49,6 +55,11 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.apache.commons.io.FilenameUtils;
 
@@ -62,13 +73,22 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -82,6 +102,8 @@ public class DatastoreImpl implements Datastore {
 
     private static final String FULL_DOCUMENT_COLS = "docs.docid, docs.doc_id, revid, sequence, json, current, deleted, parent";
 
+    private static final String METADATA_COLS = "docs.docid, docs.doc_id, revid, sequence, current, deleted, parent";
+
     private static final String GET_DOC_NUMERIC_ID =
             "SELECT doc_id from docs WHERE docid=?";
 
@@ -118,6 +140,27 @@ public class DatastoreImpl implements Datastore {
     // http://www.sqlite.org/limits.html
     public static final int SQLITE_QUERY_PLACEHOLDERS_LIMIT = 500;
 
+    // Lookups of more IDs than this load them into a temporary table and join
+    // against it, rather than binding them in batches of IN (...) placeholders
+    // which are each compiled as a separate statement.
+    static final int TEMP_TABLE_LOOKUP_THRESHOLD = SQLITE_QUERY_PLACEHOLDERS_LIMIT;
+
+    // Number of documents whose leaf revisions are held in memory and whose conflict
+    // resolutions are written in one transaction by resolveConflictsForDocuments.
+    static final int RESOLVE_CONFLICTS_BATCH_SIZE = 100;
+
+    // Temporary tables are private to each connection, and a connection only runs
+    // one task at a time, so a task can use them without coordinating with others.
+    // Their column names differ from those of docs and revs so that the columns in
+    // FULL_DOCUMENT_COLS are not ambiguous.
+    private static final String TEMP_DOCIDS_TABLE = "CREATE TEMP TABLE IF NOT EXISTS " +
+            "temp_docids (lookup_docid TEXT PRIMARY KEY)";
+    private static final String TEMP_DOC_NUMERIC_IDS_TABLE = "CREATE TEMP TABLE IF NOT EXISTS " +
+            "temp_doc_numeric_ids (lookup_doc_id INTEGER PRIMARY KEY)";
+    private static final String TEMP_REVS_TABLE = "CREATE TEMP TABLE IF NOT EXISTS " +
+            "temp_revs (lookup_docid TEXT, lookup_revid TEXT, " +
+            "PRIMARY KEY (lookup_docid, lookup_revid))";
+
     private final String datastoreName;
     private final EventBus eventBus;
 
@@ -132,6 +175,11 @@ public class DatastoreImpl implements Datastore {
      */
     private final KeyProvider keyProvider;
 
+    /**
+     * Options the datastore was opened with, also passed to extensions.
+     */
+    private final DatastoreOptions options;
+
     /**
      * Queue for all database tasks.
      */
@@ -149,6 +197,26 @@ public class DatastoreImpl implements Datastore {
      */
     private final AttachmentStreamFactory attachmentStreamFactory;
 
+    /**
+     * Cache of recently read revisions, or {@code null} if disabled.
+     */
+    private final DocumentCache documentCache;
+
+    /**
+     * Number of generations of each document's revision history kept, or 0 for no limit.
+     */
+    private final int revsLimit;
+
+    /**
+     * Encoding in which revision bodies are written.
+     */
+    private final BodyEncoding bodyEncoding;
+
+    /**
+     * Size in bytes from which revision bodies are compressed, or 0 to not compress.
+     */
+    private final int bodyCompressionThreshold;
+
     public DatastoreImpl(String dir, String name) throws SQLException, IOException, DatastoreException {
         this(dir, name, new NullKeyProvider());
     }
@@ -162,21 +230,59 @@ public class DatastoreImpl implements Datastore {
      * @throws IOException
      */
     public DatastoreImpl(String dir, String name, KeyProvider provider) throws SQLException, IOException, DatastoreException {
+        this(dir, name, provider, new DatastoreOptions());
+    }
+
+    /**
+     * Constructor for a datastore with the given options.
+     * @param dir The directory where the datastore will be created
+     * @param name The user-defined name of the datastore
+     * @param provider The key provider object that contains the user-defined SQLCipher key
+     * @param options Options for the datastore
+     * @throws SQLException
+     * @throws IOException
+     */
+    public DatastoreImpl(String dir, String name, KeyProvider provider, DatastoreOptions options)
+            throws SQLException, IOException, DatastoreException {
         Preconditions.checkNotNull(dir);
         Preconditions.checkNotNull(name);
         Preconditions.checkNotNull(provider);
+        Preconditions.checkNotNull(options);
 
         this.keyProvider = provider;
+        this.options = options;
         this.datastoreDir = dir;
         this.datastoreName = name;
         this.extensionsDir = FilenameUtils.concat(this.datastoreDir, "extensions");
         final String dbFilename = FilenameUtils.concat(this.datastoreDir, DB_FILE_NAME);
-        queue = new SQLDatabaseQueue(dbFilename, provider);
+        queue = new SQLDatabaseQueue(dbFilename, provider, options.getReaderConnections());
+        queue.setStatementCacheSize(options.getStatementCacheSize());
+        queue.setQueueMetrics(options.getQueueMetrics());
+        queue.setSlowTaskThreshold(options.getSlowTaskThresholdMillis(), TimeUnit.MILLISECONDS);
+        queue.setGroupCommitSize(options.getGroupCommitSize());
 
         int dbVersion = queue.getVersion();
+        if (dbVersion == 0) {
+            // Compaction frees pages with incremental_vacuum, which needs auto_vacuum set
+            // before the first table is created. Existing databases are converted by their
+            // first compaction.
+            try {
+                queue.submit(new SQLQueueCallable<Object>() {
+                    @Override
+                    public Object call(SQLDatabase db) throws Exception {
+                        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+                        return null;
+                    }
+                }).get();
+            } catch (InterruptedException e) {
+                throw new SQLException(e);
+            } catch (ExecutionException e) {
+                throw new SQLException(e);
+            }
+        }
         // Increment the hundreds position if a schema change means that older
         // versions of the code will not be able to read the migrated database.
-        int highestSupportedVersionExclusive = 300;
+        int highestSupportedVersionExclusive = 400;
         if (dbVersion >= highestSupportedVersionExclusive) {
             throw new DatastoreException(String.format("Database version is higher than the " +
                     "version supported by this library, current version %d , highest supported " +
@@ -188,10 +294,24 @@ public class DatastoreImpl implements Datastore {
         queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion6()), 6);
         queue.updateSchema(new MigrateDatabase6To100(), 100);
         queue.updateSchema(new MigrateDatabase100To200(), 200);
+        queue.updateSchema(new MigrateDatabase200To201(), 201);
+        queue.updateSchema(new MigrateDatabase201To202(), 202);
+        queue.updateSchema(new MigrateDatabase202To203(), 203);
+        if (options.getBodyEncoding() == BodyEncoding.BINARY ||
+                options.getBodyCompressionThreshold() > 0) {
+            // older versions can't read binary or compressed bodies
+            queue.updateSchema(new MigrateDatabase203To300(), 300);
+        }
         this.eventBus = new EventBus();
 
         this.attachmentsDir = this.extensionDataFolder(ATTACHMENTS_EXTENSION_NAME);
         this.attachmentStreamFactory = new AttachmentStreamFactory(this.getKeyProvider());
+        this.documentCache = options.getDocumentCacheSize() > 0 ?
+                new DocumentCache(options.getDocumentCacheSize(),
+                        options.getDocumentCacheWeight()) : null;
+        this.revsLimit = options.getRevsLimit();
+        this.bodyEncoding = options.getBodyEncoding();
+        this.bodyCompressionThreshold = options.getBodyCompressionThreshold();
     }
 
     @Override
@@ -204,13 +324,52 @@ public class DatastoreImpl implements Datastore {
         return this.keyProvider;
     }
 
+    public DatastoreOptions getOptions() {
+        return this.options;
+    }
+
+    /**
+     * @return number of tasks waiting to run on the datastore's database connection
+     * @see SQLDatabaseQueue#getQueueDepth()
+     */
+    public int getQueueDepth() {
+        return queue.getQueueDepth();
+    }
+
+    /**
+     * @return timings of the task which has been running on the datastore's database
+     * the longest, or {@code null} if none is running
+     * @see SQLDatabaseQueue#getLongestRunningTask()
+     */
+    public TaskMetrics getLongestRunningTask() {
+        return queue.getLongestRunningTask();
+    }
+
+    /**
+     * @return size and hit counts of the document cache, or {@code null} if it is
+     * disabled
+     * @see DatastoreOptions#setDocumentCache(int, long)
+     */
+    public DocumentCacheStatistics getDocumentCacheStatistics() {
+        return documentCache == null ? null : documentCache.getStatistics();
+    }
+
+    /**
+     * @return hit and miss counts of the compiled statement caches, totalled across
+     * the datastore's database connections
+     * @see DatastoreOptions#setStatementCacheSize(int)
+     */
+    public StatementCacheStatistics getStatementCacheStatistics() {
+        return queue.getStatementCacheStatistics();
+    }
+
     @Override
     public long getLastSequence() {
         Preconditions.checkState(this.isOpen(), "Database is closed");
 
         try {
 
-            return queue.submit(new SQLQueueCallable<Long>() {
+            return queue.submitRead(new SQLQueueCallable<Long>() {
                 @Override
                 public Long call(SQLDatabase db) throws Exception {
                     String sql = "SELECT MAX(sequence) FROM revs";
@@ -255,7 +414,7 @@ public class DatastoreImpl implements Datastore {
     public int getDocumentCount() {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         try {
-            return queue.submit(new SQLQueueCallable<Integer>(){
+            return queue.submitRead(new SQLQueueCallable<Integer>(){
                 @Override
                 public Integer call(SQLDatabase db) throws Exception {
                     String sql = "SELECT COUNT(DISTINCT doc_id) FROM revs WHERE current=1 AND deleted=0";
@@ -385,23 +544,112 @@ public class DatastoreImpl implements Datastore {
 
     @Override
     public DocumentRevision getDocument(final String id, final String rev) throws DocumentNotFoundException{
+        try {
+            return getDocumentAsync(id, rev).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE,"Failed to get document",e);
+        } catch (ExecutionException e) {
+            throw new DocumentNotFoundException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Submits a read of a revision of a document to the queue.
+     *
+     * @param id ID of the document
+     * @param rev revision ID, or {@code null} for the current revision
+     * @return future for the revision, failing with {@link DocumentNotFoundException} if
+     * there is no such revision
+     * @see #getDocument(String, String)
+     */
+    ListenableFuture<DocumentRevision> getDocumentAsync(final String id, final String rev) {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         Preconditions.checkArgument(!Strings.isNullOrEmpty(id), "DocumentRevisionTree id cannot " +
                 "be empty");
 
-        try {
-            return queue.submit(new SQLQueueCallable<DocumentRevision>(){
+        if (documentCache == null) {
+            return queue.submitRead(new SQLQueueCallable<DocumentRevision>() {
                 @Override
                 public DocumentRevision call(SQLDatabase db) throws Exception {
                     return getDocumentInQueue(db, id, rev);
                 }
-            }).get();
-        } catch (InterruptedException e) {
-            logger.log(Level.SEVERE,"Failed to get document",e);
-        } catch (ExecutionException e) {
-            throw new DocumentNotFoundException(e);
+            });
         }
-        return null;
+
+        DocumentRevision cached = documentCache.get(id, rev);
+        if (cached != null) {
+            return Futures.immediateFuture(cached);
+        }
+        final long generation = documentCache.getGeneration();
+        return queue.submitRead(new SQLQueueCallable<DocumentRevision>() {
+            @Override
+            public DocumentRevision call(SQLDatabase db) throws Exception {
+                DocumentRevision revision = getDocumentInQueue(db, id, rev);
+                documentCache.put(revision, generation);
+                return revision;
+            }
+        });
+    }
+
+    /**
+     * Submits a write to the queue, discarding the cached revisions of the documents it
+     * writes to from inside the write, so before its future completes, and not caching
+     * them again until it has been committed or rolled back.
+     *
+     * @param write write to run in a transaction
+     * @param docIds IDs of the documents the write changes
+     * @return future for the result of {@code write}
+     */
+    private <T> ListenableFuture<T> submitWrite(SQLQueueCallable<T> write,
+                                                Collection<String> docIds) {
+        return submitWrite(write, null, docIds);
+    }
+
+    /**
+     * @param priority lane to submit the write to, or {@code null} for the current
+     *                 thread's priority
+     * @see #submitWrite(SQLQueueCallable, Collection)
+     */
+    private <T> ListenableFuture<T> submitWrite(final SQLQueueCallable<T> write,
+                                                SQLDatabaseQueue.Priority priority,
+                                                final Collection<String> docIds) {
+        if (documentCache == null) {
+            return priority == null ? queue.submitTransaction(write) :
+                    queue.submitTransaction(write, priority);
+        }
+        // a grouped write may be run again if its group's transaction is lost
+        final AtomicBoolean started = new AtomicBoolean(false);
+        SQLQueueCallable<T> tracked = new SQLQueueCallable<T>() {
+            @Override
+            public T call(SQLDatabase db) throws Exception {
+                if (!started.getAndSet(true)) {
+                    documentCache.startWrite(docIds);
+                }
+                return write.call(db);
+            }
+        };
+        final ListenableFuture<T> future = priority == null ?
+                queue.submitTransaction(tracked) : queue.submitTransaction(tracked, priority);
+        // completes after finishWrite, so reads made once the write has returned can
+        // be cached
+        final SettableFuture<T> written = SettableFuture.create();
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (started.get()) {
+                    documentCache.finishWrite(docIds);
+                }
+                try {
+                    written.set(Uninterruptibles.getUninterruptibly(future));
+                } catch (ExecutionException e) {
+                    written.setException(e.getCause());
+                } catch (CancellationException e) {
+                    written.cancel(false);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return written;
     }
 
     /**
@@ -416,7 +664,7 @@ public class DatastoreImpl implements Datastore {
     public DocumentRevisionTree getAllRevisionsOfDocument(final String docId) {
 
         try {
-            return queue.submit(new SQLQueueCallable<DocumentRevisionTree>() {
+            return queue.submitRead(new SQLQueueCallable<DocumentRevisionTree>() {
                 @Override
                 public DocumentRevisionTree call(SQLDatabase db) throws Exception {
 
@@ -442,12 +690,13 @@ public class DatastoreImpl implements Datastore {
 
         try {
             DocumentRevisionTree tree = new DocumentRevisionTree();
+            List<DocumentRevision> revisions = new ArrayList<DocumentRevision>();
             cursor = db.rawQuery(sql, args);
             while (cursor.moveToNext()) {
-                long sequence = cursor.getLong(3);
-                List<? extends Attachment> atts = AttachmentManager.attachmentsForRevision(db,
-                        this.attachmentsDir, this.attachmentStreamFactory, sequence);
-                DocumentRevision rev = getFullRevisionFromCurrentCursor(cursor, atts);
+                revisions.add(getFullRevisionFromCurrentCursor(cursor, null));
+            }
+            addAttachments(db, revisions);
+            for (DocumentRevision rev : revisions) {
                 logger.finer("Rev: " + rev);
                 tree.add(rev);
             }
@@ -461,45 +710,112 @@ public class DatastoreImpl implements Datastore {
 
     }
 
-
-    @Override
-    public Changes changes(long since, final int limit) {
+    /**
+     * <p>Returns the {@code DocumentRevisionTree}s of several documents, reading only the
+     * metadata of each revision.</p>
+     *
+     * <p>The revisions in the trees have no attachments, and read their body from the
+     * datastore the first time {@link DocumentRevision#getBody()} is called. This makes
+     * building trees to find leaves or paths much cheaper than
+     * {@link #getAllRevisionsOfDocument(String)}, which reads the body of every revision.</p>
+     *
+     * @param docIds ids of the documents
+     * @return trees keyed by document id. Documents which don't exist are not included.
+     * @throws DatastoreException if there was an error reading the revisions
+     */
+    public Map<String, DocumentRevisionTree> getRevisionTreesWithoutBodies(
+            final Collection<String> docIds) throws DatastoreException {
         Preconditions.checkState(this.isOpen(), "Database is closed");
-        Preconditions.checkArgument(limit > 0, "Limit must be positive number");
-        final long verifiedSince = since >= 0 ? since : 0;
+        Preconditions.checkNotNull(docIds, "Input document id list can not be null");
+        try {
+            return queue.submitRead(new SQLQueueCallable<Map<String, DocumentRevisionTree>>() {
+                @Override
+                public Map<String, DocumentRevisionTree> call(SQLDatabase db) throws Exception {
+                    Map<String, DocumentRevisionTree> trees =
+                            new HashMap<String, DocumentRevisionTree>();
+                    for (List<String> batch : Lists.partition(new ArrayList<String>(docIds),
+                            SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+                        getRevisionTreesWithoutBodiesInQueue(db, batch, trees);
+                    }
+                    return trees;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to get revision trees", e);
+            throw new DatastoreException(e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to get revision trees", e);
+            throw new DatastoreException(e);
+        }
+    }
+
+    private void getRevisionTreesWithoutBodiesInQueue(SQLDatabase db, List<String> docIds,
+                                                      Map<String, DocumentRevisionTree> trees)
+            throws DatastoreException {
+        // ordering by sequence means parents are added to a tree before their children
+        String sql = String.format("SELECT " + METADATA_COLS + " FROM revs, docs " +
+                "WHERE docs.docid IN (%s) AND revs.doc_id = docs.doc_id ORDER BY sequence ASC",
+                DatabaseUtils.makePlaceholders(docIds.size()));
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, docIds.toArray(new String[docIds.size()]));
+            while (cursor.moveToNext()) {
+                DocumentRevision rev = getLazyBodyRevisionFromCurrentCursor(cursor);
+                DocumentRevisionTree tree = trees.get(rev.getId());
+                if (tree == null) {
+                    tree = new DocumentRevisionTree();
+                    trees.put(rev.getId(), tree);
+                }
+                tree.add(rev);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error getting revision trees", e);
+            throw new DatastoreException("Error getting revision trees", e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
 
+    /**
+     * Reads the body of a revision, for {@link LazyBodyDocumentRevision}.
+     *
+     * @param sequence sequence of the revision
+     * @return the revision's body
+     * @throws IllegalStateException if the body could not be read
+     */
+    DocumentBody getBodyForSequence(final long sequence) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
         try {
-            return queue.submit(new SQLQueueCallable<Changes>() {
+            return queue.submitRead(new SQLQueueCallable<DocumentBody>() {
                 @Override
-                public Changes call(SQLDatabase db) throws Exception {
-                    String[] args = {Long.toString(verifiedSince), Long.toString(verifiedSince + limit)};
+                public DocumentBody call(SQLDatabase db) throws Exception {
                     Cursor cursor = null;
                     try {
-                        Long lastSequence = verifiedSince;
-                        List<Long> ids = new ArrayList<Long>();
-                        cursor = db.rawQuery(SQL_CHANGE_IDS_SINCE_LIMIT, args);
-                        while (cursor.moveToNext()) {
-                            ids.add(cursor.getLong(0));
-                            lastSequence = Math.max(lastSequence, cursor.getLong(1));
+                        cursor = db.rawQuery("SELECT json FROM revs WHERE sequence=?",
+                                new String[]{Long.toString(sequence)});
+                        if (!cursor.moveToFirst()) {
+                            throw new DocumentNotFoundException(String.format(Locale.ENGLISH,
+                                    "No revision found with sequence %d", sequence));
                         }
-                        List<DocumentRevision> results = getDocumentsWithInternalIdsInQueue(db, ids);
-                        if(results.size() != ids.size()) {
-                            throw new IllegalStateException(String.format(Locale.ENGLISH,
-                                    "The number of documents does not match number of ids, " +
-                                    "something must be wrong here. Number of IDs: %s, number of documents: %s",
-                                    ids.size(),
-                                    results.size()
-                                    ));
-                        }
-
-                        return new Changes(lastSequence, results);
-                    } catch (SQLException e) {
-                        throw new IllegalStateException("Error querying all changes since: " + verifiedSince + ", limit: " + limit, e);
+                        return DocumentBodyImpl.storedBodyWith(cursor.getBlob(0));
                     } finally {
                         DatabaseUtils.closeCursorQuietly(cursor);
                     }
                 }
             }).get();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted reading body of revision " + sequence, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to read body of revision " + sequence,
+                    e.getCause());
+        }
+    }
+
+
+    @Override
+    public Changes changes(long since, final int limit) {
+        try {
+            return changesAsync(since, limit).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE, "Failed to get changes",e);
         } catch (ExecutionException e) {
@@ -513,6 +829,58 @@ public class DatastoreImpl implements Datastore {
 
     }
 
+    @Override
+    public ChangesIterator changesIterator(long since, int pageSize) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        return new ChangesIterator(this, since, pageSize);
+    }
+
+    /**
+     * Submits a read of changes to the queue.
+     *
+     * @param since sequence number to return changes after
+     * @param limit maximum number of changes to return
+     * @return future for the changes
+     * @see #changes(long, int)
+     */
+    ListenableFuture<Changes> changesAsync(long since, final int limit) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(limit > 0, "Limit must be positive number");
+        final long verifiedSince = since >= 0 ? since : 0;
+
+        return queue.submitRead(new SQLQueueCallable<Changes>() {
+            @Override
+            public Changes call(SQLDatabase db) throws Exception {
+                String[] args = {Long.toString(verifiedSince), Long.toString(verifiedSince + limit)};
+                Cursor cursor = null;
+                try {
+                    Long lastSequence = verifiedSince;
+                    List<Long> ids = new ArrayList<Long>();
+                    cursor = db.rawQuery(SQL_CHANGE_IDS_SINCE_LIMIT, args);
+                    while (cursor.moveToNext()) {
+                        ids.add(cursor.getLong(0));
+                        lastSequence = Math.max(lastSequence, cursor.getLong(1));
+                    }
+                    List<DocumentRevision> results = getDocumentsWithInternalIdsInQueue(db, ids);
+                    if(results.size() != ids.size()) {
+                        throw new IllegalStateException(String.format(Locale.ENGLISH,
+                                "The number of documents does not match number of ids, " +
+                                "something must be wrong here. Number of IDs: %s, number of documents: %s",
+                                ids.size(),
+                                results.size()
+                                ));
+                    }
+
+                    return new Changes(lastSequence, results);
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Error querying all changes since: " + verifiedSince + ", limit: " + limit, e);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        });
+    }
+
     /**
      * Get list of documents for given list of numeric ids. The result list is ordered by sequence number,
      * and only the current revisions are returned.
@@ -524,7 +892,7 @@ public class DatastoreImpl implements Datastore {
         Preconditions.checkNotNull(docIds, "Input document internal id list cannot be null");
 
         try {
-            return queue.submit(new SQLQueueCallable<List<DocumentRevision>>() {
+            return queue.submitRead(new SQLQueueCallable<List<DocumentRevision>>() {
                 @Override
                 public List<DocumentRevision> call(SQLDatabase db) throws Exception {
                     return getDocumentsWithInternalIdsInQueue(db, docIds);
@@ -541,7 +909,7 @@ public class DatastoreImpl implements Datastore {
     }
 
     private List<DocumentRevision> getDocumentsWithInternalIdsInQueue(SQLDatabase db,
-                                                                           final List<Long> docIds)
+                                                                           List<Long> docIds)
             throws AttachmentException, DocumentNotFoundException, DocumentException, DatastoreException {
 
         if(docIds.size() == 0) {
@@ -557,6 +925,21 @@ public class DatastoreImpl implements Datastore {
         // so we use a value much lower.
         List<DocumentRevision> result = new ArrayList<DocumentRevision>(docIds.size());
 
+        if (docIds.size() > TEMP_TABLE_LOOKUP_THRESHOLD) {
+            try {
+                fillTempTable(db, TEMP_DOC_NUMERIC_IDS_TABLE,
+                        "INSERT OR IGNORE INTO temp_doc_numeric_ids (lookup_doc_id) VALUES (?)",
+                        docIds);
+                result.addAll(getRevisionsFromRawQuery(db, "SELECT " + FULL_DOCUMENT_COLS +
+                        " FROM temp_doc_numeric_ids, revs, docs" +
+                        " WHERE revs.doc_id = lookup_doc_id AND current = 1" +
+                        " AND docs.doc_id = revs.doc_id", new String[0]));
+            } finally {
+                clearTempTable(db, "temp_doc_numeric_ids");
+            }
+            docIds = Collections.emptyList();
+        }
+
         List<List<Long>> batches = Lists.partition(docIds, SQLITE_QUERY_PLACEHOLDERS_LIMIT);
         for (List<Long> batch : batches) {
             String sql = String.format(
@@ -595,7 +978,7 @@ public class DatastoreImpl implements Datastore {
             throw new IllegalArgumentException("limit must be >= 0");
         }
         try {
-            return queue.submit(new SQLQueueCallable<List<DocumentRevision>>(){
+            return queue.submitRead(new SQLQueueCallable<List<DocumentRevision>>(){
                 @Override
                 public List<DocumentRevision> call(SQLDatabase db) throws Exception {
                     // Generate the SELECT statement, based on the options:
@@ -615,11 +998,144 @@ public class DatastoreImpl implements Datastore {
 
     }
 
+    @Override
+    public DocumentPage getAllDocuments(final String pageToken, final int limit,
+                                        final boolean descending) throws DatastoreException {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be > 0");
+        }
+        List<String> args = new ArrayList<String>();
+        String after = "";
+        if (pageToken != null) {
+            try {
+                args.add(Long.toString(Long.parseLong(pageToken)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page token: " + pageToken, e);
+            }
+            after = descending ? "AND docs.doc_id < ? " : "AND docs.doc_id > ? ";
+        }
+        // Seeks to the page using the docs primary key rather than skipping rows with OFFSET
+        String sql = "SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+                "WHERE deleted = 0 AND current = 1 AND docs.doc_id = revs.doc_id " + after +
+                "ORDER BY docs.doc_id " + (descending ? "DESC" : "ASC") + " LIMIT ?";
+        return getDocumentPage(sql, args, limit, true);
+    }
+
+    @Override
+    public DocumentPage getDocumentsInIdRange(String startKey, String endKey, String pageToken,
+                                              int limit, boolean descending)
+            throws DatastoreException {
+        if (descending) {
+            return getDocumentsInIdRange(endKey, true, startKey, true, pageToken, limit, true);
+        } else {
+            return getDocumentsInIdRange(startKey, true, endKey, true, pageToken, limit, false);
+        }
+    }
+
+    @Override
+    public DocumentPage getDocumentsWithIdPrefix(String prefix, String pageToken, int limit,
+                                                 boolean descending)
+            throws DatastoreException {
+        Preconditions.checkNotNull(prefix, "prefix cannot be null");
+        return getDocumentsInIdRange(prefix, true, prefixUpperBound(prefix), false, pageToken,
+                limit, descending);
+    }
+
+    /**
+     * Reads a page of documents with IDs between {@code lower} and {@code upper}, using the
+     * docs_docid index for both the range and the order.
+     */
+    private DocumentPage getDocumentsInIdRange(String lower, boolean lowerInclusive,
+                                              String upper, boolean upperInclusive,
+                                              String pageToken, int limit, boolean descending)
+            throws DatastoreException {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be > 0");
+        }
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<String>();
+        if (lower != null) {
+            where.append(lowerInclusive ? "AND docs.docid >= ? " : "AND docs.docid > ? ");
+            args.add(lower);
+        }
+        if (upper != null) {
+            where.append(upperInclusive ? "AND docs.docid <= ? " : "AND docs.docid < ? ");
+            args.add(upper);
+        }
+        if (pageToken != null) {
+            where.append(descending ? "AND docs.docid < ? " : "AND docs.docid > ? ");
+            args.add(pageToken);
+        }
+        String sql = "SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+                "WHERE deleted = 0 AND current = 1 AND docs.doc_id = revs.doc_id " + where +
+                "ORDER BY docs.docid " + (descending ? "DESC" : "ASC") + " LIMIT ?";
+        return getDocumentPage(sql, args, limit, false);
+    }
+
+    /**
+     * Runs a page query, which must take the page size as its last argument, reading one
+     * more row than {@code limit} to find out whether there is a following page.
+     *
+     * @param byInternalId whether the page is ordered by the internal document ID, rather
+     *                     than document ID, which determines the token for the next page
+     */
+    private DocumentPage getDocumentPage(final String sql, final List<String> args,
+                                         final int limit, final boolean byInternalId)
+            throws DatastoreException {
+        args.add(Integer.toString(limit + 1));
+        try {
+            return queue.submitRead(new SQLQueueCallable<DocumentPage>() {
+                @Override
+                public DocumentPage call(SQLDatabase db) throws Exception {
+                    List<DocumentRevision> results = getRevisionsFromRawQuery(db, sql,
+                            args.toArray(new String[args.size()]));
+                    if (results.size() <= limit) {
+                        return new DocumentPage(results, null);
+                    }
+                    results = new ArrayList<DocumentRevision>(results.subList(0, limit));
+                    DocumentRevision last = results.get(limit - 1);
+                    return new DocumentPage(results, byInternalId ?
+                            Long.toString(last.getInternalNumericId()) : last.getId());
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to get page of documents", e);
+            throw new DatastoreException(e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to get page of documents", e);
+            throw new DatastoreException(e);
+        }
+    }
+
+    /**
+     * Returns the smallest string greater than every string starting with {@code prefix},
+     * in the code point order SQLite uses to compare UTF-8 text, or {@code null} if there
+     * is no such string.
+     */
+    static String prefixUpperBound(String prefix) {
+        int end = prefix.length();
+        while (end > 0) {
+            int codePoint = prefix.codePointBefore(end);
+            int start = end - Character.charCount(codePoint);
+            if (codePoint < Character.MAX_CODE_POINT) {
+                int next = codePoint + 1;
+                if (next >= Character.MIN_SURROGATE && next <= Character.MAX_SURROGATE) {
+                    next = Character.MAX_SURROGATE + 1;
+                }
+                return prefix.substring(0, start) + new String(Character.toChars(next));
+            }
+            end = start;
+        }
+        return null;
+    }
+
     @Override
     public List<String> getAllDocumentIds() {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         try {
-            return queue.submit(new GetAllDocumentIdsCallable()).get();
+            return queue.submitRead(new GetAllDocumentIdsCallable()).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to get all document ids",e);
         } catch (ExecutionException e) {
@@ -631,21 +1147,8 @@ public class DatastoreImpl implements Datastore {
     @Override
     public List<DocumentRevision> getDocumentsWithIds(final List<String> docIds)  throws
             DocumentException {
-        Preconditions.checkState(this.isOpen(), "Database is closed");
-        Preconditions.checkNotNull(docIds, "Input document id list cannot be null");
         try {
-            return queue.submit(new SQLQueueCallable<List<DocumentRevision>>(){
-                @Override
-                public List<DocumentRevision> call(SQLDatabase db) throws Exception {
-                    String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs" +
-                            " WHERE docid IN ( %1$s ) AND current = 1 AND docs.doc_id = revs.doc_id " +
-                            " ORDER BY docs.doc_id ", DatabaseUtils.makePlaceholders(docIds.size()));
-                    String[] args = docIds.toArray(new String[docIds.size()]);
-                    List<DocumentRevision> docs = getRevisionsFromRawQuery(db,sql, args);
-                    // Sort in memory since seems not able to sort them using SQL
-                    return sortDocumentsAccordingToIdList(docIds, docs);
-                }
-            }).get();
+            return getDocumentsWithIdsAsync(docIds).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE, "Failed to get documents with ids", e);
             throw new DocumentException("Failed to get documents with ids", e);
@@ -655,11 +1158,49 @@ public class DatastoreImpl implements Datastore {
         }
     }
 
+    /**
+     * Submits a read of the current revisions of documents to the queue.
+     *
+     * @param docIds IDs of the documents
+     * @return future for the revisions, in the order of {@code docIds}
+     * @see #getDocumentsWithIds(List)
+     */
+    ListenableFuture<List<DocumentRevision>> getDocumentsWithIdsAsync(final List<String> docIds) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(docIds, "Input document id list cannot be null");
+        return queue.submitRead(new SQLQueueCallable<List<DocumentRevision>>(){
+            @Override
+            public List<DocumentRevision> call(SQLDatabase db) throws Exception {
+                List<DocumentRevision> docs;
+                if (docIds.size() > TEMP_TABLE_LOOKUP_THRESHOLD) {
+                    try {
+                        fillTempTable(db, TEMP_DOCIDS_TABLE,
+                                "INSERT OR IGNORE INTO temp_docids (lookup_docid) VALUES (?)",
+                                docIds);
+                        docs = getRevisionsFromRawQuery(db, "SELECT " + FULL_DOCUMENT_COLS +
+                                " FROM temp_docids, docs, revs WHERE docs.docid = lookup_docid" +
+                                " AND revs.doc_id = docs.doc_id AND current = 1", new String[0]);
+                    } finally {
+                        clearTempTable(db, "temp_docids");
+                    }
+                } else {
+                    String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs" +
+                            " WHERE docid IN ( %1$s ) AND current = 1 AND docs.doc_id = revs.doc_id " +
+                            " ORDER BY docs.doc_id ", DatabaseUtils.makePlaceholders(docIds.size()));
+                    String[] args = docIds.toArray(new String[docIds.size()]);
+                    docs = getRevisionsFromRawQuery(db, sql, args);
+                }
+                // Sort in memory since seems not able to sort them using SQL
+                return sortDocumentsAccordingToIdList(docIds, docs);
+            }
+        });
+    }
+
     public List<String> getPossibleAncestorRevisionIDs(final String docId,
                                                        final String revId,
                                                        final int limit) {
         try {
-            return queue.submit(new GetPossibleAncestorRevisionIdsCallable(docId, revId, limit)).get();
+            return queue.submitRead(new GetPossibleAncestorRevisionIdsCallable(docId, revId, limit)).get();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } catch (ExecutionException e) {
@@ -702,7 +1243,7 @@ public class DatastoreImpl implements Datastore {
     public LocalDocument getLocalDocument(final String docId) throws DocumentNotFoundException {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         try {
-            return queue.submit(new SQLQueueCallable<LocalDocument>(){
+            return queue.submitRead(new SQLQueueCallable<LocalDocument>(){
                 @Override
                 public LocalDocument call(SQLDatabase db) throws Exception {
                     return doGetLocalDocument(db, docId);
@@ -761,7 +1302,7 @@ public class DatastoreImpl implements Datastore {
         }
         callable.deleted = false;
         callable.current = true;
-        callable.data = body.asBytes();
+        callable.data = storedBody(body);
         callable.available = true;
         callable.call(db);
 
@@ -851,6 +1392,7 @@ public class DatastoreImpl implements Datastore {
 
         this.setCurrent(db, preRevision.getSequence(), false);
         String newRevisionId = this.insertNewWinnerRevision(db, body, preRevision);
+        stemRevisionsInQueue(db, preRevision.getInternalNumericId(), newRevisionId);
         return this.getDocumentInQueue(db, preRevision.getId(), newRevisionId);
     }
 
@@ -905,6 +1447,7 @@ public class DatastoreImpl implements Datastore {
         callable.data = JSONUtils.emptyJSONObjectAsBytes();
         callable.available = false;
         callable.call(db);
+        stemRevisionsInQueue(db, prevRevision.getInternalNumericId(), newRevisionId);
 
 
         try {
@@ -984,7 +1527,7 @@ public class DatastoreImpl implements Datastore {
             if (cursor.moveToFirst()) {
                 byte[] json = cursor.getBlob(0);
 
-                return new LocalDocument(docId, DocumentBodyImpl.bodyWith(json));
+                return new LocalDocument(docId, DocumentBodyImpl.trustedBodyWith(json));
             } else {
                 throw new DocumentNotFoundException(String.format("No local document found with id: %s", docId));
             }
@@ -1003,10 +1546,8 @@ public class DatastoreImpl implements Datastore {
         try {
             cursor = db.rawQuery(sql, args);
             while (cursor.moveToNext()) {
-                long sequence = cursor.getLong(3);
-                List<? extends Attachment> atts = AttachmentManager.attachmentsForRevision(db,
-                        this.attachmentsDir, this.attachmentStreamFactory, sequence);
-                DocumentRevision row = getFullRevisionFromCurrentCursor(cursor, atts);
+                // attachments are added below, once all the sequences are known
+                DocumentRevision row = getFullRevisionFromCurrentCursor(cursor, null);
                 result.add(row);
             }
         } catch (SQLException e) {
@@ -1014,15 +1555,37 @@ public class DatastoreImpl implements Datastore {
         } finally {
             DatabaseUtils.closeCursorQuietly(cursor);
         }
+        addAttachments(db, result);
         return result;
     }
 
     /**
-     * <p>Returns the datastore's unique identifier.</p>
-     *
-     * <p>This is used for the checkpoint document in a remote datastore
-     * during replication.</p>
-     *
+     * Adds their attachments to revisions read without them, querying the attachments of
+     * many revisions at once rather than one revision at a time.
+     */
+    private void addAttachments(SQLDatabase db, Collection<DocumentRevision> revisions)
+            throws AttachmentException {
+        if (revisions.isEmpty()) {
+            return;
+        }
+        List<Long> sequences = new ArrayList<Long>(revisions.size());
+        for (DocumentRevision revision : revisions) {
+            sequences.add(revision.getSequence());
+        }
+        Map<Long, List<SavedAttachment>> attachments = AttachmentManager
+                .attachmentsForRevisions(db, this.attachmentsDir, this.attachmentStreamFactory,
+                        sequences);
+        for (DocumentRevision revision : revisions) {
+            revision.setAttachmentsInternal(attachments.get(revision.getSequence()));
+        }
+    }
+
+    /**
+     * <p>Returns the datastore's unique identifier.</p>
+     *
+     * <p>This is used for the checkpoint document in a remote datastore
+     * during replication.</p>
+     *
      * @return a unique identifier for the datastore.
      * @throws DatastoreException if there was an error retrieving the unique identifier from the
      * database
@@ -1030,7 +1593,7 @@ public class DatastoreImpl implements Datastore {
     public String getPublicIdentifier() throws DatastoreException {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         try {
-            return queue.submit(new SQLQueueCallable < String > () {
+            return queue.submitRead(new SQLQueueCallable < String > () {
                 @Override
                 public String call(SQLDatabase db) throws Exception {
                     Cursor cursor = null;
@@ -1132,6 +1695,31 @@ public class DatastoreImpl implements Datastore {
      * into the database
      */
     public void forceInsert(final List<ForceInsertItem> items) throws DocumentException {
+        try {
+            List<DocumentModified> events = forceInsertAsync(items).get();
+
+            // if we got here, everything got written to the database successfully
+            // now raise any events we stored up
+            for(DocumentModified event : events) {
+                eventBus.post(event);
+            }
+
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new DocumentException(e);
+        }
+
+    }
+
+    /**
+     * Submits the insertion of revisions with existing revision IDs to the queue.
+     *
+     * @param items the revisions to insert
+     * @return future for the events to post once the revisions have been inserted
+     * @see #forceInsert(List)
+     */
+    ListenableFuture<List<DocumentModified>> forceInsertAsync(final List<ForceInsertItem> items) {
         Preconditions.checkState(this.isOpen(), "Database is closed");
 
         for (ForceInsertItem item : items) {
@@ -1150,122 +1738,113 @@ public class DatastoreImpl implements Datastore {
         // for raising events after completing database transaction
         final List<DocumentModified> events = new LinkedList<DocumentModified>();
 
-        try {
-            queue.submitTransaction(new SQLQueueCallable<Object>() {
-                @Override
-                public Object call(SQLDatabase db) throws Exception {
-                    for (ForceInsertItem item : items) {
+        List<String> docIds = new ArrayList<String>(items.size());
+        for (ForceInsertItem item : items) {
+            docIds.add(item.rev.getId());
+        }
 
-                        logger.finer("forceInsert(): " + item.rev.toString());
+        return submitWrite(new SQLQueueCallable<List<DocumentModified>>() {
+            @Override
+            public List<DocumentModified> call(SQLDatabase db) throws Exception {
+                for (ForceInsertItem item : items) {
 
-                        DocumentCreated documentCreated = null;
-                        DocumentUpdated documentUpdated = null;
+                    logger.finer("forceInsert(): " + item.rev.toString());
 
-                        boolean ok = true;
+                    DocumentCreated documentCreated = null;
+                    DocumentUpdated documentUpdated = null;
 
-                        long docNumericId = getNumericIdInQueue(db, item.rev.getId());
-                        long seq = 0;
+                    boolean ok = true;
 
-                        if (docNumericId != -1) {
-                            seq = doForceInsertExistingDocumentWithHistory(db, item.rev, docNumericId, item.revisionHistory,
-                                    item.attachments);
-                            item.rev.initialiseSequence(seq);
-                            // TODO fetch the parent doc?
-                            documentUpdated = new DocumentUpdated(null, item.rev);
-                        } else {
-                            seq = doForceInsertNewDocumentWithHistory(db, item.rev, item.revisionHistory);
-                            item.rev.initialiseSequence(seq);
-                            documentCreated = new DocumentCreated(item.rev);
-                        }
+                    long docNumericId = getNumericIdInQueue(db, item.rev.getId());
+                    long seq = 0;
 
-                        // now deal with any attachments
-                        if (item.pullAttachmentsInline) {
-                            if (item.attachments != null) {
-                                for (String att : item.attachments.keySet()) {
-                                    Map attachmentMetadata = (Map) item.attachments.get(att);
-                                    Boolean stub = (Boolean) attachmentMetadata.get("stub");
+                    if (docNumericId != -1) {
+                        seq = doForceInsertExistingDocumentWithHistory(db, item.rev, docNumericId, item.revisionHistory,
+                                item.attachments);
+                        item.rev.initialiseSequence(seq);
+                        // TODO fetch the parent doc?
+                        documentUpdated = new DocumentUpdated(null, item.rev);
+                    } else {
+                        seq = doForceInsertNewDocumentWithHistory(db, item.rev, item.revisionHistory);
+                        item.rev.initialiseSequence(seq);
+                        documentCreated = new DocumentCreated(item.rev);
+                    }
 
-                                    if (stub != null && stub) {
-                                    // stubs get copied forward at the end of
-                                    // insertDocumentHistoryIntoExistingTree - nothing to do here
-                                    continue;
-                                }
-                                String data = (String) attachmentMetadata.get("data");
-                                String type = (String) attachmentMetadata.get("content_type");
-                                InputStream is = Base64InputStreamFactory.get(new
-                                        ByteArrayInputStream(data.getBytes("UTF-8")));
-                                // inline attachments are automatically decompressed,
-                                // so we don't have to worry about that
-                                UnsavedStreamAttachment usa = new UnsavedStreamAttachment(is,
-                                        att, type);
-                                    try {
-                                        PreparedAttachment pa = AttachmentManager.prepareAttachment(
-                                                attachmentsDir, attachmentStreamFactory, usa);
-                                        AttachmentManager.addAttachment(db, attachmentsDir, item.rev, pa);
-                                    } catch (Exception e) {
-                                        logger.log(Level.SEVERE, "There was a problem adding the " +
-                                                        "attachment "
-                                                        + usa + "to the datastore for document " + item.rev,
-                                                e);
-                                        throw e;
-                                    }
+                    // now deal with any attachments
+                    if (item.pullAttachmentsInline) {
+                        if (item.attachments != null) {
+                            for (String att : item.attachments.keySet()) {
+                                Map attachmentMetadata = (Map) item.attachments.get(att);
+                                Boolean stub = (Boolean) attachmentMetadata.get("stub");
+
+                                if (stub != null && stub) {
+                                // stubs get copied forward at the end of
+                                // insertDocumentHistoryIntoExistingTree - nothing to do here
+                                continue;
                             }
+                            String data = (String) attachmentMetadata.get("data");
+                            String type = (String) attachmentMetadata.get("content_type");
+                            InputStream is = Base64InputStreamFactory.get(new
+                                    ByteArrayInputStream(data.getBytes("UTF-8")));
+                            // inline attachments are automatically decompressed,
+                            // so we don't have to worry about that
+                            UnsavedStreamAttachment usa = new UnsavedStreamAttachment(is,
+                                    att, type);
+                                try {
+                                    PreparedAttachment pa = AttachmentManager.prepareAttachment(
+                                            attachmentsDir, attachmentStreamFactory, usa);
+                                    AttachmentManager.addAttachment(db, attachmentsDir, item.rev, pa);
+                                } catch (Exception e) {
+                                    logger.log(Level.SEVERE, "There was a problem adding the " +
+                                                    "attachment "
+                                                    + usa + "to the datastore for document " + item.rev,
+                                            e);
+                                    throw e;
+                                }
                         }
-                        } else {
+                    }
+                    } else {
 
-                            try {
-                                if (item.preparedAttachments != null) {
-                                    for (String[] key : item.preparedAttachments.keySet()) {
-                                        String id = key[0];
-                                        String rev = key[1];
-                                        try {
-                                            DocumentRevision doc = getDocumentInQueue(db, id, rev);
-                                            if (doc != null) {
-                                                AttachmentManager.addAttachmentsToRevision(db,
-                                                        attachmentsDir, doc, item.preparedAttachments.get(key));
-                                            }
-                                        } catch (DocumentNotFoundException e) {
-                                            //safe to continue, previously getDocumentInQueue could return
-                                            // null and this was deemed safe and expected behaviour
-                                            // DocumentNotFoundException is thrown instead of returning
-                                        // null now.
-                                        continue;
-                                    }
+                        try {
+                            if (item.preparedAttachments != null) {
+                                for (String[] key : item.preparedAttachments.keySet()) {
+                                    String id = key[0];
+                                    String rev = key[1];
+                                    try {
+                                        DocumentRevision doc = getDocumentInQueue(db, id, rev);
+                                        if (doc != null) {
+                                            AttachmentManager.addAttachmentsToRevision(db,
+                                                    attachmentsDir, doc, item.preparedAttachments.get(key));
+                                        }
+                                    } catch (DocumentNotFoundException e) {
+                                        //safe to continue, previously getDocumentInQueue could return
+                                        // null and this was deemed safe and expected behaviour
+                                        // DocumentNotFoundException is thrown instead of returning
+                                    // null now.
+                                    continue;
                                 }
                             }
-                        } catch (Exception e) {
-                            logger.log(Level.SEVERE, "There was a problem adding an " +
-                                    "attachment to the datastore", e);
-                            throw e;
                         }
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, "There was a problem adding an " +
+                                "attachment to the datastore", e);
+                        throw e;
+                    }
 
 
-                        }
-                        if (ok) {
-                            logger.log(Level.FINER, "Inserted revision: %s", item.rev);
-                            if (documentCreated != null) {
-                                events.add(documentCreated);
-                            } else if (documentUpdated != null) {
-                                events.add(documentUpdated);
-                            }
+                    }
+                    if (ok) {
+                        logger.log(Level.FINER, "Inserted revision: %s", item.rev);
+                        if (documentCreated != null) {
+                            events.add(documentCreated);
+                        } else if (documentUpdated != null) {
+                            events.add(documentUpdated);
                         }
                     }
-                    return null;
                 }
-            }).get();
-
-            // if we got here, everything got written to the database successfully
-            // now raise any events we stored up
-            for(DocumentModified event : events) {
-                eventBus.post(event);
+                return events;
             }
-
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } catch (ExecutionException e) {
-            throw new DocumentException(e);
-        }
-
+        }, SQLDatabaseQueue.Priority.BACKGROUND, docIds);
     }
 
     /**
@@ -1326,20 +1905,36 @@ public class DatastoreImpl implements Datastore {
         Preconditions.checkNotNull(revisions, "Revision history should not be null.");
         Preconditions.checkArgument(revisions.size() > 0, "Revision history should have at least one revision." );
 
-        // do we have a common ancestor?
-        long ancestorSequence = getSequenceInQueue(db, newRevision.getId(), revisions.get(0));
+        // do we have a common ancestor? Search from the newest revision in the history, as
+        // older revisions may have been stemmed from the local tree.
+        int ancestorIndex = revisions.size() - 1;
+        long ancestorSequence = -1;
+        while (ancestorSequence == -1 && --ancestorIndex >= 0) {
+            ancestorSequence = getSequenceInQueue(db, newRevision.getId(),
+                    revisions.get(ancestorIndex));
+        }
 
         long sequence;
 
         if(ancestorSequence == -1) {
             sequence = insertDocumentHistoryToNewTree(db,newRevision, revisions, docNumericId);
         } else {
-            sequence = insertDocumentHistoryIntoExistingTree(db,newRevision, revisions, docNumericId, attachments);
+            sequence = insertDocumentHistoryIntoExistingTree(db,newRevision,
+                    revisions.subList(ancestorIndex + 1, revisions.size()), ancestorSequence,
+                    docNumericId, attachments);
         }
+        stemRevisionsInQueue(db, docNumericId, newRevision.getRevision());
         return sequence;
     }
 
+    /**
+     * @param revisions revision history to insert after the common ancestor, sorted in
+     *                  ascending order, ending with the revision of {@code newRevision}
+     * @param ancestorSequence sequence of the newest revision of the history which exists
+     *                         in the tree
+     */
     private long insertDocumentHistoryIntoExistingTree(SQLDatabase db, DocumentRevision newRevision, List<String> revisions,
+                                                       long ancestorSequence,
                                                        Long docNumericID,
                                                        Map<String, Object> attachments)
             throws AttachmentException, DocumentNotFoundException, DatastoreException {
@@ -1348,16 +1943,12 @@ public class DatastoreImpl implements Datastore {
         long previousLeafSeq = getSequenceInQueue(db, newRevision.getId(), null);
         Preconditions.checkArgument(previousLeafSeq > 0, "Parent revision must exist");
 
-        // Insert the new stub revisions, going down the tree
+        // Insert the new stub revisions, going down the tree from the common ancestor
         // at the end of the loop, parentSeq will be the parent of our doc to insert
-        long parentSeq = 0L;
+        long parentSeq = ancestorSequence;
         for (int i=0; i<revisions.size()-1; i++) {
-            String revId = revisions.get(i);
-            long seq = getSequenceInQueue(db, newRevision.getId(), revId);
-            if (seq == -1) {
-                seq = insertStubRevision(db,docNumericID, revId, parentSeq);
-                this.setCurrent(db, parentSeq, false);
-            }
+            long seq = insertStubRevision(db,docNumericID, revisions.get(i), parentSeq);
+            this.setCurrent(db, parentSeq, false);
             parentSeq = seq;
         }
 
@@ -1372,7 +1963,7 @@ public class DatastoreImpl implements Datastore {
         callable.parentSequence = parentSeq;
         callable.deleted = newRevision.isDeleted();
         callable.current = false; // we'll call pickWinnerOfConflicts to set this if it needs it
-        callable.data = newRevision.asBytes();
+        callable.data = storedBody(newRevision.getBody());
         callable.available = true;
         long newLeafSeq = callable.call(db);
 
@@ -1419,7 +2010,7 @@ public class DatastoreImpl implements Datastore {
         callable.parentSequence = parentSequence;
         callable.deleted = newRevision.isDeleted();
         callable.current = false; // we'll call pickWinnerOfConflicts to set this if it needs it
-        callable.data = newRevision.asBytes();
+        callable.data = storedBody(newRevision.getBody());
         callable.available = !newRevision.isDeleted();
         long newLeafSeq = callable.call(db);
 
@@ -1451,6 +2042,10 @@ public class DatastoreImpl implements Datastore {
                 "doForceInsertNewDocumentWithHistory()",
                 new Object[]{rev, revHistory});
 
+        if (revsLimit > 0 && revHistory.size() > revsLimit) {
+            revHistory = revHistory.subList(revHistory.size() - revsLimit, revHistory.size());
+        }
+
         long docNumericID = insertDocumentID(db,rev.getId());
         long parentSequence = 0L;
         for (int i = 0; i < revHistory.size() - 1; i++) {
@@ -1464,30 +2059,149 @@ public class DatastoreImpl implements Datastore {
         callable.parentSequence = parentSequence;
         callable.deleted = rev.isDeleted();
         callable.current = true;
-        callable.data = rev.getBody().asBytes();
+        callable.data = storedBody(rev.getBody());
         callable.available = true;
         long sequence = callable.call(db);
         return sequence;
     }
 
+    /**
+     * @param body body of a revision being written, may be {@code null}
+     * @return the data to store in the {@code json} column for {@code body}
+     */
+    private byte[] storedBody(DocumentBody body) {
+        return body == null ? null :
+                DocumentBodyImpl.toStored(body, bodyEncoding, bodyCompressionThreshold);
+    }
+
+    /**
+     * @return the encoding in which revision bodies are written
+     */
+    BodyEncoding getBodyEncoding() {
+        return bodyEncoding;
+    }
+
+    /**
+     * @return the size in bytes from which revision bodies are compressed, 0 if disabled
+     */
+    int getBodyCompressionThreshold() {
+        return bodyCompressionThreshold;
+    }
+
+    /**
+     * Stems a document's tree after inserting {@code newRevId}, if the revision's
+     * generation shows the tree could be deeper than {@code revsLimit}.
+     */
+    private void stemRevisionsInQueue(SQLDatabase db, long docNumericId, String newRevId)
+            throws DatastoreException {
+        if (revsLimit > 0 && CouchUtils.generationFromRevId(newRevId) > revsLimit) {
+            stemDocumentInQueue(db, docNumericId);
+        }
+    }
+
+    /**
+     * <p>Removes revisions more than {@code revsLimit} generations above every leaf of
+     * a document's tree.</p>
+     *
+     * <p>A revision whose parent is removed becomes a root of the tree. Leaves, and so
+     * the winning revision and conflicts, are never removed.</p>
+     */
+    void stemDocumentInQueue(SQLDatabase db, long docNumericId)
+            throws DatastoreException {
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        List<Long> leaves = new ArrayList<Long>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT sequence, parent, leaf FROM revs WHERE doc_id = ?",
+                    new String[]{Long.toString(docNumericId)});
+            while (cursor.moveToNext()) {
+                long sequence = cursor.getLong(0);
+                parents.put(sequence, cursor.columnType(1) == Cursor.FIELD_TYPE_NULL ? null :
+                        cursor.getLong(1));
+                if (cursor.getInt(2) > 0) {
+                    leaves.add(sequence);
+                }
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error reading revisions to stem", e);
+            throw new DatastoreException("Error reading revisions to stem", e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+        if (parents.size() <= revsLimit) {
+            return;
+        }
+
+        Set<Long> keep = new HashSet<Long>();
+        for (Long sequence : leaves) {
+            for (int depth = 0; sequence != null && depth < revsLimit; depth++) {
+                keep.add(sequence);
+                sequence = parents.get(sequence);
+            }
+        }
+        List<String> stemmed = new ArrayList<String>();
+        for (Long sequence : parents.keySet()) {
+            if (!keep.contains(sequence)) {
+                stemmed.add(sequence.toString());
+            }
+        }
+        // the children of deleted revisions have their parent set to NULL, and the
+        // attachments of deleted revisions are deleted, by foreign key constraints
+        for (List<String> batch : Lists.partition(stemmed, SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+            db.delete("revs", "sequence IN (" + DatabaseUtils.makePlaceholders(batch.size()) +
+                    ")", batch.toArray(new String[batch.size()]));
+        }
+    }
+
+    /**
+     * @return the numeric IDs of documents in {@code (lower, upper]} with more revisions
+     *      than the revs limit, which are the documents whose history may need stemming
+     */
+    List<Long> getDocumentsToStemInQueue(SQLDatabase db, long lower, long upper)
+            throws DatastoreException {
+        List<Long> docNumericIds = new ArrayList<Long>();
+        if (revsLimit <= 0) {
+            return docNumericIds;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT doc_id FROM revs WHERE doc_id > ? AND doc_id <= ? " +
+                    "GROUP BY doc_id HAVING COUNT(*) > " + revsLimit,
+                    new String[]{Long.toString(lower), Long.toString(upper)});
+            while (cursor.moveToNext()) {
+                docNumericIds.add(cursor.getLong(0));
+            }
+            return docNumericIds;
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error finding documents to stem", e);
+            throw new DatastoreException("Error finding documents to stem", e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+
+    /**
+     * <p>Returns a compaction of this datastore which runs as a series of short tasks,
+     * so reads and writes can continue while it runs.</p>
+     *
+     * <p>The compaction does not start until {@link Compaction#start()} is called.</p>
+     *
+     * @return a new compaction
+     * @see #compact()
+     */
+    public Compaction createCompaction() {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        return new Compaction(this, queue, attachmentsDir);
+    }
+
+    /**
+     * <p>Compacts the datastore, waiting for a {@link #createCompaction() compaction}
+     * to complete.</p>
+     */
     @Override
     public void compact() {
         try {
-            queue.submit(new SQLQueueCallable<Object>() {
-                @Override
-                public Object call(SQLDatabase db) {
-                    logger.finer("Deleting JSON of old revisions...");
-                    ContentValues args = new ContentValues();
-                    args.put("json", (String) null);
-                    int i = db.update("revs", args, "current=0", null);
-
-                    logger.finer("Deleting old attachments...");
-                    AttachmentManager.purgeAttachments(db, attachmentsDir);
-                    logger.finer("Vacuuming SQLite database...");
-                    db.compactDatabase();
-                    return null;
-                }
-            }).get();
+            createCompaction().start().get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to compact database",e);
         } catch (ExecutionException e) {
@@ -1496,6 +2210,16 @@ public class DatastoreImpl implements Datastore {
 
     }
 
+    /**
+     * Discards all cached revisions, for example after the bodies of non-current
+     * revisions have been removed.
+     */
+    void clearDocumentCache() {
+        if (documentCache != null) {
+            documentCache.clear();
+        }
+    }
+
     @Override
     public void close() {
         queue.shutdown();
@@ -1536,9 +2260,12 @@ public class DatastoreImpl implements Datastore {
         Preconditions.checkNotNull(revisions, "Input revisions must not be null");
 
         try {
-            return queue.submit(new SQLQueueCallable<Map<String,Collection<String>>>(){
+            return queue.submitRead(new SQLQueueCallable<Map<String,Collection<String>>>(){
                 @Override
                 public Map<String, Collection<String>> call(SQLDatabase db) throws Exception {
+                    if (revisions.size() > TEMP_TABLE_LOOKUP_THRESHOLD) {
+                        return revsDiffWithTempTable(db, revisions).asMap();
+                    }
                     Multimap<String, String> missingRevs = ArrayListMultimap.create();
                     // Break the potentially big multimap into small ones so for each map,
                     // a single query can be use to check if the <id, revision> pairs in sqlDb or not
@@ -1619,6 +2346,56 @@ public class DatastoreImpl implements Datastore {
         }
     }
 
+    /**
+     * Returns the revisions not present in the datastore, matching each document ID and
+     * revision ID pair exactly by joining against a temporary table of the pairs.
+     */
+    private Multimap<String, String> revsDiffWithTempTable(SQLDatabase db,
+                                                           Multimap<String, String> revisions)
+            throws DatastoreException {
+        Multimap<String, String> missingRevs = ArrayListMultimap.create(revisions);
+        Cursor cursor = null;
+        try {
+            db.execSQL(TEMP_REVS_TABLE);
+            for (Map.Entry<String, String> revision : revisions.entries()) {
+                db.execSQL("INSERT OR IGNORE INTO temp_revs (lookup_docid, lookup_revid) " +
+                        "VALUES (?, ?)", new Object[]{revision.getKey(), revision.getValue()});
+            }
+            cursor = db.rawQuery("SELECT lookup_docid, lookup_revid FROM temp_revs, docs, revs " +
+                    "WHERE docs.docid = lookup_docid AND revs.doc_id = docs.doc_id " +
+                    "AND revs.revid = lookup_revid", new String[0]);
+            while (cursor.moveToNext()) {
+                missingRevs.remove(cursor.getString(0), cursor.getString(1));
+            }
+            return missingRevs;
+        } catch (SQLException e) {
+            throw new DatastoreException(e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+            clearTempTable(db, "temp_revs");
+        }
+    }
+
+    private static void fillTempTable(SQLDatabase db, String createTable, String insert,
+                                      List<?> ids) throws DatastoreException {
+        try {
+            db.execSQL(createTable);
+            for (Object id : ids) {
+                db.execSQL(insert, new Object[]{id});
+            }
+        } catch (SQLException e) {
+            throw new DatastoreException("Failed to fill temporary table", e);
+        }
+    }
+
+    private static void clearTempTable(SQLDatabase db, String table) {
+        try {
+            db.execSQL("DELETE FROM " + table);
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Failed to clear temporary table " + table, e);
+        }
+    }
+
     public String extensionDataFolder(String extensionName) {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         Preconditions.checkArgument(!Strings.isNullOrEmpty(extensionName),
@@ -1629,19 +2406,14 @@ public class DatastoreImpl implements Datastore {
     @Override
     public Iterator<String> getConflictedDocumentIds() {
 
-        // the "SELECT DISTINCT ..." subquery selects all the parent
-        // sequence, and so the outer "SELECT ..." practically selects
-        // all the leaf nodes. The "GROUP BY" and "HAVING COUNT(*) > 1"
-        // make sure only those document with more than one leafs are
-        // returned.
-        final String sql = "SELECT docs.docid, COUNT(*) FROM docs,revs " +
-                "WHERE revs.doc_id = docs.doc_id " +
-                "AND deleted = 0 AND revs.sequence NOT IN " +
-                "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) " +
-                "GROUP BY docs.docid HAVING COUNT(*) > 1";
+        // the conflicts table holds the documents with more than one non-deleted
+        // leaf revision, and is kept up to date by triggers on revs (see
+        // MigrateDatabase201To202), so only conflicted documents are read.
+        final String sql = "SELECT docs.docid FROM conflicts, docs " +
+                "WHERE docs.doc_id = conflicts.doc_id ORDER BY docs.docid";
 
         try {
-            return queue.submit(new SQLQueueCallable<Iterator<String>>() {
+            return queue.submitRead(new SQLQueueCallable<Iterator<String>>() {
                 @Override
                 public Iterator<String> call(SQLDatabase db) throws Exception {
 
@@ -1679,7 +2451,7 @@ public class DatastoreImpl implements Datastore {
 
 
         try {
-            queue.submitTransaction(new SQLQueueCallable<Object>() {
+            submitWrite(new SQLQueueCallable<Object>() {
                 @Override
                 public Object call(SQLDatabase db) throws Exception {
                     DocumentRevisionTree docTree = getAllRevisionsOfDocumentInQueue(db, docId);
@@ -1702,22 +2474,7 @@ public class DatastoreImpl implements Datastore {
                             throw new IllegalArgumentException("Winning revision must have a revision id");
                         }
 
-                        for(DocumentRevision revision : docTree.leafRevisions()) {
-                            if(revision.getRevision().equals(revIdKeep)) {
-                                // this is the one we want to keep, set it to current
-                                setCurrent(db, revision.getSequence(), true);
-                            } else {
-                                if (revision.isDeleted()) {
-                                    // if it is deleted, just make it non-current
-                                    setCurrent(db, revision.getSequence(), false);
-                                } else {
-                                    // if it's not deleted, deleted and make it non-current
-                                    DocumentRevision deleted = deleteDocumentInQueue(db,
-                                            revision.getId(), revision.getRevision());
-                                    setCurrent(db, deleted.getSequence(), false);
-                                }
-                            }
-                        }
+                        keepWinningLeafInQueue(db, docTree.leafRevisions(), revIdKeep);
 
                         // if this is a new or modified revision: graft the new revision on
                         if (newWinner.bodyModified || (newWinner.attachments != null && newWinner.attachments.hasChanged())) {
@@ -1742,7 +2499,7 @@ public class DatastoreImpl implements Datastore {
 
                     return null;
                 }
-            }).get();
+            }, Collections.singleton(docId)).get();
         } catch (InterruptedException e) {
            logger.log(Level.SEVERE, "Failed to resolve conflicts", e);
         } catch (ExecutionException e) {
@@ -1756,6 +2513,305 @@ public class DatastoreImpl implements Datastore {
 
     }
 
+    /**
+     * Deletes every leaf revision other than {@code revIdKeep}, and makes
+     * {@code revIdKeep} the current revision.
+     */
+    private void keepWinningLeafInQueue(SQLDatabase db, List<DocumentRevision> leaves,
+                                        String revIdKeep)
+            throws ConflictException, DocumentNotFoundException, DatastoreException {
+        for(DocumentRevision revision : leaves) {
+            if(revision.getRevision().equals(revIdKeep)) {
+                // this is the one we want to keep, set it to current
+                setCurrent(db, revision.getSequence(), true);
+            } else {
+                if (revision.isDeleted()) {
+                    // if it is deleted, just make it non-current
+                    setCurrent(db, revision.getSequence(), false);
+                } else {
+                    // if it's not deleted, deleted and make it non-current
+                    DocumentRevision deleted = deleteDocumentInQueue(db,
+                            revision.getId(), revision.getRevision());
+                    setCurrent(db, deleted.getSequence(), false);
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<ConflictResolutionResult> resolveConflictsForDocuments(Collection<String> docIds,
+                                                                       ConflictResolver resolver,
+                                                                       Executor executor)
+            throws DatastoreException {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(docIds, "Input document id list can not be null");
+        Preconditions.checkNotNull(resolver, "ConflictResolver cannot be null");
+        Preconditions.checkNotNull(executor, "Executor cannot be null");
+
+        List<ConflictResolutionResult> results = new ArrayList<ConflictResolutionResult>();
+        List<Future<List<ConflictResolutionResult>>> commits =
+                new ArrayList<Future<List<ConflictResolutionResult>>>();
+        try {
+            for (final List<String> batch : Lists.partition(
+                    new ArrayList<String>(new LinkedHashSet<String>(docIds)),
+                    RESOLVE_CONFLICTS_BATCH_SIZE)) {
+                Map<String, List<DocumentRevision>> leaves = queue.submitRead(
+                        new SQLQueueCallable<Map<String, List<DocumentRevision>>>() {
+                    @Override
+                    public Map<String, List<DocumentRevision>> call(SQLDatabase db)
+                            throws Exception {
+                        return getConflictedLeafRevisionsInQueue(db, batch);
+                    }
+                }).get();
+
+                // Run the resolvers outside the database queue, so they can run in parallel
+                // and don't hold up other reads and writes.
+                final List<FutureTask<ConflictResolution>> resolutions =
+                        new ArrayList<FutureTask<ConflictResolution>>(batch.size());
+                for (String docId : batch) {
+                    FutureTask<ConflictResolution> resolution = new FutureTask<ConflictResolution>(
+                            new ConflictResolution(docId, leaves.get(docId), resolver));
+                    if (leaves.containsKey(docId)) {
+                        executor.execute(resolution);
+                    } else {
+                        resolution.run();
+                    }
+                    resolutions.add(resolution);
+                }
+                for (FutureTask<ConflictResolution> resolution : resolutions) {
+                    resolution.get();
+                }
+
+                // Write the batch while the next batch is read and resolved.
+                commits.add(submitWrite(
+                        new SQLQueueCallable<List<ConflictResolutionResult>>() {
+                    @Override
+                    public List<ConflictResolutionResult> call(SQLDatabase db) throws Exception {
+                        List<ConflictResolutionResult> batchResults =
+                                new ArrayList<ConflictResolutionResult>(resolutions.size());
+                        for (FutureTask<ConflictResolution> resolution : resolutions) {
+                            batchResults.add(writeConflictResolutionInQueue(db,
+                                    resolution.get()));
+                        }
+                        return batchResults;
+                    }
+                }, batch));
+            }
+            for (Future<List<ConflictResolutionResult>> commit : commits) {
+                results.addAll(commit.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to resolve conflicts", e);
+            throw new DatastoreException("Failed to resolve conflicts", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to resolve conflicts", e);
+            throw new DatastoreException("Failed to resolve conflicts", e);
+        }
+    }
+
+    /**
+     * Returns the leaf revisions, with bodies and attachments, of the documents in
+     * {@code docIds} which have conflicts.
+     */
+    private Map<String, List<DocumentRevision>> getConflictedLeafRevisionsInQueue(
+            SQLDatabase db, List<String> docIds) throws AttachmentException, DatastoreException {
+        String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+                "WHERE docs.docid IN (%s) AND revs.doc_id = docs.doc_id AND revs.leaf = 1 " +
+                "AND revs.doc_id IN (SELECT doc_id FROM conflicts) ORDER BY sequence ASC",
+                DatabaseUtils.makePlaceholders(docIds.size()));
+        Cursor cursor = null;
+        try {
+            List<DocumentRevision> revisions = new ArrayList<DocumentRevision>();
+            cursor = db.rawQuery(sql, docIds.toArray(new String[docIds.size()]));
+            while (cursor.moveToNext()) {
+                revisions.add(getFullRevisionFromCurrentCursor(cursor, null));
+            }
+            addAttachments(db, revisions);
+            Map<String, List<DocumentRevision>> leaves =
+                    new HashMap<String, List<DocumentRevision>>();
+            for (DocumentRevision revision : revisions) {
+                List<DocumentRevision> docLeaves = leaves.get(revision.getId());
+                if (docLeaves == null) {
+                    docLeaves = new ArrayList<DocumentRevision>();
+                    leaves.put(revision.getId(), docLeaves);
+                }
+                docLeaves.add(revision);
+            }
+            return leaves;
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error getting conflicted leaf revisions", e);
+            throw new DatastoreException("Error getting conflicted leaf revisions", e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+
+    /**
+     * Writes the outcome of a {@link ConflictResolution} within its own savepoint, so a
+     * resolution which can't be written doesn't affect the rest of its batch.
+     */
+    private ConflictResolutionResult writeConflictResolutionInQueue(SQLDatabase db,
+                                                                   ConflictResolution resolution)
+            throws AttachmentException, DatastoreException, SQLException {
+        if (resolution.leaves == null) {
+            return new ConflictResolutionResult(resolution.docId,
+                    ConflictResolutionResult.Outcome.NOT_CONFLICTED, null, null, 0, 0);
+        }
+        if (resolution.exception != null) {
+            return new ConflictResolutionResult(resolution.docId,
+                    ConflictResolutionResult.Outcome.FAILED, null, resolution.exception,
+                    resolution.resolveNanos, 0);
+        }
+        if (resolution.newWinner == null) {
+            return new ConflictResolutionResult(resolution.docId,
+                    ConflictResolutionResult.Outcome.UNRESOLVED, null,
+                    resolution.resolverException, resolution.resolveNanos, 0);
+        }
+
+        long start = System.nanoTime();
+        db.execSQL("SAVEPOINT bulk_write;");
+        try {
+            if (!getLeafSequencesInQueue(db, resolution.leaves.get(0).getInternalNumericId())
+                    .equals(resolution.getLeafSequences())) {
+                throw new ConflictException(String.format(Locale.ENGLISH,
+                        "Document %s was modified while its conflicts were being resolved",
+                        resolution.docId));
+            }
+            DocumentRevision newWinner = resolution.newWinner;
+            keepWinningLeafInQueue(db, resolution.leaves, newWinner.getRevision());
+            if (resolution.preparedNewAttachments != null) {
+                updateDocumentFromRevision(db, newWinner, resolution.preparedNewAttachments,
+                        resolution.existingAttachments);
+            }
+            DocumentRevision winner = getDocumentInQueue(db, resolution.docId, null);
+            db.execSQL("RELEASE bulk_write;");
+            return new ConflictResolutionResult(resolution.docId,
+                    ConflictResolutionResult.Outcome.RESOLVED, winner, null,
+                    resolution.resolveNanos, System.nanoTime() - start);
+        } catch (DocumentException e) {
+            rollbackBulkWrite(db);
+            return new ConflictResolutionResult(resolution.docId,
+                    ConflictResolutionResult.Outcome.FAILED, null, e,
+                    resolution.resolveNanos, System.nanoTime() - start);
+        } catch (IllegalArgumentException e) {
+            rollbackBulkWrite(db);
+            return new ConflictResolutionResult(resolution.docId,
+                    ConflictResolutionResult.Outcome.FAILED, null, e,
+                    resolution.resolveNanos, System.nanoTime() - start);
+        }
+    }
+
+    private Set<Long> getLeafSequencesInQueue(SQLDatabase db, long docNumericId)
+            throws DatastoreException {
+        Cursor cursor = null;
+        try {
+            Set<Long> sequences = new HashSet<Long>();
+            cursor = db.rawQuery("SELECT sequence FROM revs WHERE doc_id = ? AND leaf = 1",
+                    new String[]{Long.toString(docNumericId)});
+            while (cursor.moveToNext()) {
+                sequences.add(cursor.getLong(0));
+            }
+            return sequences;
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error getting leaf revisions", e);
+            throw new DatastoreException("Error getting leaf revisions", e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+
+    /**
+     * <p>Calls a {@link ConflictResolver} for one document, and prepares any new
+     * attachments of the revision it returns, for
+     * {@link #resolveConflictsForDocuments(Collection, ConflictResolver, Executor)}.</p>
+     *
+     * <p>This runs outside the database queue, so it only uses the leaf revisions it was
+     * given.</p>
+     */
+    private class ConflictResolution implements Callable<ConflictResolution> {
+
+        private final String docId;
+        // null if the document doesn't exist or has no conflicts
+        private final List<DocumentRevision> leaves;
+        private final ConflictResolver resolver;
+
+        private DocumentRevision newWinner;
+        // set if newWinner is a new or modified revision to graft onto the tree
+        private List<PreparedAttachment> preparedNewAttachments;
+        private List<SavedAttachment> existingAttachments;
+        private Exception resolverException;
+        // set if newWinner can't be written
+        private Exception exception;
+        private long resolveNanos;
+
+        ConflictResolution(String docId, List<DocumentRevision> leaves,
+                           ConflictResolver resolver) {
+            this.docId = docId;
+            this.leaves = leaves;
+            this.resolver = resolver;
+        }
+
+        @Override
+        public ConflictResolution call() {
+            if (leaves == null) {
+                return this;
+            }
+            List<DocumentRevision> conflicts = new ArrayList<DocumentRevision>();
+            for (DocumentRevision leaf : leaves) {
+                if (!leaf.isDeleted()) {
+                    conflicts.add(leaf);
+                }
+            }
+
+            long start = System.nanoTime();
+            try {
+                newWinner = resolver.resolve(docId, conflicts);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Exception when calling ConflictResolver", e);
+                resolverException = e;
+            }
+            resolveNanos = System.nanoTime() - start;
+            if (newWinner == null) {
+                return this;
+            }
+
+            try {
+                String revIdKeep = newWinner.getRevision();
+                boolean isLeaf = false;
+                for (DocumentRevision conflict : conflicts) {
+                    isLeaf |= conflict.getRevision().equals(revIdKeep);
+                }
+                if (!isLeaf) {
+                    throw new IllegalArgumentException(
+                            "Winning revision must be one of the conflicted revisions");
+                }
+                if (newWinner.bodyModified ||
+                        (newWinner.attachments != null && newWinner.attachments.hasChanged())) {
+                    Collection<Attachment> attachments = newWinner.getAttachments() != null ?
+                            newWinner.getAttachments().values() : new ArrayList<Attachment>();
+                    preparedNewAttachments = AttachmentManager.prepareAttachments(
+                            attachmentsDir, attachmentStreamFactory,
+                            AttachmentManager.findNewAttachments(attachments));
+                    existingAttachments = AttachmentManager.findExistingAttachments(attachments);
+                }
+            } catch (IllegalArgumentException e) {
+                exception = e;
+            } catch (AttachmentException e) {
+                exception = e;
+            }
+            return this;
+        }
+
+        Set<Long> getLeafSequences() {
+            Set<Long> sequences = new HashSet<Long>();
+            for (DocumentRevision leaf : leaves) {
+                sequences.add(leaf.getSequence());
+            }
+            return sequences;
+        }
+    }
+
     private String insertNewWinnerRevision(SQLDatabase db,DocumentBody newWinner,
                                            DocumentRevision oldWinner)
             throws AttachmentException, DatastoreException {
@@ -1767,7 +2823,7 @@ public class DatastoreImpl implements Datastore {
         callable.parentSequence = oldWinner.getSequence();
         callable.deleted = false;
         callable.current = true;
-        callable.data = newWinner.asBytes();
+        callable.data = storedBody(newWinner);
         callable.available = true;
         callable.call(db);
 
@@ -1796,6 +2852,20 @@ public class DatastoreImpl implements Datastore {
         db.update("revs", updateContent, "sequence=?", whereArgs);
     }
 
+    private DocumentRevision getLazyBodyRevisionFromCurrentCursor(Cursor cursor) {
+        DocumentRevision.DocumentRevisionOptions options =
+                new DocumentRevision.DocumentRevisionOptions();
+        options.docInternalId = cursor.getLong(cursor.getColumnIndex("doc_id"));
+        options.sequence = cursor.getLong(cursor.getColumnIndex("sequence"));
+        options.current = cursor.getInt(cursor.getColumnIndex("current")) > 0;
+        options.deleted = cursor.getInt(cursor.getColumnIndex("deleted")) > 0;
+        int parentIndex = cursor.getColumnIndex("parent");
+        options.parent = cursor.columnType(parentIndex) == Cursor.FIELD_TYPE_NULL ? -1L :
+                cursor.getLong(parentIndex);
+        return new LazyBodyDocumentRevision(cursor.getString(cursor.getColumnIndex("docid")),
+                cursor.getString(cursor.getColumnIndex("revid")), options, this);
+    }
+
     private static DocumentRevision getFullRevisionFromCurrentCursor(Cursor cursor,
                                                                           List<? extends Attachment> attachments) {
         String docId = cursor.getString(cursor.getColumnIndex("docid"));
@@ -1817,7 +2887,7 @@ public class DatastoreImpl implements Datastore {
         DocumentRevisionBuilder builder = new DocumentRevisionBuilder()
                 .setDocId(docId)
                 .setRevId(revId)
-                .setBody(DocumentBodyImpl.bodyWith(json))
+                .setBody(DocumentBodyImpl.storedBodyWith(json))
                 .setDeleted(deleted)
                 .setSequence(sequence)
                 .setInternalId(internalId)
@@ -1863,7 +2933,7 @@ public class DatastoreImpl implements Datastore {
      */
     public Attachment getAttachment(final String id, final String rev, final String attachmentName) {
         try {
-            return queue.submit(new SQLQueueCallable<Attachment>() {
+            return queue.submitRead(new SQLQueueCallable<Attachment>() {
                 @Override
                 public Attachment call(SQLDatabase db) throws Exception {
                     long sequence = getSequenceInQueue(db, id, rev);
@@ -1892,7 +2962,7 @@ public class DatastoreImpl implements Datastore {
      */
     public List<? extends Attachment> attachmentsForRevision(final DocumentRevision rev) throws AttachmentException {
         try {
-            return queue.submit(new SQLQueueCallable<List<? extends Attachment>>(){
+            return queue.submitRead(new SQLQueueCallable<List<? extends Attachment>>(){
 
                 @Override
                 public List<? extends Attachment> call(SQLDatabase db) throws Exception {
@@ -1920,6 +2990,35 @@ public class DatastoreImpl implements Datastore {
     @Override
     public DocumentRevision createDocumentFromRevision(final DocumentRevision rev)
             throws DocumentException {
+        DocumentRevision created = null;
+        try {
+            created = createDocumentFromRevisionAsync(rev).get();
+            return created;
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE,"Failed to create document",e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE,"Failed to create document",e);
+            throw new DocumentException(e);
+        }finally {
+            if(created != null){
+                eventBus.post(new DocumentCreated(created));
+            }
+        }
+        return null;
+
+    }
+
+    /**
+     * Prepares the new attachments of a revision, then submits creation of the
+     * document to the queue.
+     *
+     * @param rev the revision to create
+     * @return future for the created revision
+     * @throws AttachmentException if the revision's new attachments could not be prepared
+     * @see #createDocumentFromRevision(DocumentRevision)
+     */
+    ListenableFuture<DocumentRevision> createDocumentFromRevisionAsync(final DocumentRevision rev)
+            throws AttachmentException {
         Preconditions.checkNotNull(rev, "DocumentRevision cannot be null");
         Preconditions.checkState(isOpen(), "Datastore is closed");
         Preconditions.checkArgument(rev.getRevision() == null, "Revision ID must be null for new DocumentRevisions");
@@ -1943,36 +3042,21 @@ public class DatastoreImpl implements Datastore {
         final List<SavedAttachment> existingAttachments =
                 AttachmentManager.findExistingAttachments(attachments);
 
-        DocumentRevision created = null;
-        try {
-            created = queue.submitTransaction(new SQLQueueCallable<DocumentRevision>(){
-                @Override
-                public DocumentRevision call(SQLDatabase db) throws Exception {
+        return submitWrite(new SQLQueueCallable<DocumentRevision>(){
+            @Override
+            public DocumentRevision call(SQLDatabase db) throws Exception {
 
-                        // Save document with new JSON body, add new attachments and copy over existing attachments
-                    DocumentRevision saved = createDocumentBody(db, docId, rev.getBody());
-                        AttachmentManager.addAttachmentsToRevision(db, attachmentsDir, saved, preparedNewAttachments);
-                        AttachmentManager.copyAttachmentsToRevision(db, existingAttachments, saved);
+                    // Save document with new JSON body, add new attachments and copy over existing attachments
+                DocumentRevision saved = createDocumentBody(db, docId, rev.getBody());
+                    AttachmentManager.addAttachmentsToRevision(db, attachmentsDir, saved, preparedNewAttachments);
+                    AttachmentManager.copyAttachmentsToRevision(db, existingAttachments, saved);
 
-                        // now re-fetch the revision with updated attachments
-                    DocumentRevision updatedWithAttachments = getDocumentInQueue(db,
-                                saved.getId(), saved.getRevision());
-                        return updatedWithAttachments;
-                }
-            }).get();
-            return created;
-        } catch (InterruptedException e) {
-            logger.log(Level.SEVERE,"Failed to create document",e);
-        } catch (ExecutionException e) {
-            logger.log(Level.SEVERE,"Failed to create document",e);
-            throw new DocumentException(e);
-        }finally {
-            if(created != null){
-                eventBus.post(new DocumentCreated(created));
+                    // now re-fetch the revision with updated attachments
+                DocumentRevision updatedWithAttachments = getDocumentInQueue(db,
+                            saved.getId(), saved.getRevision());
+                    return updatedWithAttachments;
             }
-        }
-        return null;
-
+        }, Collections.singleton(docId));
     }
 
     @Override
@@ -1995,13 +3079,14 @@ public class DatastoreImpl implements Datastore {
                 AttachmentManager.findExistingAttachments(attachments);
 
         try {
-            DocumentRevision revision = queue.submitTransaction(new SQLQueueCallable<DocumentRevision>(){
+            DocumentRevision revision = submitWrite(
+                    new SQLQueueCallable<DocumentRevision>(){
                 @Override
                 public DocumentRevision call(SQLDatabase db) throws Exception {
                     return updateDocumentFromRevision(db,
                             rev, preparedNewAttachments, existingAttachments);
                 }
-            }).get();
+            }, Collections.singleton(rev.getId())).get();
 
             if (revision != null) {
                 eventBus.post(new DocumentUpdated(getDocument(rev.getId(), rev.getRevision()),revision));
@@ -2040,12 +3125,13 @@ public class DatastoreImpl implements Datastore {
         Preconditions.checkState(isOpen(),"Datastore is closed");
 
         try {
-            DocumentRevision deletedRevision = queue.submitTransaction(new SQLQueueCallable<DocumentRevision>() {
+            DocumentRevision deletedRevision = submitWrite(
+                    new SQLQueueCallable<DocumentRevision>() {
                 @Override
                 public DocumentRevision call(SQLDatabase db) throws Exception {
                     return deleteDocumentInQueue(db, rev.getId(), rev.getRevision());
                 }
-            }).get();
+            }, Collections.singleton(rev.getId())).get();
 
 
             if (deletedRevision != null) {
@@ -2075,7 +3161,8 @@ public class DatastoreImpl implements Datastore {
         // to return
 
         try {
-            return queue.submitTransaction(new SQLQueueCallable<List<DocumentRevision>>(){
+            return submitWrite(
+                    new SQLQueueCallable<List<DocumentRevision>>(){
 
                 @Override
                 public List<DocumentRevision> call(SQLDatabase db) throws Exception {
@@ -2087,8 +3174,7 @@ public class DatastoreImpl implements Datastore {
                         final String sql = "SELECT revs.revid FROM docs,revs " +
                                 "WHERE revs.doc_id = docs.doc_id " +
                                 "AND docs.docid = ? " +
-                                "AND deleted = 0 AND revs.sequence NOT IN " +
-                                "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) ";
+                                "AND revs.leaf = 1 AND revs.deleted = 0 ";
 
                         cursor = db.rawQuery(sql, new String[]{id});
                         while (cursor.moveToNext()) {
@@ -2102,7 +3188,7 @@ public class DatastoreImpl implements Datastore {
                         DatabaseUtils.closeCursorQuietly(cursor);
                     }
                 }
-            }).get();
+            }, Collections.singleton(id)).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to delete document",e);
         } catch (ExecutionException e) {
@@ -2112,6 +3198,157 @@ public class DatastoreImpl implements Datastore {
         return null;
     }
 
+    @Override
+    public List<DocumentWriteResult> createDocumentsFromRevisions(List<DocumentRevision> revs)
+            throws DatastoreException {
+        return bulkWrite(revs, BulkOperation.CREATE);
+    }
+
+    @Override
+    public List<DocumentWriteResult> updateDocumentsFromRevisions(List<DocumentRevision> revs)
+            throws DatastoreException {
+        return bulkWrite(revs, BulkOperation.UPDATE);
+    }
+
+    @Override
+    public List<DocumentWriteResult> deleteDocumentsFromRevisions(List<DocumentRevision> revs)
+            throws DatastoreException {
+        return bulkWrite(revs, BulkOperation.DELETE);
+    }
+
+    private enum BulkOperation { CREATE, UPDATE, DELETE }
+
+    /**
+     * Writes each revision inside its own savepoint within one transaction, so a
+     * revision which fails is rolled back without affecting the others.
+     */
+    private List<DocumentWriteResult> bulkWrite(final List<DocumentRevision> revs,
+                                                final BulkOperation operation)
+            throws DatastoreException {
+        Preconditions.checkNotNull(revs, "DocumentRevisions cannot be null");
+        Preconditions.checkState(isOpen(), "Datastore is closed");
+
+        final int count = revs.size();
+        final DocumentWriteResult[] results = new DocumentWriteResult[count];
+        final String[] docIds = new String[count];
+        final List<List<PreparedAttachment>> preparedNewAttachments =
+                new ArrayList<List<PreparedAttachment>>(count);
+        final List<List<SavedAttachment>> existingAttachments =
+                new ArrayList<List<SavedAttachment>>(count);
+
+        // Check the revisions and prepare their new attachments before starting the
+        // transaction, as for the single document methods.
+        for (int i = 0; i < count; i++) {
+            DocumentRevision rev = revs.get(i);
+            Preconditions.checkNotNull(rev, "DocumentRevision cannot be null");
+            if (operation == BulkOperation.CREATE) {
+                Preconditions.checkArgument(rev.getRevision() == null,
+                        "Revision ID must be null for new DocumentRevisions");
+            }
+            if (operation != BulkOperation.DELETE) {
+                Preconditions.checkArgument(rev.isFullRevision(),
+                        "Projected revisions cannot be used to create documents");
+            }
+            docIds[i] = rev.getId() == null ? CouchUtils.generateDocumentId() : rev.getId();
+
+            List<PreparedAttachment> prepared = null;
+            List<SavedAttachment> existing = null;
+            if (operation != BulkOperation.DELETE) {
+                Collection<Attachment> attachments = rev.getAttachments() != null ?
+                        rev.getAttachments().values() : new ArrayList<Attachment>();
+                try {
+                    prepared = AttachmentManager.prepareAttachments(attachmentsDir,
+                            attachmentStreamFactory,
+                            AttachmentManager.findNewAttachments(attachments));
+                    existing = AttachmentManager.findExistingAttachments(attachments);
+                } catch (AttachmentException e) {
+                    results[i] = DocumentWriteResult.failure(rev, e);
+                }
+            }
+            preparedNewAttachments.add(prepared);
+            existingAttachments.add(existing);
+        }
+
+        try {
+            List<DocumentModified> events = submitWrite(
+                    new SQLQueueCallable<List<DocumentModified>>() {
+                @Override
+                public List<DocumentModified> call(SQLDatabase db) throws Exception {
+                    List<DocumentModified> events = new ArrayList<DocumentModified>();
+                    for (int i = 0; i < count; i++) {
+                        if (results[i] != null) {
+                            continue;
+                        }
+                        DocumentRevision rev = revs.get(i);
+                        db.execSQL("SAVEPOINT bulk_write;");
+                        try {
+                            DocumentModified event = writeInQueue(db, operation, rev, docIds[i],
+                                    preparedNewAttachments.get(i), existingAttachments.get(i));
+                            db.execSQL("RELEASE bulk_write;");
+                            events.add(event);
+                            results[i] = DocumentWriteResult.success(rev, event.newDocument);
+                        } catch (DocumentException e) {
+                            rollbackBulkWrite(db);
+                            results[i] = DocumentWriteResult.failure(rev, e);
+                        } catch (IllegalArgumentException e) {
+                            // invalid document ID
+                            rollbackBulkWrite(db);
+                            results[i] = DocumentWriteResult.failure(rev,
+                                    new DocumentException(e));
+                        } catch (InvalidDocumentException e) {
+                            rollbackBulkWrite(db);
+                            results[i] = DocumentWriteResult.failure(rev,
+                                    new DocumentException(e));
+                        }
+                    }
+                    return events;
+                }
+            }, Arrays.asList(docIds)).get();
+
+            for (DocumentModified event : events) {
+                eventBus.post(event);
+            }
+            return Arrays.asList(results);
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to write documents", e);
+            throw new DatastoreException("Failed to write documents", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to write documents", e);
+            throw new DatastoreException("Failed to write documents", e);
+        }
+    }
+
+    private DocumentModified writeInQueue(SQLDatabase db, BulkOperation operation,
+                                          DocumentRevision rev, String docId,
+                                          List<PreparedAttachment> preparedNewAttachments,
+                                          List<SavedAttachment> existingAttachments)
+            throws DocumentException, DatastoreException {
+        switch (operation) {
+            case CREATE:
+                DocumentRevision saved = createDocumentBody(db, docId, rev.getBody());
+                AttachmentManager.addAttachmentsToRevision(db, attachmentsDir, saved,
+                        preparedNewAttachments);
+                AttachmentManager.copyAttachmentsToRevision(db, existingAttachments, saved);
+                return new DocumentCreated(getDocumentInQueue(db, saved.getId(),
+                        saved.getRevision()));
+            case UPDATE:
+                DocumentRevision previous = getDocumentInQueue(db, rev.getId(),
+                        rev.getRevision());
+                return new DocumentUpdated(previous, updateDocumentFromRevision(db, rev,
+                        preparedNewAttachments, existingAttachments));
+            case DELETE:
+                return new DocumentDeleted(rev, deleteDocumentInQueue(db, rev.getId(),
+                        rev.getRevision()));
+            default:
+                throw new IllegalStateException("Unknown operation " + operation);
+        }
+    }
+
+    private static void rollbackBulkWrite(SQLDatabase db) throws SQLException {
+        db.execSQL("ROLLBACK TO bulk_write;");
+        db.execSQL("RELEASE bulk_write;");
+    }
+
     <T> Future<T> runOnDbQueue(SQLQueueCallable<T> callable){
         return queue.submit(callable);
     }
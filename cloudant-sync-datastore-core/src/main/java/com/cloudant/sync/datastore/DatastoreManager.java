@@ -252,6 +252,28 @@ public class DatastoreManager {
      */
     public Datastore openDatastore(String dbName, KeyProvider provider) throws
             DatastoreNotCreatedException {
+        return this.openDatastore(dbName, provider, new DatastoreOptions());
+    }
+
+    /**
+     * <p>Opens a datastore with the given options.</p>
+     *
+     * <p>Behaves as {@link #openDatastore(String, KeyProvider)}. The options are only
+     * applied if the datastore is not already open.</p>
+     *
+     * @param dbName name of datastore to open
+     * @param provider  KeyProvider object; use a NullKeyProvider if database shouldn't be encrypted.
+     * @param options options to apply when opening the datastore
+     *
+     * @throws DatastoreNotCreatedException if the database cannot be opened
+     *
+     * @return {@code Datastore} with the given name
+     *
+     * @see DatastoreOptions
+     */
+    public Datastore openDatastore(String dbName, KeyProvider provider, DatastoreOptions options)
+            throws DatastoreNotCreatedException {
+        Preconditions.checkNotNull(options, "Datastore options must not be null");
         Preconditions.checkArgument(dbName.matches(LEGAL_CHARACTERS),
                 "A database must be named with all lowercase letters (a-z), digits (0-9),"
                         + " or any of the _$()+-/ characters. The name has to start with a"
@@ -259,7 +281,7 @@ public class DatastoreManager {
         synchronized (openedDatastores) {
             Datastore ds = openedDatastores.get(dbName);
             if (ds == null) {
-                ds = createDatastore(dbName, provider);
+                ds = createDatastore(dbName, provider, options);
                 ds.getEventBus().register(this);
                 openedDatastores.put(dbName, ds);
             }
@@ -319,10 +341,11 @@ public class DatastoreManager {
      *
      * @param dbName Name of database to create
      * @param provider KeyProvider object; use a NullKeyProvider if database shouldn't be encrypted.
+     * @param options options to apply to the datastore
      * @return initialise datastore object
      * @throws DatastoreNotCreatedException if the database cannot be opened
      */
-    private Datastore createDatastore(String dbName, KeyProvider provider) throws DatastoreNotCreatedException {
+    private Datastore createDatastore(String dbName, KeyProvider provider, DatastoreOptions options) throws DatastoreNotCreatedException {
         try {
             String dbDirectory = this.getDatastoreDirectory(dbName);
             boolean dbDirectoryExist = new File(dbDirectory).exists();
@@ -333,7 +356,7 @@ public class DatastoreManager {
             // if it does not exist
 
             //Pass database directory, database name, and SQLCipher key provider
-            DatastoreImpl ds = new DatastoreImpl(dbDirectory, dbName, provider);
+            DatastoreImpl ds = new DatastoreImpl(dbDirectory, dbName, provider, options);
 
             if(!dbDirectoryExist) {
                 this.eventBus.post(new DatabaseCreated(dbName));
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.sqlite.QueueMetrics;
+import com.cloudant.sync.sqlite.StatementCache;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Optional settings used when opening a {@link Datastore}.</p>
+ *
+ * <p>Options only take effect when the datastore is first opened by a
+ * {@link DatastoreManager}; opening an already open datastore returns the existing
+ * instance unchanged.</p>
+ *
+ * <pre>
+ * DatastoreOptions options = new DatastoreOptions().setReaderConnections(4);
+ * Datastore ds = manager.openDatastore("my_datastore", new NullKeyProvider(), options);
+ * </pre>
+ *
+ * @api_public
+ */
+public class DatastoreOptions {
+
+    private int readerConnections = 0;
+    private int statementCacheSize = StatementCache.DEFAULT_SIZE;
+    private int groupCommitSize = 1;
+    private QueueMetrics queueMetrics = null;
+    private long slowTaskThresholdMillis = -1;
+    private int documentCacheSize = 0;
+    private long documentCacheWeight = 0;
+    private int revsLimit = 0;
+    private BodyEncoding bodyEncoding = BodyEncoding.JSON;
+    private int bodyCompressionThreshold = 0;
+
+    /**
+     * <p>Sets the number of read-only connections used to run reads concurrently
+     * with writes.</p>
+     *
+     * <p>When greater than zero the database is switched to WAL journal mode and
+     * reads such as {@link Datastore#getDocument(String)} are executed on a pool of
+     * read-only connections rather than waiting behind writes, for example those
+     * made by pull replication. Defaults to 0, where all database access happens on
+     * a single connection.</p>
+     *
+     * @param readerConnections maximum number of concurrent read-only connections
+     * @return this {@code DatastoreOptions} object
+     */
+    public DatastoreOptions setReaderConnections(int readerConnections) {
+        Preconditions.checkArgument(readerConnections >= 0,
+                "Reader connections must not be negative");
+        this.readerConnections = readerConnections;
+        return this;
+    }
+
+    /**
+     * @return the number of read-only connections, 0 if disabled
+     */
+    public int getReaderConnections() {
+        return readerConnections;
+    }
+
+    /**
+     * <p>Sets the number of compiled SQL statements each database connection keeps
+     * for reuse.</p>
+     *
+     * <p>Inserts, updates and deletes with the same shape, such as those made when
+     * pull replication inserts revisions, reuse a cached statement rather than
+     * compiling it again. Defaults to {@link StatementCache#DEFAULT_SIZE}. Use
+     * {@link DatastoreImpl#getStatementCacheStatistics()} to see how often statements
+     * are reused.</p>
+     *
+     * @param statementCacheSize number of statements cached per connection, 0 to
+     *                           disable caching
+     * @return this {@code DatastoreOptions} object
+     */
+    public DatastoreOptions setStatementCacheSize(int statementCacheSize) {
+        Preconditions.checkArgument(statementCacheSize >= 0,
+                "Statement cache size must not be negative");
+        this.statementCacheSize = statementCacheSize;
+        return this;
+    }
+
+    /**
+     * @return the number of statements cached per connection
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * <p>Sets the maximum number of document writes committed to disk together.</p>
+     *
+     * <p>When greater than 1, writes such as
+     * {@link Datastore#createDocumentFromRevision(DocumentRevision)} made from several
+     * threads at once, which would otherwise wait for each other to commit, are
+     * committed as a group. Each write still succeeds or fails independently. This
+     * improves throughput of many small concurrent writes at the cost of each write
+     * in a group only completing once the whole group is committed. Defaults to 1,
+     * which commits every write separately.</p>
+     *
+     * @param groupCommitSize maximum number of writes per commit, 1 to disable
+     *                        group commit
+     * @return this {@code DatastoreOptions} object
+     */
+    public DatastoreOptions setGroupCommitSize(int groupCommitSize) {
+        Preconditions.checkArgument(groupCommitSize >= 1,
+                "Group commit size must be at least 1");
+        this.groupCommitSize = groupCommitSize;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of writes committed together
+     */
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    /**
+     * <p>Sets an object to receive timings of each task run against the datastore's
+     * database, and the databases of its query indexes.</p>
+     *
+     * <p>Timings separate the time a task spent queued behind other tasks from the time
+     * it spent running. Use {@link com.cloudant.sync.sqlite.QueueStatistics} to keep
+     * histograms in memory, or an implementation of {@link QueueMetrics} which feeds an
+     * existing metrics system.</p>
+     *
+     * @param queueMetrics receiver of task timings, or {@code null} for none
+     * @return this {@code DatastoreOptions} object
+     */
+    public DatastoreOptions setQueueMetrics(QueueMetrics queueMetrics) {
+        this.queueMetrics = queueMetrics;
+        return this;
+    }
+
+    /**
+     * @return the receiver of task timings, or {@code null}
+     */
+    public QueueMetrics getQueueMetrics() {
+        return queueMetrics;
+    }
+
+    /**
+     * Sets a threshold above which database tasks are logged as slow, along with the
+     * method which submitted them and how long they spent queued and running.
+     * Disabled by default.
+     *
+     * @param threshold minimum time for a task to be logged, or a negative value to
+     *                  disable logging
+     * @param unit unit of {@code threshold}
+     * @return this {@code DatastoreOptions} object
+     */
+    public DatastoreOptions setSlowTaskThreshold(long threshold, TimeUnit unit) {
+        this.slowTaskThresholdMillis = threshold < 0 ? -1 : unit.toMillis(threshold);
+        return this;
+    }
+
+    /**
+     * @return threshold in milliseconds above which tasks are logged, -1 if disabled
+     */
+    public long getSlowTaskThresholdMillis() {
+        return slowTaskThresholdMillis;
+    }
+
+    /**
+     * <p>Enables a cache of recently read document revisions.</p>
+     *
+     * <p>Repeated calls to {@link Datastore#getDocument(String)} and
+     * {@link Datastore#getDocument(String, String)} for the same revision are answered
+     * from memory, without querying the database or parsing the revision's JSON
+     * again. Cached revisions of a document are discarded as soon as a write to the
+     * document completes. Disabled by default.</p>
+     *
+     * <p>Each call still returns its own {@link DocumentRevision}, but the revisions
+     * returned for the same revision share their {@link DocumentBody}, so the
+     * values nested inside the map returned by {@link DocumentBody#asMap()} must not
+     * be modified. Use {@link DatastoreImpl#getDocumentCacheStatistics()} to see how
+     * effective the cache is.</p>
+     *
+     * @param maxRevisions maximum number of revisions cached, 0 to disable the cache
+     * @param maxBytes maximum total size in bytes of the JSON bodies cached; bodies
+     *                 stored in {@link BodyEncoding#BINARY} or compressed count the size
+     *                 of their stored form until they are converted to JSON
+     * @return this {@code DatastoreOptions} object
+     */
+    public DatastoreOptions setDocumentCache(int maxRevisions, long maxBytes) {
+        Preconditions.checkArgument(maxRevisions >= 0,
+                "Document cache size must not be negative");
+        Preconditions.checkArgument(maxRevisions == 0 || maxBytes > 0,
+                "Document cache weight must be positive");
+        this.documentCacheSize = maxRevisions;
+        this.documentCacheWeight = maxRevisions == 0 ? 0 : maxBytes;
+        return this;
+    }
+
+    /**
+     * @return maximum number of revisions cached, 0 if the cache is disabled
+     */
+    public int getDocumentCacheSize() {
+        return documentCacheSize;
+    }
+
+    /**
+     * @return maximum total size in bytes of the JSON bodies cached
+     */
+    public long getDocumentCacheWeight() {
+        return documentCacheWeight;
+    }
+
+    /**
+     * <p>Sets the number of generations of revision history kept for each document,
+     * like the {@code _revs_limit} of a CouchDB database.</p>
+     *
+     * <p>Revisions more than {@code revsLimit} generations above every leaf revision of
+     * a document are removed when the document is written, and from all documents by
+     * {@link Datastore#compact()}. Leaf revisions, and so conflicts, are always kept.
+     * Replication still works with stemmed documents, but a document edited in more
+     * than {@code revsLimit} generations elsewhere since it was last replicated will
+     * become conflicted, as its local and remote histories no longer overlap. Defaults
+     * to 0, which keeps every revision.</p>
+     *
+     * @param revsLimit number of generations kept, 0 for no limit
+     * @return this {@code DatastoreOptions} object
+     */
+    public DatastoreOptions setRevsLimit(int revsLimit) {
+        Preconditions.checkArgument(revsLimit >= 0, "Revs limit must not be negative");
+        this.revsLimit = revsLimit;
+        return this;
+    }
+
+    /**
+     * @return the number of generations of revision history kept, 0 for no limit
+     */
+    public int getRevsLimit() {
+        return revsLimit;
+    }
+
+    /**
+     * <p>Sets the encoding in which the bodies of document revisions written to the
+     * datastore are stored.</p>
+     *
+     * <p>Bodies already stored in another encoding can still be read, and are converted
+     * to this encoding by {@link Datastore#compact()}. Defaults to
+     * {@link BodyEncoding#JSON}.</p>
+     *
+     * @param bodyEncoding encoding of stored bodies
+     * @return this {@code DatastoreOptions} object
+     */
+    public DatastoreOptions setBodyEncoding(BodyEncoding bodyEncoding) {
+        Preconditions.checkNotNull(bodyEncoding, "Body encoding cannot be null");
+        this.bodyEncoding = bodyEncoding;
+        return this;
+    }
+
+    /**
+     * @return the encoding of stored bodies
+     */
+    public BodyEncoding getBodyEncoding() {
+        return bodyEncoding;
+    }
+
+    /**
+     * <p>Sets the size from which the bodies of document revisions written to the
+     * datastore are compressed.</p>
+     *
+     * <p>Bodies whose stored size in the {@link #setBodyEncoding(BodyEncoding) body
+     * encoding} is at least {@code threshold} bytes are compressed with deflate, unless
+     * that doesn't make them smaller. This reduces the size of datastores holding large
+     * documents, and so the data read from disk and decrypted, at the cost of compressing
+     * bodies when they are written and decompressing them when they are first used. Small
+     * bodies gain little from compression, so a threshold of around 1 KB is
+     * suggested.</p>
+     *
+     * <p>Compressed and uncompressed bodies can be read by any datastore; bodies stored
+     * before the threshold was changed are converted by {@link Datastore#compact()}.
+     * Datastores containing compressed bodies can't be read by earlier versions of this
+     * library. Defaults to 0, which disables compression.</p>
+     *
+     * @param threshold size in bytes from which bodies are compressed, 0 to disable
+     *                  compression
+     * @return this {@code DatastoreOptions} object
+     */
+    public DatastoreOptions setBodyCompressionThreshold(int threshold) {
+        Preconditions.checkArgument(threshold >= 0,
+                "Body compression threshold must not be negative");
+        this.bodyCompressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * @return size in bytes from which bodies are compressed, 0 if disabled
+     */
+    public int getBodyCompressionThreshold() {
+        return bodyCompressionThreshold;
+    }
+}
@@ -20,24 +20,43 @@ package com.cloudant.sync.datastore;
 import com.cloudant.sync.util.JSONUtils;
 import com.google.common.base.Preconditions;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
+ * <p>Bodies read from the database may be shared between threads, for example by the
+ * document cache, so the lazily converted forms of the body are only read and written
+ * while holding the body's lock.</p>
+ *
  * @api_private
  */
 final class DocumentBodyImpl implements DocumentBody {
 
     private byte[] bytes;
     private Map<String, Object> map;
+    // body as stored in BodyEncoding.BINARY, converted to bytes or map when first needed
+    private byte[] binary;
+    // body compressed by BodyCompression, decompressed when first needed
+    private byte[] compressed;
+    // set once the body is shared between revisions returned to different callers, such as
+    // by the document cache, so asMap() copies nested values as well
+    private boolean shared;
+
+    private DocumentBodyImpl() {
+    }
 
     protected DocumentBodyImpl(byte[] bytes) {
+        this(bytes, true);
+    }
+
+    private DocumentBodyImpl(byte[] bytes, boolean validate) {
         // compacted revisions have their bodies set to null, so return an empty body
         if (bytes == null) {
             bytes = JSONUtils.emptyJSONObjectAsBytes();
         }
-        if(JSONUtils.isValidJSON(bytes)) {
+        if(!validate || JSONUtils.isValidJSON(bytes)) {
             this.bytes = bytes;
         } else {
             throw new IllegalArgumentException("Input bytes is not valid json data.");
@@ -57,14 +76,177 @@ final class DocumentBodyImpl implements DocumentBody {
         return new DocumentBodyImpl(bytes);
     }
 
+    /**
+     * Returns a body for JSON data which was validated before it was stored, such as the
+     * {@code json} column of the {@code revs} table. The data isn't validated again; it is
+     * only parsed if {@link #asMap()} is called.
+     *
+     * @param bytes JSON data, or {@code null} for an empty body
+     * @return DocumentBody object containing given data.
+     */
+    public static DocumentBody trustedBodyWith(byte[] bytes) {
+        return new DocumentBodyImpl(bytes, false);
+    }
+
+    /**
+     * Returns a body for the {@code json} column of the {@code revs} table, which holds
+     * either JSON or the binary form written for {@link BodyEncoding#BINARY}, either of
+     * which may be compressed. None are validated, decompressed or converted until the
+     * body's bytes or map are needed.
+     *
+     * @param stored stored body, or {@code null} for an empty body
+     * @return DocumentBody object containing given data.
+     */
+    public static DocumentBody storedBodyWith(byte[] stored) {
+        DocumentBodyImpl body;
+        if (BinaryJson.isBinary(stored)) {
+            body = new DocumentBodyImpl();
+            body.binary = stored;
+        } else if (BodyCompression.isCompressed(stored)) {
+            body = new DocumentBodyImpl();
+            body.compressed = stored;
+        } else {
+            return trustedBodyWith(stored);
+        }
+        return body;
+    }
+
+    /**
+     * Returns the data to store in the {@code json} column of the {@code revs} table for
+     * a body. A body read in the requested encoding is encoded as it was read.
+     *
+     * @param body body to store
+     * @param encoding encoding the body is stored in
+     * @param compressionThreshold size in bytes of the encoded body from which it is
+     *                             compressed, or 0 to not compress
+     * @return stored form of {@code body}
+     */
+    static byte[] toStored(DocumentBody body, BodyEncoding encoding, int compressionThreshold) {
+        byte[] stored;
+        if (encoding == BodyEncoding.BINARY) {
+            if (body instanceof DocumentBodyImpl) {
+                DocumentBodyImpl impl = (DocumentBodyImpl) body;
+                synchronized (impl) {
+                    impl.decompress();
+                    if (impl.binary == null) {
+                        impl.binary = BinaryJson.fromJson(impl.json());
+                    }
+                    stored = impl.binary;
+                }
+            } else {
+                stored = BinaryJson.fromJson(body.asBytes());
+            }
+        } else {
+            stored = body.asBytes();
+        }
+        if (compressionThreshold > 0 && stored.length >= compressionThreshold) {
+            byte[] compressed = BodyCompression.compress(stored);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * @param stored value of the {@code json} column of the {@code revs} table
+     * @param encoding encoding the body should be stored in
+     * @param compressionThreshold size in bytes from which the body should be compressed,
+     *                             or 0 to not compress
+     * @return true if {@code stored} doesn't need converting for {@code encoding} and
+     *         {@code compressionThreshold}, decided without decoding the whole body
+     */
+    static boolean isStoredAs(byte[] stored, BodyEncoding encoding, int compressionThreshold) {
+        if (stored == null) {
+            return true;
+        }
+        if (BodyCompression.isCompressed(stored)) {
+            return compressionThreshold > 0 && BodyCompression.isCompressedBinary(stored)
+                    == (encoding == BodyEncoding.BINARY);
+        }
+        // bodies above the threshold are left as they are if compressing them didn't
+        // make them smaller, so are only checked when first converted
+        return BinaryJson.isBinary(stored) == (encoding == BodyEncoding.BINARY)
+                && (compressionThreshold <= 0 || stored.length < compressionThreshold);
+    }
+
+    /**
+     * @param body a body
+     * @return the size in bytes of the body's JSON, or of its stored form if it hasn't
+     *         been converted to JSON
+     */
+    static int sizeOf(DocumentBody body) {
+        if (body instanceof DocumentBodyImpl) {
+            DocumentBodyImpl impl = (DocumentBodyImpl) body;
+            synchronized (impl) {
+                byte[] bytes = impl.bytes != null ? impl.bytes :
+                        impl.binary != null ? impl.binary : impl.compressed;
+                if (bytes != null) {
+                    return bytes.length;
+                }
+            }
+        }
+        return body.asBytes().length;
+    }
+
+    /**
+     * Marks a body as shared between revisions returned to different callers, so changes
+     * made to the maps returned by {@link #asMap()} don't affect the other callers.
+     *
+     * @param body a body
+     * @return true if the body can be shared, false if it isn't a {@code DocumentBodyImpl}
+     */
+    static boolean share(DocumentBody body) {
+        if (body instanceof DocumentBodyImpl) {
+            DocumentBodyImpl impl = (DocumentBodyImpl) body;
+            synchronized (impl) {
+                impl.shared = true;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Puts the values of the fields selected by {@code root} into {@code values}, reading
+     * the body in whichever form is already available.
+     *
+     * @see FieldExtractor
+     */
+    synchronized void extractFields(FieldExtractor.Node root, Map<String, Object> values) {
+        if (map == null) {
+            decompress();
+            if (binary != null) {
+                BinaryJson.extractFields(binary, root, values);
+                return;
+            } else if (bytes != null) {
+                FieldExtractor.extractFromJson(bytes, root, values);
+                return;
+            }
+        }
+        FieldExtractor.extractFromMap(map, root, values);
+    }
+
+    /**
+     * Returns a body for a map built from another body, such as a projection of its
+     * fields, which doesn't need to be validated again.
+     *
+     * @param map map of JSON values
+     * @return DocumentBody object containing given data.
+     */
+    static DocumentBody projectedBodyWith(Map<String, Object> map) {
+        DocumentBodyImpl body = new DocumentBodyImpl();
+        body.map = map;
+        return body;
+    }
+
     public static DocumentBody bodyWith(Map map) {
         return new DocumentBodyImpl(map);
     }
 
     @Override
     public byte[] asBytes() {
-        byte[] jsonCopy = getJsonBytes();
-        return Arrays.copyOf(jsonCopy, jsonCopy.length);
+        return getJsonBytes();
     }
 
     @SuppressWarnings("unchecked")
@@ -74,9 +256,9 @@ final class DocumentBodyImpl implements DocumentBody {
     }
 
     @Override
-    public String toString() {
-        if(bytes != null) {
-            return JSONUtils.bytesToString(bytes);
+    public synchronized String toString() {
+        if(bytes != null || binary != null || compressed != null) {
+            return JSONUtils.bytesToString(json());
         } else if(map != null) {
             return JSONUtils.serializeAsString(map);
         } else {
@@ -85,20 +267,63 @@ final class DocumentBodyImpl implements DocumentBody {
     }
 
     private byte[] getJsonBytes() {
+        return json().clone();
+    }
+
+    private synchronized void decompress() {
+        if (bytes == null && binary == null && compressed != null) {
+            byte[] stored = BodyCompression.decompress(compressed);
+            if (BinaryJson.isBinary(stored)) {
+                binary = stored;
+            } else {
+                bytes = stored;
+            }
+        }
+    }
+
+    private synchronized byte[] json() {
+        decompress();
         if(bytes == null) {
-            assert map != null;
-            bytes = JSONUtils.serializeAsBytes(map);
+            if (binary != null) {
+                bytes = BinaryJson.toJson(binary);
+            } else {
+                assert map != null;
+                bytes = JSONUtils.serializeAsBytes(map);
+            }
         }
-        return bytes.clone();
+        return bytes;
     }
 
-    private Map getMapObject() {
+    private synchronized Map getMapObject() {
         if(map == null) {
-            assert bytes != null;
-            map = JSONUtils.deserialize(bytes);
+            decompress();
+            if (binary != null) {
+                map = BinaryJson.toMap(binary);
+            } else {
+                assert bytes != null;
+                map = JSONUtils.deserialize(bytes);
+            }
         }
 
-        // Return a shallow copy
-        return new HashMap(map);
+        // Return a shallow copy, or a deep copy if other callers see the same map
+        return shared ? (Map) deepCopy(map) : new HashMap(map);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object deepCopy(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new HashMap<Object, Object>();
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                copy.put(entry.getKey(), deepCopy(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> copy = new ArrayList<Object>(((List<Object>) value).size());
+            for (Object element : (List<Object>) value) {
+                copy.add(deepCopy(element));
+            }
+            return copy;
+        }
+        return value;
     }
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Least recently used cache of document revisions read by a {@link DatastoreImpl},
+ * keyed by document ID and revision ID, with a separate entry for each document's
+ * current revision.</p>
+ *
+ * <p>Revisions are copied on the way in and out, so callers may modify the revisions
+ * they are given without affecting the cache. The copies share their
+ * {@link DocumentBody}, whose parsed JSON is reused between them; the body is marked as
+ * shared, so the maps it returns are deep copies which callers may also modify.</p>
+ *
+ * <p>Writes call {@link #startWrite(Collection)} for the documents they change from
+ * inside the queued write, which discards their cached revisions, and
+ * {@link #finishWrite(Collection)} once the write has been committed or rolled back.
+ * Revisions of a document being written aren't cached in between, since a read
+ * may still see the database as it was before the write. Reads record the
+ * {@link #getGeneration() generation} of the cache before querying the database and
+ * pass it to {@link #put(DocumentRevision, long)}, so a revision read before a write
+ * started is not cached after it.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @api_private
+ */
+class DocumentCache {
+
+    private final int maxRevisions;
+    private final long maxWeight;
+
+    // access order, so iteration starts at the least recently used document
+    private final LinkedHashMap<String, CachedDocument> documents =
+            new LinkedHashMap<String, CachedDocument>(16, 0.75f, true);
+    // number of writes started but not finished for each document
+    private final Map<String, Integer> writing = new HashMap<String, Integer>();
+
+    private int revisions = 0;
+    private long weight = 0;
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxRevisions maximum number of revisions held
+     * @param maxWeight maximum total size in bytes of the JSON bodies held
+     */
+    DocumentCache(int maxRevisions, long maxWeight) {
+        Preconditions.checkArgument(maxRevisions > 0, "Maximum revisions must be positive");
+        Preconditions.checkArgument(maxWeight > 0, "Maximum weight must be positive");
+        this.maxRevisions = maxRevisions;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Returns a copy of a cached revision.
+     *
+     * @param docId ID of the document
+     * @param revId revision ID, or {@code null} for the current revision
+     * @return copy of the revision, or {@code null} if it is not cached
+     */
+    synchronized DocumentRevision get(String docId, String revId) {
+        CachedDocument document = documents.get(docId);
+        CachedRevision cached = null;
+        if (document != null) {
+            String key = revId == null ? document.currentRevId : revId;
+            if (key != null) {
+                cached = document.revisions.get(key);
+            }
+        }
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return copy(cached.revision);
+    }
+
+    /**
+     * @return the current generation, which changes whenever entries are invalidated
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a copy of a revision read from the database, unless the cache has been
+     * invalidated since the read started or the document is being written.
+     *
+     * @param revision revision read from the database
+     * @param readGeneration value of {@link #getGeneration()} before the read
+     */
+    synchronized void put(DocumentRevision revision, long readGeneration) {
+        if (readGeneration != generation || revision.getBody() == null
+                || writing.containsKey(revision.getId())
+                || !DocumentBodyImpl.share(revision.getBody())) {
+            return;
+        }
+        long revisionWeight = DocumentBodyImpl.sizeOf(revision.getBody());
+        if (revisionWeight > maxWeight) {
+            return;
+        }
+
+        CachedDocument document = documents.get(revision.getId());
+        if (document == null) {
+            document = new CachedDocument();
+            documents.put(revision.getId(), document);
+        }
+        CachedRevision previous = document.revisions.put(revision.getRevision(),
+                new CachedRevision(copy(revision), revisionWeight));
+        if (previous != null) {
+            revisions--;
+            weight -= previous.weight;
+            document.weight -= previous.weight;
+        }
+        revisions++;
+        weight += revisionWeight;
+        document.weight += revisionWeight;
+        if (revision.isCurrent()) {
+            document.currentRevId = revision.getRevision();
+        }
+        trim();
+    }
+
+    /**
+     * Removes every cached revision of the given documents, and stops their revisions
+     * being cached until {@link #finishWrite(Collection)} is called for them.
+     *
+     * @param docIds IDs of the documents which are being written to
+     */
+    synchronized void startWrite(Collection<String> docIds) {
+        generation++;
+        for (String docId : docIds) {
+            Integer count = writing.get(docId);
+            writing.put(docId, count == null ? 1 : count + 1);
+            CachedDocument document = documents.remove(docId);
+            if (document != null) {
+                revisions -= document.revisions.size();
+                weight -= document.weight;
+            }
+        }
+    }
+
+    /**
+     * Allows revisions of the given documents to be cached again once a write started
+     * by {@link #startWrite(Collection)} has been committed or rolled back.
+     *
+     * @param docIds IDs of the documents passed to {@link #startWrite(Collection)}
+     */
+    synchronized void finishWrite(Collection<String> docIds) {
+        // reads which started while the write was in progress may have seen the
+        // database before the write was committed
+        generation++;
+        for (String docId : docIds) {
+            Integer count = writing.remove(docId);
+            if (count != null && count > 1) {
+                writing.put(docId, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Removes every cached revision.
+     */
+    synchronized void clear() {
+        generation++;
+        documents.clear();
+        revisions = 0;
+        weight = 0;
+    }
+
+    /**
+     * @return a snapshot of the cache's size and hit counts
+     */
+    synchronized DocumentCacheStatistics getStatistics() {
+        return new DocumentCacheStatistics(revisions, weight, hits, misses, evictions);
+    }
+
+    private void trim() {
+        Iterator<CachedDocument> iterator = documents.values().iterator();
+        while ((revisions > maxRevisions || weight > maxWeight) && iterator.hasNext()) {
+            CachedDocument eldest = iterator.next();
+            iterator.remove();
+            revisions -= eldest.revisions.size();
+            weight -= eldest.weight;
+            evictions += eldest.revisions.size();
+        }
+    }
+
+    private static DocumentRevision copy(DocumentRevision revision) {
+        Map<String, Attachment> attachments = revision.getAttachments();
+        return new DocumentRevisionBuilder()
+                .setDocId(revision.getId())
+                .setRevId(revision.getRevision())
+                .setBody(revision.getBody())
+                .setDeleted(revision.isDeleted())
+                .setSequence(revision.getSequence())
+                .setInternalId(revision.getInternalNumericId())
+                .setCurrent(revision.isCurrent())
+                .setParent(revision.getParent())
+                .setAttachments(attachments == null ? null :
+                        new ArrayList<Attachment>(attachments.values()))
+                .build();
+    }
+
+    private static class CachedDocument {
+        // revision ID of the current revision, if it is cached
+        String currentRevId;
+        final Map<String, CachedRevision> revisions = new HashMap<String, CachedRevision>();
+        long weight = 0;
+    }
+
+    private static class CachedRevision {
+        final DocumentRevision revision;
+        // size in bytes of the revision's JSON body
+        final long weight;
+
+        CachedRevision(DocumentRevision revision, long weight) {
+            this.revision = revision;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+/**
+ * <p>Snapshot of the size and effectiveness of a datastore's document cache.</p>
+ *
+ * @see DatastoreOptions#setDocumentCache(int, long)
+ * @see DatastoreImpl#getDocumentCacheStatistics()
+ *
+ * @api_public
+ */
+public class DocumentCacheStatistics {
+
+    private final int size;
+    private final long weight;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    DocumentCacheStatistics(int size, long weight, long hits, long misses, long evictions) {
+        this.size = size;
+        this.weight = weight;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    /**
+     * @return number of revisions cached
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return total size in bytes of the JSON bodies of the cached revisions
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return number of reads answered from the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of reads which had to query the database
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of revisions removed from the cache to stay within its limits
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return fraction of reads answered from the cache, 0 if there have been none
+     */
+    public double getHitRatio() {
+        long reads = hits + misses;
+        return reads == 0 ? 0 : (double) hits / reads;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{ size: %d, weight: %d, hits: %d, misses: %d, evictions: %d }",
+                size, weight, hits, misses, evictions);
+    }
+}
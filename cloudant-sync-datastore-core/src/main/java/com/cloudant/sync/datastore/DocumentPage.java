@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+
+/**
+ * <p>A page of documents, as returned by {@link Datastore#getAllDocuments(String, int, boolean)}
+ * and the range scans over document IDs.</p>
+ *
+ * <p>Each page carries a token, {@link #getNextPageToken()}, which is passed back to the
+ * method which returned the page to get the following page. Pages are read by seeking to
+ * the position the token records, so reading each page costs the same however far through
+ * the datastore it is.</p>
+ *
+ * @api_public
+ */
+public class DocumentPage {
+
+    private final List<DocumentRevision> results;
+
+    private final String nextPageToken;
+
+    DocumentPage(List<DocumentRevision> results, String nextPageToken) {
+        Preconditions.checkNotNull(results, "Page results must not be null.");
+        this.results = results;
+        this.nextPageToken = nextPageToken;
+    }
+
+    /**
+     * <p>Returns the current winning revisions of the documents in this page.</p>
+     *
+     * @return the list of {@code DocumentRevision}s in this page
+     */
+    public List<DocumentRevision> getResults() {
+        return this.results;
+    }
+
+    /**
+     * <p>Returns the number of {@code DocumentRevision}s in this page.</p>
+     *
+     * @return the number of {@code DocumentRevision}s in this page
+     */
+    public int size() {
+        return this.results.size();
+    }
+
+    /**
+     * <p>Returns the token for the page following this one.</p>
+     *
+     * @return the token to read the next page, or {@code null} if this is the last page
+     */
+    public String getNextPageToken() {
+        return this.nextPageToken;
+    }
+
+    /**
+     * @return {@code true} if there are more documents after this page
+     */
+    public boolean hasNextPage() {
+        return this.nextPageToken != null;
+    }
+}
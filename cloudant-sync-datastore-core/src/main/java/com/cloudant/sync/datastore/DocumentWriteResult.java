@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+/**
+ * <p>Outcome of writing one revision in a bulk write, such as
+ * {@link Datastore#createDocumentsFromRevisions(java.util.List)}.</p>
+ *
+ * <p>Either {@link #getRevision()} gives the revision saved in the datastore, or
+ * {@link #getException()} gives the reason the revision was not written, for example a
+ * {@link ConflictException}.</p>
+ *
+ * @api_public
+ */
+public class DocumentWriteResult {
+
+    private final DocumentRevision input;
+    private final DocumentRevision revision;
+    private final DocumentException exception;
+
+    private DocumentWriteResult(DocumentRevision input, DocumentRevision revision,
+                                DocumentException exception) {
+        this.input = input;
+        this.revision = revision;
+        this.exception = exception;
+    }
+
+    static DocumentWriteResult success(DocumentRevision input, DocumentRevision revision) {
+        return new DocumentWriteResult(input, revision, null);
+    }
+
+    static DocumentWriteResult failure(DocumentRevision input, DocumentException exception) {
+        return new DocumentWriteResult(input, null, exception);
+    }
+
+    /**
+     * @return the revision passed to the bulk write
+     */
+    public DocumentRevision getInput() {
+        return input;
+    }
+
+    /**
+     * @return the revision saved in the datastore, or {@code null} if the write failed
+     */
+    public DocumentRevision getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return the reason the write failed, or {@code null} if it succeeded
+     */
+    public DocumentException getException() {
+        return exception;
+    }
+
+    /**
+     * @return {@code true} if the revision was written
+     */
+    public boolean isSuccess() {
+        return exception == null;
+    }
+}
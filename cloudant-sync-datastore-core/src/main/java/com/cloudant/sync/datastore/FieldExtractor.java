@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Extracts the values of a fixed set of fields from document bodies, without
+ * building a map of each whole body.</p>
+ *
+ * <p>Fields are dotted paths, such as {@code "address.city"}, selecting values nested
+ * within objects. A body stored as JSON is read once with a streaming parser, which
+ * skips the values of fields which aren't selected; binary bodies are read in the same
+ * way. Only the selected values are built, using the same types as
+ * {@link DocumentBody#asMap()}. Bodies whose map has already been built are read from
+ * the map.</p>
+ *
+ * @api_private
+ */
+public final class FieldExtractor {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    /**
+     * A segment of the selected paths.
+     */
+    static final class Node {
+        // the selected path ending at this node, or null
+        String field;
+        final Map<String, Node> children = new HashMap<String, Node>();
+
+        /**
+         * Removes the values of this node and its descendants, when a later value of a
+         * duplicated field replaces an earlier one.
+         */
+        void clear(Map<String, Object> values) {
+            if (field != null) {
+                values.remove(field);
+            }
+            for (Node child : children.values()) {
+                child.clear(values);
+            }
+        }
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * @param fields dotted paths of the fields to extract
+     */
+    public FieldExtractor(Collection<String> fields) {
+        for (String field : fields) {
+            Node node = root;
+            for (String segment : field.split("\\.")) {
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            node.field = field;
+        }
+    }
+
+    /**
+     * @param body document body
+     * @return map from each selected field present in {@code body} to its value, which
+     *         may be {@code null}. Fields whose path leads through a value which isn't an
+     *         object aren't present.
+     */
+    public Map<String, Object> extract(DocumentBody body) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        if (body instanceof DocumentBodyImpl) {
+            ((DocumentBodyImpl) body).extractFields(root, values);
+        } else {
+            extractFromMap(body.asMap(), root, values);
+        }
+        return values;
+    }
+
+    /**
+     * <p>Returns a body containing only the selected fields of {@code body}, for
+     * projecting query results. Each field is a top-level field of the returned body, so
+     * the selected fields should not be dotted paths.</p>
+     *
+     * <p>The returned body is built from the values extracted from {@code body} without
+     * being validated again.</p>
+     *
+     * @param body document body
+     * @return body containing the selected fields present in {@code body}
+     */
+    public DocumentBody project(DocumentBody body) {
+        return DocumentBodyImpl.projectedBodyWith(extract(body));
+    }
+
+    static void extractFromMap(Map<?, ?> map, Node node, Map<String, Object> values) {
+        for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+            Object value = map.get(entry.getKey());
+            if (value == null && !map.containsKey(entry.getKey())) {
+                continue;
+            }
+            Node child = entry.getValue();
+            if (child.field != null) {
+                values.put(child.field, value);
+            }
+            if (value instanceof Map && !child.children.isEmpty()) {
+                extractFromMap((Map<?, ?>) value, child, values);
+            }
+        }
+    }
+
+    static void extractFromJson(byte[] json, Node root, Map<String, Object> values) {
+        try {
+            JsonParser parser = FACTORY.createParser(json);
+            try {
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    extractFromObject(parser, root, values);
+                }
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Input bytes is not valid json data.", e);
+        }
+    }
+
+    // called with the parser at the start of an object, returns with it at the end
+    private static void extractFromObject(JsonParser parser, Node node,
+                                          Map<String, Object> values) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            Node child = node.children.get(parser.getCurrentName());
+            JsonToken token = parser.nextToken();
+            if (child == null) {
+                parser.skipChildren();
+                continue;
+            }
+            child.clear(values);
+            if (child.field != null) {
+                Object value = readValue(parser, token);
+                values.put(child.field, value);
+                if (value instanceof Map && !child.children.isEmpty()) {
+                    extractFromMap((Map<?, ?>) value, child, values);
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                extractFromObject(parser, child, values);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case START_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    map.put(name, readValue(parser, parser.nextToken()));
+                }
+                return map;
+            case START_ARRAY:
+                List<Object> list = new ArrayList<Object>();
+                for (JsonToken next = parser.nextToken(); next != JsonToken.END_ARRAY;
+                     next = parser.nextToken()) {
+                    list.add(readValue(parser, next));
+                }
+                return list;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new IllegalArgumentException("Unexpected JSON token " + token);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+/**
+ * <p>A document revision read without its body. The body is read from the datastore,
+ * using the revision's sequence, the first time {@link #getBody()} is called.</p>
+ *
+ * <p>This avoids transferring the bodies of revisions which are only needed for
+ * their place in a {@link DocumentRevisionTree}, for example when working out which
+ * revisions to push. Attachments are not read.</p>
+ *
+ * <p>{@link #getBody()} submits a read to the datastore's queue, so it must not be
+ * called from a task running on that queue.</p>
+ *
+ * @api_private
+ */
+class LazyBodyDocumentRevision extends DocumentRevision {
+
+    private final DatastoreImpl datastore;
+
+    private DocumentBody body;
+    private boolean bodyLoaded = false;
+
+    LazyBodyDocumentRevision(String docId, String revId, DocumentRevisionOptions options,
+                             DatastoreImpl datastore) {
+        super(docId, revId, null, options);
+        this.datastore = datastore;
+    }
+
+    @Override
+    public synchronized DocumentBody getBody() {
+        if (!bodyLoaded) {
+            body = datastore.getBodyForSequence(getSequence());
+            bodyLoaded = true;
+        }
+        return body;
+    }
+
+    @Override
+    public synchronized void setBody(DocumentBody body) {
+        super.setBody(body);
+        this.body = body;
+        this.bodyLoaded = true;
+    }
+}
@@ -35,18 +35,29 @@ import java.util.TreeMap;
 public class PickWinningRevisionCallable {
 
     // get all non-deleted leaf rev ids for a given doc id
-    // gets all revs whose sequence is not a parent of another rev and the rev isn't deleted
+    // uses the leaf flag maintained since database version 201
     public static final String GET_NON_DELETED_LEAFS = "SELECT revs.revid, revs.sequence FROM " +
-            "revs WHERE revs.doc_id = ? AND revs.deleted = 0 AND revs.sequence NOT IN " +
-            "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) ";
+            "revs WHERE revs.doc_id = ? AND revs.leaf = 1 AND revs.deleted = 0 ";
 
     // get all leaf rev ids for a given doc id
-    // gets all revs whose sequence is not a parent of another rev
+    // uses the leaf flag maintained since database version 201
     public static final String GET_ALL_LEAFS = "SELECT revs.revid, revs.sequence FROM revs " +
-            "WHERE revs.doc_id = ? AND revs.sequence NOT IN " +
+            "WHERE revs.doc_id = ? AND revs.leaf = 1 ";
+
+    // as GET_NON_DELETED_LEAFS, for databases without the leaf flag
+    // gets all revs whose sequence is not a parent of another rev and the rev isn't deleted
+    private static final String GET_NON_DELETED_LEAFS_BY_PARENT = "SELECT revs.revid, " +
+            "revs.sequence FROM revs WHERE revs.doc_id = ? AND revs.deleted = 0 AND " +
+            "revs.sequence NOT IN (SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) ";
+
+    // as GET_ALL_LEAFS, for databases without the leaf flag
+    // gets all revs whose sequence is not a parent of another rev
+    private static final String GET_ALL_LEAFS_BY_PARENT = "SELECT revs.revid, revs.sequence " +
+            "FROM revs WHERE revs.doc_id = ? AND revs.sequence NOT IN " +
             "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) ";
 
     private final long docNumericId;
+    private final boolean useLeafFlag;
 
     /**
      * Identify and set the winning revision for the document specified by the supplied internal
@@ -55,7 +66,20 @@ public class PickWinningRevisionCallable {
      * @param docNumericId the numeric (internal) ID of the document to set the winning revision for
      */
     public PickWinningRevisionCallable(long docNumericId) {
+        this(docNumericId, true);
+    }
+
+    /**
+     * Identify and set the winning revision for the document specified by the supplied internal
+     * document ID.
+     *
+     * @param docNumericId the numeric (internal) ID of the document to set the winning revision for
+     * @param useLeafFlag  {@code false} to find leaf revisions from the parent of every revision,
+     *                     for migrations which run before the {@code revs.leaf} flag is added
+     */
+    public PickWinningRevisionCallable(long docNumericId, boolean useLeafFlag) {
         this.docNumericId = docNumericId;
+        this.useLeafFlag = useLeafFlag;
     }
 
     /**
@@ -98,7 +122,8 @@ public class PickWinningRevisionCallable {
 
         Cursor cursor = null;
         try {
-            cursor = db.rawQuery(GET_NON_DELETED_LEAFS, new String[]{Long.toString(docNumericId)});
+            cursor = db.rawQuery(useLeafFlag ? GET_NON_DELETED_LEAFS :
+                    GET_NON_DELETED_LEAFS_BY_PARENT, new String[]{Long.toString(docNumericId)});
             while (cursor.moveToNext()) {
                 leafs.put(cursor.getString(0), cursor.getLong(1));
             }
@@ -113,7 +138,8 @@ public class PickWinningRevisionCallable {
         // re-get with the same query but without the revs.delete clause
         if (leafs.size() == 0) {
             try {
-                cursor = db.rawQuery(GET_ALL_LEAFS, new String[]{Long.toString(docNumericId)});
+                cursor = db.rawQuery(useLeafFlag ? GET_ALL_LEAFS : GET_ALL_LEAFS_BY_PARENT,
+                        new String[]{Long.toString(docNumericId)});
                 while (cursor.moveToNext()) {
                     leafs.put(cursor.getString(0), cursor.getLong(1));
                 }
@@ -135,9 +161,10 @@ public class PickWinningRevisionCallable {
         // set current=0 for all other leaf sequences with this doc_id
         ContentValues currentFalse = new ContentValues();
         currentFalse.put("current", 0);
-        db.update("revs", currentFalse,
-                "sequence!=? AND doc_id=? AND sequence NOT IN " +
-                        "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL)",
+        db.update("revs", currentFalse, useLeafFlag ?
+                        "sequence!=? AND doc_id=? AND leaf=1" :
+                        "sequence!=? AND doc_id=? AND sequence NOT IN " +
+                                "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL)",
                 new String[]{Long.toString(newWinnerSeq), Long.toString(docNumericId)});
     }
 }
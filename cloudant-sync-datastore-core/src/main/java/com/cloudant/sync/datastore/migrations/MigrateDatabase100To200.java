@@ -164,8 +164,10 @@ public class MigrateDatabase100To200 implements Migration {
                             deletedAttachmentCount, lowest.doc_id, lowest.sequence));
                 }
 
-                // Finally resolve the winner for the document based on all the merged branches
-                new PickWinningRevisionCallable(lowest.doc_id).call(db);
+                // Finally resolve the winner for the document based on all the merged branches.
+                // This migration runs before the leaf flag is added in version 201, so leaf
+                // revisions are found from the parents.
+                new PickWinningRevisionCallable(lowest.doc_id, false).call(db);
             }
         } finally {
             DatabaseUtils.closeCursorQuietly(c);
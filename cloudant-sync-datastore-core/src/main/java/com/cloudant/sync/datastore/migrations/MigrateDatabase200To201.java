@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore.migrations;
+
+import com.cloudant.sync.sqlite.SQLDatabase;
+
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Migration which adds a {@code leaf} flag to the {@code revs} table.
+ * </p>
+ * <p>
+ * Previously leaf revisions were found with
+ * {@code sequence NOT IN (SELECT DISTINCT parent FROM revs WHERE parent NOT NULL)}, which reads
+ * the parent of every revision in the database. Picking the winner of a single document, as done
+ * for every revision inserted by pull replication, therefore took longer as the database grew.
+ * With the flag, and an index on {@code (doc_id, leaf, deleted)}, the leaves of a document are
+ * found with an index lookup.
+ * </p>
+ * <p>
+ * The flag is kept up to date by triggers, so that every way of inserting, re-parenting or
+ * deleting revisions maintains it:
+ * </p>
+ * <ul>
+ *     <li>inserting a revision clears the flag on its parent.</li>
+ *     <li>changing a revision's parent clears the flag on the new parent and re-evaluates it
+ *     for the old parent.</li>
+ *     <li>deleting a revision re-evaluates the flag for its parent.</li>
+ * </ul>
+ *
+ * @api_private
+ */
+public class MigrateDatabase200To201 implements Migration {
+
+    private static final Logger LOGGER = Logger.getLogger(MigrateDatabase200To201.class.getName());
+
+    private static final String[] STATEMENTS = new String[]{
+            "ALTER TABLE revs ADD COLUMN leaf BOOLEAN DEFAULT 1; ",
+            "UPDATE revs SET leaf = 0 WHERE sequence IN " +
+                    "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL); ",
+            "CREATE INDEX revs_leaf ON revs(doc_id, leaf, deleted); ",
+            "CREATE TRIGGER revs_leaf_insert AFTER INSERT ON revs " +
+                    "WHEN NEW.parent NOT NULL " +
+                    "BEGIN " +
+                    "    UPDATE revs SET leaf = 0 WHERE sequence = NEW.parent; " +
+                    "END; ",
+            "CREATE TRIGGER revs_leaf_update AFTER UPDATE OF parent ON revs " +
+                    "BEGIN " +
+                    "    UPDATE revs SET leaf = 0 WHERE sequence = NEW.parent; " +
+                    "    UPDATE revs SET leaf = NOT EXISTS " +
+                    "        (SELECT 1 FROM revs WHERE parent = OLD.parent) " +
+                    "        WHERE sequence = OLD.parent; " +
+                    "END; ",
+            "CREATE TRIGGER revs_leaf_delete AFTER DELETE ON revs " +
+                    "WHEN OLD.parent NOT NULL " +
+                    "BEGIN " +
+                    "    UPDATE revs SET leaf = NOT EXISTS " +
+                    "        (SELECT 1 FROM revs WHERE parent = OLD.parent) " +
+                    "        WHERE sequence = OLD.parent; " +
+                    "END; "
+    };
+
+    @Override
+    public void runMigration(SQLDatabase db) throws Exception {
+        LOGGER.info("Adding leaf flag to revisions");
+        for (String statement : STATEMENTS) {
+            db.execSQL(statement);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore.migrations;
+
+import com.cloudant.sync.sqlite.SQLDatabase;
+
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Migration which adds a {@code conflicts} table listing the documents which have more than
+ * one non-deleted leaf revision.
+ * </p>
+ * <p>
+ * Previously conflicted documents were found by grouping every non-deleted leaf revision in
+ * the database by document, so listing them took longer as the database grew however few
+ * conflicts there were. The table holds the internal ID of each conflicted document, so
+ * listing them reads only the conflicted documents.
+ * </p>
+ * <p>
+ * The table is populated from the existing revisions, then kept up to date by triggers which
+ * re-evaluate a document whenever one of its revisions is inserted or deleted, or has its
+ * {@code leaf} or {@code deleted} flag changed. This happens in the same transaction as the
+ * change, whether it is made by {@code forceInsert}, a delete or conflict resolution.
+ * </p>
+ *
+ * @api_private
+ */
+public class MigrateDatabase201To202 implements Migration {
+
+    private static final Logger LOGGER = Logger.getLogger(MigrateDatabase201To202.class.getName());
+
+    // Re-evaluates whether the document with internal ID %1$s is conflicted
+    private static final String UPDATE_CONFLICTS =
+            "    DELETE FROM conflicts WHERE doc_id = %1$s; " +
+            "    INSERT INTO conflicts (doc_id) SELECT %1$s WHERE " +
+            "        (SELECT COUNT(*) FROM revs " +
+            "         WHERE doc_id = %1$s AND leaf = 1 AND deleted = 0) > 1; ";
+
+    private static final String[] STATEMENTS = new String[]{
+            "CREATE TABLE conflicts ( " +
+                    "    doc_id INTEGER PRIMARY KEY REFERENCES docs(doc_id) ON DELETE CASCADE); ",
+            "INSERT INTO conflicts (doc_id) " +
+                    "    SELECT doc_id FROM revs WHERE leaf = 1 AND deleted = 0 " +
+                    "    GROUP BY doc_id HAVING COUNT(*) > 1; ",
+            "CREATE TRIGGER revs_conflicts_insert AFTER INSERT ON revs " +
+                    "BEGIN " +
+                    String.format(UPDATE_CONFLICTS, "NEW.doc_id") +
+                    "END; ",
+            "CREATE TRIGGER revs_conflicts_update AFTER UPDATE OF leaf, deleted ON revs " +
+                    "BEGIN " +
+                    String.format(UPDATE_CONFLICTS, "NEW.doc_id") +
+                    "END; ",
+            "CREATE TRIGGER revs_conflicts_delete AFTER DELETE ON revs " +
+                    "BEGIN " +
+                    String.format(UPDATE_CONFLICTS, "OLD.doc_id") +
+                    "END; "
+    };
+
+    @Override
+    public void runMigration(SQLDatabase db) throws Exception {
+        LOGGER.info("Adding table of conflicted documents");
+        for (String statement : STATEMENTS) {
+            db.execSQL(statement);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright © 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore.migrations;
+
+import com.cloudant.sync.sqlite.SQLDatabase;
+
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Migration which adds an index on the {@code key} column of the {@code attachments} table.
+ * </p>
+ * <p>
+ * Compaction deletes an attachment file once no attachment uses its key. Without the index,
+ * checking whether a key is still used reads the whole {@code attachments} table, so
+ * compaction read every key into memory in a single step. With it, compaction checks a few
+ * keys at a time with index lookups.
+ * </p>
+ *
+ * @api_private
+ */
+public class MigrateDatabase202To203 implements Migration {
+
+    private static final Logger LOGGER = Logger.getLogger(MigrateDatabase202To203.class.getName());
+
+    @Override
+    public void runMigration(SQLDatabase db) throws Exception {
+        LOGGER.info("Adding index of attachment keys");
+        db.execSQL("CREATE INDEX attachments_by_key ON attachments(key); ");
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright © 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore.migrations;
+
+import com.cloudant.sync.sqlite.SQLDatabase;
+
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Migration which marks a database as possibly holding revision bodies stored in
+ * {@code BodyEncoding.BINARY} or compressed, without changing its schema.
+ * </p>
+ * <p>
+ * Versions of the library which only read JSON bodies fail to parse these bodies, so the
+ * migration raises the database to the next major version, which those versions refuse to
+ * open. It is only applied when a datastore is opened with options which may store such
+ * bodies, so databases only holding JSON bodies can still be opened by older versions.
+ * </p>
+ *
+ * @api_private
+ */
+public class MigrateDatabase203To300 implements Migration {
+
+    private static final Logger LOGGER = Logger.getLogger(MigrateDatabase203To300.class.getName());
+
+    @Override
+    public void runMigration(SQLDatabase db) throws Exception {
+        LOGGER.info("Marking database as holding binary or compressed bodies");
+    }
+}
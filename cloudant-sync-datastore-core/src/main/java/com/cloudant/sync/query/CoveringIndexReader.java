@@ -0,0 +1,204 @@
+//  Copyright (c) 2016 IBM Corp. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.DocumentRevision;
+import com.cloudant.sync.datastore.DocumentRevisionBuilder;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLDatabaseQueue;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.google.common.base.Joiner;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *  Reads projected revisions of documents from a JSON index which holds all of the
+ *  projected fields, rather than loading the documents from the datastore.
+ *
+ *  Each batch of documents is read when it is needed, so the revisions reflect the index
+ *  at that time. A batch can only be read from the index if it is up to date with the
+ *  datastore, if no projected field has had a value which the index can't hold exactly
+ *  and no indexed document has had attachments (see
+ *  {@link QueryConstants#getSchemaVersion3()}), and if every document in the batch has
+ *  a row in the index. Otherwise {@link #revisions(List)} returns null, and the batch
+ *  should be loaded from the datastore instead.
+ */
+class CoveringIndexReader {
+
+    private static final Logger logger = Logger.getLogger(CoveringIndexReader.class.getName());
+
+    // Returned by scalarValue for a column type the index doesn't store for scalar values
+    private static final Object UNEXPECTED_TYPE = new Object();
+
+    private final Datastore datastore;
+    private final SQLDatabaseQueue queue;
+    private final String indexName;
+    private final List<String> bodyFields;
+    private final String select;
+
+    /**
+     *  @param indexName name of a JSON index holding each of {@code bodyFields}
+     *  @param bodyFields projected fields, other than {@code _id} and {@code _rev}
+     */
+    CoveringIndexReader(Datastore datastore,
+                        SQLDatabaseQueue queue,
+                        String indexName,
+                        List<String> bodyFields) {
+        this.datastore = datastore;
+        this.queue = queue;
+        this.indexName = indexName;
+        this.bodyFields = bodyFields;
+
+        List<String> columns = new ArrayList<String>();
+        columns.add("\"_id\"");
+        columns.add("\"_rev\"");
+        for (String field : bodyFields) {
+            columns.add(String.format("\"%s\"", field));
+        }
+        this.select = String.format("SELECT %s FROM \"%s\" WHERE _id IN (%%s)",
+                                    Joiner.on(", ").join(columns),
+                                    IndexManager.tableNameForIndex(indexName));
+    }
+
+    /**
+     *  Returns the projected revisions of the documents, in the same order, or null if
+     *  they can't be read from the index.
+     */
+    List<DocumentRevision> revisions(final List<String> docIds) {
+        // read before the index, so the index holds at least the changes up to here
+        final long datastoreSequence = datastore.getLastSequence();
+        Future<List<DocumentRevision>> result = queue.submitRead(
+                new SQLQueueCallable<List<DocumentRevision>>() {
+            @Override
+            public List<DocumentRevision> call(SQLDatabase database) throws Exception {
+                if (!indexCoversFields(database, datastoreSequence)) {
+                    return null;
+                }
+                return readRevisions(database, docIds);
+            }
+        });
+
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Execution error encountered:", e);
+            return null;
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Execution interrupted error encountered:", e);
+            return null;
+        }
+    }
+
+    private boolean indexCoversFields(SQLDatabase db, long datastoreSequence)
+            throws SQLException {
+        Set<String> coveredFields = new HashSet<String>();
+        String sql = String.format("SELECT field_name FROM %s " +
+                                   "WHERE index_name = ? AND scalar_values = 1 " +
+                                   "AND has_attachments = 0 AND last_sequence >= ?",
+                                   IndexManager.INDEX_METADATA_TABLE_NAME);
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, new String[]{ indexName,
+                                                    Long.toString(datastoreSequence) });
+            while (cursor.moveToNext()) {
+                coveredFields.add(cursor.getString(0));
+            }
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+        return coveredFields.containsAll(bodyFields);
+    }
+
+    private List<DocumentRevision> readRevisions(SQLDatabase db, List<String> docIds)
+            throws SQLException {
+        String sql = String.format(select,
+                                   Joiner.on(", ").join(Collections.nCopies(docIds.size(), "?")));
+        Map<String, DocumentRevision> revisions = new HashMap<String, DocumentRevision>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, docIds.toArray(new String[docIds.size()]));
+            while (cursor.moveToNext()) {
+                // A document with an array field has a row for each element, each
+                // holding the same values of the other fields
+                String docId = cursor.getString(0);
+                if (revisions.containsKey(docId)) {
+                    continue;
+                }
+                Map<String, Object> body = new HashMap<String, Object>();
+                for (int i = 0; i < bodyFields.size(); i++) {
+                    Object value = scalarValue(cursor, i + 2);
+                    if (value == UNEXPECTED_TYPE) {
+                        return null;
+                    } else if (value != null) {
+                        body.put(bodyFields.get(i), value);
+                    }
+                }
+                DocumentRevisionBuilder revBuilder = new DocumentRevisionBuilder();
+                revBuilder.setDocId(docId);
+                revBuilder.setRevId(cursor.getString(1));
+                revBuilder.setBody(DocumentBodyFactory.create(body));
+                revBuilder.setDatastore(datastore);
+                revisions.put(docId, revBuilder.buildProjected());
+            }
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+
+        List<DocumentRevision> ordered = new ArrayList<DocumentRevision>(docIds.size());
+        for (String docId : docIds) {
+            DocumentRevision revision = revisions.get(docId);
+            if (revision == null) {
+                return null;
+            }
+            ordered.add(revision);
+        }
+        return ordered;
+    }
+
+    /**
+     *  Returns the value of a column, null if the field is missing from the document, or
+     *  {@link #UNEXPECTED_TYPE} if the column holds a type which the index only stores
+     *  when it changed the value, such as a string converted to a number.
+     */
+    private static Object scalarValue(Cursor cursor, int index) {
+        switch (cursor.columnType(index)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(index);
+            case Cursor.FIELD_TYPE_INTEGER:
+                long value = cursor.getLong(index);
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            default:
+                return UNEXPECTED_TYPE;
+        }
+    }
+}
@@ -179,6 +179,9 @@ class IndexCreator {
                     parameters.put("index_settings", index.settingsAsJSON());
                     parameters.put("field_name", fieldName);
                     parameters.put("last_sequence", 0);
+                    // cleared by IndexUpdater when a value which isn't a string or
+                    // integer is indexed
+                    parameters.put("scalar_values", index.indexType == IndexType.JSON ? 1 : 0);
                     long rowId = database.insert(IndexManager.INDEX_METADATA_TABLE_NAME,
                                                  parameters);
                     if (rowId < 0) {
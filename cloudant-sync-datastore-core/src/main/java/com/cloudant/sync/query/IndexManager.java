@@ -38,6 +38,7 @@ package com.cloudant.sync.query;
 
 import com.cloudant.sync.datastore.Datastore;
 import com.cloudant.sync.datastore.DatastoreImpl;
+import com.cloudant.sync.datastore.DatastoreOptions;
 import com.cloudant.sync.datastore.encryption.KeyProvider;
 import com.cloudant.sync.datastore.migrations.SchemaOnlyMigration;
 import com.cloudant.sync.sqlite.Cursor;
@@ -59,6 +60,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -108,9 +110,14 @@ public class IndexManager {
         SQLDatabaseQueue queue = null;
 
         try {
-            queue = new SQLDatabaseQueue(filename, keyProvider);
+            final DatastoreOptions options = ((DatastoreImpl)datastore).getOptions();
+            queue = new SQLDatabaseQueue(filename, keyProvider, options.getReaderConnections());
+            queue.setStatementCacheSize(options.getStatementCacheSize());
+            queue.setQueueMetrics(options.getQueueMetrics());
+            queue.setSlowTaskThreshold(options.getSlowTaskThresholdMillis(), TimeUnit.MILLISECONDS);
             queue.updateSchema(new SchemaOnlyMigration(QueryConstants.getSchemaVersion1()), 1);
             queue.updateSchema(new SchemaOnlyMigration(QueryConstants.getSchemaVersion2()), 2);
+            queue.updateSchema(new SchemaOnlyMigration(QueryConstants.getSchemaVersion3()), 3);
             textSearchEnabled = ftsAvailable(queue);
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Failed to open database", e);
@@ -139,7 +146,7 @@ public class IndexManager {
      */
     public Map<String, Object> listIndexes() {
         try {
-            return dbQueue.submit(new SQLQueueCallable<Map<String, Object> >() {
+            return dbQueue.submitRead(new SQLQueueCallable<Map<String, Object> >() {
                 @Override
                 public Map<String, Object> call(SQLDatabase database) throws Exception {
                      return IndexManager.listIndexesInDatabase(database);
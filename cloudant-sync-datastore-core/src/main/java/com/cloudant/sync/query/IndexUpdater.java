@@ -14,8 +14,10 @@ package com.cloudant.sync.query;
 
 import com.cloudant.android.ContentValues;
 import com.cloudant.sync.datastore.Changes;
+import com.cloudant.sync.datastore.ChangesIterator;
 import com.cloudant.sync.datastore.Datastore;
 import com.cloudant.sync.datastore.DocumentRevision;
+import com.cloudant.sync.datastore.FieldExtractor;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.sqlite.SQLDatabaseQueue;
@@ -25,14 +27,17 @@ import com.cloudant.sync.util.DatabaseUtils;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  *  Handles updating indexes for a given datastore.
@@ -45,6 +50,14 @@ class IndexUpdater {
 
     private static final Logger logger = Logger.getLogger(IndexUpdater.class.getName());
 
+    // Number of sequence numbers of changes read and indexed in each transaction
+    private static final int CHANGES_PAGE_SIZE = 1000;
+
+    // Strings which SQLite converts to numbers when storing them in a column with NUMERIC
+    // affinity: integer and real literals, optionally surrounded by whitespace
+    private static final Pattern NUMERIC_TEXT =
+            Pattern.compile("\\s*[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?\\s*");
+
     /**
      *  Constructs a new CDTQQueryExecutor using the indexes in 'database' to index documents from
      *  'datastore'.
@@ -111,13 +124,23 @@ class IndexUpdater {
     private boolean updateIndex(String indexName, List<String> fieldNames) {
         boolean success;
         Changes changes;
-        long lastSequence = sequenceNumberForIndex(indexName);
 
-        do {
-            changes = datastore.changes(lastSequence, 10000);
-            success = updateIndex(indexName, fieldNames, changes, lastSequence);
-            lastSequence = changes.getLastSequence();
-        } while (success && changes.size() > 0);
+        // Reading changes and writing them to the index can take a long time, so
+        // run it in the background lane of both the datastore and index queues.
+        SQLDatabaseQueue.Priority previous =
+                SQLDatabaseQueue.setThreadPriority(SQLDatabaseQueue.Priority.BACKGROUND);
+        try {
+            ChangesIterator iterator = datastore.changesIterator(
+                    sequenceNumberForIndex(indexName), CHANGES_PAGE_SIZE);
+
+            do {
+                changes = iterator.nextBatch();
+                success = updateIndex(indexName, fieldNames, changes,
+                        changes.getLastSequence());
+            } while (success && changes.size() > 0);
+        } finally {
+            SQLDatabaseQueue.setThreadPriority(previous);
+        }
 
         // raise error
         if (!success) {
@@ -135,10 +158,12 @@ class IndexUpdater {
             return false;
         }
 
+        final FieldExtractor extractor = new FieldExtractor(fieldNames);
         Future<Boolean> result = queue.submitTransaction(new SQLQueueCallable<Boolean>() {
             @Override
             public Boolean call(SQLDatabase database) {
-                database.beginTransaction();
+                Set<String> nonScalarFields = new HashSet<String>();
+                boolean hasAttachments = false;
                 for (DocumentRevision rev: changes.getResults()) {
                     // Delete existing values
                     String tableName = IndexManager.tableNameForIndex(indexName);
@@ -146,11 +171,25 @@ class IndexUpdater {
 
                     // Insert new values if the rev isn't deleted
                     if (!rev.isDeleted()) {
+                        if (rev.getAttachments() != null && !rev.getAttachments().isEmpty()) {
+                            hasAttachments = true;
+                        }
+
+                        // Read the values of all the indexed fields in a single pass over
+                        // the body
+                        Map<String, Object> values = extractor.extract(rev.getBody());
+                        for (Map.Entry<String, Object> entry : values.entrySet()) {
+                            if (!isScalar(entry.getValue())) {
+                                nonScalarFields.add(entry.getKey());
+                            }
+                        }
+
                         // If we are indexing a document where one field is an array, we
                         // have multiple rows to insert into the index.
                         List<DBParameter> parameters = parametersToIndexRevision(rev,
                                                                                  indexName,
-                                                                                 fieldNames);
+                                                                                 fieldNames,
+                                                                                 values);
                         if (parameters == null) {
                             continue;
                         }
@@ -168,6 +207,27 @@ class IndexUpdater {
                     }
                 }
 
+                // The index table no longer holds the exact values of these fields, so
+                // queries projecting them can't be answered from it
+                for (String fieldName : nonScalarFields) {
+                    ContentValues v = new ContentValues();
+                    v.put("scalar_values", 0);
+                    database.update(IndexManager.INDEX_METADATA_TABLE_NAME,
+                                    v,
+                                    " index_name = ? AND field_name = ? ",
+                                    new String[]{ indexName, fieldName });
+                }
+
+                // Revisions read from the index table alone wouldn't have attachments
+                if (hasAttachments) {
+                    ContentValues v = new ContentValues();
+                    v.put("has_attachments", 1);
+                    database.update(IndexManager.INDEX_METADATA_TABLE_NAME,
+                                    v,
+                                    " index_name = ? ",
+                                    new String[]{ indexName });
+                }
+
                 return true;
             }
         });
@@ -191,6 +251,20 @@ class IndexUpdater {
         return success;
     }
 
+    /**
+     *  Returns whether a value can be read back unchanged from an index table: booleans
+     *  are stored as integers, arrays over several rows and other values as NULL, and
+     *  {@link Cursor} only reads floating point values with float precision. Index
+     *  columns have NUMERIC affinity, so strings which look like numbers, such as
+     *  {@code "007"} or {@code " 1.50"}, are stored as numbers.
+     */
+    private static boolean isScalar(Object value) {
+        if (value instanceof String) {
+            return !NUMERIC_TEXT.matcher((String) value).matches();
+        }
+        return value instanceof Integer || value instanceof Long;
+    }
+
     /**
      *  Returns a List of DBParameters containing table name and ContentValues to index
      *  a document in an index.
@@ -201,7 +275,8 @@ class IndexUpdater {
     @SuppressWarnings("unchecked")
     private List<DBParameter> parametersToIndexRevision (DocumentRevision rev,
                                                          String indexName,
-                                                         List<String> fieldNames) {
+                                                         List<String> fieldNames,
+                                                         Map<String, Object> values) {
         if (rev == null) {
             return null;
         }
@@ -217,7 +292,7 @@ class IndexUpdater {
         int arrayCount = 0;
         String arrayFieldName = null; // only record the last, as error if more than one
         for (String fieldName: fieldNames) {
-            Object value = ValueExtractor.extractValueForFieldName(fieldName, rev.getBody());
+            Object value = values.get(fieldName);
             if (value != null && value instanceof List) {
                 arrayCount = arrayCount + 1;
                 arrayFieldName = fieldName;
@@ -236,8 +311,7 @@ class IndexUpdater {
         List<DBParameter> parameters = new ArrayList<DBParameter>();
         List<Object> arrayFieldValues = null;
         if (arrayCount == 1) {
-            arrayFieldValues = (List) ValueExtractor.extractValueForFieldName(arrayFieldName,
-                    rev.getBody());
+            arrayFieldValues = (List) values.get(arrayFieldName);
         }
 
         if (arrayFieldValues != null && arrayFieldValues.size() > 0) {
@@ -254,7 +328,7 @@ class IndexUpdater {
                                                             initialIncludedFields,
                                                             initialArgs,
                                                             indexName,
-                                                            rev);
+                                                            values);
                 if (parameter == null) {
                     return null;
                 }
@@ -271,7 +345,7 @@ class IndexUpdater {
                                                         initialIncludedFields,
                                                         initialArgs,
                                                         indexName,
-                                                        rev);
+                                                        values);
             if (parameter == null) {
                 return null;
             }
@@ -285,7 +359,7 @@ class IndexUpdater {
                                             List<String> initialIncludedFields,
                                             List<Object> initialArgs,
                                             String indexName,
-                                            DocumentRevision rev) {
+                                            Map<String, Object> values) {
         List<String> includeFieldNames = new ArrayList<String>();
         includeFieldNames.addAll(initialIncludedFields);
         List<Object> args = new ArrayList<Object>();
@@ -298,7 +372,7 @@ class IndexUpdater {
                 continue;
             }
 
-            Object value = ValueExtractor.extractValueForFieldName(fieldName, rev.getBody());
+            Object value = values.get(fieldName);
             if (value != null && !(value instanceof List && ((List) value).size() == 0)) {
                 // Only include a field with a value or a field with a populated list
                 includeFieldNames.add(fieldName);
@@ -67,4 +67,22 @@ final class QueryConstants {
         };
     }
 
+    /**
+     *  Adds a flag to each field of an index, set while every value of the field indexed
+     *  so far is an integer or a string which doesn't look like a number, so its index
+     *  table holds the field's exact value. Indexes created before this version have the
+     *  flag cleared.
+     *
+     *  Also adds a flag to each index, set on all of its rows like last_sequence, once it
+     *  has indexed a revision with attachments.
+     */
+    public static String[] getSchemaVersion3() {
+        return new String[] {
+                "ALTER TABLE " + IndexManager.INDEX_METADATA_TABLE_NAME +
+                "        ADD COLUMN scalar_values INTEGER NOT NULL DEFAULT 0;",
+                "ALTER TABLE " + IndexManager.INDEX_METADATA_TABLE_NAME +
+                "        ADD COLUMN has_attachments INTEGER NOT NULL DEFAULT 0;"
+        };
+    }
+
 }
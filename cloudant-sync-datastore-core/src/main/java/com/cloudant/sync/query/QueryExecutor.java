@@ -27,6 +27,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -108,7 +109,7 @@ class QueryExecutor {
             return null;
         }
 
-        Future<List<String>> result = queue.submit(new SQLQueueCallable<List<String>>() {
+        Future<List<String>> result = queue.submitRead(new SQLQueueCallable<List<String>>() {
             @Override
             public List<String> call(SQLDatabase database) throws Exception {
                 Set<String> docIdSet = executeQueryTree(root, database);
@@ -149,7 +150,55 @@ class QueryExecutor {
             logger.log(Level.WARNING, msg);
         }
 
-        return new QueryResult(docIds, datastore, fields, skip, limit, matcher);
+        // When an index holds every projected field, read the projected revisions from
+        // it rather than loading each document
+        CoveringIndexReader coveringIndex = null;
+        if (matcher == null && fields != null && !fields.isEmpty()) {
+            coveringIndex = coveringIndexReader(fields, indexes);
+        }
+
+        return new QueryResult(docIds, datastore, fields, skip, limit, matcher, coveringIndex);
+    }
+
+    /**
+     *  Returns a reader for the projected revisions of the documents from a JSON index
+     *  which holds all of the projected fields, or null if there's no such index.
+     */
+    private CoveringIndexReader coveringIndexReader(List<String> fields,
+                                                    Map<String, Object> indexes) {
+        // _id and _rev are held by every index
+        List<String> bodyFields = new ArrayList<String>();
+        for (String field : fields) {
+            if (!field.equals("_id") && !field.equals("_rev")) {
+                bodyFields.add(field);
+            }
+        }
+
+        String indexName = chooseIndexForFields(bodyFields, indexes);
+        if (indexName == null) {
+            return null;
+        }
+        return new CoveringIndexReader(datastore, queue, indexName, bodyFields);
+    }
+
+    /**
+     *  Returns the name of the first JSON index, in name order, which holds all of the
+     *  fields, or null if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    private static String chooseIndexForFields(List<String> fields,
+                                               Map<String, Object> indexes) {
+        if (indexes == null) {
+            return null;
+        }
+        for (String indexName : new TreeSet<String>(indexes.keySet())) {
+            Map<String, Object> index = (Map<String, Object>) indexes.get(indexName);
+            if (index.get("type") == IndexType.JSON &&
+                    ((List<String>) index.get("fields")).containsAll(fields)) {
+                return indexName;
+            }
+        }
+        return null;
     }
 
     protected ChildrenQueryNode translateQuery(Map<String, Object> query,
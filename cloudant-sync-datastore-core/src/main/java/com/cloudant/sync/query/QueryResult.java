@@ -14,17 +14,15 @@ package com.cloudant.sync.query;
 
 import com.cloudant.sync.datastore.Attachment;
 import com.cloudant.sync.datastore.Datastore;
-import com.cloudant.sync.datastore.DocumentBodyFactory;
 import com.cloudant.sync.datastore.DocumentException;
 import com.cloudant.sync.datastore.DocumentRevision;
 import com.cloudant.sync.datastore.DocumentRevisionBuilder;
+import com.cloudant.sync.datastore.FieldExtractor;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -40,9 +38,11 @@ public class QueryResult implements Iterable<DocumentRevision> {
     private final List<String> originalDocIds;
     private final Datastore datastore;
     private final List<String> fields;
+    private final FieldExtractor projection;
     private final long skip;
     private final long limit;
     private final UnindexedMatcher matcher;
+    private final CoveringIndexReader coveringIndex;
 
     public QueryResult(List<String> originalDocIds,
                        Datastore datastore,
@@ -50,12 +50,28 @@ public class QueryResult implements Iterable<DocumentRevision> {
                        long skip,
                        long limit,
                        UnindexedMatcher matcher) {
+        this(originalDocIds, datastore, fields, skip, limit, matcher, null);
+    }
+
+    /**
+     *  @param coveringIndex reader for the projected revisions of each batch of documents
+     *                       from an index, or null to load the documents from the datastore
+     */
+    QueryResult(List<String> originalDocIds,
+                Datastore datastore,
+                List<String> fields,
+                long skip,
+                long limit,
+                UnindexedMatcher matcher,
+                CoveringIndexReader coveringIndex) {
         this.originalDocIds = originalDocIds;
         this.datastore = datastore;
         this.fields = fields;
+        this.projection = fields != null && !fields.isEmpty() ? new FieldExtractor(fields) : null;
         this.skip = skip;
         this.limit = limit;
         this.matcher = matcher;
+        this.coveringIndex = coveringIndex;
     }
 
     /**
@@ -151,7 +167,13 @@ public class QueryResult implements Iterable<DocumentRevision> {
                     range.length = Math.min(DEFAULT_BATCH_SIZE, originalDocIds.size() - range.location);
                     List<String> batch = originalDocIds.subList(range.location,
                         range.location + range.length);
-                    List<DocumentRevision> docs = datastore.getDocumentsWithIds(batch);
+                    // read from the index if it can answer for this batch
+                    List<DocumentRevision> docs = coveringIndex != null
+                            ? coveringIndex.revisions(batch) : null;
+                    boolean covered = docs != null;
+                    if (!covered) {
+                        docs = datastore.getDocumentsWithIds(batch);
+                    }
                     for (DocumentRevision rev : docs) {
                         DocumentRevision innerRev;
                         innerRev = rev;  // Allows us to replace later if projecting
@@ -167,8 +189,8 @@ public class QueryResult implements Iterable<DocumentRevision> {
                             continue;
                         }
 
-                        if (fields != null && !fields.isEmpty()) {
-                            innerRev = projectFields(fields, rev, datastore);
+                        if (projection != null && !covered) {
+                            innerRev = projectFields(rev, datastore);
                         }
 
                         docList.add(innerRev);
@@ -198,22 +220,13 @@ public class QueryResult implements Iterable<DocumentRevision> {
         }
     }
 
-    private DocumentRevision projectFields(List<String> fields,
-                                           DocumentRevision rev,
-                                           Datastore datastore) {
-        // grab the map filter fields and rebuild object
-        Map<String, Object> originalBody = rev.getBody().asMap();
-        Map<String, Object> body = new HashMap<String, Object>();
-        for (Map.Entry<String, Object> entry : originalBody.entrySet()) {
-            if (fields.contains(entry.getKey())) {
-                body.put(entry.getKey(), entry.getValue());
-            }
-        }
-
+    private DocumentRevision projectFields(DocumentRevision rev, Datastore datastore) {
+        // only decode the projected fields from the stored body, rather than the whole
+        // body, and build the projected body from them without validating it again
         DocumentRevisionBuilder revBuilder = new DocumentRevisionBuilder();
         revBuilder.setDocId(rev.getId());
         revBuilder.setRevId(rev.getRevision());
-        revBuilder.setBody(DocumentBodyFactory.create(body));
+        revBuilder.setBody(projection.project(rev.getBody()));
         revBuilder.setDeleted(rev.isDeleted());
         revBuilder.setAttachments(new ArrayList<Attachment>(rev.getAttachments().values()));
         revBuilder.setDatastore(datastore);
@@ -13,14 +13,17 @@
 package com.cloudant.sync.query;
 
 import com.cloudant.sync.datastore.DocumentRevision;
+import com.cloudant.sync.datastore.FieldExtractor;
 
 import static com.cloudant.sync.query.QueryConstants.*;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -85,6 +88,9 @@ class UnindexedMatcher {
 
     private ChildrenQueryNode root;
 
+    // extracts the values of all the fields in the selector in one pass over a body
+    private FieldExtractor extractor;
+
     private static final Logger logger = Logger.getLogger(UnindexedMatcher.class.getName());
 
     /**
@@ -102,10 +108,31 @@ class UnindexedMatcher {
 
         UnindexedMatcher matcher = new UnindexedMatcher();
         matcher.root = root;
+        Set<String> fieldNames = new HashSet<String>();
+        addFieldNames(root, fieldNames);
+        matcher.extractor = new FieldExtractor(fieldNames);
 
         return matcher;
     }
 
+    /**
+     *  Adds the fields compared by the selector tree to fieldNames, other than _id and
+     *  _rev, which come from the revision rather than its body.
+     */
+    private static void addFieldNames(QueryNode node, Set<String> fieldNames) {
+        if (node instanceof ChildrenQueryNode) {
+            for (QueryNode child: ((ChildrenQueryNode) node).children) {
+                addFieldNames(child, fieldNames);
+            }
+        } else if (node instanceof OperatorExpressionNode) {
+            Map<String, Object> expression = ((OperatorExpressionNode) node).expression;
+            String fieldName = (String) expression.keySet().toArray()[0];
+            if (!fieldName.equals("_id") && !fieldName.equals("_rev")) {
+                fieldNames.add(fieldName);
+            }
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private static ChildrenQueryNode buildExecutionTreeForSelector(Map<String, Object> selector) {
         // At this point we will have a root compound predicate, AND or OR, and
@@ -187,18 +214,20 @@ class UnindexedMatcher {
      * @return document and matcher's selector matching status.
      */
     public boolean matches(DocumentRevision rev) {
-        return executeSelectorTree(root, rev);
+        return executeSelectorTree(root, rev, extractor.extract(rev.getBody()));
     }
 
     @SuppressWarnings("unchecked")
-    private boolean executeSelectorTree(QueryNode node, DocumentRevision rev) {
+    private boolean executeSelectorTree(QueryNode node,
+                                        DocumentRevision rev,
+                                        Map<String, Object> bodyValues) {
         if (node instanceof AndQueryNode) {
             boolean passed = true;
 
             AndQueryNode andNode = (AndQueryNode) node;
 
             for (QueryNode child: andNode.children) {
-                passed = passed && executeSelectorTree(child, rev);
+                passed = passed && executeSelectorTree(child, rev, bodyValues);
             }
 
             return passed;
@@ -209,7 +238,7 @@ class UnindexedMatcher {
             OrQueryNode orNode = (OrQueryNode) node;
 
             for (QueryNode child: orNode.children) {
-                passed = passed || executeSelectorTree(child, rev);
+                passed = passed || executeSelectorTree(child, rev, bodyValues);
             }
 
             return passed;
@@ -236,7 +265,7 @@ class UnindexedMatcher {
             }
 
             Object expected = operatorExpression.get(operator);
-            Object actual = ValueExtractor.extractValueForFieldName(fieldName, rev);
+            Object actual = ValueExtractor.valueForFieldName(fieldName, rev, bodyValues);
 
             boolean passed = false;
             List<String> specialCaseOperators = Arrays.asList(MOD, SIZE);
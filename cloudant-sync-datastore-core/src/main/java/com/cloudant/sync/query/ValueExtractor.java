@@ -14,10 +14,9 @@ package com.cloudant.sync.query;
 
 import com.cloudant.sync.datastore.DocumentBody;
 import com.cloudant.sync.datastore.DocumentRevision;
+import com.cloudant.sync.datastore.FieldExtractor;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.Collections;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,35 +38,33 @@ class ValueExtractor {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public static Object extractValueForFieldName(String possiblyDottedField, DocumentBody body) {
-        // The algorithm here is to split the fields into a "path" and a "lastSegment".
-        // The path leads us to the final sub-document. We know that if we have either
-        // nil or a non-dictionary object while traversing path that the body doesn't
-        // have the right fields for this field selector -- it allows us to make sure
-        // that each level of the `path` results in a document rather than a value,
-        // because if it's a value, we can't continue the selection process.
-        String[] fields = possiblyDottedField.contains(".") ?
-                          possiblyDottedField.split("\\.") :
-                          new String[]{possiblyDottedField};
-
-        List<String> path = new ArrayList<String>(Arrays.asList(fields));
-        String lastSegment = path.remove(path.size() - 1);
-
-        Map<String, Object> currentLevel = body.asMap();
-        for (String field: path) {
-            Object map = currentLevel.get(field);
-            if (map != null && map instanceof Map) {
-                currentLevel = (Map<String, Object>) map;
-            } else {
-                String msg = String.format("Could not extract field %s from document.",
-                                           possiblyDottedField);
-                logger.log(Level.FINE, msg);
-                return null;
-            }
+        Object value = new FieldExtractor(Collections.singletonList(possiblyDottedField))
+                .extract(body).get(possiblyDottedField);
+        if (value == null) {
+            String msg = String.format("Could not extract field %s from document.",
+                                       possiblyDottedField);
+            logger.log(Level.FINE, msg);
         }
+        return value;
+    }
 
-        return currentLevel.get(lastSegment);
+    /**
+     * Returns the value of a field of a revision from the values extracted from its body
+     * by a {@link FieldExtractor}, which must have included the field.
+     */
+    public static Object valueForFieldName(String possiblyDottedField,
+                                           DocumentRevision rev,
+                                           Map<String, Object> bodyValues) {
+        // _id and _rev are special fields which come from attributes
+        // of the revision and not its body.
+        if (possiblyDottedField.equals("_id")) {
+            return rev.getId();
+        } else if (possiblyDottedField.equals("_rev")) {
+            return rev.getRevision();
+        } else {
+            return bodyValues.get(possiblyDottedField);
+        }
     }
 
 }
@@ -121,15 +121,17 @@ class DatastoreWrapper {
         }
     }
 
-    Map<String, DocumentRevisionTree> getDocumentTrees(List<DocumentRevision> documents) {
-        Map<String, DocumentRevisionTree> allDocumentTrees =
-                new HashMap<String, DocumentRevisionTree>();
+    /**
+     * Revisions in the returned trees only read their body when it is needed, and have no
+     * attachments, so only the revisions which are pushed transfer their bodies.
+     */
+    Map<String, DocumentRevisionTree> getDocumentTrees(List<DocumentRevision> documents)
+            throws DatastoreException {
+        List<String> docIds = new ArrayList<String>(documents.size());
         for(DocumentRevision doc: documents) {
-            DocumentRevisionTree tree =
-                    this.dbCore.getAllRevisionsOfDocument(doc.getId());
-            allDocumentTrees.put(doc.getId(), tree);
+            docIds.add(doc.getId());
         }
-        return allDocumentTrees;
+        return this.dbCore.getRevisionTreesWithoutBodies(docIds);
     }
 
     protected PreparedAttachment prepareAttachment(Attachment att, long length, long encodedLength) throws AttachmentException {
@@ -28,6 +28,7 @@ import com.cloudant.sync.datastore.DocumentRevsList;
 import com.cloudant.sync.datastore.PreparedAttachment;
 import com.cloudant.sync.datastore.UnsavedStreamAttachment;
 import com.cloudant.sync.event.EventBus;
+import com.cloudant.sync.sqlite.SQLDatabaseQueue;
 import com.cloudant.sync.util.JSONUtils;
 import com.cloudant.sync.util.Misc;
 import com.google.common.collect.Lists;
@@ -173,6 +174,9 @@ class PullStrategy implements ReplicationStrategy {
 
         ErrorInfo errorInfo = null;
 
+        // replication reads and writes wait behind interactive use of the datastore
+        SQLDatabaseQueue.Priority previousPriority =
+                SQLDatabaseQueue.setThreadPriority(SQLDatabaseQueue.Priority.BACKGROUND);
         try {
             this.useBulkGet = sourceDb.isBulkSupported();
             replicate();
@@ -185,6 +189,8 @@ class PullStrategy implements ReplicationStrategy {
             logger.log(Level.SEVERE, String.format("Batch %s ended with error:", this.state
                     .batchCounter), e);
             errorInfo = new ErrorInfo(e);
+        } finally {
+            SQLDatabaseQueue.setThreadPriority(previousPriority);
         }
 
         runComplete(errorInfo);
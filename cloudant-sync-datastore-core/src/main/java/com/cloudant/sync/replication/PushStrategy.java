@@ -21,6 +21,7 @@ import com.cloudant.mazha.json.JSONHelper;
 import com.cloudant.sync.datastore.Attachment;
 import com.cloudant.sync.datastore.AttachmentException;
 import com.cloudant.sync.datastore.Changes;
+import com.cloudant.sync.datastore.ChangesIterator;
 import com.cloudant.sync.datastore.Datastore;
 import com.cloudant.sync.datastore.DatastoreException;
 import com.cloudant.sync.datastore.DatastoreImpl;
@@ -29,6 +30,7 @@ import com.cloudant.sync.datastore.DocumentRevisionTree;
 import com.cloudant.sync.datastore.MultipartAttachmentWriter;
 import com.cloudant.sync.datastore.RevisionHistoryHelper;
 import com.cloudant.sync.event.EventBus;
+import com.cloudant.sync.sqlite.SQLDatabaseQueue;
 import com.cloudant.sync.util.JSONUtils;
 import com.cloudant.sync.util.Misc;
 import com.google.common.base.Strings;
@@ -162,6 +164,9 @@ class PushStrategy implements ReplicationStrategy {
 
         ErrorInfo errorInfo = null;
 
+        // replication reads and writes wait behind interactive use of the datastore
+        SQLDatabaseQueue.Priority previousPriority =
+                SQLDatabaseQueue.setThreadPriority(SQLDatabaseQueue.Priority.BACKGROUND);
         try {
 
             replicate();
@@ -169,6 +174,8 @@ class PushStrategy implements ReplicationStrategy {
         } catch (Throwable e) {
             logger.log(Level.SEVERE,String.format("Batch %s ended with error:", this.state.batchCounter),e);
             errorInfo = new ErrorInfo(e);
+        } finally {
+            SQLDatabaseQueue.setThreadPriority(previousPriority);
         }
 
         runComplete(errorInfo);
@@ -205,6 +212,13 @@ class PushStrategy implements ReplicationStrategy {
                     "Database not found: " + this.targetDb.getIdentifier());
         }
 
+        // Read the checkpoint once and page through the changes from it, rather than
+        // fetching the checkpoint from the remote database for every batch.
+        long lastPushSequence = getLastCheckpointSequence();
+        logger.fine("Last push sequence from remote database: " + lastPushSequence);
+        ChangesIterator changesIterator = this.sourceDb.getDbCore().changesIterator(
+                lastPushSequence, this.changeLimitPerBatch);
+
         this.state.documentCounter = 0;
         for (this.state.batchCounter = 1; this.state.batchCounter < this.batchLimitPerRun; this
                 .state.batchCounter++) {
@@ -222,7 +236,7 @@ class PushStrategy implements ReplicationStrategy {
             long batchStartTime = System.currentTimeMillis();
 
             // Get the next batch of changes and record the size and last sequence
-            Changes changes = getNextBatch();
+            Changes changes = changesIterator.nextBatch();
             final int unfilteredChangesSize = changes.size();
             final long lastSeq = changes.getLastSequence();
 
@@ -295,12 +309,6 @@ class PushStrategy implements ReplicationStrategy {
         logger.info(msg);
     }
 
-    private Changes getNextBatch() throws ExecutionException, InterruptedException, DatastoreException {
-        long lastPushSequence = getLastCheckpointSequence();
-        logger.fine("Last push sequence from remote database: " + lastPushSequence);
-        return this.sourceDb.getDbCore().changes(lastPushSequence, this.changeLimitPerBatch);
-    }
-
     private static class FilteredChanges extends Changes {
         public FilteredChanges(long lastSequence, List<DocumentRevision> results) {
             super(lastSequence, results);
@@ -58,6 +58,15 @@ public interface Cursor {
      */
     public boolean moveToFirst() ;
 
+    /**
+     * Move the cursor to an absolute position. The valid range of values is
+     * -1 &lt;= position &lt;= count.
+     * This method will return false if the position is not a row in the result set.
+     * @param position the zero-based position to move to.
+     * @return whether the move succeeded.
+     */
+    public boolean moveToPosition(int position);
+
     /**
      * Returns the value of the requested column as a String.
      * Throws an exception when the column value is null or the column type is not a string type is implementation-defined.
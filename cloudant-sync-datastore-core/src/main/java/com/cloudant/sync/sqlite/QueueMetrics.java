@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+/**
+ * <p>Receives the timings of tasks run by a {@link SQLDatabaseQueue}.</p>
+ *
+ * <p>Implement this to feed task timings into an existing metrics system, or use
+ * {@link QueueStatistics} which keeps histograms and counters in memory.</p>
+ *
+ * @api_public
+ */
+public interface QueueMetrics {
+
+    /**
+     * Called after each task completes, on the thread which ran the task.
+     * Implementations must be thread safe and should return quickly, as the
+     * database queue does not run other tasks while this is called.
+     *
+     * @param task timings for the task
+     */
+    void taskCompleted(TaskMetrics task);
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>{@link QueueMetrics} which keeps histograms of task wait and execution times,
+ * and counts of tasks by name, in memory.</p>
+ *
+ * <p>A large wait time relative to execution time means work is held up queueing
+ * behind other tasks rather than in SQLite.</p>
+ *
+ * @api_public
+ */
+public class QueueStatistics implements QueueMetrics {
+
+    private final Histogram waitTimes = new Histogram();
+    private final Histogram executionTimes = new Histogram();
+    private final Histogram transactionExecutionTimes = new Histogram();
+    private final AtomicLong failures = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> taskCounts =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Histogram> taskExecutionTimes =
+            new ConcurrentHashMap<String, Histogram>();
+
+    @Override
+    public void taskCompleted(TaskMetrics task) {
+        long wait = task.getWaitTime(TimeUnit.NANOSECONDS);
+        long execution = task.getExecutionTime(TimeUnit.NANOSECONDS);
+        waitTimes.record(wait, TimeUnit.NANOSECONDS);
+        executionTimes.record(execution, TimeUnit.NANOSECONDS);
+        if (task.isTransactional()) {
+            transactionExecutionTimes.record(execution, TimeUnit.NANOSECONDS);
+        }
+        if (!task.isSuccessful()) {
+            failures.incrementAndGet();
+        }
+
+        AtomicLong count = taskCounts.get(task.getName());
+        if (count == null) {
+            taskCounts.putIfAbsent(task.getName(), new AtomicLong());
+            count = taskCounts.get(task.getName());
+        }
+        count.incrementAndGet();
+
+        Histogram histogram = taskExecutionTimes.get(task.getName());
+        if (histogram == null) {
+            taskExecutionTimes.putIfAbsent(task.getName(), new Histogram());
+            histogram = taskExecutionTimes.get(task.getName());
+        }
+        histogram.record(execution, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return histogram of the time tasks spent queued before starting
+     */
+    public Histogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    /**
+     * @return histogram of the time tasks spent running
+     */
+    public Histogram getExecutionTimes() {
+        return executionTimes;
+    }
+
+    /**
+     * @return histogram of the time tasks run in a transaction spent running
+     */
+    public Histogram getTransactionExecutionTimes() {
+        return transactionExecutionTimes;
+    }
+
+    /**
+     * @return number of tasks which threw an exception
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return number of tasks run, keyed by {@link TaskMetrics#getName()}
+     */
+    public Map<String, Long> getTaskCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : taskCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * @param name name of the task, as given by {@link TaskMetrics#getName()}
+     * @return histogram of execution times for tasks with this name, or {@code null}
+     * if no such task has run
+     */
+    public Histogram getExecutionTimes(String name) {
+        return taskExecutionTimes.get(name);
+    }
+}
@@ -103,6 +103,27 @@ public abstract class SQLDatabase {
      */
     public abstract void execSQL(String sql) throws SQLException;
 
+    /**
+     * <p>Sets the maximum number of compiled statements this connection keeps for
+     * reuse by {@link #insert(String, ContentValues)},
+     * {@link #update(String, ContentValues, String, String[])} and
+     * {@link #delete(String, String, String[])}.</p>
+     *
+     * <p>Implementations which do not cache statements ignore this setting.</p>
+     *
+     * @param size maximum number of cached statements, 0 to disable caching
+     */
+    public void setStatementCacheSize(int size) {
+    }
+
+    /**
+     * @return the cache of compiled statements for this connection, or {@code null}
+     * if this implementation does not cache statements
+     */
+    public StatementCache<?> getStatementCache() {
+        return null;
+    }
+
     /**
      * For SQLite database, this is to call:
      *
@@ -135,6 +135,53 @@ public class SQLDatabaseFactory {
         }
     }
 
+    /**
+     * <p>Opens a read-only connection to an existing database.</p>
+     *
+     * <p>Read-only connections are used by {@link SQLDatabaseQueue} to run queries
+     * concurrently with the writer connection when the database is in WAL journal
+     * mode.</p>
+     *
+     * @param dbFilename full file path of the db file
+     * @param provider Key provider object storing the SQLCipher key
+     *                 Supply a NullKeyProvider to use a non-encrypted database.
+     * @return read-only {@code SQLDatabase} for the given filename
+     * @throws SQLException If the database could not be opened.
+     */
+    public static SQLDatabase openReadOnlySQLDatabase(String dbFilename, KeyProvider provider)
+            throws SQLException {
+
+        boolean runningOnAndroid =  Misc.isRunningOnAndroid();
+        boolean useSqlCipher = (provider.getEncryptionKey() != null);
+
+        try {
+
+            if (runningOnAndroid) {
+                if (useSqlCipher) {
+                    return (SQLDatabase) Class.forName("com.cloudant.sync.sqlite.android.AndroidSQLCipherSQLite")
+                            .getMethod("openReadOnlyAndroidSQLite", String.class, KeyProvider.class)
+                            .invoke(null, new Object[]{dbFilename, provider});
+                } else {
+                    return (SQLDatabase) Class.forName("com.cloudant.sync.sqlite.android.AndroidSQLite")
+                            .getMethod("openReadOnlyAndroidSQLite", String.class)
+                            .invoke(null, dbFilename);
+                }
+            } else {
+                if (useSqlCipher) {
+                    throw new UnsupportedOperationException("No SQLCipher-based database implementation for Java SE");
+                } else {
+                    return (SQLDatabase) Class.forName("com.cloudant.sync.sqlite.sqlite4java.SQLiteWrapper")
+                            .getMethod("openReadOnlySQLiteWrapper", String.class)
+                            .invoke(null, dbFilename);
+                }
+            }
+
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to load database module", e);
+            throw new SQLException("Failed to load database module", e);
+        }
+    }
+
     /**
      * This method runs a simple SQL query to validate the opened database
      * is readable. In particular, this is useful for testing the key we
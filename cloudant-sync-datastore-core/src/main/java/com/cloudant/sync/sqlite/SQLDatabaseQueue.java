@@ -17,34 +17,188 @@ package com.cloudant.sync.sqlite;
 import com.cloudant.sync.datastore.encryption.KeyProvider;
 import com.cloudant.sync.datastore.encryption.NullKeyProvider;
 import com.cloudant.sync.datastore.migrations.Migration;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * SQLDatabaseQuue provides the ability to ensure that the
+ * <p>SQLDatabaseQuue provides the ability to ensure that the
  * only a single thread accesses the SQLDatabase. Tasks submitted to this
- * queue are guaranteed to be executed in the order they are received
+ * queue are guaranteed to be executed in the order they are received</p>
+ *
+ * <p>Optionally the queue can be created with a pool of read-only connections.
+ * In that case the database is switched to WAL journal mode and tasks passed to
+ * {@link #submitRead(SQLQueueCallable)} are executed concurrently on the reader
+ * connections, so they are not held up by writes queued on the single writer
+ * connection. Tasks submitted via {@link #submitRead(SQLQueueCallable)} are only
+ * ordered with respect to schema updates; callers needing to read their own writes
+ * must wait for the write's {@link Future} first.</p>
+ *
+ * <p>Optionally transactional tasks can be group committed, see
+ * {@link #setGroupCommitSize(int)}.</p>
+ *
+ * <p>Tasks are submitted with a {@link Priority}. Long running work such as
+ * replication and index updates is submitted as {@link Priority#BACKGROUND}, and at
+ * most one background task is waiting in, or running on, the writer queue at a time;
+ * the rest are held back until it completes. Interactive tasks therefore wait behind
+ * at most one background task rather than all of them. Order of execution is only
+ * guaranteed between tasks of the same priority.</p>
+ *
+ * <p>The time each task waits in the queue and the time it runs for can be reported
+ * to a {@link QueueMetrics}, and tasks taking longer than a threshold logged; see
+ * {@link #setQueueMetrics(QueueMetrics)} and
+ * {@link #setSlowTaskThreshold(long, TimeUnit)}.</p>
  *
  * @api_private
  */
 public class SQLDatabaseQueue {
 
+    /**
+     * Priority lanes for tasks submitted to the queue.
+     */
+    public enum Priority {
+        /**
+         * Work an application is waiting on, such as reading a document. Run in the
+         * order submitted.
+         */
+        INTERACTIVE,
+        /**
+         * Long running work done on behalf of the application, such as replication or
+         * updating indexes. Run in the order submitted, at most one at a time ahead
+         * of interactive tasks.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * Priority used for tasks submitted by the current thread without an explicit
+     * priority.
+     */
+    private static final ThreadLocal<Priority> threadPriority = new ThreadLocal<Priority>() {
+        @Override
+        protected Priority initialValue() {
+            return Priority.INTERACTIVE;
+        }
+    };
+
     private final SQLDatabase db;
-    private final ExecutorService queue;
+    private final String filename;
+    private final KeyProvider provider;
+    private final ListeningExecutorService queue;
     private final Logger logger = Logger.getLogger(SQLDatabase.class.getCanonicalName());
     private AtomicBoolean acceptTasks = new AtomicBoolean(true);
     private String sqliteVersion = null;
+
+    /**
+     * Pool of threads each owning a read-only connection, or {@code null} if
+     * all tasks run on the writer thread.
+     */
+    private final ListeningExecutorService readers;
+
+    /**
+     * The read-only connection owned by the current reader thread.
+     */
+    private final ThreadLocal<SQLDatabase> readerDb = new ThreadLocal<SQLDatabase>();
+
+    /**
+     * The open read-only connections of all reader threads.
+     */
+    private final Set<SQLDatabase> readerDbs =
+            Collections.newSetFromMap(new ConcurrentHashMap<SQLDatabase, Boolean>());
+
+    /**
+     * The most recently submitted schema update, reads wait for this to complete
+     * so they never observe a partially migrated database.
+     */
+    private volatile Future<?> lastSchemaUpdate = null;
+
+    /**
+     * Statement cache size applied to connections, or -1 to keep their default.
+     */
+    private volatile int statementCacheSize = -1;
+
+    /**
+     * Maximum number of transactional tasks committed together, 1 if group
+     * commit is disabled.
+     */
+    private volatile int groupCommitSize = 1;
+
+    /**
+     * Guards {@link #openGroup} and the order tasks are added to {@link #queue}.
+     */
+    private final Object groupLock = new Object();
+
+    /**
+     * The group of transactional tasks at the tail of {@link #queue} which has not
+     * started running, or {@code null} if the last task queued was not part of a
+     * group. Only tasks submitted while a group is at the tail join it, so tasks
+     * are always run in the order they were submitted.
+     */
+    private TransactionGroup openGroup = null;
+
+    /**
+     * Background tasks waiting for the one in {@link #queue} to complete. Guarded by
+     * {@link #groupLock}.
+     */
+    private final LinkedList<FutureTask<?>> pendingBackground = new LinkedList<FutureTask<?>>();
+
+    /**
+     * True while a background task is waiting in, or running on, {@link #queue}.
+     * Guarded by {@link #groupLock}.
+     */
+    private boolean backgroundInFlight = false;
+
+    /**
+     * Receives the timings of completed tasks, or {@code null}.
+     */
+    private volatile QueueMetrics queueMetrics = null;
+
+    /**
+     * Tasks whose wait and execution time add up to at least this many nanoseconds
+     * are logged, or -1 to disable logging.
+     */
+    private volatile long slowTaskThresholdNanos = -1;
+
+    /**
+     * Number of tasks for the writer connection which have not started.
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /**
+     * Number of tasks for the reader pool which have not started.
+     */
+    private final AtomicInteger readQueueDepth = new AtomicInteger();
+
+    /**
+     * Tasks currently running on any connection.
+     */
+    private final Set<InstrumentedTask<?>> runningTasks =
+            Collections.newSetFromMap(new ConcurrentHashMap<InstrumentedTask<?>, Boolean>());
+
     /**
      * Creates an SQLQueue for the database specified.
      * @param filename The file where the database is located
@@ -64,12 +218,36 @@ public class SQLDatabaseQueue {
      * @throws SQLException If the database cannot be opened.
      */
     public SQLDatabaseQueue(final String filename, KeyProvider provider) throws IOException, SQLException {
-        queue = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        this(filename, provider, 0);
+    }
+
+    /**
+     * <p>Creates an SQLQueue for the database specified, with a pool of read-only
+     * connections for tasks submitted via {@link #submitRead(SQLQueueCallable)}.</p>
+     *
+     * <p>When {@code readerConnections} is greater than zero the database is put into
+     * WAL journal mode. If WAL mode cannot be enabled the queue falls back to running
+     * every task on the writer connection.</p>
+     *
+     * @param filename The file where the database is located
+     * @param provider The key provider object that contains the user-defined SQLCipher key.
+     *                 Supply a NullKeyProvider to use a non-encrypted database.
+     * @param readerConnections The maximum number of concurrent read-only connections, 0 to
+     *                          disable the reader pool.
+     * @throws IOException If a problem occurs creating the database
+     * @throws SQLException If the database cannot be opened.
+     */
+    public SQLDatabaseQueue(final String filename,
+                            final KeyProvider provider,
+                            int readerConnections) throws IOException, SQLException {
+        this.filename = filename;
+        this.provider = provider;
+        queue = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor(new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
                 return new Thread(r, "SQLDatabaseQueue - "+ filename);
             }
-        });
+        }));
         this.db = SQLDatabaseFactory.createSQLDatabase(filename, provider);
         queue.submit(new Runnable() {
             @Override
@@ -77,6 +255,67 @@ public class SQLDatabaseQueue {
                 db.open();
             }
         });
+
+        if (readerConnections > 0 && enableWriteAheadLogging()) {
+            readers = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(readerConnections, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                r.run();
+                            } finally {
+                                // connections must be closed by the thread which opened them
+                                SQLDatabase reader = readerDb.get();
+                                if (reader != null) {
+                                    readerDbs.remove(reader);
+                                    reader.close();
+                                    readerDb.remove();
+                                }
+                            }
+                        }
+                    }, "SQLDatabaseQueue reader - " + filename);
+                }
+            }));
+        } else {
+            readers = null;
+        }
+    }
+
+    /**
+     * Switches the writer connection to WAL journal mode.
+     * @return true if the database is now in WAL mode
+     */
+    private boolean enableWriteAheadLogging() {
+        try {
+            String mode = queue.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    Cursor cursor = null;
+                    try {
+                        // journal_mode returns the resulting mode as a row, so this
+                        // has to be a query rather than execSQL
+                        cursor = db.rawQuery("PRAGMA journal_mode = WAL;", null);
+                        return cursor.moveToFirst() ? cursor.getString(0) : null;
+                    } finally {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                    }
+                }
+            }).get();
+            if ("wal".equalsIgnoreCase(mode)) {
+                return true;
+            }
+            logger.log(Level.WARNING, String.format("Could not enable WAL journal mode, " +
+                    "journal mode is %s; reads will use the writer connection", mode));
+        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "Failed to enable WAL journal mode", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Failed to enable WAL journal mode", e);
+        }
+        return false;
     }
 
     /**
@@ -85,7 +324,7 @@ public class SQLDatabaseQueue {
      * @param version The version of the schema
      */
     public void updateSchema(final Migration migration, final int version){
-        queue.execute(new Runnable() {
+        lastSchemaUpdate = submitToQueue(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -97,6 +336,132 @@ public class SQLDatabaseQueue {
         }); // Fire and forget
     }
 
+    /**
+     * Sets the maximum number of compiled statements each connection used by this
+     * queue keeps for reuse.
+     * @param size maximum number of cached statements per connection, 0 to disable
+     *             caching
+     * @see SQLDatabase#setStatementCacheSize(int)
+     */
+    public void setStatementCacheSize(final int size) {
+        this.statementCacheSize = size;
+        submitToQueue(new Runnable() {
+            @Override
+            public void run() {
+                db.setStatementCacheSize(size);
+            }
+        });
+    }
+
+    /**
+     * <p>Sets the maximum number of transactional tasks which are committed together
+     * in a single transaction.</p>
+     *
+     * <p>When greater than 1, tasks passed to {@link #submitTransaction(SQLQueueCallable)}
+     * that are waiting behind each other in the queue are run in one transaction, each
+     * inside its own SAVEPOINT, and committed once. This replaces a commit, and the
+     * sync to disk that goes with it, per task with one per group. Each task still
+     * succeeds or fails on its own: a task which throws is rolled back to its
+     * savepoint and only its {@link Future} fails. The futures of a group complete
+     * once the group has been committed.</p>
+     *
+     * <p>Tasks are never reordered; a group only contains tasks submitted one after
+     * the other. Defaults to 1, which disables group commit.</p>
+     *
+     * @param size maximum number of tasks per transaction, 1 to disable group commit
+     */
+    public void setGroupCommitSize(int size) {
+        Preconditions.checkArgument(size >= 1, "Group commit size must be at least 1");
+        this.groupCommitSize = size;
+    }
+
+    /**
+     * @return the maximum number of transactional tasks committed together
+     */
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    /**
+     * Sets the object which receives the timings of each task run by this queue.
+     * @param queueMetrics receiver of task timings, or {@code null} to stop
+     *                     reporting timings
+     */
+    public void setQueueMetrics(QueueMetrics queueMetrics) {
+        this.queueMetrics = queueMetrics;
+    }
+
+    /**
+     * @return the object receiving task timings, or {@code null}
+     */
+    public QueueMetrics getQueueMetrics() {
+        return queueMetrics;
+    }
+
+    /**
+     * Logs a warning naming each task whose time waiting in the queue and running
+     * add up to at least {@code threshold}.
+     * @param threshold minimum time for a task to be logged, or a negative value to
+     *                  disable logging
+     * @param unit unit of {@code threshold}
+     */
+    public void setSlowTaskThreshold(long threshold, TimeUnit unit) {
+        this.slowTaskThresholdNanos = threshold < 0 ? -1 : unit.toNanos(threshold);
+    }
+
+    /**
+     * @return number of tasks for the writer connection which have not yet started,
+     * including background tasks being held back
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return number of tasks for the reader pool which have not yet started
+     */
+    public int getReadQueueDepth() {
+        return readQueueDepth.get();
+    }
+
+    /**
+     * Returns timings for the task which has been running the longest of the tasks
+     * currently running on any connection.
+     * @return timings of the task, or {@code null} if no task is running
+     */
+    public TaskMetrics getLongestRunningTask() {
+        InstrumentedTask<?> longest = null;
+        for (InstrumentedTask<?> task : runningTasks) {
+            if (longest == null || task.started < longest.started) {
+                longest = task;
+            }
+        }
+        return longest == null ? null : longest.metrics(System.nanoTime(), false, false);
+    }
+
+    /**
+     * Returns the hit and miss counts of the compiled statement caches of the writer
+     * connection and any open reader connections, added together.
+     * @return totals of the statement cache counts
+     * @see #setStatementCacheSize(int)
+     */
+    public StatementCacheStatistics getStatementCacheStatistics() {
+        List<SQLDatabase> connections = new ArrayList<SQLDatabase>(readerDbs);
+        connections.add(db);
+        int caches = 0;
+        long hits = 0;
+        long misses = 0;
+        for (SQLDatabase connection : connections) {
+            StatementCache<?> cache = connection.getStatementCache();
+            if (cache != null) {
+                caches++;
+                hits += cache.getHits();
+                misses += cache.getMisses();
+            }
+        }
+        return new StatementCacheStatistics(caches, hits, misses);
+    }
+
     /**
      * Returns the current version of the database.
      * @return The current version of the database.
@@ -119,30 +484,186 @@ public class SQLDatabaseQueue {
         }
     }
 
+    /**
+     * <p>Sets the priority of tasks submitted by the current thread without an
+     * explicit priority, for example by a replication thread calling methods on a
+     * {@link com.cloudant.sync.datastore.Datastore}.</p>
+     *
+     * <p>The priority applies to every queue the thread submits to. Callers should
+     * restore the previous priority when done:</p>
+     *
+     * <pre>
+     * Priority previous = SQLDatabaseQueue.setThreadPriority(Priority.BACKGROUND);
+     * try {
+     *     ...
+     * } finally {
+     *     SQLDatabaseQueue.setThreadPriority(previous);
+     * }
+     * </pre>
+     *
+     * @param priority priority for tasks submitted by the current thread
+     * @return the previous priority of the current thread
+     */
+    public static Priority setThreadPriority(Priority priority) {
+        Priority previous = threadPriority.get();
+        threadPriority.set(priority);
+        return previous;
+    }
+
+    /**
+     * @return the priority of tasks submitted by the current thread without an
+     * explicit priority
+     */
+    public static Priority getThreadPriority() {
+        return threadPriority.get();
+    }
+
+    /**
+     * Submits a database task for execution at the current thread's priority
+     * @param callable The task to be performed
+     * @param <T> The type of object that is returned from the task
+     * @throws RejectedExecutionException Thrown when the queue has been shutdown
+     * @return Future representing the task to be executed.
+     * @see #setThreadPriority(Priority)
+     */
+    public <T> ListenableFuture<T> submit(SQLQueueCallable<T> callable){
+        return submit(callable, threadPriority.get());
+    }
+
     /**
      * Submits a database task for execution
      * @param callable The task to be performed
+     * @param priority The lane to submit the task to
      * @param <T> The type of object that is returned from the task
      * @throws RejectedExecutionException Thrown when the queue has been shutdown
      * @return Future representing the task to be executed.
      */
-    public <T> Future<T> submit(SQLQueueCallable<T> callable){
+    public <T> ListenableFuture<T> submit(SQLQueueCallable<T> callable, Priority priority){
         callable.setDb(db);
         callable.setRunInTransaction(false);
-        return this.submitTaskToQueue(callable);
+        InstrumentedTask<T> task = new InstrumentedTask<T>(callable, false, false, priority);
+        if (priority == Priority.BACKGROUND) {
+            return this.submitTaskToBackground(task);
+        }
+        return this.submitTaskToQueue(task);
+    }
+
+    /**
+     * <p>Submits a read-only database task for execution.</p>
+     *
+     * <p>If this queue has a reader pool the task is executed on one of the read-only
+     * connections, concurrently with other reads and with the writer. Otherwise this
+     * is equivalent to {@link #submit(SQLQueueCallable)}. The task must not modify
+     * the database.</p>
+     *
+     * @param callable The task to be performed
+     * @param <T> The type of object that is returned from the task
+     * @throws RejectedExecutionException Thrown when the queue has been shutdown
+     * @return Future representing the task to be executed.
+     */
+    public <T> ListenableFuture<T> submitRead(SQLQueueCallable<T> callable){
+        return submitRead(callable, threadPriority.get());
+    }
+
+    /**
+     * <p>Submits a read-only database task for execution.</p>
+     *
+     * <p>The priority only applies when the task runs on the writer connection, that
+     * is when this queue has no reader pool.</p>
+     *
+     * @param callable The task to be performed
+     * @param priority The lane to submit the task to
+     * @param <T> The type of object that is returned from the task
+     * @throws RejectedExecutionException Thrown when the queue has been shutdown
+     * @return Future representing the task to be executed.
+     * @see #submitRead(SQLQueueCallable)
+     */
+    public <T> ListenableFuture<T> submitRead(final SQLQueueCallable<T> callable, Priority priority){
+        if (readers == null) {
+            return submit(callable, priority);
+        }
+        callable.setRunInTransaction(false);
+        if (acceptTasks.get()) {
+            final InstrumentedTask<T> task = new InstrumentedTask<T>(callable, false, true, priority);
+            try {
+                return task.track(readers.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        Future<?> schemaUpdate = lastSchemaUpdate;
+                        if (schemaUpdate != null) {
+                            schemaUpdate.get();
+                        }
+                        callable.setDb(readerDatabase());
+                        return task.call();
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                throw task.rejected(e);
+            }
+        } else {
+            throw new RejectedExecutionException("Database is closed");
+        }
+    }
+
+    /**
+     * Returns the read-only connection for the current reader thread, opening
+     * it if needed.
+     */
+    private SQLDatabase readerDatabase() throws IOException, SQLException {
+        SQLDatabase reader = readerDb.get();
+        if (reader == null) {
+            reader = SQLDatabaseFactory.openReadOnlySQLDatabase(filename, provider);
+            if (statementCacheSize >= 0) {
+                reader.setStatementCacheSize(statementCacheSize);
+            }
+            readerDb.set(reader);
+            readerDbs.add(reader);
+        }
+        return reader;
+    }
+
+    /**
+     * Checks whether read tasks are executed on a pool of read-only connections.
+     * @return true if {@link #submitRead(SQLQueueCallable)} runs tasks concurrently
+     * with the writer
+     */
+    public boolean hasReaderPool() {
+        return readers != null;
+    }
+
+    /**
+     * Submits a database task for execution in a transaction at the current thread's
+     * priority
+     * @param callable The task to be performed
+     * @param <T> The type of object that is returned from the task
+     * @throws RejectedExecutionException thrown when the queue has been shutdown
+     * @return Future representing the task to be executed.
+     * @see #setThreadPriority(Priority)
+     */
+    public <T> ListenableFuture<T> submitTransaction(SQLQueueCallable<T> callable){
+        return submitTransaction(callable, threadPriority.get());
     }
 
     /**
-     * Submits a database task for execution in a transaction
+     * Submits a database task for execution in a transaction. Background tasks are
+     * not group committed.
      * @param callable The task to be performed
+     * @param priority The lane to submit the task to
      * @param <T> The type of object that is returned from the task
      * @throws RejectedExecutionException thrown when the queue has been shutdown
      * @return Future representing the task to be executed.
      */
-    public <T> Future<T> submitTransaction(SQLQueueCallable<T> callable){
+    public <T> ListenableFuture<T> submitTransaction(SQLQueueCallable<T> callable, Priority priority){
         callable.setDb(db);
         callable.setRunInTransaction(true);
-        return this.submitTaskToQueue(callable);
+        InstrumentedTask<T> task = new InstrumentedTask<T>(callable, true, false, priority);
+        if (priority == Priority.BACKGROUND) {
+            return this.submitTaskToBackground(task);
+        }
+        if (groupCommitSize > 1) {
+            return this.submitTaskToGroup(task);
+        }
+        return this.submitTaskToQueue(task);
     }
 
     /**
@@ -155,10 +676,25 @@ public class SQLDatabaseQueue {
     public void shutdown() {
         // If shutdown has already been called then we don't need to shutdown again
         if (acceptTasks.getAndSet(false)) {
+            if (readers != null) {
+                // reader threads close their own connections as they exit
+                readers.shutdown();
+                try {
+                    readers.awaitTermination(5, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    logger.log(Level.SEVERE, "Interrupted while waiting for readers to terminate", e);
+                }
+            }
             //pass straight to queue, tasks passed via submitTaskToQueue will now be blocked.
-            queue.submit(new Runnable() {
+            submitToQueue(new Runnable() {
                 @Override
                 public void run() {
+                    // background tasks still held back are not dispatched once
+                    // shutdown has started, so run them before closing
+                    FutureTask<?> task;
+                    while ((task = nextBackgroundTask()) != null) {
+                        task.run();
+                    }
                     db.close();
                 }
             });
@@ -189,11 +725,398 @@ public class SQLDatabaseQueue {
      * @return Future representing the task to be executed.
      * @throws RejectedExecutionException If the queue has been shutdown.
      */
-    private <T> Future<T> submitTaskToQueue(SQLQueueCallable<T> callable){
+    private <T> ListenableFuture<T> submitTaskToQueue(InstrumentedTask<T> callable){
         if(acceptTasks.get()){
-            return queue.submit(callable);
+            synchronized (groupLock) {
+                openGroup = null;
+                try {
+                    return callable.track(queue.submit(callable));
+                } catch (RejectedExecutionException e) {
+                    throw callable.rejected(e);
+                }
+            }
         } else {
-            throw new RejectedExecutionException("Database is closed");
+            throw callable.rejected(new RejectedExecutionException("Database is closed"));
+        }
+    }
+
+    /**
+     * Adds a transactional task to the group at the tail of the queue, or to a new
+     * group if there is no such group or it is full.
+     * @param callable The task to submit to the queue
+     * @param <T> The type of object that the callable returns
+     * @return Future which completes once the task's group has been committed
+     * @throws RejectedExecutionException If the queue has been shutdown.
+     */
+    private <T> ListenableFuture<T> submitTaskToGroup(InstrumentedTask<T> callable){
+        if(acceptTasks.get()){
+            SettableFuture<T> future = callable.track(SettableFuture.<T>create());
+            synchronized (groupLock) {
+                if (openGroup == null || openGroup.tasks.size() >= groupCommitSize) {
+                    TransactionGroup group = new TransactionGroup();
+                    try {
+                        queue.submit(group);
+                    } catch (RejectedExecutionException e) {
+                        openGroup = null;
+                        throw callable.rejected(e);
+                    }
+                    openGroup = group;
+                }
+                openGroup.tasks.add(new GroupedTask<T>(callable, future));
+            }
+            return future;
+        } else {
+            throw callable.rejected(new RejectedExecutionException("Database is closed"));
+        }
+    }
+
+    /**
+     * Adds a task to the background lane, dispatching it to the queue straight away
+     * if no other background task is waiting in or running on the queue.
+     * @param callable The task to submit
+     * @param <T> The type of object that the callable returns
+     * @return Future representing the task to be executed.
+     * @throws RejectedExecutionException If the queue has been shutdown.
+     */
+    private <T> ListenableFuture<T> submitTaskToBackground(InstrumentedTask<T> callable){
+        if(acceptTasks.get()){
+            ListenableFutureTask<T> task = callable.track(ListenableFutureTask.create(callable));
+            synchronized (groupLock) {
+                if (backgroundInFlight) {
+                    pendingBackground.add(task);
+                } else {
+                    try {
+                        dispatchBackground(task);
+                    } catch (RejectedExecutionException e) {
+                        throw callable.rejected(e);
+                    }
+                    backgroundInFlight = true;
+                }
+            }
+            return task;
+        } else {
+            throw callable.rejected(new RejectedExecutionException("Database is closed"));
+        }
+    }
+
+    /**
+     * Adds a background task to the queue, arranging for the next held back task to
+     * be dispatched once it completes. Must be called holding {@link #groupLock}.
+     */
+    private void dispatchBackground(final FutureTask<?> task) {
+        openGroup = null;
+        queue.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (groupLock) {
+                        // after shutdown has started the remaining tasks are run
+                        // before the database is closed instead
+                        FutureTask<?> next = acceptTasks.get() ? pendingBackground.poll() : null;
+                        if (next == null) {
+                            backgroundInFlight = false;
+                        } else {
+                            dispatchBackground(next);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the next held back background task, or {@code null} if there are none
+     */
+    private FutureTask<?> nextBackgroundTask() {
+        synchronized (groupLock) {
+            return pendingBackground.poll();
+        }
+    }
+
+    /**
+     * Adds a runnable which is not part of any group to the queue.
+     */
+    private Future<?> submitToQueue(Runnable runnable) {
+        synchronized (groupLock) {
+            openGroup = null;
+            return queue.submit(runnable);
+        }
+    }
+
+    /**
+     * Wraps a task to record how long it waits before starting and how long it runs
+     * for, and to track the queue depth and running tasks.
+     */
+    private class InstrumentedTask<T> implements Callable<T> {
+
+        private final SQLQueueCallable<T> callable;
+        private final boolean transactional;
+        private final boolean read;
+        private final Priority priority;
+        private final long submitted = System.nanoTime();
+        private final AtomicBoolean dequeued = new AtomicBoolean(false);
+        private volatile long started;
+
+        InstrumentedTask(SQLQueueCallable<T> callable, boolean transactional, boolean read,
+                         Priority priority) {
+            this.callable = callable;
+            this.transactional = transactional;
+            this.read = read;
+            this.priority = priority;
+            depth().incrementAndGet();
+        }
+
+        @Override
+        public T call() throws Exception {
+            started = System.nanoTime();
+            dequeue();
+            runningTasks.add(this);
+            boolean successful = false;
+            try {
+                T result = callable.call();
+                successful = true;
+                return result;
+            } finally {
+                runningTasks.remove(this);
+                completed(metrics(System.nanoTime(), true, successful));
+            }
+        }
+
+        /**
+         * Makes sure the task no longer counts towards the queue depth once its future
+         * is done, including if it was cancelled without running.
+         */
+        <F extends ListenableFuture<T>> F track(F future) {
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    dequeue();
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            return future;
+        }
+
+        TaskMetrics metrics(long now, boolean completed, boolean successful) {
+            return new TaskMetrics(callable.getClass(), transactional, read, priority,
+                    started - submitted, now - started, completed, successful);
+        }
+
+        /**
+         * Stops the task counting towards the queue depth when it could not be queued.
+         * @return {@code e}, for the caller to throw
+         */
+        RejectedExecutionException rejected(RejectedExecutionException e) {
+            dequeue();
+            return e;
+        }
+
+        private void dequeue() {
+            if (dequeued.compareAndSet(false, true)) {
+                depth().decrementAndGet();
+            }
+        }
+
+        private AtomicInteger depth() {
+            return read ? readQueueDepth : queueDepth;
+        }
+    }
+
+    /**
+     * Reports a completed task's timings, logging it if it was slow.
+     */
+    private void completed(TaskMetrics task) {
+        long threshold = slowTaskThresholdNanos;
+        if (threshold >= 0 && task.getWaitTime(TimeUnit.NANOSECONDS) +
+                task.getExecutionTime(TimeUnit.NANOSECONDS) >= threshold) {
+            logger.log(Level.WARNING, "Slow database task " + task);
+        }
+        QueueMetrics metrics = queueMetrics;
+        if (metrics != null) {
+            try {
+                metrics.taskCompleted(task);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to record database task metrics", e);
+            }
+        }
+    }
+
+    /**
+     * A transactional task waiting in a {@link TransactionGroup}, along with the
+     * future its result is delivered to.
+     */
+    private static class GroupedTask<T> {
+
+        private final InstrumentedTask<T> callable;
+        private final SettableFuture<T> future;
+        private T result;
+        private Throwable failure;
+
+        GroupedTask(InstrumentedTask<T> callable, SettableFuture<T> future) {
+            this.callable = callable;
+            this.future = future;
+        }
+
+        /**
+         * Runs the task in its own transaction, keeping the outcome until
+         * {@link #complete(Throwable)} is called. Replaces the outcome of an earlier
+         * run whose work was rolled back.
+         */
+        void run(SQLDatabase db) {
+            callable.callable.setDb(db);
+            result = null;
+            failure = null;
+            try {
+                result = callable.call();
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Runs the task inside a savepoint of the group's transaction, keeping the
+         * outcome until {@link #complete(Throwable)} is called.
+         */
+        void run(SQLDatabase db, String savepoint) {
+            SavepointSQLDatabase savepointDb = new SavepointSQLDatabase(db, savepoint);
+            callable.callable.setDb(savepointDb);
+            try {
+                result = callable.call();
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                try {
+                    if (savepointDb.rollbackIfOpen() && failure == null) {
+                        failure = new IllegalStateException("Task did not end its transaction");
+                    }
+                } catch (IllegalStateException e) {
+                    // the savepoint was lost along with the group's transaction
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Delivers the outcome to the future.
+         * @param groupFailure cause if the group failed to commit, otherwise
+         *                     {@code null}
+         */
+        void complete(Throwable groupFailure) {
+            if (groupFailure != null) {
+                future.setException(groupFailure);
+            } else if (failure != null) {
+                future.setException(failure);
+            } else {
+                future.set(result);
+            }
+        }
+    }
+
+    /**
+     * Transactional tasks committed together in a single transaction, each task
+     * running in its own savepoint.
+     */
+    private class TransactionGroup implements Runnable {
+
+        /**
+         * Savepoint held open for the whole group, used to check the group's
+         * transaction is still open.
+         */
+        private static final String GROUP_SAVEPOINT = "group_commit";
+
+        private final List<GroupedTask<?>> tasks = new ArrayList<GroupedTask<?>>();
+
+        @Override
+        public void run() {
+            List<GroupedTask<?>> toRun = new ArrayList<GroupedTask<?>>();
+            synchronized (groupLock) {
+                // no more tasks can join once the group has started
+                if (openGroup == this) {
+                    openGroup = null;
+                }
+                for (GroupedTask<?> task : tasks) {
+                    if (!task.future.isCancelled()) {
+                        toRun.add(task);
+                    }
+                }
+            }
+
+            if (toRun.isEmpty()) {
+                // every task was cancelled before the group started
+                return;
+            }
+
+            if (toRun.size() == 1) {
+                // nothing to group with, so use a transaction of its own
+                toRun.get(0).run(db);
+                toRun.get(0).complete(null);
+                return;
+            }
+
+            Throwable groupFailure = null;
+            int aborted = -1;
+            try {
+                db.beginTransaction();
+                try {
+                    db.execSQL("SAVEPOINT " + GROUP_SAVEPOINT + ";");
+                    for (int i = 0; i < toRun.size(); i++) {
+                        GroupedTask<?> task = toRun.get(i);
+                        task.run(db, "group_commit_" + i);
+                        if (task.failure != null && !transactionOpen()) {
+                            aborted = i;
+                            break;
+                        }
+                    }
+                    if (aborted < 0) {
+                        db.execSQL("RELEASE " + GROUP_SAVEPOINT + ";");
+                        db.setTransactionSuccessful();
+                    }
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (Throwable e) {
+                // once the transaction has gone there is nothing left to roll back
+                if (aborted < 0) {
+                    logger.log(Level.SEVERE, "Failed to commit group of transactions", e);
+                    groupFailure = e;
+                }
+            }
+
+            if (aborted >= 0) {
+                // the tasks run before the failure lost their work with the transaction,
+                // and tasks after it would each have committed on their own, so run
+                // them all in transactions of their own instead
+                logger.log(Level.WARNING, "Group transaction was rolled back by a failed " +
+                        "task, running the other tasks individually");
+                for (int i = 0; i < toRun.size(); i++) {
+                    if (i != aborted) {
+                        toRun.get(i).run(db);
+                    }
+                }
+            }
+
+            for (GroupedTask<?> task : toRun) {
+                task.complete(groupFailure);
+            }
+        }
+
+        /**
+         * Returns whether the group's transaction is still open. After some errors,
+         * such as SQLITE_FULL or SQLITE_IOERR, SQLite rolls back the whole transaction
+         * itself and later statements each commit on their own. The group's savepoint
+         * only exists while its transaction does.
+         */
+        private boolean transactionOpen() {
+            try {
+                db.execSQL("RELEASE " + GROUP_SAVEPOINT + ";");
+                db.execSQL("SAVEPOINT " + GROUP_SAVEPOINT + ";");
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
         }
     }
 
@@ -205,16 +1128,19 @@ public class SQLDatabaseQueue {
 
         if (this.sqliteVersion == null) {
             try {
-                this.sqliteVersion = this.submit(new SQLQueueCallable<String>() {
+                this.sqliteVersion = this.submitRead(new SQLQueueCallable<String>() {
                     @Override
                     public String call(SQLDatabase db) throws Exception {
                         Cursor cursor = db.rawQuery("SELECT sqlite_version()", null);
-
-                        String sqliteVersion = "";
-                        while (cursor.moveToNext()) {
-                            sqliteVersion += cursor.getString(0);
+                        try {
+                            String sqliteVersion = "";
+                            while (cursor.moveToNext()) {
+                                sqliteVersion += cursor.getString(0);
+                            }
+                            return sqliteVersion;
+                        } finally {
+                            cursor.close();
                         }
-                        return sqliteVersion;
                     }
                 }).get();
                 return sqliteVersion;
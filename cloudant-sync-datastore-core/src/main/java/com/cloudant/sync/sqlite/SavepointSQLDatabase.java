@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import com.cloudant.android.ContentValues;
+import com.google.common.base.Preconditions;
+
+import java.sql.SQLException;
+import java.util.Stack;
+
+/**
+ * <p>An {@link SQLDatabase} which runs transactions as a SAVEPOINT within a
+ * transaction already open on the database it wraps.</p>
+ *
+ * <p>Used by {@link SQLDatabaseQueue} to group commit transactional tasks: each
+ * task sees its own transaction, which is released into the enclosing
+ * transaction if it succeeds and rolled back to the savepoint if it fails,
+ * without affecting the other tasks in the group. Nesting follows the same rules
+ * as {@link SQLDatabase#beginTransaction()}.</p>
+ *
+ * <p>All other methods are passed to the wrapped database.</p>
+ */
+class SavepointSQLDatabase extends SQLDatabase {
+
+    private final SQLDatabase db;
+    private final String savepoint;
+
+    private final Stack<Boolean> transactionStack = new Stack<Boolean>();
+    private boolean transactionNestedSetSuccess = false;
+
+    /**
+     * @param db database with a transaction already open
+     * @param savepoint name of the savepoint; must be a valid SQL identifier
+     */
+    SavepointSQLDatabase(SQLDatabase db, String savepoint) {
+        this.db = db;
+        this.savepoint = savepoint;
+        this.filename = db.filename;
+    }
+
+    /**
+     * Rolls back to and releases the savepoint if a transaction was left open,
+     * for example by a task which called {@link #beginTransaction()} without a
+     * matching {@link #endTransaction()}.
+     *
+     * @return true if a transaction was left open
+     */
+    boolean rollbackIfOpen() {
+        if (transactionStack.isEmpty()) {
+            return false;
+        }
+        transactionStack.clear();
+        rollbackToSavepoint();
+        return true;
+    }
+
+    @Override
+    public void beginTransaction() {
+        // Start new set of nested transactions
+        if (transactionStack.isEmpty()) {
+            try {
+                db.execSQL("SAVEPOINT " + savepoint + ";");
+            } catch (SQLException e) {
+                String error = "Fatal error running 'SAVEPOINT', the database is probably malfunctioning.";
+                throw new IllegalStateException(error, e);
+            }
+            transactionNestedSetSuccess = true;
+        }
+        transactionStack.push(false);
+    }
+
+    @Override
+    public void endTransaction() {
+        Preconditions.checkState(!transactionStack.isEmpty(),
+                "TransactionStatus stack must not be empty");
+
+        if (!transactionStack.pop()) {
+            transactionNestedSetSuccess = false;
+        }
+
+        if (transactionStack.isEmpty()) {
+            if (transactionNestedSetSuccess) {
+                try {
+                    db.execSQL("RELEASE " + savepoint + ";");
+                } catch (SQLException e) {
+                    rollbackToSavepoint();
+                }
+            } else {
+                rollbackToSavepoint();
+            }
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        this.transactionStack.pop();
+        this.transactionStack.push(true);
+    }
+
+    private void rollbackToSavepoint() {
+        try {
+            db.execSQL("ROLLBACK TO " + savepoint + ";");
+            db.execSQL("RELEASE " + savepoint + ";");
+        } catch (SQLException e) {
+            String error = "Fatal error running 'ROLLBACK TO', the database is probably malfunctioning.";
+            throw new IllegalStateException(error, e);
+        }
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) throws SQLException {
+        db.execSQL(sql, bindArgs);
+    }
+
+    @Override
+    public void execSQL(String sql) throws SQLException {
+        db.execSQL(sql);
+    }
+
+    @Override
+    public void setStatementCacheSize(int size) {
+        db.setStatementCacheSize(size);
+    }
+
+    @Override
+    public StatementCache<?> getStatementCache() {
+        return db.getStatementCache();
+    }
+
+    @Override
+    public void compactDatabase() {
+        db.compactDatabase();
+    }
+
+    @Override
+    public int getVersion() {
+        return db.getVersion();
+    }
+
+    @Override
+    public void open() {
+        db.open();
+    }
+
+    @Override
+    public void close() {
+        db.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return db.isOpen();
+    }
+
+    @Override
+    public int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
+        return db.update(table, values, whereClause, whereArgs);
+    }
+
+    @Override
+    public Cursor rawQuery(String sql, String[] selectionArgs) throws SQLException {
+        return db.rawQuery(sql, selectionArgs);
+    }
+
+    @Override
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        return db.delete(table, whereClause, whereArgs);
+    }
+
+    @Override
+    public long insert(String table, ContentValues values) {
+        return db.insert(table, values);
+    }
+
+    @Override
+    public long insertWithOnConflict(String table, ContentValues initialValues,
+                                     int conflictAlgorithm) {
+        return db.insertWithOnConflict(table, initialValues, conflictAlgorithm);
+    }
+}
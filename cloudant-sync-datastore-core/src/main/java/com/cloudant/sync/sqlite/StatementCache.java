@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Least recently used cache of compiled statements for a single connection,
+ * keyed by SQL text.</p>
+ *
+ * <p>Callers take a statement out with {@link #get(String)}, reset and rebind it,
+ * and hand it back with {@link #put(String, Object)} once it has been executed.
+ * Statements pushed out of the cache, or left in it when the cache is cleared,
+ * are passed to {@link #dispose(Object)}.</p>
+ *
+ * <p>Like the connection it belongs to, a cache must only be used by one thread.
+ * Its hit and miss counts can be read from any thread.</p>
+ *
+ * @param <S> the type of compiled statement
+ *
+ * @api_private
+ */
+public abstract class StatementCache<S> {
+
+    /**
+     * Default number of statements cached per connection.
+     */
+    public static final int DEFAULT_SIZE = 25;
+
+    private final LinkedHashMap<String, S> statements =
+            new LinkedHashMap<String, S>(16, 0.75f, true);
+
+    private int maxSize;
+    // only incremented by the thread using the cache
+    private volatile long hits = 0;
+    private volatile long misses = 0;
+
+    public StatementCache(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Removes and returns the statement compiled for {@code sql}, or {@code null}
+     * if there is none. Removing the statement means it cannot be handed out
+     * twice while in use.
+     *
+     * @param sql SQL text of the statement
+     * @return the cached statement or {@code null}
+     */
+    public S get(String sql) {
+        S statement = statements.remove(sql);
+        if (statement == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return statement;
+    }
+
+    /**
+     * Returns a statement to the cache after use, disposing of the least
+     * recently used statement if the cache is full.
+     *
+     * @param sql SQL text of the statement
+     * @param statement statement compiled from {@code sql}
+     */
+    public void put(String sql, S statement) {
+        if (maxSize == 0) {
+            dispose(statement);
+            return;
+        }
+        S previous = statements.put(sql, statement);
+        if (previous != null && previous != statement) {
+            dispose(previous);
+        }
+        trim();
+    }
+
+    /**
+     * Sets the maximum number of statements held, disposing of statements over
+     * the new limit.
+     *
+     * @param maxSize maximum number of statements, 0 to disable caching
+     */
+    public void setMaxSize(int maxSize) {
+        Preconditions.checkArgument(maxSize >= 0, "Statement cache size must not be negative");
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return number of statements currently cached
+     */
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * @return number of calls to {@link #get(String)} which found a statement
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of calls to {@link #get(String)} which found no statement
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Disposes of every cached statement.
+     */
+    public void clear() {
+        List<S> all = new ArrayList<S>(statements.values());
+        statements.clear();
+        for (S statement : all) {
+            dispose(statement);
+        }
+    }
+
+    /**
+     * Releases the resources held by a statement which is no longer cached.
+     *
+     * @param statement the statement to release
+     */
+    protected abstract void dispose(S statement);
+
+    private void trim() {
+        Iterator<Map.Entry<String, S>> iterator = statements.entrySet().iterator();
+        while (statements.size() > maxSize && iterator.hasNext()) {
+            S eldest = iterator.next().getValue();
+            iterator.remove();
+            dispose(eldest);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+/**
+ * <p>Snapshot of the effectiveness of the compiled statement caches of a database,
+ * totalled across its writer connection and any reader connections.</p>
+ *
+ * @see SQLDatabaseQueue#getStatementCacheStatistics()
+ *
+ * @api_public
+ */
+public class StatementCacheStatistics {
+
+    private final int connections;
+    private final long hits;
+    private final long misses;
+
+    StatementCacheStatistics(int connections, long hits, long misses) {
+        this.connections = connections;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /**
+     * @return number of connections whose caches are included
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return number of statements reused from a cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of statements which had to be compiled
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return fraction of statements reused from a cache, 0 if there have been none
+     */
+    public double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{ connections: %d, hits: %d, misses: %d }",
+                connections, hits, misses);
+    }
+}
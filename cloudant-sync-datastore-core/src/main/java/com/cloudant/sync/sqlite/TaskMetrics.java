@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Timings for a single task run by a {@link SQLDatabaseQueue}.</p>
+ *
+ * <p>The wait time is from the task being submitted until it started running, which
+ * is time spent queued behind other tasks. The execution time is how long the task
+ * itself ran for, which is time spent in SQLite and in the task's own code.</p>
+ *
+ * @api_public
+ */
+public class TaskMetrics {
+
+    private static final ConcurrentMap<Class<?>, String> names =
+            new ConcurrentHashMap<Class<?>, String>();
+
+    private final String name;
+    private final String className;
+    private final boolean transactional;
+    private final boolean read;
+    private final SQLDatabaseQueue.Priority priority;
+    private final long waitNanos;
+    private final long executionNanos;
+    private final boolean completed;
+    private final boolean successful;
+
+    TaskMetrics(Class<?> callableClass,
+                boolean transactional,
+                boolean read,
+                SQLDatabaseQueue.Priority priority,
+                long waitNanos,
+                long executionNanos,
+                boolean completed,
+                boolean successful) {
+        this.name = nameForClass(callableClass);
+        this.className = callableClass.getName();
+        this.transactional = transactional;
+        this.read = read;
+        this.priority = priority;
+        this.waitNanos = waitNanos;
+        this.executionNanos = executionNanos;
+        this.completed = completed;
+        this.successful = successful;
+    }
+
+    /**
+     * Returns a name identifying where the task was created. For tasks declared as
+     * anonymous classes this is the class and method they were declared in, for example
+     * {@code DatastoreImpl.getDocumentAsync}; otherwise it is the task's class name.
+     *
+     * @return name of the task
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return fully qualified class name of the task
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return true if the task ran in a transaction
+     */
+    public boolean isTransactional() {
+        return transactional;
+    }
+
+    /**
+     * @return true if the task ran on a read-only connection
+     */
+    public boolean isRead() {
+        return read;
+    }
+
+    /**
+     * @return the priority lane the task was submitted to
+     */
+    public SQLDatabaseQueue.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param unit unit to return the time in
+     * @return time from submission until the task started running
+     */
+    public long getWaitTime(TimeUnit unit) {
+        return unit.convert(waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit unit to return the time in
+     * @return time the task ran for, or has been running for if not yet completed
+     */
+    public long getExecutionTime(TimeUnit unit) {
+        return unit.convert(executionNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return false if the task was still running when these metrics were taken
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return true if the task completed without throwing an exception
+     */
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "%s (%s%s, %s): waited %dms, %s %dms",
+                name,
+                read ? "read" : (transactional ? "transaction" : "no transaction"),
+                completed ? (successful ? "" : ", failed") : "",
+                priority.name().toLowerCase(Locale.ENGLISH),
+                getWaitTime(TimeUnit.MILLISECONDS),
+                completed ? "ran" : "running for",
+                getExecutionTime(TimeUnit.MILLISECONDS));
+    }
+
+    static String nameForClass(Class<?> callableClass) {
+        String name = names.get(callableClass);
+        if (name == null) {
+            Method enclosing = callableClass.getEnclosingMethod();
+            if (enclosing != null) {
+                name = enclosing.getDeclaringClass().getSimpleName() + "." + enclosing.getName();
+            } else if (callableClass.getSimpleName().length() > 0) {
+                name = callableClass.getSimpleName();
+            } else {
+                name = callableClass.getName();
+            }
+            names.putIfAbsent(callableClass, name);
+        }
+        return name;
+    }
+}
@@ -66,6 +66,20 @@ public class SQLiteCursor implements Cursor {
         return count > 0;
     }
 
+    @Override
+    public boolean moveToPosition(int position) {
+        if (position < 0) {
+            this.position = -1;
+            return false;
+        }
+        if (position >= count) {
+            this.position = count;
+            return false;
+        }
+        this.position = position;
+        return true;
+    }
+
     @Override
     public float getFloat(int index) {
         return getData().getFloat(index);
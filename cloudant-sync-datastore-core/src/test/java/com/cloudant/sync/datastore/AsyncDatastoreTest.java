@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.event.Subscribe;
+import com.cloudant.sync.notifications.DocumentCreated;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncDatastoreTest extends BasicDatastoreTestBase {
+
+    private ExecutorService callbackThread;
+    private AsyncDatastore async;
+    private final List<String> createdEventThreads =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        callbackThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "callback");
+            }
+        });
+        async = new AsyncDatastore(datastore, callbackThread);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        callbackThread.shutdown();
+        super.tearDown();
+    }
+
+    @Subscribe
+    public void onDocumentCreated(DocumentCreated dc) {
+        createdEventThreads.add(Thread.currentThread().getName());
+    }
+
+    @Test
+    public void createAndGetDocument() throws Exception {
+        datastore.getEventBus().register(this);
+        DocumentRevision rev = new DocumentRevision("doc1");
+        rev.setBody(bodyOne);
+        DocumentRevision created = get(async.createDocumentFromRevision(rev));
+        Assert.assertEquals("doc1", created.getId());
+        // the notification is posted on the caller's executor before completion
+        Assert.assertEquals(Arrays.asList("callback"), createdEventThreads);
+
+        DocumentRevision fetched = get(async.getDocument("doc1"));
+        Assert.assertEquals(created.getRevision(), fetched.getRevision());
+        Assert.assertEquals(bodyOne.asMap(), fetched.getBody().asMap());
+    }
+
+    @Test
+    public void completesOnExecutor() throws Exception {
+        final List<Runnable> executed = new ArrayList<Runnable>();
+        AsyncDatastore recording = new AsyncDatastore(datastore, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+                command.run();
+            }
+        });
+        createTwoDocuments();
+        get(recording.changes(0, 10));
+        Assert.assertEquals(1, executed.size());
+    }
+
+    @Test
+    public void missingDocumentFailsFuture() throws Exception {
+        try {
+            get(async.getDocument("missing"));
+            Assert.fail("Expected the future to fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof DocumentNotFoundException);
+        }
+    }
+
+    @Test
+    public void getDocumentsWithIdsKeepsOrder() throws Exception {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            DocumentRevision rev = new DocumentRevision("doc" + i);
+            rev.setBody(bodyOne);
+            datastore.createDocumentFromRevision(rev);
+            ids.add(0, "doc" + i);
+        }
+        List<DocumentRevision> revs = get(async.getDocumentsWithIds(ids));
+        List<String> fetchedIds = new ArrayList<String>();
+        for (DocumentRevision rev : revs) {
+            fetchedIds.add(rev.getId());
+        }
+        Assert.assertEquals(ids, fetchedIds);
+    }
+
+    @Test
+    public void changes() throws Exception {
+        createTwoDocuments();
+        Changes changes = get(async.changes(0, 10));
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals(2, changes.getLastSequence());
+    }
+
+    @Test
+    public void forceInsert() throws Exception {
+        datastore.getEventBus().register(this);
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("hello", "world");
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId("forced");
+        builder.setRevId("2-b");
+        builder.setBody(DocumentBodyFactory.create(body));
+        ForceInsertItem item = new ForceInsertItem(builder.build(), Arrays.asList("1-a", "2-b"),
+                null, null, false);
+
+        get(async.forceInsert(Collections.singletonList(item)));
+        Assert.assertEquals("2-b", datastore.getDocument("forced").getRevision());
+        Assert.assertEquals(Arrays.asList("callback"), createdEventThreads);
+    }
+
+    @Test
+    public void manyOperationsInFlight() throws Exception {
+        createTwoDocuments();
+        String id = datastore.getAllDocumentIds().get(0);
+        List<ListenableFuture<DocumentRevision>> reads =
+                new ArrayList<ListenableFuture<DocumentRevision>>();
+        for (int i = 0; i < 1000; i++) {
+            reads.add(async.getDocument(id));
+        }
+        List<DocumentRevision> revs = get(Futures.allAsList(reads));
+        Assert.assertEquals(1000, revs.size());
+        for (DocumentRevision rev : revs) {
+            Assert.assertEquals(id, rev.getId());
+        }
+    }
+
+    private static <T> T get(ListenableFuture<T> future) throws Exception {
+        return future.get(30, TimeUnit.SECONDS);
+    }
+}
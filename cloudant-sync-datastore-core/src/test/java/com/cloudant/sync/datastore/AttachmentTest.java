@@ -31,6 +31,7 @@ import org.junit.Test;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -74,6 +75,49 @@ public class AttachmentTest extends BasicDatastoreTestBase {
         }
     }
 
+    // check that reading many documents at once loads the same attachments as reading each
+    @Test
+    public void attachmentsForManyDocumentsTest() throws Exception {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            DocumentRevision rev = new DocumentRevision("doc" + i);
+            rev.setBody(bodyOne);
+            if (i > 0) {
+                rev.getAttachments().put("attachment_1.txt", new UnsavedFileAttachment(
+                        TestUtils.loadFixture("fixture/attachment_1.txt"), "text/plain"));
+            }
+            if (i > 1) {
+                rev.getAttachments().put("attachment_2.txt", new UnsavedFileAttachment(
+                        TestUtils.loadFixture("fixture/attachment_2.txt"), "text/plain"));
+            }
+            ids.add(datastore.createDocumentFromRevision(rev).getId());
+        }
+
+        List<DocumentRevision> batched = datastore.getDocumentsWithIds(ids);
+        List<DocumentRevision> changed = datastore.changes(0, 10).getResults();
+        Assert.assertEquals(3, batched.size());
+        Assert.assertEquals(3, changed.size());
+        for (int i = 0; i < 3; i++) {
+            DocumentRevision single = datastore.getDocument(ids.get(i));
+            Assert.assertEquals(i, single.getAttachments().size());
+            assertSameAttachments(single, batched.get(i));
+            assertSameAttachments(single, changed.get(i));
+        }
+    }
+
+    private static void assertSameAttachments(DocumentRevision expected,
+                                              DocumentRevision actual) {
+        Assert.assertEquals(expected.getAttachments().keySet(), actual.getAttachments().keySet());
+        for (String name : expected.getAttachments().keySet()) {
+            SavedAttachment e = (SavedAttachment) expected.getAttachments().get(name);
+            SavedAttachment a = (SavedAttachment) actual.getAttachments().get(name);
+            Assert.assertArrayEquals(e.key, a.key);
+            Assert.assertEquals(e.length, a.length);
+            Assert.assertEquals(e.revpos, a.revpos);
+            Assert.assertEquals(e.type, a.type);
+        }
+    }
+
     // check that the transaction gets rolled back if one file is dodgy
     @Test
     public void setBadAttachmentsTest() throws Exception {
@@ -64,6 +64,27 @@ public class BasicDBBodyTest {
         assertMapIsCorrect(actualMap);
     }
 
+    @Test
+    public void trustedBodyWith_byteArray_correctObjectShouldBeCreated() throws Exception {
+        DocumentBody body = DocumentBodyImpl.trustedBodyWith(jsonData);
+        Assert.assertTrue(Arrays.equals(jsonData, body.asBytes()));
+        assertMapIsCorrect(body.asMap());
+    }
+
+    @Test
+    public void trustedBodyWith_nullInput_objectWithEmptyJsonShouldBeCreated() {
+        DocumentBody body = DocumentBodyImpl.trustedBodyWith(null);
+        Assert.assertTrue(Arrays.equals("{}".getBytes(), body.asBytes()));
+        Assert.assertTrue(body.asMap().size() == 0);
+    }
+
+    // Trusted bodies aren't parsed until asMap is called
+    @Test
+    public void trustedBodyWith_invalidInput_notParsedUntilAsMap() {
+        DocumentBody body = DocumentBodyImpl.trustedBodyWith("[]".getBytes());
+        Assert.assertTrue(Arrays.equals("[]".getBytes(), body.asBytes()));
+    }
+
     @Test
     public void constructor_map_correctObjectShouldBeCreated() {
         DocumentBody body = new DocumentBodyImpl(JSONUtils.deserialize(jsonData));
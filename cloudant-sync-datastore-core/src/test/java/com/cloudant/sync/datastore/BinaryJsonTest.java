@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.util.JSONUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BinaryJsonTest {
+
+    private static final String JSON = "{\"string\":\"caf\\u00e9 \\\"quoted\\\" \\n \u2603\"," +
+            "\"int\":-42,\"zero\":0,\"long\":9007199254740993,\"min\":-9223372036854775808," +
+            "\"big\":123456789012345678901234567890,\"float\":-1.5e-7,\"double\":3.25," +
+            "\"true\":true,\"false\":false,\"null\":null,\"empty\":{},\"none\":[]," +
+            "\"nested\":{\"string\":\"again\",\"list\":[1,\"two\",[3.0],{\"int\":4}]}}";
+
+    @Test
+    public void binaryBodyConvertsBackToEquivalentJson() {
+        byte[] binary = BinaryJson.fromJson(bytes(JSON));
+
+        byte[] json = BinaryJson.toJson(binary);
+
+        Assert.assertEquals(JSONUtils.deserialize(bytes(JSON)), JSONUtils.deserialize(json));
+        Assert.assertTrue(JSONUtils.isValidJSON(json));
+    }
+
+    @Test
+    public void binaryBodyDecodesToSameMapAsJson() {
+        Map<String, Object> expected = JSONUtils.deserialize(bytes(JSON));
+
+        Map<String, Object> map = BinaryJson.toMap(BinaryJson.fromJson(bytes(JSON)));
+
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(Integer.class, map.get("int").getClass());
+        Assert.assertEquals(Long.class, map.get("long").getClass());
+        Assert.assertEquals(Long.valueOf(Long.MIN_VALUE), map.get("min"));
+        Assert.assertEquals(BigInteger.class, map.get("big").getClass());
+        Assert.assertEquals(Double.class, map.get("float").getClass());
+        Assert.assertEquals(expected.keySet().toString(), map.keySet().toString());
+    }
+
+    @Test
+    public void repeatedFieldNamesAreStoredOnce() {
+        List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> row = new HashMap<String, Object>();
+            row.put("description", "row");
+            row.put("quantity", i * 1000);
+            rows.add(row);
+        }
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("rows", rows);
+        byte[] json = JSONUtils.serializeAsBytes(body);
+
+        byte[] binary = BinaryJson.fromJson(json);
+
+        Assert.assertTrue(String.format("%d binary bytes, %d JSON bytes", binary.length,
+                json.length), binary.length < json.length / 2);
+        Assert.assertEquals(body, BinaryJson.toMap(binary));
+    }
+
+    @Test
+    public void binaryBodiesAreDistinguishedFromJson() {
+        byte[] json = bytes("{\"a\":1}");
+
+        Assert.assertFalse(BinaryJson.isBinary(json));
+        Assert.assertFalse(BinaryJson.isBinary(null));
+        Assert.assertTrue(BinaryJson.isBinary(BinaryJson.fromJson(json)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidJsonIsRejected() {
+        BinaryJson.fromJson(bytes("{\"a\":"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedBinaryBodyIsRejected() {
+        byte[] binary = BinaryJson.fromJson(bytes(JSON));
+
+        BinaryJson.toMap(Arrays.copyOf(binary, binary.length - 5));
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares database size, {@code forceInsert} throughput and
+ * {@link Datastore#getDocument(String)} latency for documents of a few KB with and
+ * without body compression and the binary body encoding.
+ */
+@Category(PerformanceTest.class)
+public class BodyCompressionPerformanceTest {
+
+    private static final int DOCUMENTS = 5000;
+    private static final int BATCH_SIZE = 500;
+    private static final int READS = 20000;
+    private static final int ITEMS_PER_DOCUMENT = 20;
+    private static final int COMPRESSION_THRESHOLD = 1024;
+
+    private String datastoreManagerDir;
+    private DatastoreManager datastoreManager;
+
+    @Before
+    public void setUp() {
+        datastoreManagerDir = TestUtils.createTempTestingDir(getClass().getName());
+        datastoreManager = DatastoreManager.getInstance(datastoreManagerDir);
+    }
+
+    @After
+    public void tearDown() {
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void json() throws Exception {
+        run("json", new DatastoreOptions());
+    }
+
+    @Test
+    public void compressedJson() throws Exception {
+        run("compressed_json", new DatastoreOptions()
+                .setBodyCompressionThreshold(COMPRESSION_THRESHOLD));
+    }
+
+    @Test
+    public void binary() throws Exception {
+        run("binary", new DatastoreOptions().setBodyEncoding(BodyEncoding.BINARY));
+    }
+
+    @Test
+    public void compressedBinary() throws Exception {
+        run("compressed_binary", new DatastoreOptions().setBodyEncoding(BodyEncoding.BINARY)
+                .setBodyCompressionThreshold(COMPRESSION_THRESHOLD));
+    }
+
+    private void run(String name, DatastoreOptions options) throws Exception {
+        DatastoreImpl datastore = (DatastoreImpl) datastoreManager.openDatastore(name,
+                new NullKeyProvider(), options);
+        try {
+            Random random = new Random(1);
+            long start = System.nanoTime();
+            for (int batch = 0; batch < DOCUMENTS / BATCH_SIZE; batch++) {
+                datastore.forceInsert(items(batch, random));
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Assert.assertEquals(DOCUMENTS, datastore.getDocumentCount());
+
+            List<Long> latencies = new ArrayList<Long>(READS);
+            for (int i = 0; i < READS; i++) {
+                String id = String.format("doc-%d-%d", random.nextInt(DOCUMENTS / BATCH_SIZE),
+                        random.nextInt(BATCH_SIZE));
+                long readStart = System.nanoTime();
+                datastore.getDocument(id).getBody().asMap();
+                latencies.add(System.nanoTime() - readStart);
+            }
+            Collections.sort(latencies);
+
+            System.out.println(String.format("%s: %d KB database, %.0f docs/s inserted, " +
+                            "reads p50 %.3fms, p99 %.3fms", name, databaseBytes(datastore) / 1024,
+                    DOCUMENTS / seconds, percentile(latencies, 50), percentile(latencies, 99)));
+        } finally {
+            datastore.close();
+        }
+    }
+
+    private static long databaseBytes(DatastoreImpl datastore) throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Long>() {
+            @Override
+            public Long call(SQLDatabase db) throws Exception {
+                return pragma(db, "page_count") * pragma(db, "page_size");
+            }
+        }).get();
+    }
+
+    private static long pragma(SQLDatabase db, String name) throws Exception {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA " + name + ";", null);
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+
+    private static double percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0)) / 1e6;
+    }
+
+    private static List<ForceInsertItem> items(int batch, Random random) {
+        List<ForceInsertItem> items = new ArrayList<ForceInsertItem>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            String id = String.format("doc-%d-%d", batch, i);
+            DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+            builder.setDocId(id);
+            builder.setRevId("1-abcdef");
+            builder.setBody(DocumentBodyFactory.create(body(id, random)));
+            items.add(new ForceInsertItem(builder.build(), Collections.singletonList("1-abcdef"),
+                    null, null, false));
+        }
+        return items;
+    }
+
+    // An order with line items, typical of documents of a few KB.
+    private static Map<String, Object> body(String id, Random random) {
+        List<Map<String, Object>> lines = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < ITEMS_PER_DOCUMENT; i++) {
+            Map<String, Object> line = new HashMap<String, Object>();
+            line.put("product_id", "product-" + random.nextInt(1000));
+            line.put("description", "Product " + random.nextInt(1000) + " in standard packaging");
+            line.put("quantity", 1 + random.nextInt(10));
+            line.put("unit_price", random.nextInt(10000) / 100.0);
+            line.put("discounted", random.nextBoolean());
+            lines.add(line);
+        }
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("type", "order");
+        body.put("order_id", id);
+        body.put("customer", "customer-" + random.nextInt(100));
+        body.put("shipping_address", "1 Example Street, Example Town");
+        body.put("created", 1476662400000L + random.nextInt(1000000000));
+        body.put("lines", lines);
+        return body;
+    }
+}
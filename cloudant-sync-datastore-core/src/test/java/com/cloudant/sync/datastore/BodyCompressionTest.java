@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.JSONUtils;
+import com.cloudant.sync.util.TestUtils;
+import com.google.common.base.Strings;
+
+import org.apache.commons.io.FilenameUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class BodyCompressionTest {
+
+    private static final int THRESHOLD = 256;
+    private static final int DOCUMENTS = 20;
+
+    private String datastoreManagerDir;
+    private String datastoreDir;
+    private DatastoreImpl datastore;
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerDir = TestUtils.createTempTestingDir(getClass().getName());
+        datastoreDir = FilenameUtils.concat(datastoreManagerDir, "datastore");
+    }
+
+    @After
+    public void tearDown() {
+        if (datastore != null) {
+            datastore.close();
+        }
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void compressedBodyDecompressesToOriginal() {
+        byte[] json = JSONUtils.serializeAsBytes(largeBody(1));
+
+        byte[] compressed = BodyCompression.compress(json);
+
+        Assert.assertTrue(BodyCompression.isCompressed(compressed));
+        Assert.assertFalse(BodyCompression.isCompressedBinary(compressed));
+        Assert.assertTrue(compressed.length < json.length / 4);
+        Assert.assertArrayEquals(json, BodyCompression.decompress(compressed));
+    }
+
+    @Test
+    public void incompressibleBodyIsNotCompressed() {
+        byte[] random = new byte[1000];
+        new Random(1).nextBytes(random);
+
+        Assert.assertNull(BodyCompression.compress(random));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedCompressedBodyIsRejected() {
+        byte[] compressed = BodyCompression.compress(JSONUtils.serializeAsBytes(largeBody(1)));
+
+        BodyCompression.decompress(Arrays.copyOf(compressed, compressed.length - 10));
+    }
+
+    @Test
+    public void bodiesFromThresholdAreCompressed() throws Exception {
+        open(BodyEncoding.JSON, THRESHOLD);
+        datastore.createDocumentFromRevision(revision("small", smallBody(1)));
+        datastore.createDocumentFromRevision(revision("large", largeBody(2)));
+
+        Assert.assertEquals(1, countCompressed());
+        Assert.assertEquals(smallBody(1), datastore.getDocument("small").getBody().asMap());
+        DocumentRevision large = datastore.getDocument("large");
+        Assert.assertEquals(largeBody(2), large.getBody().asMap());
+        Assert.assertEquals(largeBody(2), JSONUtils.deserialize(large.getBody().asBytes()));
+    }
+
+    @Test
+    public void binaryBodiesCanBeCompressed() throws Exception {
+        open(BodyEncoding.BINARY, THRESHOLD);
+        DocumentRevision rev = datastore.createDocumentFromRevision(
+                revision("large", largeBody(1)));
+        rev.setBody(DocumentBodyFactory.create(largeBody(2)));
+        datastore.updateDocumentFromRevision(rev);
+
+        Assert.assertEquals(2, countCompressed());
+        Assert.assertEquals(largeBody(2), datastore.getDocument("large").getBody().asMap());
+        Assert.assertEquals(largeBody(2), JSONUtils.deserialize(datastore.changes(0, 10)
+                .getResults().get(0).getBody().asBytes()));
+    }
+
+    @Test
+    public void compactionCompressesAndDecompressesBodies() throws Exception {
+        open(BodyEncoding.JSON, 0);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            datastore.createDocumentFromRevision(revision("doc" + i, largeBody(i)));
+        }
+        datastore.createDocumentFromRevision(revision("small", smallBody(1)));
+
+        reopen(BodyEncoding.BINARY, THRESHOLD);
+        CompactionProgress progress = datastore.createCompaction().start().get();
+
+        Assert.assertEquals(DOCUMENTS + 1, progress.getRevisionsEncoded());
+        Assert.assertEquals(DOCUMENTS, countCompressed());
+        assertDocuments();
+
+        // already converted, so nothing more to do
+        progress = datastore.createCompaction().start().get();
+        Assert.assertEquals(0, progress.getRevisionsEncoded());
+
+        reopen(BodyEncoding.JSON, 0);
+        progress = datastore.createCompaction().start().get();
+
+        Assert.assertEquals(DOCUMENTS + 1, progress.getRevisionsEncoded());
+        Assert.assertEquals(0, countCompressed());
+        assertDocuments();
+    }
+
+    private void assertDocuments() throws Exception {
+        for (int i = 0; i < DOCUMENTS; i++) {
+            Assert.assertEquals(largeBody(i), datastore.getDocument("doc" + i).getBody().asMap());
+        }
+        Assert.assertEquals(smallBody(1), datastore.getDocument("small").getBody().asMap());
+    }
+
+    private void open(BodyEncoding encoding, int threshold) throws Exception {
+        datastore = new DatastoreImpl(datastoreDir, "datastore", new NullKeyProvider(),
+                new DatastoreOptions().setBodyEncoding(encoding)
+                        .setBodyCompressionThreshold(threshold));
+    }
+
+    private void reopen(BodyEncoding encoding, int threshold) throws Exception {
+        datastore.close();
+        open(encoding, threshold);
+    }
+
+    private static DocumentRevision revision(String docId, Map<String, Object> body) {
+        DocumentRevision rev = new DocumentRevision(docId);
+        rev.setBody(DocumentBodyFactory.create(body));
+        return rev;
+    }
+
+    private static Map<String, Object> smallBody(int value) {
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("value", value);
+        return body;
+    }
+
+    private static Map<String, Object> largeBody(int value) {
+        Map<String, Object> body = smallBody(value);
+        body.put("description", Strings.repeat("a long repeated description ", 50));
+        return body;
+    }
+
+    private long countCompressed() throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Long>() {
+            @Override
+            public Long call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT json FROM revs WHERE json IS NOT NULL", null);
+                    long compressed = 0;
+                    while (cursor.moveToNext()) {
+                        if (BodyCompression.isCompressed(cursor.getBlob(0))) {
+                            compressed++;
+                        }
+                    }
+                    return compressed;
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.JSONUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.apache.commons.io.FilenameUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BodyEncodingTest {
+
+    private static final int DOCUMENTS = 20;
+
+    private String datastoreManagerDir;
+    private String datastoreDir;
+    private DatastoreImpl datastore;
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerDir = TestUtils.createTempTestingDir(getClass().getName());
+        datastoreDir = FilenameUtils.concat(datastoreManagerDir, "datastore");
+    }
+
+    @After
+    public void tearDown() {
+        if (datastore != null) {
+            datastore.close();
+        }
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void binaryBodiesAreReadAsJson() throws Exception {
+        open(BodyEncoding.BINARY);
+        DocumentRevision created = datastore.createDocumentFromRevision(revision("doc1", 1));
+
+        DocumentRevision read = datastore.getDocument("doc1");
+
+        Assert.assertEquals(body(1), read.getBody().asMap());
+        Assert.assertEquals(body(1), JSONUtils.deserialize(read.getBody().asBytes()));
+        Assert.assertEquals(body(1), JSONUtils.deserialize(datastore.changes(0, 10)
+                .getResults().get(0).getBody().asBytes()));
+        Assert.assertEquals(1, countBinary());
+        Assert.assertEquals(created.getRevision(), read.getRevision());
+    }
+
+    @Test
+    public void binaryBodiesCanBeUpdatedAndDeleted() throws Exception {
+        open(BodyEncoding.BINARY);
+        DocumentRevision rev = datastore.createDocumentFromRevision(revision("doc1", 1));
+        String firstRevision = rev.getRevision();
+        rev.setBody(DocumentBodyFactory.create(body(2)));
+
+        DocumentRevision updated = datastore.updateDocumentFromRevision(rev);
+
+        Assert.assertEquals(body(2), datastore.getDocument("doc1").getBody().asMap());
+        Assert.assertEquals(body(1), datastore.getDocument("doc1", firstRevision)
+                .getBody().asMap());
+        Assert.assertEquals(2, countBinary());
+        datastore.deleteDocumentFromRevision(updated);
+        Assert.assertTrue(datastore.getDocument("doc1").isDeleted());
+    }
+
+    @Test
+    public void forceInsertedBodiesAreStoredInBinary() throws Exception {
+        open(BodyEncoding.BINARY);
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId("doc1");
+        builder.setRevId("2-b");
+        builder.setBody(DocumentBodyFactory.create(body(2)));
+
+        datastore.forceInsert(builder.build(), "1-a", "2-b");
+
+        Assert.assertEquals(body(2), datastore.getDocument("doc1").getBody().asMap());
+        Assert.assertEquals(1, countBinary());
+    }
+
+    @Test
+    public void jsonAndBinaryBodiesCanBeReadTogether() throws Exception {
+        open(BodyEncoding.JSON);
+        datastore.createDocumentFromRevision(revision("json", 1));
+        reopen(BodyEncoding.BINARY);
+        datastore.createDocumentFromRevision(revision("binary", 2));
+
+        Assert.assertEquals(1, countBinary());
+        Assert.assertEquals(body(1), datastore.getDocument("json").getBody().asMap());
+        Assert.assertEquals(body(2), datastore.getDocument("binary").getBody().asMap());
+        Assert.assertEquals(2, datastore.getDocumentsWithIds(Arrays.asList("json", "binary"))
+                .size());
+    }
+
+    @Test
+    public void compactionConvertsBodiesToDatastoreEncoding() throws Exception {
+        open(BodyEncoding.JSON);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            datastore.createDocumentFromRevision(revision("doc" + i, i));
+        }
+
+        reopen(BodyEncoding.BINARY);
+        CompactionProgress progress = datastore.createCompaction().start().get();
+
+        Assert.assertEquals(DOCUMENTS, progress.getRevisionsEncoded());
+        Assert.assertEquals(DOCUMENTS, countBinary());
+        for (int i = 0; i < DOCUMENTS; i++) {
+            Assert.assertEquals(body(i), datastore.getDocument("doc" + i).getBody().asMap());
+        }
+
+        reopen(BodyEncoding.JSON);
+        progress = datastore.createCompaction().start().get();
+
+        Assert.assertEquals(DOCUMENTS, progress.getRevisionsEncoded());
+        Assert.assertEquals(0, countBinary());
+        for (int i = 0; i < DOCUMENTS; i++) {
+            Assert.assertEquals(body(i), datastore.getDocument("doc" + i).getBody().asMap());
+        }
+    }
+
+    @Test
+    public void binaryBodiesRaiseMajorVersion() throws Exception {
+        open(BodyEncoding.JSON);
+        Assert.assertEquals(203, version());
+
+        reopen(BodyEncoding.BINARY);
+        Assert.assertEquals(300, version());
+        // older versions would still fail to read bodies written before
+        reopen(BodyEncoding.JSON);
+        Assert.assertEquals(300, version());
+    }
+
+    @Test
+    public void compressedBodiesRaiseMajorVersion() throws Exception {
+        datastore = new DatastoreImpl(datastoreDir, "datastore", new NullKeyProvider(),
+                new DatastoreOptions().setBodyCompressionThreshold(1024));
+        Assert.assertEquals(300, version());
+    }
+
+    private int version() throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                return db.getVersion();
+            }
+        }).get();
+    }
+
+    private void open(BodyEncoding encoding) throws Exception {
+        datastore = new DatastoreImpl(datastoreDir, "datastore", new NullKeyProvider(),
+                new DatastoreOptions().setBodyEncoding(encoding));
+    }
+
+    private void reopen(BodyEncoding encoding) throws Exception {
+        datastore.close();
+        open(encoding);
+    }
+
+    private static DocumentRevision revision(String docId, int value) {
+        DocumentRevision rev = new DocumentRevision(docId);
+        rev.setBody(DocumentBodyFactory.create(body(value)));
+        return rev;
+    }
+
+    private static Map<String, Object> body(int value) {
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("name", "document " + value);
+        body.put("value", value);
+        body.put("tags", Arrays.asList("a", "b"));
+        return body;
+    }
+
+    private long countBinary() throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Long>() {
+            @Override
+            public Long call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT json FROM revs WHERE json IS NOT NULL", null);
+                    long binary = 0;
+                    while (cursor.moveToNext()) {
+                        if (BinaryJson.isBinary(cursor.getBlob(0))) {
+                            binary++;
+                        }
+                    }
+                    return binary;
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+}
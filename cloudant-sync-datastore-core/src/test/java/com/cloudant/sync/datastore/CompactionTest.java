@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.TestUtils;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class CompactionTest {
+
+    private static final int DOCUMENTS = 50;
+    private static final int UPDATES = 4;
+
+    private String datastoreManagerDir;
+    private DatastoreImpl datastore;
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerDir = TestUtils.createTempTestingDir(getClass().getName());
+        DatastoreManager datastoreManager = DatastoreManager.getInstance(datastoreManagerDir);
+        datastore = (DatastoreImpl) datastoreManager.openDatastore(getClass().getSimpleName(),
+                new NullKeyProvider(), new DatastoreOptions());
+    }
+
+    @After
+    public void tearDown() {
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void newDatastoreUsesIncrementalVacuum() throws Exception {
+        Assert.assertEquals(2, pragma("auto_vacuum"));
+    }
+
+    @Test
+    public void compactionRemovesBodiesAndReclaimsSpace() throws Exception {
+        createDocumentsWithHistory();
+
+        CompactionProgress progress = datastore.createCompaction().start().get();
+
+        Assert.assertTrue(progress.isComplete());
+        Assert.assertEquals(1.0, progress.getPhaseProgress(), 0);
+        Assert.assertEquals(DOCUMENTS * UPDATES, progress.getRevisionsCompacted());
+        Assert.assertTrue(progress.getDatabaseBytesReclaimed() > 0);
+        Assert.assertEquals(progress.getDatabaseBytesReclaimed(), progress.getBytesReclaimed());
+        Assert.assertEquals(0, pragma("freelist_count"));
+        Assert.assertEquals(0, count("SELECT COUNT(*) FROM revs WHERE current = 0 " +
+                "AND json IS NOT NULL"));
+        Assert.assertEquals(DOCUMENTS, count("SELECT COUNT(*) FROM revs WHERE current = 1 " +
+                "AND json IS NOT NULL"));
+    }
+
+    @Test
+    public void pausedCompactionResumes() throws Exception {
+        createDocumentsWithHistory();
+
+        // hold the queue so the compaction's first task is queued, then pause it
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Object> blocker = datastore.runOnDbQueue(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                release.await();
+                return null;
+            }
+        });
+        Compaction compaction = datastore.createCompaction();
+        ListenableFuture<CompactionProgress> done = compaction.start();
+        compaction.pause();
+        release.countDown();
+        blocker.get();
+
+        try {
+            done.get(500, TimeUnit.MILLISECONDS);
+            Assert.fail("Paused compaction should not complete");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        Assert.assertTrue(compaction.isPaused());
+        Assert.assertFalse(compaction.getProgress().isComplete());
+        // documents can be read and written while paused
+        datastore.getDocument("doc-0");
+
+        Assert.assertSame(done, compaction.start());
+        CompactionProgress progress = done.get();
+        Assert.assertTrue(progress.isComplete());
+        Assert.assertEquals(DOCUMENTS * UPDATES, progress.getRevisionsCompacted());
+    }
+
+    @Test
+    public void existingDatabaseConvertedToIncrementalVacuum() throws Exception {
+        datastore.runOnDbQueue(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("PRAGMA auto_vacuum = NONE;");
+                db.compactDatabase();
+                return null;
+            }
+        }).get();
+        Assert.assertEquals(0, pragma("auto_vacuum"));
+        createDocumentsWithHistory();
+
+        datastore.compact();
+
+        Assert.assertEquals(2, pragma("auto_vacuum"));
+        Assert.assertEquals(0, pragma("freelist_count"));
+        Assert.assertEquals(0, count("SELECT COUNT(*) FROM revs WHERE current = 0 " +
+                "AND json IS NOT NULL"));
+    }
+
+    @Test
+    public void unusedAttachmentFilesDeletedOverSeveralSteps() throws Exception {
+        int documents = Compaction.ATTACHMENTS_PER_STEP + 50;
+        long attachmentBytes = 0;
+        for (int i = 0; i < documents; i++) {
+            DocumentRevision rev = new DocumentRevision("doc-" + i);
+            rev.setBody(DocumentBodyFactory.create(new HashMap<String, Object>()));
+            byte[] data = ("attachment " + i).getBytes("UTF-8");
+            rev.getAttachments().put("att", new UnsavedStreamAttachment(
+                    new ByteArrayInputStream(data), "att", "text/plain"));
+            rev = datastore.createDocumentFromRevision(rev);
+            // the first document keeps its attachment
+            if (i > 0) {
+                rev.getAttachments().clear();
+                datastore.updateDocumentFromRevision(rev);
+                attachmentBytes += data.length;
+            }
+        }
+        Assert.assertEquals(documents, count("SELECT COUNT(*) FROM attachments_key_filename"));
+
+        CompactionProgress progress = datastore.createCompaction().start().get();
+
+        Assert.assertEquals(attachmentBytes, progress.getAttachmentBytesReclaimed());
+        Assert.assertEquals(1, count("SELECT COUNT(*) FROM attachments_key_filename"));
+        Assert.assertEquals(1, count("SELECT COUNT(*) FROM attachments"));
+        Assert.assertEquals("attachment 0", new String(IOUtils.toByteArray(datastore
+                .getDocument("doc-0").getAttachments().get("att").getInputStream()), "UTF-8"));
+    }
+
+    @Test
+    public void compactionOfClosedDatastoreFails() throws Exception {
+        Compaction compaction = datastore.createCompaction();
+        datastore.close();
+        try {
+            compaction.start().get();
+            Assert.fail("Compaction of closed datastore should fail");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    private void createDocumentsWithHistory() throws Exception {
+        String padding = Strings.repeat("x", 2000);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            Map<String, Object> body = new HashMap<String, Object>();
+            body.put("padding", padding);
+            body.put("update", 0);
+            DocumentRevision rev = new DocumentRevision("doc-" + i);
+            rev.setBody(DocumentBodyFactory.create(body));
+            rev = datastore.createDocumentFromRevision(rev);
+            for (int update = 1; update <= UPDATES; update++) {
+                body.put("update", update);
+                rev.setBody(DocumentBodyFactory.create(body));
+                rev = datastore.updateDocumentFromRevision(rev);
+            }
+        }
+    }
+
+    private long pragma(String name) throws Exception {
+        return count("PRAGMA " + name + ";");
+    }
+
+    private long count(final String sql) throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Long>() {
+            @Override
+            public Long call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery(sql, null);
+                    cursor.moveToFirst();
+                    return cursor.getLong(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+}
@@ -506,8 +506,10 @@ public class Database200MigrationTest {
     }
 
 
-    private void runMigration() throws NoSuchFieldException, IllegalAccessException {
-        getQueue().updateSchema(new MigrateDatabase100To200(), 201);
+    private void runMigration() throws Exception {
+        // re-run the migration on top of the datastore's current schema version
+        SQLDatabaseQueue queue = getQueue();
+        queue.updateSchema(new MigrateDatabase100To200(), queue.getVersion() + 1);
     }
 
     private int revisionCount() throws InterruptedException, ExecutionException {
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.event.Subscribe;
+import com.cloudant.sync.notifications.DocumentCreated;
+import com.cloudant.sync.notifications.DocumentDeleted;
+import com.cloudant.sync.notifications.DocumentModified;
+import com.cloudant.sync.notifications.DocumentUpdated;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DatastoreImplBulkWriteTest extends BasicDatastoreTestBase {
+
+    private final List<DocumentModified> events =
+            Collections.synchronizedList(new ArrayList<DocumentModified>());
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        datastore.getEventBus().register(this);
+    }
+
+    @Subscribe
+    public void onDocumentModified(DocumentModified event) {
+        events.add(event);
+    }
+
+    @Test
+    public void createManyDocuments() throws Exception {
+        List<DocumentRevision> revs = new ArrayList<DocumentRevision>();
+        for (int i = 0; i < 100; i++) {
+            revs.add(revision("doc" + i, i));
+        }
+        revs.add(revision(null, 100));
+
+        List<DocumentWriteResult> results = datastore.createDocumentsFromRevisions(revs);
+
+        Assert.assertEquals(101, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            DocumentWriteResult result = results.get(i);
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertSame(revs.get(i), result.getInput());
+            Assert.assertEquals(i, result.getRevision().getBody().asMap().get("index"));
+        }
+        Assert.assertEquals("doc0", results.get(0).getRevision().getId());
+        Assert.assertNotNull(results.get(100).getRevision().getId());
+        Assert.assertEquals(101, datastore.getDocumentCount());
+        Assert.assertEquals(101, events.size());
+        Assert.assertTrue(events.get(0) instanceof DocumentCreated);
+    }
+
+    @Test
+    public void failedCreateDoesNotAffectOthers() throws Exception {
+        datastore.createDocumentFromRevision(revision("existing", 0));
+        events.clear();
+
+        List<DocumentWriteResult> results = datastore.createDocumentsFromRevisions(Arrays.asList(
+                revision("doc1", 1), revision("existing", 2), revision("_invalid", 3),
+                revision("doc2", 4)));
+
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertTrue(results.get(1).getException() instanceof ConflictException);
+        Assert.assertNull(results.get(1).getRevision());
+        Assert.assertFalse(results.get(2).isSuccess());
+        Assert.assertTrue(results.get(3).isSuccess());
+        Assert.assertEquals(3, datastore.getDocumentCount());
+        Assert.assertEquals(0, datastore.getDocument("existing").getBody().asMap().get("index"));
+        Assert.assertEquals(2, events.size());
+    }
+
+    @Test
+    public void createWithAttachments() throws Exception {
+        DocumentRevision rev = revision("doc1", 0);
+        rev.getAttachments().put("att1", new UnsavedStreamAttachment(
+                new ByteArrayInputStream("data".getBytes("UTF-8")), "att1", "text/plain"));
+
+        List<DocumentWriteResult> results = datastore.createDocumentsFromRevisions(
+                Collections.singletonList(rev));
+
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertEquals(1, results.get(0).getRevision().getAttachments().size());
+        Assert.assertNotNull(datastore.getAttachment("doc1",
+                results.get(0).getRevision().getRevision(), "att1"));
+    }
+
+    @Test
+    public void updateReportsConflictsPerDocument() throws Exception {
+        DocumentRevision one = datastore.createDocumentFromRevision(revision("doc1", 0));
+        DocumentRevision two = datastore.createDocumentFromRevision(revision("doc2", 0));
+        DocumentRevision stale = datastore.getDocument("doc2");
+        two.setBody(body(1));
+        datastore.updateDocumentFromRevision(two);
+        events.clear();
+
+        one.setBody(body(2));
+        stale.setBody(body(3));
+        List<DocumentWriteResult> results = datastore.updateDocumentsFromRevisions(
+                Arrays.asList(one, stale));
+
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertEquals(2, results.get(0).getRevision().getGeneration());
+        Assert.assertTrue(results.get(1).getException() instanceof ConflictException);
+        Assert.assertEquals(2, datastore.getDocument("doc1").getBody().asMap().get("index"));
+        Assert.assertEquals(1, datastore.getDocument("doc2").getBody().asMap().get("index"));
+
+        Assert.assertEquals(1, events.size());
+        DocumentUpdated updated = (DocumentUpdated) events.get(0);
+        Assert.assertEquals(one.getRevision(), updated.prevDocument.getRevision());
+        Assert.assertEquals(results.get(0).getRevision(), updated.newDocument);
+    }
+
+    @Test
+    public void deleteManyDocuments() throws Exception {
+        List<DocumentRevision> created = new ArrayList<DocumentRevision>();
+        for (int i = 0; i < 10; i++) {
+            created.add(datastore.createDocumentFromRevision(revision("doc" + i, i)));
+        }
+        events.clear();
+
+        List<DocumentWriteResult> results = datastore.deleteDocumentsFromRevisions(created);
+
+        for (DocumentWriteResult result : results) {
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertTrue(result.getRevision().isDeleted());
+        }
+        Assert.assertEquals(0, datastore.getDocumentCount());
+        Assert.assertEquals(10, events.size());
+        Assert.assertTrue(events.get(0) instanceof DocumentDeleted);
+
+        // deleting again fails for each document
+        results = datastore.deleteDocumentsFromRevisions(created);
+        for (DocumentWriteResult result : results) {
+            Assert.assertFalse(result.isSuccess());
+        }
+    }
+
+    private static DocumentRevision revision(String id, int index) {
+        DocumentRevision rev = new DocumentRevision(id);
+        rev.setBody(body(index));
+        return rev;
+    }
+
+    private static DocumentBody body(int index) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("index", index);
+        return DocumentBodyFactory.create(map);
+    }
+}
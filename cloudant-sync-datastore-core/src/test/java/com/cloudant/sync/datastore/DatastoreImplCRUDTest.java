@@ -29,6 +29,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -423,6 +424,41 @@ public class DatastoreImplCRUDTest extends BasicDatastoreTestBase {
         }
     }
 
+    @Test
+    public void getDocumentsWithIds_moreIdsThanTempTableThreshold_allDocumentsReturnedInOrder()
+            throws Exception {
+        int count = DatastoreImpl.TEMP_TABLE_LOOKUP_THRESHOLD + 200;
+        List<DocumentRevision> revs = new ArrayList<DocumentRevision>();
+        for (int i = 0; i < count; i++) {
+            DocumentRevision rev = new DocumentRevision(String.format("doc-%04d", i));
+            rev.setBody(bodyOne);
+            revs.add(rev);
+        }
+        datastore.createDocumentsFromRevisions(revs);
+
+        List<String> ids = new ArrayList<String>();
+        for (int i = count - 1; i >= 0; i--) {
+            ids.add(String.format("doc-%04d", i));
+        }
+        ids.add("missing");
+        ids.add("doc-0000");
+
+        // twice, to check the temporary table is emptied after use
+        for (int run = 0; run < 2; run++) {
+            // missing and repeated IDs are skipped
+            List<DocumentRevision> docs = datastore.getDocumentsWithIds(ids);
+            Assert.assertEquals(count, docs.size());
+            Assert.assertEquals(String.format("doc-%04d", count - 1), docs.get(0).getId());
+            Assert.assertEquals("doc-0000", docs.get(count - 1).getId());
+        }
+
+        Changes changes = datastore.changes(0, count * 2);
+        Assert.assertEquals(count, changes.size());
+        Assert.assertEquals("doc-0000", changes.getResults().get(0).getId());
+        Assert.assertEquals(String.format("doc-%04d", count - 1),
+                changes.getResults().get(count - 1).getId());
+    }
+
     private DocumentRevision[] createTwoDocumentsForGetDocumentsWithInternalIdsTest() throws Exception {
         DocumentRevision rev_1Mut = new DocumentRevision();
         rev_1Mut.setBody(bodyOne);
@@ -552,6 +588,103 @@ public class DatastoreImplCRUDTest extends BasicDatastoreTestBase {
         getAllDocuments_testCountAndOffset(objectCount, reversedObjects, true);
     }
 
+    @Test
+    public void getAllDocumentsByPage() throws Exception {
+        int objectCount = 100;
+        List<DocumentBody> bodies = this.generateDocuments(objectCount);
+        List<String> expectedIds = new ArrayList<String>(objectCount);
+        for (int i = 0; i < objectCount; i++) {
+            DocumentRevision rev = new DocumentRevision();
+            rev.setBody(bodies.get(i));
+            expectedIds.add(datastore.createDocumentFromRevision(rev).getId());
+        }
+        // deleted documents are skipped
+        DocumentRevision deleted = new DocumentRevision();
+        deleted.setBody(bodyOne);
+        datastore.deleteDocumentFromRevision(datastore.createDocumentFromRevision(deleted));
+
+        Assert.assertEquals(expectedIds, readAllPages(null, null, null, 7, false));
+        List<String> reversed = new ArrayList<String>(expectedIds);
+        Collections.reverse(reversed);
+        Assert.assertEquals(reversed, readAllPages(null, null, null, 7, true));
+
+        DocumentPage page = datastore.getAllDocuments(null, objectCount, false);
+        Assert.assertEquals(objectCount, page.size());
+        Assert.assertFalse(page.hasNextPage());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getAllDocumentsByPage_invalidToken() throws Exception {
+        datastore.getAllDocuments("not-a-token", 10, false);
+    }
+
+    @Test
+    public void getDocumentsInIdRange() throws Exception {
+        List<String> expectedIds = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            DocumentRevision rev = new DocumentRevision(String.format("doc-%03d", i));
+            rev.setBody(bodyOne);
+            datastore.createDocumentFromRevision(rev);
+            if (i >= 10 && i <= 19) {
+                expectedIds.add(rev.getId());
+            }
+        }
+        Assert.assertEquals(expectedIds, readAllPages("doc-010", "doc-019", null, 3, false));
+        List<String> reversed = new ArrayList<String>(expectedIds);
+        Collections.reverse(reversed);
+        Assert.assertEquals(reversed, readAllPages("doc-019", "doc-010", null, 3, true));
+        Assert.assertEquals(50, readAllPages(null, null, "doc-", 8, false).size());
+        Assert.assertEquals(reversed, readAllPages(null, null, "doc-01", 4, true));
+    }
+
+    @Test
+    public void getDocumentsWithIdPrefix() throws Exception {
+        for (String id : new String[]{"a", "ab", "abc", "ab\u00e9", "ab\u4e2d", "ac",
+                "b"}) {
+            DocumentRevision rev = new DocumentRevision(id);
+            rev.setBody(bodyOne);
+            datastore.createDocumentFromRevision(rev);
+        }
+        Assert.assertEquals(Arrays.asList("ab", "abc", "ab\u00e9", "ab\u4e2d"),
+                readAllPages(null, null, "ab", 2, false));
+        Assert.assertEquals(7, readAllPages(null, null, "", 2, false).size());
+    }
+
+    @Test
+    public void prefixUpperBound() {
+        Assert.assertEquals("ac", DatastoreImpl.prefixUpperBound("ab"));
+        Assert.assertEquals("a\uE000", DatastoreImpl.prefixUpperBound("a\uD7FF"));
+        Assert.assertEquals("b", DatastoreImpl.prefixUpperBound("a\uDBFF\uDFFF"));
+        Assert.assertNull(DatastoreImpl.prefixUpperBound("\uDBFF\uDFFF"));
+        Assert.assertNull(DatastoreImpl.prefixUpperBound(""));
+    }
+
+    /**
+     * Reads every page of all documents, a range or a prefix, returning the document IDs.
+     */
+    private List<String> readAllPages(String startKey, String endKey, String prefix, int limit,
+                                      boolean descending) throws Exception {
+        List<String> ids = new ArrayList<String>();
+        String token = null;
+        do {
+            DocumentPage page;
+            if (prefix != null) {
+                page = datastore.getDocumentsWithIdPrefix(prefix, token, limit, descending);
+            } else if (startKey != null) {
+                page = datastore.getDocumentsInIdRange(startKey, endKey, token, limit,
+                        descending);
+            } else {
+                page = datastore.getAllDocuments(token, limit, descending);
+            }
+            Assert.assertTrue(page.size() <= limit);
+            for (DocumentRevision rev : page.getResults()) {
+                ids.add(rev.getId());
+            }
+            token = page.getNextPageToken();
+        } while (token != null);
+        return ids;
+    }
+
     @Test
     public void getAllDocumentIds() throws Exception {
         Assert.assertTrue(datastore.getAllDocumentIds().isEmpty());
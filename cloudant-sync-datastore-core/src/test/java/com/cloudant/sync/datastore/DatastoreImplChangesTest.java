@@ -14,10 +14,19 @@
 
 package com.cloudant.sync.datastore;
 
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.hasItems;
 
@@ -102,4 +111,89 @@ public class DatastoreImplChangesTest extends BasicDatastoreTestBase {
         Assert.assertThat(changes.getIds(), hasItems(docs[0].getId(), docs[1].getId(), docs[2].getId()));
         Assert.assertEquals(4, changes.getLastSequence());
     }
+
+    @Test
+    public void changesIterator_pagesThroughAllChanges() throws Exception {
+        DocumentRevision[] docs = createThreeDocuments();
+        ChangesIterator iterator = datastore.changesIterator(0, 1);
+        Set<String> ids = new HashSet<String>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getId());
+        }
+        Assert.assertEquals(3, ids.size());
+        Assert.assertThat(ids, hasItems(docs[0].getId(), docs[1].getId(), docs[2].getId()));
+        Assert.assertEquals(datastore.getLastSequence(), iterator.getLastSequence());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void changesIterator_noChanges_nextThrows() {
+        ChangesIterator iterator = datastore.changesIterator(0, 100);
+        Assert.assertFalse(iterator.hasNext());
+        Assert.assertEquals(0, iterator.getLastSequence());
+        iterator.next();
+    }
+
+    @Test
+    public void changesIterator_lastSequenceAdvancesWhenPageConsumed() throws Exception {
+        createThreeDocuments();
+        ChangesIterator iterator = datastore.changesIterator(0, 2);
+        iterator.next();
+        Assert.assertEquals(0, iterator.getLastSequence());
+        iterator.next();
+        Assert.assertEquals(2, iterator.getLastSequence());
+    }
+
+    @Test
+    public void changesIterator_nextBatchReturnsRestOfPage() throws Exception {
+        createThreeDocuments();
+        ChangesIterator iterator = datastore.changesIterator(0, 2);
+        iterator.next();
+
+        Changes batch = iterator.nextBatch();
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals(2, batch.getLastSequence());
+
+        batch = iterator.nextBatch();
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals(4, batch.getLastSequence());
+
+        batch = iterator.nextBatch();
+        Assert.assertEquals(0, batch.size());
+        Assert.assertEquals(4, batch.getLastSequence());
+    }
+
+    @Test
+    public void changesIterator_skipsSequencesWithoutChanges() throws Exception {
+        final List<DocumentRevision> docs = new ArrayList<DocumentRevision>();
+        for (int i = 0; i < 6; i++) {
+            DocumentRevision rev = new DocumentRevision("doc" + i);
+            rev.setBody(bodyOne);
+            docs.add(datastore.createDocumentFromRevision(rev));
+        }
+        // leave a run of sequence numbers without any changes
+        datastore.runOnDbQueue(new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                db.execSQL("DELETE FROM revs WHERE sequence > ? AND sequence < ?",
+                        new Object[]{docs.get(0).getSequence(), docs.get(5).getSequence()});
+                return null;
+            }
+        }).get();
+
+        ChangesIterator iterator = datastore.changesIterator(0, 1);
+        List<String> ids = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getId());
+        }
+        Assert.assertEquals(Arrays.asList("doc0", "doc5"), ids);
+        Assert.assertEquals(docs.get(5).getSequence(), iterator.getLastSequence());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void changesIterator_removeIsNotSupported() throws Exception {
+        createTwoDocuments();
+        ChangesIterator iterator = datastore.changesIterator(0, 100);
+        iterator.next();
+        iterator.remove();
+    }
 }
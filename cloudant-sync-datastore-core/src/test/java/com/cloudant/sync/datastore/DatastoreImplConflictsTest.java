@@ -26,10 +26,13 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DatastoreImplConflictsTest extends BasicDatastoreTestBase {
 
@@ -91,6 +94,42 @@ public class DatastoreImplConflictsTest extends BasicDatastoreTestBase {
         testWithConflictCount(1000);
     }
 
+    @Test
+    public void getRevisionTreesWithoutBodies_matchesFullTrees() throws Exception {
+        String conflicted = this.createConflictedDocument();
+        DocumentRevision single = this.createDocumentRevision("Tom");
+
+        Map<String, DocumentRevisionTree> trees = this.datastore.getRevisionTreesWithoutBodies(
+                Lists.newArrayList(conflicted, single.getId(), "missing"));
+        Assert.assertEquals(2, trees.size());
+        Assert.assertFalse(trees.containsKey("missing"));
+
+        for (String docId : new String[]{conflicted, single.getId()}) {
+            DocumentRevisionTree full = this.datastore.getAllRevisionsOfDocument(docId);
+            DocumentRevisionTree lazy = trees.get(docId);
+            Assert.assertEquals(full.leafRevisionIds(), lazy.leafRevisionIds());
+            Assert.assertEquals(full.getCurrentRevision().getRevision(),
+                    lazy.getCurrentRevision().getRevision());
+            for (DocumentRevision leaf : full.leafRevisions()) {
+                DocumentRevision lazyLeaf = lazy.lookup(docId, leaf.getRevision());
+                Assert.assertEquals(leaf.getSequence(), lazyLeaf.getSequence());
+                Assert.assertEquals(leaf.getParent(), lazyLeaf.getParent());
+                Assert.assertEquals(leaf.isDeleted(), lazyLeaf.isDeleted());
+                Assert.assertEquals(leaf.getBody().asMap(), lazyLeaf.getBody().asMap());
+            }
+        }
+    }
+
+    @Test
+    public void getRevisionTreesWithoutBodies_setBodyReplacesLazyBody() throws Exception {
+        DocumentRevision rev = this.createDocumentRevision("Tom");
+        DocumentRevision lazy = this.datastore.getRevisionTreesWithoutBodies(
+                Lists.newArrayList(rev.getId())).get(rev.getId()).getCurrentRevision();
+        DocumentBody body = DocumentBodyFactory.create("{\"name\": \"Jerry\"}".getBytes());
+        lazy.setBody(body);
+        Assert.assertSame(body, lazy.getBody());
+    }
+
     @Test
     public void resolveConflictsForDocument_twoConflictAndException_nothing()
             throws Exception {
@@ -405,6 +444,146 @@ public class DatastoreImplConflictsTest extends BasicDatastoreTestBase {
         Assert.assertEquals(Integer.valueOf(2), Integer.valueOf(generation));
     }
 
+    @Test
+    public void resolveConflictsForDocuments_moreDocumentsThanBatch_allResolved()
+            throws Exception {
+        int count = DatastoreImpl.RESOLVE_CONFLICTS_BATCH_SIZE * 2 + 10;
+        List<String> docIds = createConflictDocuments(count);
+        String notConflicted = createDocumentRevision("Tom").getId();
+        docIds.add(notConflicted);
+        docIds.add("missing");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<ConflictResolutionResult> results = this.datastore.resolveConflictsForDocuments(
+                    docIds, new ConflictResolver() {
+                @Override
+                public DocumentRevision resolve(String docId, List<DocumentRevision> conflicts) {
+                    for (DocumentRevision rev : conflicts) {
+                        if (rev.asMap().get("name").equals("Jerry")) {
+                            rev.setBody(createDocumentBody("Jerry and Tom"));
+                            return rev;
+                        }
+                    }
+                    return null;
+                }
+            }, executor);
+
+            Assert.assertEquals(docIds.size(), results.size());
+            for (int i = 0; i < count; i++) {
+                ConflictResolutionResult result = results.get(i);
+                Assert.assertEquals(docIds.get(i), result.getDocumentId());
+                Assert.assertEquals(ConflictResolutionResult.Outcome.RESOLVED,
+                        result.getOutcome());
+                Assert.assertEquals("Jerry and Tom",
+                        result.getRevision().asMap().get("name"));
+                Assert.assertEquals(result.getRevision(),
+                        this.datastore.getDocument(docIds.get(i)));
+            }
+            Assert.assertEquals(ConflictResolutionResult.Outcome.NOT_CONFLICTED,
+                    results.get(count).getOutcome());
+            Assert.assertEquals(ConflictResolutionResult.Outcome.NOT_CONFLICTED,
+                    results.get(count + 1).getOutcome());
+            Assert.assertFalse(this.datastore.getConflictedDocumentIds().hasNext());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void resolveConflictsForDocuments_resolverReturnsNullOrThrows_unresolved()
+            throws Exception {
+        final String returnsNull = createConflictedDocument();
+        String throwsException = createConflictedDocument();
+        long expectedSequence = this.datastore.getLastSequence();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<ConflictResolutionResult> results = this.datastore.resolveConflictsForDocuments(
+                    Arrays.asList(returnsNull, throwsException), new ConflictResolver() {
+                @Override
+                public DocumentRevision resolve(String docId, List<DocumentRevision> conflicts) {
+                    if (docId.equals(returnsNull)) {
+                        return null;
+                    }
+                    throw new IllegalStateException("Mocked error");
+                }
+            }, executor);
+
+            Assert.assertEquals(ConflictResolutionResult.Outcome.UNRESOLVED,
+                    results.get(0).getOutcome());
+            Assert.assertNull(results.get(0).getException());
+            Assert.assertEquals(ConflictResolutionResult.Outcome.UNRESOLVED,
+                    results.get(1).getOutcome());
+            Assert.assertTrue(results.get(1).getException() instanceof IllegalStateException);
+            Assert.assertEquals(expectedSequence, this.datastore.getLastSequence());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void resolveConflictsForDocuments_modifiedWhileResolving_failedAndOthersResolved()
+            throws Exception {
+        final String modified = createConflictedDocument();
+        String unmodified = createConflictedDocument();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<ConflictResolutionResult> results = this.datastore.resolveConflictsForDocuments(
+                    Arrays.asList(modified, unmodified), new ConflictResolver() {
+                @Override
+                public DocumentRevision resolve(String docId, List<DocumentRevision> conflicts) {
+                    if (docId.equals(modified)) {
+                        // a replication adds another branch while the resolver runs
+                        try {
+                            datastore.forceInsert(createDetachedDocumentRevision(docId, "2-b",
+                                    "Carl"), "1-b", "2-b");
+                        } catch (DocumentException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return conflicts.get(0);
+                }
+            }, executor);
+
+            Assert.assertEquals(ConflictResolutionResult.Outcome.FAILED,
+                    results.get(0).getOutcome());
+            Assert.assertTrue(results.get(0).getException() instanceof ConflictException);
+            Assert.assertEquals(3, this.datastore.getAllRevisionsOfDocument(modified)
+                    .leafRevisions(true).size());
+            Assert.assertEquals(ConflictResolutionResult.Outcome.RESOLVED,
+                    results.get(1).getOutcome());
+            Assert.assertEquals(Arrays.asList(modified),
+                    Lists.newArrayList(this.datastore.getConflictedDocumentIds()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void resolveConflictsForDocuments_winnerNotALeaf_failed() throws Exception {
+        String docId = createConflictedDocument();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<ConflictResolutionResult> results = this.datastore.resolveConflictsForDocuments(
+                    Arrays.asList(docId), new ConflictResolver() {
+                @Override
+                public DocumentRevision resolve(String docId, List<DocumentRevision> conflicts) {
+                    return createDetachedDocumentRevision(docId, "3-unknown", "Carl");
+                }
+            }, executor);
+
+            Assert.assertEquals(ConflictResolutionResult.Outcome.FAILED,
+                    results.get(0).getOutcome());
+            Assert.assertTrue(results.get(0).getException() instanceof IllegalArgumentException);
+            Assert.assertTrue(this.datastore.getAllRevisionsOfDocument(docId).hasConflicts());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void resurrectWinningDocument() throws Exception {
         // create n conflicted docs, delete winner, then create another
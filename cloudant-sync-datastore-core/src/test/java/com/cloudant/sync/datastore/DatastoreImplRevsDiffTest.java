@@ -19,7 +19,10 @@ import com.google.common.collect.Multimap;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 public class DatastoreImplRevsDiffTest extends BasicDatastoreTestBase{
@@ -135,4 +138,33 @@ public class DatastoreImplRevsDiffTest extends BasicDatastoreTestBase{
         Assert.assertFalse(missing.get(rev1.getId()).contains(rev1.getRevision()));
     }
 
+    @Test
+    public void revsDiff_moreRevisionsThanTempTableThreshold_pairsMatchedExactly()
+            throws Exception {
+        int count = DatastoreImpl.TEMP_TABLE_LOOKUP_THRESHOLD + 100;
+        List<DocumentRevision> revs = new ArrayList<DocumentRevision>();
+        for (int i = 0; i < count; i++) {
+            DocumentRevision rev = new DocumentRevision("doc" + i);
+            rev.setBody(bodyOne);
+            revs.add(datastore.createDocumentFromRevision(rev));
+        }
+
+        // Each document's own revision exists; the next document's revision ID does
+        // not exist for it, although it does exist for another document.
+        Multimap<String, String> query = HashMultimap.create();
+        for (int i = 0; i < count; i++) {
+            query.put(revs.get(i).getId(), revs.get(i).getRevision());
+            query.put(revs.get(i).getId(), revs.get((i + 1) % count).getRevision());
+        }
+
+        for (int run = 0; run < 2; run++) {
+            Map<String, Collection<String>> missing = datastore.revsDiff(query);
+            Assert.assertEquals(count, missing.size());
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals(Collections.singletonList(
+                        revs.get((i + 1) % count).getRevision()),
+                        new ArrayList<String>(missing.get(revs.get(i).getId())));
+            }
+        }
+    }
 }
@@ -27,6 +27,7 @@ import com.cloudant.sync.sqlite.SQLDatabaseQueue;
 import com.cloudant.sync.sqlite.SQLQueueCallable;
 import com.cloudant.sync.util.DatabaseUtils;
 import com.cloudant.sync.util.TestUtils;
+import com.google.common.collect.Lists;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
@@ -372,6 +373,11 @@ public class DatastoreSchemaTests {
             Assert.assertEquals("There should be no documents that have duplicate revisions", 0,
                     result.size());
 
+            // Validate that the leaf flags added by the 200 to 201 migration match the tree
+            assertLeafFlagsMatchParents(datastore);
+            // and that the conflicts table added by the 201 to 202 migration matches them
+            assertConflictsMatchLeaves(datastore);
+
             // Document with id d834ca038de24bf0ac9f708fcdb63e21 has duplicated attachments on
             // lowest seq.
             // Validate that after migration only one remains and it is of the correct name
@@ -593,7 +599,145 @@ public class DatastoreSchemaTests {
         }
     }
 
+    /**
+     * Checks the triggers keep the leaf flag in step with the revision tree as
+     * revisions are added, re-parented and removed.
+     */
+    @Test
+    public void leafFlagMaintainedByTriggers() throws Exception {
+        String dir = TestUtils.createTempTestingDir(this.getClass().getName());
+        DatastoreImpl datastore = (DatastoreImpl) DatastoreManager.getInstance(dir)
+                .openDatastore("leafFlag");
+        try {
+            DocumentRevision rev = new DocumentRevision("doc1");
+            rev.setBody(DocumentBodyFactory.create("{\"a\": 1}".getBytes()));
+            DocumentRevision created = datastore.createDocumentFromRevision(rev);
+            created.setBody(DocumentBodyFactory.create("{\"a\": 2}".getBytes()));
+            DocumentRevision updated = datastore.updateDocumentFromRevision(created);
+            // a second branch from the first revision
+            DocumentRevision conflict = new DocumentRevision("doc1", "2-conflict",
+                    DocumentBodyFactory.create("{\"a\": 3}".getBytes()));
+            datastore.forceInsert(conflict, created.getRevision(), "2-conflict");
+            assertLeafFlagsMatchParents(datastore);
+            assertLeafCount(datastore, "doc1", 2);
+
+            // re-parent the conflict onto the update, then remove the update
+            final String updatedRevId = updated.getRevision();
+            datastore.runOnDbQueue(new SQLQueueCallable<Void>() {
+                @Override
+                public Void call(SQLDatabase db) throws Exception {
+                    db.execSQL("UPDATE revs SET parent = (SELECT sequence FROM revs WHERE " +
+                            "revid = ?) WHERE revid = '2-conflict'", new Object[]{updatedRevId});
+                    return null;
+                }
+            }).get();
+            assertLeafFlagsMatchParents(datastore);
+            datastore.runOnDbQueue(new SQLQueueCallable<Void>() {
+                @Override
+                public Void call(SQLDatabase db) throws Exception {
+                    db.delete("revs", "revid = '2-conflict'", null);
+                    return null;
+                }
+            }).get();
+            assertLeafFlagsMatchParents(datastore);
+            assertLeafCount(datastore, "doc1", 1);
+        } finally {
+            datastore.close();
+            TestUtils.deleteTempTestingDir(dir);
+        }
+    }
+
+    @Test
+    public void conflictsTableMaintainedByTriggers() throws Exception {
+        String dir = TestUtils.createTempTestingDir(this.getClass().getName());
+        DatastoreImpl datastore = (DatastoreImpl) DatastoreManager.getInstance(dir)
+                .openDatastore("conflicts");
+        try {
+            List<DocumentRevision> created = new ArrayList<DocumentRevision>();
+            for (String id : new String[]{"doc1", "doc2", "doc3"}) {
+                DocumentRevision rev = new DocumentRevision(id);
+                rev.setBody(DocumentBodyFactory.create("{\"a\": 1}".getBytes()));
+                created.add(datastore.createDocumentFromRevision(rev));
+            }
+            assertConflicts(datastore);
+
+            // a second branch on each document makes them conflicted
+            for (DocumentRevision rev : created) {
+                DocumentRevision conflict = new DocumentRevision(rev.getId(), "1-conflict",
+                        DocumentBodyFactory.create("{\"a\": 2}".getBytes()));
+                datastore.forceInsert(conflict, "1-conflict");
+            }
+            assertConflicts(datastore, "doc1", "doc2", "doc3");
+
+            // resolving, deleting a leaf and updating a leaf
+            datastore.resolveConflictsForDocument("doc1", new ConflictResolver() {
+                @Override
+                public DocumentRevision resolve(String docId, List<DocumentRevision> conflicts) {
+                    return conflicts.get(0);
+                }
+            });
+            assertConflicts(datastore, "doc2", "doc3");
+            datastore.deleteDocumentFromRevision(datastore.getDocument("doc2", "1-conflict"));
+            assertConflicts(datastore, "doc3");
+            DocumentRevision leaf = datastore.getDocument("doc3");
+            leaf.setBody(DocumentBodyFactory.create("{\"a\": 3}".getBytes()));
+            datastore.updateDocumentFromRevision(leaf);
+            assertConflicts(datastore, "doc3");
+
+            // deleting every leaf of a document
+            datastore.deleteDocument("doc3");
+            assertConflicts(datastore);
+        } finally {
+            datastore.close();
+            TestUtils.deleteTempTestingDir(dir);
+        }
+    }
+
     // utility methods used by tests
+    private void assertConflicts(DatastoreImpl datastore, String... docIds) throws Exception {
+        Assert.assertEquals(Arrays.asList(docIds),
+                Lists.newArrayList(datastore.getConflictedDocumentIds()));
+        assertConflictsMatchLeaves(datastore);
+    }
+
+    private void assertConflictsMatchLeaves(DatastoreImpl datastore) throws Exception {
+        int mismatched = datastore.runOnDbQueue(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor c = null;
+                try {
+                    c = db.rawQuery("SELECT COUNT(*) FROM docs WHERE " +
+                            "(doc_id IN (SELECT doc_id FROM conflicts)) != " +
+                            "((SELECT COUNT(*) FROM revs WHERE revs.doc_id = docs.doc_id " +
+                            "AND leaf = 1 AND deleted = 0) > 1)", null);
+                    c.moveToFirst();
+                    return c.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(c);
+                }
+            }
+        }).get();
+        Assert.assertEquals("Conflicts table should match the leaf revisions", 0, mismatched);
+    }
+
+    private void assertLeafFlagsMatchParents(DatastoreImpl datastore) throws Exception {
+        int mismatched = datastore.runOnDbQueue(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor c = null;
+                try {
+                    c = db.rawQuery("SELECT COUNT(*) FROM revs WHERE leaf != (sequence NOT IN " +
+                            "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL))", null);
+                    c.moveToFirst();
+                    return c.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(c);
+                }
+            }
+        }).get();
+        Assert.assertEquals("Leaf flags should match the revision tree", 0, mismatched);
+    }
+
     private void assertLeafCount(Datastore datastore, String docId, int expectedLeafCount) {
         int actualLeafCount = ((DatastoreImpl)datastore).getAllRevisionsOfDocument(docId).
                 leafRevisions().size();
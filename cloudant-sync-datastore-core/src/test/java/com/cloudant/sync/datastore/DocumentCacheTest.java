@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DocumentCacheTest {
+
+    private String datastoreManagerDir;
+    private DatastoreImpl datastore;
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerDir = TestUtils.createTempTestingDir(getClass().getName());
+        DatastoreManager datastoreManager = DatastoreManager.getInstance(datastoreManagerDir);
+        datastore = (DatastoreImpl) datastoreManager.openDatastore(getClass().getSimpleName(),
+                new NullKeyProvider(), new DatastoreOptions().setDocumentCache(100, 1024 * 1024));
+    }
+
+    @After
+    public void tearDown() {
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void repeatedReadsAreCacheHits() throws Exception {
+        DocumentRevision created = createDocument("doc1", "a");
+
+        DocumentRevision first = datastore.getDocument("doc1");
+        DocumentRevision second = datastore.getDocument("doc1");
+        DocumentRevision byRevision = datastore.getDocument("doc1", created.getRevision());
+
+        Assert.assertEquals(created, first);
+        Assert.assertEquals(created, second);
+        Assert.assertEquals(created, byRevision);
+        Assert.assertEquals(first.getBody().asMap(), second.getBody().asMap());
+        Assert.assertEquals(first.getSequence(), second.getSequence());
+        Assert.assertTrue(second.isCurrent());
+
+        DocumentCacheStatistics statistics = datastore.getDocumentCacheStatistics();
+        Assert.assertEquals(1, statistics.getMisses());
+        Assert.assertEquals(2, statistics.getHits());
+        Assert.assertEquals(1, statistics.getSize());
+        Assert.assertEquals(2.0 / 3, statistics.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void cachedRevisionsAreNotShared() throws Exception {
+        createDocument("doc1", "a");
+        DocumentRevision first = datastore.getDocument("doc1");
+        first.setBody(body("b"));
+        first.setRevision("2-modified");
+
+        DocumentRevision second = datastore.getDocument("doc1");
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals("a", second.getBody().asMap().get("value"));
+        Assert.assertEquals(1, second.getGeneration());
+        Assert.assertEquals(1, datastore.getDocumentCacheStatistics().getHits());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void nestedValuesOfCachedBodiesAreNotShared() throws Exception {
+        DocumentRevision rev = new DocumentRevision("doc1");
+        Map<String, Object> nested = new HashMap<String, Object>();
+        nested.put("x", 1);
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("n", nested);
+        map.put("list", new ArrayList<Object>(Collections.singletonList(1)));
+        rev.setBody(DocumentBodyFactory.create(map));
+        datastore.createDocumentFromRevision(rev);
+
+        // both the read which populates the cache and a cache hit
+        for (int i = 0; i < 2; i++) {
+            Map<String, Object> body = datastore.getDocument("doc1").getBody().asMap();
+            ((Map<String, Object>) body.get("n")).put("x", 999);
+            ((List<Object>) body.get("list")).add(2);
+        }
+
+        Map<String, Object> body = datastore.getDocument("doc1").getBody().asMap();
+        Assert.assertEquals(nested, body.get("n"));
+        Assert.assertEquals(Collections.singletonList(1), body.get("list"));
+        Assert.assertEquals(2, datastore.getDocumentCacheStatistics().getHits());
+    }
+
+    @Test
+    public void updateInvalidatesCachedRevisions() throws Exception {
+        DocumentRevision created = createDocument("doc1", "a");
+        datastore.getDocument("doc1");
+
+        DocumentRevision update = datastore.getDocument("doc1");
+        update.setBody(body("b"));
+        DocumentRevision updated = datastore.updateDocumentFromRevision(update);
+
+        DocumentRevision current = datastore.getDocument("doc1");
+        Assert.assertEquals(updated.getRevision(), current.getRevision());
+        Assert.assertEquals("b", current.getBody().asMap().get("value"));
+        Assert.assertFalse(datastore.getDocument("doc1", created.getRevision()).isCurrent());
+    }
+
+    @Test
+    public void deleteInvalidatesCachedRevisions() throws Exception {
+        createDocument("doc1", "a");
+        DocumentRevision current = datastore.getDocument("doc1");
+
+        datastore.deleteDocumentFromRevision(current);
+        Assert.assertTrue(datastore.getDocument("doc1").isDeleted());
+    }
+
+    @Test
+    public void forceInsertInvalidatesCachedRevisions() throws Exception {
+        createDocument("doc1", "a");
+        datastore.getDocument("doc1");
+
+        DocumentRevision remote = new DocumentRevisionBuilder()
+                .setDocId("doc1")
+                .setRevId("1-zzzzz")
+                .setBody(body("remote"))
+                .build();
+        datastore.forceInsert(remote, "1-zzzzz");
+
+        // the higher revision ID wins the conflict
+        Assert.assertEquals("1-zzzzz", datastore.getDocument("doc1").getRevision());
+    }
+
+    @Test
+    public void resolveConflictsInvalidatesCachedRevisions() throws Exception {
+        DocumentRevision local = createDocument("doc1", "a");
+        DocumentRevision remote = new DocumentRevisionBuilder()
+                .setDocId("doc1")
+                .setRevId("1-zzzzz")
+                .setBody(body("remote"))
+                .build();
+        datastore.forceInsert(remote, "1-zzzzz");
+        Assert.assertEquals("1-zzzzz", datastore.getDocument("doc1").getRevision());
+
+        final String keep = local.getRevision();
+        datastore.resolveConflictsForDocument("doc1", new ConflictResolver() {
+            @Override
+            public DocumentRevision resolve(String docId, List<DocumentRevision> conflicts) {
+                for (DocumentRevision conflict : conflicts) {
+                    if (conflict.getRevision().equals(keep)) {
+                        return conflict;
+                    }
+                }
+                return null;
+            }
+        });
+        Assert.assertEquals(keep, datastore.getDocument("doc1").getRevision());
+    }
+
+    @Test
+    public void leastRecentlyUsedDocumentsAreEvicted() {
+        DocumentCache cache = new DocumentCache(2, 1024);
+        cache.put(revision("doc1", "1-a", "a"), cache.getGeneration());
+        cache.put(revision("doc2", "1-a", "a"), cache.getGeneration());
+        // use doc1 so doc2 becomes the least recently used
+        Assert.assertNotNull(cache.get("doc1", null));
+        cache.put(revision("doc3", "1-a", "a"), cache.getGeneration());
+
+        Assert.assertNotNull(cache.get("doc1", "1-a"));
+        Assert.assertNull(cache.get("doc2", null));
+        Assert.assertNotNull(cache.get("doc3", null));
+        DocumentCacheStatistics statistics = cache.getStatistics();
+        Assert.assertEquals(2, statistics.getSize());
+        Assert.assertEquals(1, statistics.getEvictions());
+    }
+
+    @Test
+    public void weightLimitEvictsDocuments() {
+        DocumentRevision first = revision("doc1", "1-a", "a");
+        long weight = first.getBody().asBytes().length;
+        DocumentCache cache = new DocumentCache(10, weight * 2);
+        cache.put(first, cache.getGeneration());
+        cache.put(revision("doc2", "1-a", "a"), cache.getGeneration());
+        cache.put(revision("doc3", "1-a", "a"), cache.getGeneration());
+
+        DocumentCacheStatistics statistics = cache.getStatistics();
+        Assert.assertEquals(2, statistics.getSize());
+        Assert.assertEquals(weight * 2, statistics.getWeight());
+        Assert.assertNull(cache.get("doc1", null));
+    }
+
+    @Test
+    public void readsStartedBeforeInvalidationAreNotCached() {
+        DocumentCache cache = new DocumentCache(10, 1024);
+        long generation = cache.getGeneration();
+        cache.startWrite(Collections.singleton("doc1"));
+        cache.finishWrite(Collections.singleton("doc1"));
+        cache.put(revision("doc1", "1-a", "a"), generation);
+
+        Assert.assertNull(cache.get("doc1", null));
+        Assert.assertEquals(0, cache.getStatistics().getSize());
+    }
+
+    @Test
+    public void documentsAreNotCachedWhileBeingWritten() {
+        DocumentCache cache = new DocumentCache(10, 1024);
+        cache.startWrite(Collections.singleton("doc1"));
+        cache.put(revision("doc1", "1-a", "a"), cache.getGeneration());
+        cache.put(revision("doc2", "1-b", "b"), cache.getGeneration());
+
+        Assert.assertNull(cache.get("doc1", null));
+        Assert.assertNotNull(cache.get("doc2", null));
+
+        cache.finishWrite(Collections.singleton("doc1"));
+        cache.put(revision("doc1", "2-a", "a"), cache.getGeneration());
+        Assert.assertEquals("2-a", cache.get("doc1", null).getRevision());
+    }
+
+    @Test
+    public void cachedBodiesCanBeDecodedConcurrently() throws Exception {
+        final DocumentBody body = DocumentBodyImpl.storedBodyWith(
+                BinaryJson.fromJson(body("a").asBytes()));
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Object>> values = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 4; i++) {
+                values.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        start.await();
+                        return body.asMap().get("value");
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Object> value : values) {
+                Assert.assertEquals("a", value.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private DocumentRevision createDocument(String id, String value) throws Exception {
+        DocumentRevision rev = new DocumentRevision(id);
+        rev.setBody(body(value));
+        return datastore.createDocumentFromRevision(rev);
+    }
+
+    private static DocumentRevision revision(String id, String revId, String value) {
+        return new DocumentRevisionBuilder()
+                .setDocId(id)
+                .setRevId(revId)
+                .setBody(body(value))
+                .setCurrent(true)
+                .build();
+    }
+
+    private static DocumentBody body(String value) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("value", value);
+        return DocumentBodyFactory.create(map);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.util.JSONUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the time taken and memory allocated to read two indexed fields from
+ * documents of around 20 KB, and to project 3 of 60 fields as query results do, by
+ * building the body's map and with a {@link FieldExtractor}.
+ */
+@Category(PerformanceTest.class)
+public class FieldExtractorPerformanceTest {
+
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 5000;
+    private static final List<String> FIELDS = Arrays.asList("type", "customer.name");
+
+    @Test
+    public void jsonBodies() {
+        run("json", JSONUtils.serializeAsBytes(body()));
+    }
+
+    @Test
+    public void binaryBodies() {
+        run("binary", BinaryJson.fromJson(JSONUtils.serializeAsBytes(body())));
+    }
+
+    @Test
+    public void projection() {
+        Map<String, Object> body = new HashMap<String, Object>();
+        for (int i = 0; i < 60; i++) {
+            body.put("field" + i, "value of field " + i);
+        }
+        byte[] stored = JSONUtils.serializeAsBytes(body);
+        List<String> fields = Arrays.asList("field1", "field20", "field40");
+        FieldExtractor extractor = new FieldExtractor(fields);
+        for (int i = 0; i < WARMUP; i++) {
+            projectViaMap(stored, fields);
+            extractor.project(DocumentBodyImpl.storedBodyWith(stored)).asMap();
+        }
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Assert.assertEquals(3, projectViaMap(stored, fields).asMap().size());
+        }
+        long mapNanos = System.nanoTime() - start;
+        long mapBytes = allocatedBytes() - bytes;
+
+        bytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Assert.assertEquals(3, extractor.project(DocumentBodyImpl.storedBodyWith(stored))
+                    .asMap().size());
+        }
+        long extractNanos = System.nanoTime() - start;
+        long extractBytes = allocatedBytes() - bytes;
+
+        System.out.println(String.format("projection: map %.1fus %dB per body, extractor " +
+                        "%.1fus %dB per body", mapNanos / 1e3 / ITERATIONS, mapBytes / ITERATIONS,
+                extractNanos / 1e3 / ITERATIONS, extractBytes / ITERATIONS));
+    }
+
+    // projection as done before fields were extracted from the stored body
+    private static DocumentBody projectViaMap(byte[] stored, List<String> fields) {
+        Map<String, Object> projected = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry :
+                DocumentBodyImpl.storedBodyWith(stored).asMap().entrySet()) {
+            if (fields.contains(entry.getKey())) {
+                projected.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return DocumentBodyFactory.create(projected);
+    }
+
+    private static void run(String name, byte[] stored) {
+        FieldExtractor extractor = new FieldExtractor(FIELDS);
+        for (int i = 0; i < WARMUP; i++) {
+            viaMap(stored);
+            extractor.extract(DocumentBodyImpl.storedBodyWith(stored));
+        }
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Assert.assertEquals("order", viaMap(stored));
+        }
+        long mapNanos = System.nanoTime() - start;
+        long mapBytes = allocatedBytes() - bytes;
+
+        bytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Assert.assertEquals("order", extractor.extract(
+                    DocumentBodyImpl.storedBodyWith(stored)).get("type"));
+        }
+        long extractNanos = System.nanoTime() - start;
+        long extractBytes = allocatedBytes() - bytes;
+
+        System.out.println(String.format("%s: map %.1fus %dKB per body, extractor %.1fus " +
+                        "%dKB per body", name, mapNanos / 1e3 / ITERATIONS,
+                mapBytes / 1024 / ITERATIONS, extractNanos / 1e3 / ITERATIONS,
+                extractBytes / 1024 / ITERATIONS));
+    }
+
+    private static Object viaMap(byte[] stored) {
+        return DocumentBodyImpl.storedBodyWith(stored).asMap().get("type");
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static Map<String, Object> body() {
+        List<Map<String, Object>> lines = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 200; i++) {
+            Map<String, Object> line = new HashMap<String, Object>();
+            line.put("product_id", "product-" + i);
+            line.put("description", "Product " + i + " in standard packaging");
+            line.put("quantity", i % 10);
+            line.put("unit_price", i / 100.0);
+            lines.add(line);
+        }
+        Map<String, Object> customer = new HashMap<String, Object>();
+        customer.put("name", "Customer");
+        customer.put("address", "1 Example Street, Example Town");
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("lines", lines);
+        body.put("customer", customer);
+        body.put("type", "order");
+        return body;
+    }
+}
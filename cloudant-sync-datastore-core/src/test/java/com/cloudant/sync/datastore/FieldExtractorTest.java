@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.util.JSONUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FieldExtractorTest {
+
+    private static final String JSON = "{\"name\":\"mike\",\"age\":32,\"pets\":[\"cat\"," +
+            "{\"name\":\"rex\"}],\"address\":{\"city\":\"Bristol\",\"geo\":{\"lat\":51.45," +
+            "\"lon\":-2.58},\"empty\":null},\"skipped\":{\"name\":\"not me\",\"list\":[1,2," +
+            "{\"city\":\"x\"}]},\"dup\":{\"a\":1},\"dup\":2,\"nothing\":null," +
+            "\"big\":123456789012345678901234567890}";
+
+    private static final List<String> FIELDS = Arrays.asList("name", "age", "pets",
+            "pets.name", "address.city", "address.geo", "address.geo.lat", "address.empty",
+            "address.missing", "name.first", "dup", "dup.a", "nothing", "big", "skipped.list",
+            "missing.field", "");
+
+    @Test
+    public void jsonBodyGivesSameValuesAsMap() {
+        assertExtracted(DocumentBodyImpl.trustedBodyWith(json()));
+    }
+
+    @Test
+    public void binaryBodyGivesSameValuesAsMap() {
+        assertExtracted(DocumentBodyImpl.storedBodyWith(BinaryJson.fromJson(json())));
+    }
+
+    @Test
+    public void compressedBodyGivesSameValuesAsMap() {
+        byte[] compressed = BodyCompression.compress(BinaryJson.fromJson(json()));
+        Assert.assertNotNull(compressed);
+
+        assertExtracted(DocumentBodyImpl.storedBodyWith(compressed));
+    }
+
+    @Test
+    public void bodyWithMapGivesSameValuesAsMap() {
+        DocumentBody body = DocumentBodyImpl.trustedBodyWith(json());
+        body.asMap();
+
+        assertExtracted(body);
+    }
+
+    @Test
+    public void bodyFromMapGivesSameValuesAsMap() {
+        assertExtracted(DocumentBodyFactory.create(JSONUtils.deserialize(json())));
+    }
+
+    @Test
+    public void projectionContainsOnlySelectedFields() {
+        DocumentBody body = DocumentBodyImpl.trustedBodyWith(json());
+
+        DocumentBody projected = new FieldExtractor(Arrays.asList("name", "nothing", "dup",
+                "missing")).project(body);
+
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("name", "mike");
+        expected.put("nothing", null);
+        expected.put("dup", 2);
+        Assert.assertEquals(expected, projected.asMap());
+        Assert.assertEquals(expected, JSONUtils.deserialize(projected.asBytes()));
+    }
+
+    private static void assertExtracted(DocumentBody body) {
+        Map<String, Object> values = new FieldExtractor(FIELDS).extract(body);
+
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("name", "mike");
+        expected.put("age", 32);
+        expected.put("pets", Arrays.asList("cat", singletonMap("name", "rex")));
+        expected.put("address.city", "Bristol");
+        expected.put("address.empty", null);
+        expected.put("nothing", null);
+        Map<String, Object> geo = new HashMap<String, Object>();
+        geo.put("lat", 51.45);
+        geo.put("lon", -2.58);
+        expected.put("address.geo", geo);
+        expected.put("address.geo.lat", 51.45);
+        // the later value of a duplicated field replaces the earlier one
+        expected.put("dup", 2);
+        expected.put("big", JSONUtils.deserialize(json()).get("big"));
+        expected.put("skipped.list", Arrays.asList(1, 2, singletonMap("city", "x")));
+        Assert.assertEquals(expected, values);
+        Assert.assertEquals(Double.class, values.get("address.geo.lat").getClass());
+    }
+
+    private static Map<String, Object> singletonMap(String key, Object value) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(key, value);
+        return map;
+    }
+
+    private static byte[] json() {
+        return JSON.getBytes(Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures pull replication style {@code forceInsert} throughput with and
+ * without the per-connection statement cache.
+ */
+@Category(PerformanceTest.class)
+public class ForceInsertThroughputTest {
+
+    private static final int WARMUP_BATCHES = 10;
+    private static final int BATCHES = 40;
+    private static final int BATCH_SIZE = 500;
+
+    private String datastoreManagerDir;
+    private DatastoreManager datastoreManager;
+
+    @Before
+    public void setUp() {
+        datastoreManagerDir = TestUtils.createTempTestingDir(getClass().getName());
+        datastoreManager = DatastoreManager.getInstance(datastoreManagerDir);
+    }
+
+    @After
+    public void tearDown() {
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void withoutStatementCache() throws Exception {
+        run("without_statement_cache", new DatastoreOptions().setStatementCacheSize(0));
+    }
+
+    @Test
+    public void withStatementCache() throws Exception {
+        run("with_statement_cache", new DatastoreOptions());
+    }
+
+    private void run(String name, DatastoreOptions options) throws Exception {
+        DatastoreImpl datastore = (DatastoreImpl) datastoreManager.openDatastore(name,
+                new NullKeyProvider(), options);
+        try {
+            for (int batch = 0; batch < WARMUP_BATCHES; batch++) {
+                datastore.forceInsert(items(-batch - 1));
+            }
+            long start = System.nanoTime();
+            for (int batch = 0; batch < BATCHES; batch++) {
+                datastore.forceInsert(items(batch));
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Assert.assertEquals((WARMUP_BATCHES + BATCHES) * BATCH_SIZE,
+                    datastore.getDocumentCount());
+            System.out.println(String.format("%s: %d documents in %.2fs, %.0f docs/s", name,
+                    BATCHES * BATCH_SIZE, seconds, BATCHES * BATCH_SIZE / seconds));
+        } finally {
+            datastore.close();
+        }
+    }
+
+    private static List<ForceInsertItem> items(int batch) {
+        List<ForceInsertItem> items = new ArrayList<ForceInsertItem>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            String id = String.format("doc-%d-%d", batch, i);
+            Map<String, Object> body = new HashMap<String, Object>();
+            body.put("name", id);
+            body.put("count", i);
+            DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+            builder.setDocId(id);
+            builder.setRevId("2-bcdef");
+            builder.setBody(DocumentBodyFactory.create(body));
+            List<String> history = new ArrayList<String>();
+            history.add("1-abcdef");
+            history.add("2-bcdef");
+            items.add(new ForceInsertItem(builder.build(), history,
+                    Collections.<String, Object>emptyMap(), null, false));
+        }
+        return items;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures throughput of small document writes made from several threads with
+ * and without group commit.
+ */
+@Category(PerformanceTest.class)
+public class GroupCommitThroughputTest {
+
+    private static final int THREADS = 8;
+    private static final int DOCS_PER_THREAD = 250;
+
+    private String datastoreManagerDir;
+    private DatastoreManager datastoreManager;
+
+    @Before
+    public void setUp() {
+        datastoreManagerDir = TestUtils.createTempTestingDir(getClass().getName());
+        datastoreManager = DatastoreManager.getInstance(datastoreManagerDir);
+    }
+
+    @After
+    public void tearDown() {
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void withoutGroupCommit() throws Exception {
+        run("without_group_commit", new DatastoreOptions());
+    }
+
+    @Test
+    public void withGroupCommit() throws Exception {
+        run("with_group_commit", new DatastoreOptions().setGroupCommitSize(32));
+    }
+
+    private void run(String name, DatastoreOptions options) throws Exception {
+        final Datastore datastore = datastoreManager.openDatastore(name,
+                new NullKeyProvider(), options);
+        ExecutorService writers = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            long start = System.nanoTime();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                results.add(writers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < DOCS_PER_THREAD; i++) {
+                            Map<String, Object> body = new HashMap<String, Object>();
+                            body.put("thread", thread);
+                            body.put("count", i);
+                            DocumentRevision rev = new DocumentRevision();
+                            rev.setBody(DocumentBodyFactory.create(body));
+                            datastore.createDocumentFromRevision(rev);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Assert.assertEquals(THREADS * DOCS_PER_THREAD, datastore.getDocumentCount());
+            System.out.println(String.format("%s: %d documents in %.2fs, %.0f docs/s", name,
+                    THREADS * DOCS_PER_THREAD, seconds, THREADS * DOCS_PER_THREAD / seconds));
+        } finally {
+            writers.shutdown();
+            datastore.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures {@link Datastore#getDocument(String)} latency while a pull
+ * replication sized write load runs, with and without reader connections.
+ */
+@Category(PerformanceTest.class)
+public class ReadLatencyUnderWriteLoadTest {
+
+    private static final int SEED_DOCUMENTS = 1000;
+    private static final int WRITE_BATCH_SIZE = 1000;
+    private static final int READER_THREADS = 4;
+    private static final long RUN_MILLIS = 10000;
+
+    private String datastoreManagerDir;
+    private DatastoreManager datastoreManager;
+
+    @Before
+    public void setUp() {
+        datastoreManagerDir = TestUtils.createTempTestingDir(getClass().getName());
+        datastoreManager = DatastoreManager.getInstance(datastoreManagerDir);
+    }
+
+    @After
+    public void tearDown() {
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void singleConnection() throws Exception {
+        run("single_connection", new DatastoreOptions());
+    }
+
+    @Test
+    public void readerConnections() throws Exception {
+        run("reader_connections", new DatastoreOptions().setReaderConnections(READER_THREADS));
+    }
+
+    private void run(String name, DatastoreOptions options) throws Exception {
+        final DatastoreImpl datastore = (DatastoreImpl) datastoreManager.openDatastore(name,
+                new NullKeyProvider(), options);
+        try {
+            final List<String> ids = new ArrayList<String>();
+            for (int i = 0; i < SEED_DOCUMENTS; i++) {
+                ids.add("seed-" + i);
+            }
+            datastore.forceInsert(items(ids));
+
+            final AtomicBoolean running = new AtomicBoolean(true);
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int batch = 0;
+                    while (running.get()) {
+                        List<String> batchIds = new ArrayList<String>();
+                        for (int i = 0; i < WRITE_BATCH_SIZE; i++) {
+                            batchIds.add(String.format("write-%d-%d", batch, i));
+                        }
+                        try {
+                            datastore.forceInsert(items(batchIds));
+                        } catch (DocumentException e) {
+                            throw new RuntimeException(e);
+                        }
+                        batch++;
+                    }
+                }
+            });
+
+            final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+            final CountDownLatch readersDone = new CountDownLatch(READER_THREADS);
+            writer.start();
+            for (int t = 0; t < READER_THREADS; t++) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Random random = new Random();
+                        try {
+                            while (running.get()) {
+                                String id = ids.get(random.nextInt(ids.size()));
+                                long start = System.nanoTime();
+                                datastore.getDocument(id);
+                                latencies.add(System.nanoTime() - start);
+                            }
+                        } catch (DocumentNotFoundException e) {
+                            throw new RuntimeException(e);
+                        } finally {
+                            readersDone.countDown();
+                        }
+                    }
+                }).start();
+            }
+
+            Thread.sleep(RUN_MILLIS);
+            running.set(false);
+            readersDone.await();
+            writer.join();
+
+            Assert.assertFalse(latencies.isEmpty());
+            List<Long> sorted = new ArrayList<Long>(latencies);
+            Collections.sort(sorted);
+            System.out.println(String.format("%s: %d reads, p50 %.2fms, p90 %.2fms, " +
+                            "p99 %.2fms, max %.2fms", name, sorted.size(),
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                    sorted.get(sorted.size() - 1) / 1e6));
+        } finally {
+            datastore.close();
+        }
+    }
+
+    private static double percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0)) / 1e6;
+    }
+
+    private static List<ForceInsertItem> items(List<String> ids) {
+        List<ForceInsertItem> items = new ArrayList<ForceInsertItem>();
+        for (String id : ids) {
+            Map<String, Object> body = new HashMap<String, Object>();
+            body.put("name", id);
+            body.put("count", 42);
+            DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+            builder.setDocId(id);
+            builder.setRevId("1-abcdef");
+            builder.setBody(DocumentBodyFactory.create(body));
+            items.add(new ForceInsertItem(builder.build(), Collections.singletonList("1-abcdef"),
+                    null, null, false));
+        }
+        return items;
+    }
+}
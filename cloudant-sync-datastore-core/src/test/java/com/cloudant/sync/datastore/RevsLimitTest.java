@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.util.CouchUtils;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class RevsLimitTest {
+
+    private static final int REVS_LIMIT = 5;
+
+    private String datastoreManagerDir;
+    private DatastoreManager datastoreManager;
+    private DatastoreImpl datastore;
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerDir = TestUtils.createTempTestingDir(getClass().getName());
+        datastoreManager = DatastoreManager.getInstance(datastoreManagerDir);
+        datastore = (DatastoreImpl) datastoreManager.openDatastore(getClass().getSimpleName(),
+                new NullKeyProvider(), new DatastoreOptions().setRevsLimit(REVS_LIMIT));
+    }
+
+    @After
+    public void tearDown() {
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void updatesStemHistory() throws Exception {
+        DocumentRevision rev = new DocumentRevision("doc1");
+        rev.setBody(DocumentBodyFactory.create("{\"count\": 0}".getBytes()));
+        rev = datastore.createDocumentFromRevision(rev);
+        for (int i = 1; i <= 10; i++) {
+            rev.setBody(DocumentBodyFactory.create(("{\"count\": " + i + "}").getBytes()));
+            rev = datastore.updateDocumentFromRevision(rev);
+        }
+
+        assertStemmed("doc1", 7, 11);
+        Assert.assertEquals(rev, datastore.getDocument("doc1"));
+
+        rev = datastore.deleteDocumentFromRevision(rev);
+        assertStemmed("doc1", 8, 12);
+        Assert.assertTrue(datastore.getDocument("doc1").isDeleted());
+    }
+
+    @Test
+    public void forceInsertOfNewDocumentKeepsLimitOfHistory() throws Exception {
+        datastore.forceInsert(revision("doc1", 20), history(20));
+
+        assertStemmed("doc1", 16, 20);
+        Assert.assertEquals("20-a", datastore.getDocument("doc1").getRevision());
+    }
+
+    @Test
+    public void forceInsertWithHistoryBeyondStemmedRoot_extendsTree() throws Exception {
+        datastore.forceInsert(revision("doc1", 12), history(12));
+        datastore.forceInsert(revision("doc1", 15), history(15));
+
+        assertStemmed("doc1", 11, 15);
+        DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument("doc1");
+        Assert.assertFalse(tree.hasConflicts());
+        Assert.assertEquals(1, tree.roots().size());
+        Assert.assertEquals("15-a", datastore.getDocument("doc1").getRevision());
+    }
+
+    @Test
+    public void conflictedBranchesAreKept() throws Exception {
+        datastore.forceInsert(revision("doc1", 12), history(12));
+        // a branch from 2-a, whose ancestors are beyond the limit of the longer branch
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId("doc1");
+        builder.setRevId("3-b");
+        builder.setBody(DocumentBodyFactory.create("{\"branch\": \"b\"}".getBytes()));
+        datastore.forceInsert(builder.build(), "1-a", "2-a", "3-b");
+        DocumentRevision winner = datastore.getDocument("doc1");
+        winner.setBody(DocumentBodyFactory.create("{\"branch\": \"a\"}".getBytes()));
+        datastore.updateDocumentFromRevision(winner);
+
+        DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument("doc1");
+        Assert.assertTrue(tree.hasConflicts());
+        List<String> leaves = new ArrayList<String>(tree.leafRevisionIds());
+        Collections.sort(leaves);
+        Assert.assertEquals(13, CouchUtils.generationFromRevId(leaves.get(0)));
+        Assert.assertEquals("3-b", leaves.get(1));
+        // 9-a to 13-a and the branch from 1-a
+        Assert.assertEquals(8, revisionCount(datastore, "doc1"));
+        Assert.assertTrue(datastore.getConflictedDocumentIds().hasNext());
+    }
+
+    @Test
+    public void compactStemsExistingDocuments() throws Exception {
+        DatastoreImpl unlimited = (DatastoreImpl) datastoreManager.openDatastore("unlimited");
+        unlimited.forceInsert(revision("doc1", 20), history(20));
+        Assert.assertEquals(20, revisionCount(unlimited, "doc1"));
+        unlimited.close();
+
+        DatastoreImpl limited = (DatastoreImpl) datastoreManager.openDatastore("unlimited",
+                new NullKeyProvider(), new DatastoreOptions().setRevsLimit(REVS_LIMIT));
+        try {
+            limited.compact();
+            Assert.assertEquals(REVS_LIMIT, revisionCount(limited, "doc1"));
+            Assert.assertEquals("20-a", limited.getDocument("doc1").getRevision());
+        } finally {
+            limited.close();
+        }
+    }
+
+    @Test
+    public void compactStemsDocumentsOverSeveralSteps() throws Exception {
+        int documents = Compaction.DOCUMENTS_PER_STEP * 3;
+        DatastoreImpl unlimited = (DatastoreImpl) datastoreManager.openDatastore("unlimited");
+        for (int i = 0; i < documents; i++) {
+            unlimited.forceInsert(revision("doc" + i, 20), history(20));
+        }
+        unlimited.close();
+
+        DatastoreImpl limited = (DatastoreImpl) datastoreManager.openDatastore("unlimited",
+                new NullKeyProvider(), new DatastoreOptions().setRevsLimit(REVS_LIMIT));
+        try {
+            CompactionProgress progress = limited.createCompaction().start().get();
+            Assert.assertEquals(documents, progress.getDocumentsStemmed());
+            for (int i = 0; i < documents; i++) {
+                Assert.assertEquals(REVS_LIMIT, revisionCount(limited, "doc" + i));
+            }
+        } finally {
+            limited.close();
+        }
+    }
+
+    private void assertStemmed(String docId, int rootGeneration, int leafGeneration)
+            throws Exception {
+        Assert.assertEquals(leafGeneration - rootGeneration + 1, revisionCount(datastore, docId));
+        DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument(docId);
+        Assert.assertEquals(1, tree.roots().size());
+        DocumentRevision root = tree.roots().values().iterator().next().getData();
+        Assert.assertEquals(rootGeneration, CouchUtils.generationFromRevId(root.getRevision()));
+        Assert.assertEquals(-1L, root.getParent());
+        Assert.assertEquals(leafGeneration,
+                CouchUtils.generationFromRevId(tree.getCurrentRevision().getRevision()));
+    }
+
+    private static int revisionCount(DatastoreImpl datastore, final String docId)
+            throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT COUNT(*) FROM revs, docs " +
+                            "WHERE docs.docid = ? AND revs.doc_id = docs.doc_id",
+                            new String[]{docId});
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+
+    private static DocumentRevision revision(String docId, int generation) {
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId(docId);
+        builder.setRevId(generation + "-a");
+        builder.setBody(DocumentBodyFactory.create(("{\"generation\": " + generation + "}")
+                .getBytes()));
+        return builder.build();
+    }
+
+    private static String[] history(int generations) {
+        String[] history = new String[generations];
+        for (int i = 0; i < generations; i++) {
+            history[i] = (i + 1) + "-a";
+        }
+        return history;
+    }
+}
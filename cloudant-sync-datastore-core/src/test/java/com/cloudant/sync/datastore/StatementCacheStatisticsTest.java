@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.sqlite.StatementCacheStatistics;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class StatementCacheStatisticsTest {
+
+    private static final int DOCUMENTS = 20;
+
+    private String datastoreManagerDir;
+    private DatastoreManager datastoreManager;
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerDir = TestUtils.createTempTestingDir(getClass().getName());
+        datastoreManager = DatastoreManager.getInstance(datastoreManagerDir);
+    }
+
+    @After
+    public void tearDown() {
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void repeatedInsertsAreCacheHits() throws Exception {
+        DatastoreImpl datastore = open("cached", new DatastoreOptions().setReaderConnections(2));
+        try {
+            StatementCacheStatistics before = datastore.getStatementCacheStatistics();
+            createDocuments(datastore);
+            // opens a reader connection
+            Assert.assertNotNull(datastore.getDocument("doc0"));
+
+            StatementCacheStatistics after = datastore.getStatementCacheStatistics();
+            long hits = after.getHits() - before.getHits();
+            long misses = after.getMisses() - before.getMisses();
+            // each document inserts the same statements, which are only compiled once
+            Assert.assertTrue(after.toString(), hits >= (DOCUMENTS - 1) * misses);
+            Assert.assertTrue(after.toString(), misses > 0);
+            Assert.assertTrue(after.getHitRatio() > 0.5);
+            // the writer and the reader which read doc0
+            Assert.assertEquals(2, after.getConnections());
+        } finally {
+            datastore.close();
+        }
+    }
+
+    @Test
+    public void disabledCacheHasNoHits() throws Exception {
+        DatastoreImpl datastore = open("uncached", new DatastoreOptions().setStatementCacheSize(0));
+        try {
+            createDocuments(datastore);
+
+            StatementCacheStatistics statistics = datastore.getStatementCacheStatistics();
+            Assert.assertEquals(0, statistics.getHits());
+            Assert.assertTrue(statistics.getMisses() >= DOCUMENTS);
+            Assert.assertEquals(0.0, statistics.getHitRatio(), 0.0);
+        } finally {
+            datastore.close();
+        }
+    }
+
+    private DatastoreImpl open(String name, DatastoreOptions options) throws Exception {
+        return (DatastoreImpl) datastoreManager.openDatastore(name, new NullKeyProvider(),
+                options);
+    }
+
+    private static void createDocuments(Datastore datastore) throws Exception {
+        for (int i = 0; i < DOCUMENTS; i++) {
+            Map<String, Object> body = new HashMap<String, Object>();
+            body.put("number", i);
+            DocumentRevision revision = new DocumentRevision("doc" + i);
+            revision.setBody(DocumentBodyFactory.create(body));
+            datastore.createDocumentFromRevision(revision);
+        }
+    }
+}
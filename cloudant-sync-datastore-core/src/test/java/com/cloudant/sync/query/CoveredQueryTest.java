@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.query;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+import com.cloudant.android.ContentValues;
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.DocumentRevision;
+import com.cloudant.sync.datastore.ProjectedDocumentRevision;
+import com.cloudant.sync.datastore.UnsavedStreamAttachment;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Tests queries whose projected fields are all held by one index, which are answered
+ *  from the index table rather than by loading the documents.
+ *
+ *  To tell which, the tests change the value of a field in an index table directly:
+ *  queries answered from the index see the changed value.
+ */
+public class CoveredQueryTest extends AbstractQueryTestBase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        im = new IndexManager(ds);
+        indexManagerDatabaseQueue = TestUtils.getDBQueue(im);
+        setUpBasicQueryData();
+    }
+
+    @Test
+    public void newIndexFieldsHaveScalarValues() throws Exception {
+        assertThat(scalarValues("basic", "name"), is(1));
+        assertThat(scalarValues("basic", "age"), is(1));
+        assertThat(scalarValues("pet", "pet"), is(1));
+    }
+
+    @Test
+    public void projectionReadFromIndex() throws Exception {
+        setIndexedValue("basic", "mike12", "age", 13);
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("_id", "name", "age"), null);
+        assertThat(queryResult.documentIds(), containsInAnyOrder("mike12", "mike34", "mike72"));
+        for (DocumentRevision rev : queryResult) {
+            assertThat(rev, instanceOf(ProjectedDocumentRevision.class));
+            assertThat(rev.getRevision(), is(ds.getDocument(rev.getId()).getRevision()));
+            Map<String, Object> body = rev.getBody().asMap();
+            assertThat(body.keySet(), containsInAnyOrder("name", "age"));
+            assertThat(body.get("name"), is((Object) "mike"));
+            if (rev.getId().equals("mike12")) {
+                assertThat(body.get("age"), is((Object) 13));
+            }
+        }
+    }
+
+    @Test
+    public void coveredRevisionLoadsFullRevision() throws Exception {
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "fred");
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("name"), null);
+        DocumentRevision rev = queryResult.iterator().next();
+        assertThat(rev.getBody().asMap().keySet(), containsInAnyOrder("name"));
+        DocumentRevision full = ((ProjectedDocumentRevision) rev).toFullRevision();
+        assertThat(full.getBody().asMap().keySet(), containsInAnyOrder("name", "age", "pet"));
+    }
+
+    @Test
+    public void skipAndLimitApplyToCoveredQuery() throws Exception {
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        List<Map<String, String>> sort = Arrays.asList(singleton("age", "desc"));
+        QueryResult queryResult = im.find(query, 1, 1, Arrays.asList("age"), sort);
+        assertThat(queryResult.documentIds(), containsInAnyOrder("mike34"));
+    }
+
+    @Test
+    public void fieldsInSeveralIndexesLoadDocuments() throws Exception {
+        setIndexedValue("basic", "fred34", "age", 35);
+        setIndexedValue("pet", "fred34", "pet", "dog");
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "fred");
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("name", "age", "pet"), null);
+        Map<String, Object> body = queryResult.iterator().next().getBody().asMap();
+        assertThat(body.get("age"), is((Object) 34));
+        assertThat(body.get("pet"), is((Object) "cat"));
+    }
+
+    @Test
+    public void nonScalarValueLoadsDocuments() throws Exception {
+        DocumentRevision rev = new DocumentRevision("mike00");
+        Map<String, Object> bodyMap = new HashMap<String, Object>();
+        bodyMap.put("name", "mike");
+        bodyMap.put("age", true);
+        bodyMap.put("pet", "cat");
+        rev.setBody(DocumentBodyFactory.create(bodyMap));
+        ds.createDocumentFromRevision(rev);
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("name", "age"), null);
+        assertThat(scalarValues("basic", "name"), is(1));
+        assertThat(scalarValues("basic", "age"), is(0));
+
+        setIndexedValue("basic", "mike12", "age", 13);
+        queryResult = im.find(query, 0, 0, Arrays.asList("name", "age"), null);
+        assertThat(queryResult.size(), is(4));
+        for (DocumentRevision projected : queryResult) {
+            if (projected.getId().equals("mike12")) {
+                assertThat(projected.getBody().asMap().get("age"), is((Object) 12));
+            } else if (projected.getId().equals("mike00")) {
+                assertThat(projected.getBody().asMap().get("age"), is((Object) true));
+            }
+        }
+
+        // fields which have only held strings are still read from the index
+        setIndexedValue("basic", "mike12", "name", "michael");
+        query.clear();
+        query.put("pet", "cat");
+        queryResult = im.find(query, 0, 0, Arrays.asList("name"), null);
+        assertThat(queryResult.size(), is(4));
+        int changed = 0;
+        for (DocumentRevision projected : queryResult) {
+            if (projected.getBody().asMap().get("name").equals("michael")) {
+                changed++;
+            }
+        }
+        assertThat(changed, is(1));
+    }
+
+    @Test
+    public void floatingPointValueLoadsDocuments() throws Exception {
+        DocumentRevision rev = new DocumentRevision("mike00");
+        Map<String, Object> bodyMap = new HashMap<String, Object>();
+        bodyMap.put("name", "mike");
+        bodyMap.put("age", 0.1);
+        rev.setBody(DocumentBodyFactory.create(bodyMap));
+        ds.createDocumentFromRevision(rev);
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("age", 0.1);
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("age"), null);
+        DocumentRevision projected = queryResult.iterator().next();
+        assertThat(projected.getBody().asMap().get("age"), is((Object) 0.1));
+        assertThat(scalarValues("basic", "age"), is(0));
+    }
+
+    @Test
+    public void numericLookingStringsLoadDocuments() throws Exception {
+        for (String name : Arrays.asList("123", "007", "1.50", " 2e3 ")) {
+            DocumentRevision rev = new DocumentRevision("doc" + name.trim());
+            Map<String, Object> bodyMap = new HashMap<String, Object>();
+            bodyMap.put("name", name);
+            bodyMap.put("age", 1);
+            rev.setBody(DocumentBodyFactory.create(bodyMap));
+            ds.createDocumentFromRevision(rev);
+        }
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("age", 1);
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("name"), null);
+        assertThat(scalarValues("basic", "name"), is(0));
+        List<Object> names = new ArrayList<Object>();
+        for (DocumentRevision projected : queryResult) {
+            names.add(projected.getBody().asMap().get("name"));
+        }
+        assertThat(names, containsInAnyOrder((Object) "123", "007", "1.50", " 2e3 "));
+    }
+
+    @Test
+    public void unexpectedColumnTypeLoadsDocuments() throws Exception {
+        indexManagerDatabaseQueue.submit(new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                db.execSQL(String.format("UPDATE \"%s\" SET \"age\" = 12.5 WHERE _id = ?",
+                        IndexManager.tableNameForIndex("basic")), new Object[]{ "mike12" });
+                return null;
+            }
+        }).get();
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("name", "age"), null);
+        assertThat(queryResult.size(), is(3));
+        for (DocumentRevision projected : queryResult) {
+            assertThat(projected.getBody().asMap().keySet(), containsInAnyOrder("name", "age"));
+            if (projected.getId().equals("mike12")) {
+                assertThat(projected.getBody().asMap().get("age"), is((Object) 12));
+            }
+        }
+    }
+
+    @Test
+    public void attachmentsLoadDocuments() throws Exception {
+        DocumentRevision rev = new DocumentRevision("mike00");
+        Map<String, Object> bodyMap = new HashMap<String, Object>();
+        bodyMap.put("name", "mike");
+        bodyMap.put("age", 0);
+        rev.setBody(DocumentBodyFactory.create(bodyMap));
+        rev.getAttachments().put("att1", new UnsavedStreamAttachment(
+                new ByteArrayInputStream("hello".getBytes()), "att1", "text/plain"));
+        ds.createDocumentFromRevision(rev);
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("name", "age"), null);
+        assertThat(queryResult.size(), is(4));
+        for (DocumentRevision projected : queryResult) {
+            if (projected.getId().equals("mike00")) {
+                assertThat(projected.getAttachments().keySet(), containsInAnyOrder("att1"));
+            }
+        }
+    }
+
+    @Test
+    public void batchesAreReadFromIndexWhenNeeded() throws Exception {
+        for (int i = 0; i < 120; i++) {
+            DocumentRevision rev = new DocumentRevision(String.format("doc%03d", i));
+            Map<String, Object> bodyMap = new HashMap<String, Object>();
+            bodyMap.put("name", "bob");
+            bodyMap.put("age", i);
+            rev.setBody(DocumentBodyFactory.create(bodyMap));
+            ds.createDocumentFromRevision(rev);
+        }
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "bob");
+        List<Map<String, String>> sort = Arrays.asList(singleton("age", "asc"));
+        Iterator<DocumentRevision> iterator =
+                im.find(query, 0, 0, Arrays.asList("age"), sort).iterator();
+        assertThat(iterator.next().getBody().asMap().get("age"), is((Object) 0));
+
+        // the last batch hasn't been read yet, so sees the changed value
+        setIndexedValue("basic", "doc119", "age", 1000);
+        DocumentRevision last = null;
+        int count = 1;
+        while (iterator.hasNext()) {
+            last = iterator.next();
+            count++;
+        }
+        assertThat(count, is(120));
+        assertThat(last.getBody().asMap().get("age"), is((Object) 1000));
+    }
+
+    @Test
+    public void documentsChangedSinceIndexUpdateAreLoaded() throws Exception {
+        setIndexedValue("basic", "mike12", "age", 13);
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("name", "age"), null);
+
+        // the index is now behind the datastore, so the documents are loaded instead
+        DocumentRevision update = ds.getDocument("mike34");
+        Map<String, Object> bodyMap = update.getBody().asMap();
+        bodyMap.put("age", 35);
+        update.setBody(DocumentBodyFactory.create(bodyMap));
+        ds.updateDocumentFromRevision(update);
+
+        for (DocumentRevision projected : queryResult) {
+            if (projected.getId().equals("mike12")) {
+                assertThat(projected.getBody().asMap().get("age"), is((Object) 12));
+            } else if (projected.getId().equals("mike34")) {
+                assertThat(projected.getBody().asMap().get("age"), is((Object) 35));
+            }
+        }
+    }
+
+    private static Map<String, String> singleton(String key, String value) {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put(key, value);
+        return map;
+    }
+
+    private void setIndexedValue(final String indexName,
+                                 final String docId,
+                                 final String fieldName,
+                                 final Object value) throws Exception {
+        indexManagerDatabaseQueue.submit(new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                ContentValues v = new ContentValues();
+                if (value instanceof Integer) {
+                    v.put(String.format("\"%s\"", fieldName), (Integer) value);
+                } else {
+                    v.put(String.format("\"%s\"", fieldName), (String) value);
+                }
+                db.update(IndexManager.tableNameForIndex(indexName), v, " _id = ? ",
+                        new String[]{ docId });
+                return null;
+            }
+        }).get();
+    }
+
+    private int scalarValues(final String indexName, final String fieldName) throws Exception {
+        return indexManagerDatabaseQueue.submit(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT scalar_values FROM " +
+                            IndexManager.INDEX_METADATA_TABLE_NAME +
+                            " WHERE index_name = ? AND field_name = ?",
+                            new String[]{ indexName, fieldName });
+                    assertThat(cursor.moveToFirst(), is(true));
+                    return cursor.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+}
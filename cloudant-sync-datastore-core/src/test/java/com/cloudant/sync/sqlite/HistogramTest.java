@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class HistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getPercentile(99, TimeUnit.MICROSECONDS));
+        Assert.assertEquals(0, histogram.getMean(TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void percentilesAreWithinAFactorOfTwo() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100, TimeUnit.MICROSECONDS);
+        }
+        histogram.record(50, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(100, histogram.getCount());
+        long p50 = histogram.getPercentile(50, TimeUnit.MICROSECONDS);
+        Assert.assertTrue(p50 >= 100 && p50 <= 200);
+        long p99 = histogram.getPercentile(99, TimeUnit.MICROSECONDS);
+        Assert.assertTrue(p99 >= 100 && p99 <= 200);
+        Assert.assertEquals(50000, histogram.getPercentile(100, TimeUnit.MICROSECONDS));
+        Assert.assertEquals(50, histogram.getMax(TimeUnit.MILLISECONDS));
+        Assert.assertEquals(599, histogram.getMean(TimeUnit.MICROSECONDS));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import com.cloudant.android.ContentValues;
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.datastore.migrations.SchemaOnlyMigration;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the latency of interactive reads on a single connection queue while
+ * several threads run large write batches, the way concurrent replications and
+ * index updates do, with the writes submitted as background and as interactive
+ * tasks.
+ */
+@Category(PerformanceTest.class)
+public class PriorityLaneLatencyTest {
+
+    private static final int WRITER_THREADS = 4;
+    private static final int ROWS_PER_WRITE = 2000;
+    private static final int READS = 300;
+
+    private String databaseDir;
+    private SQLDatabaseQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        databaseDir = TestUtils.createTempTestingDir(getClass().getName());
+        queue = new SQLDatabaseQueue(databaseDir + File.separator + "test.sqlite");
+        queue.updateSchema(new SchemaOnlyMigration(new String[]{
+                "CREATE TABLE test ( id INTEGER PRIMARY KEY, value TEXT );"}), 1);
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutdown();
+        TestUtils.deleteTempTestingDir(databaseDir);
+    }
+
+    @Test
+    public void writesInInteractiveLane() throws Exception {
+        run("interactive_writes", SQLDatabaseQueue.Priority.INTERACTIVE);
+    }
+
+    @Test
+    public void writesInBackgroundLane() throws Exception {
+        run("background_writes", SQLDatabaseQueue.Priority.BACKGROUND);
+    }
+
+    private void run(String name, final SQLDatabaseQueue.Priority writePriority)
+            throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int i = 0; i < WRITER_THREADS; i++) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            queue.submitTransaction(new SQLQueueCallable<Void>() {
+                                @Override
+                                public Void call(SQLDatabase db) throws Exception {
+                                    for (int row = 0; row < ROWS_PER_WRITE; row++) {
+                                        ContentValues values = new ContentValues();
+                                        values.put("value", "row-" + row);
+                                        db.insert("test", values);
+                                    }
+                                    return null;
+                                }
+                            }, writePriority).get();
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+
+        List<Long> latencies = new ArrayList<Long>();
+        try {
+            for (int i = 0; i < READS; i++) {
+                long start = System.nanoTime();
+                queue.submit(new SQLQueueCallable<Integer>() {
+                    @Override
+                    public Integer call(SQLDatabase db) throws Exception {
+                        Cursor cursor = db.rawQuery("SELECT id FROM test LIMIT 1", null);
+                        try {
+                            return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+                        } finally {
+                            DatabaseUtils.closeCursorQuietly(cursor);
+                        }
+                    }
+                }).get();
+                latencies.add(System.nanoTime() - start);
+                Thread.sleep(5);
+            }
+        } finally {
+            stop.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+
+        Collections.sort(latencies);
+        System.out.println(String.format("%s: read latency p50 %.1fms, p99 %.1fms, max %.1fms",
+                name, millis(latencies.get(latencies.size() / 2)),
+                millis(latencies.get(latencies.size() * 99 / 100)),
+                millis(latencies.get(latencies.size() - 1))));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
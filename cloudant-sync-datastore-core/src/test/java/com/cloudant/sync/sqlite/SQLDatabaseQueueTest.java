@@ -0,0 +1,524 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import com.cloudant.android.ContentValues;
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.datastore.migrations.SchemaOnlyMigration;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+public class SQLDatabaseQueueTest {
+
+    private String databaseDir;
+    private SQLDatabaseQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        databaseDir = TestUtils.createTempTestingDir(SQLDatabaseQueueTest.class.getName());
+        queue = new SQLDatabaseQueue(databaseDir + File.separator + "test.sqlite",
+                new NullKeyProvider(), 2);
+        queue.updateSchema(new SchemaOnlyMigration(new String[]{
+                "CREATE TABLE test ( id INTEGER PRIMARY KEY, value TEXT );"}), 1);
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutdown();
+        TestUtils.deleteTempTestingDir(databaseDir);
+    }
+
+    @Test
+    public void readerPoolEnabled() throws Exception {
+        Assert.assertTrue(queue.hasReaderPool());
+        String mode = queue.submit(new SQLQueueCallable<String>() {
+            @Override
+            public String call(SQLDatabase db) throws Exception {
+                Cursor cursor = db.rawQuery("PRAGMA journal_mode;", null);
+                try {
+                    cursor.moveToFirst();
+                    return cursor.getString(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+        Assert.assertEquals("wal", mode.toLowerCase());
+    }
+
+    @Test
+    public void readsRunOnReaderThreads() throws Exception {
+        String threadName = queue.submitRead(new SQLQueueCallable<String>() {
+            @Override
+            public String call(SQLDatabase db) throws Exception {
+                return Thread.currentThread().getName();
+            }
+        }).get();
+        Assert.assertTrue(threadName.startsWith("SQLDatabaseQueue reader"));
+    }
+
+    @Test
+    public void readsSeeCommittedWrites() throws Exception {
+        insertRow("a");
+        Assert.assertEquals(1, countRows());
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void readerConnectionsAreReadOnly() throws Exception {
+        queue.submitRead(new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                db.execSQL("INSERT INTO test (value) VALUES ('a')");
+                return null;
+            }
+        }).get();
+    }
+
+    @Test
+    public void readsAreNotBlockedByWriter() throws Exception {
+        insertRow("a");
+
+        final CountDownLatch writerStarted = new CountDownLatch(1);
+        final CountDownLatch releaseWriter = new CountDownLatch(1);
+        Future<Void> write = queue.submitTransaction(new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                ContentValues values = new ContentValues();
+                values.put("value", "b");
+                db.insert("test", values);
+                writerStarted.countDown();
+                releaseWriter.await(30, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+
+        Assert.assertTrue(writerStarted.await(30, TimeUnit.SECONDS));
+        try {
+            // the uncommitted write is not visible and does not block the read
+            Assert.assertEquals(1, countRows());
+        } finally {
+            releaseWriter.countDown();
+        }
+        write.get();
+        Assert.assertEquals(2, countRows());
+    }
+
+    @Test
+    public void queueWithoutReaderPoolRunsReadsOnWriter() throws Exception {
+        SQLDatabaseQueue single = new SQLDatabaseQueue(
+                databaseDir + File.separator + "single.sqlite", new NullKeyProvider());
+        try {
+            Assert.assertFalse(single.hasReaderPool());
+            String threadName = single.submitRead(new SQLQueueCallable<String>() {
+                @Override
+                public String call(SQLDatabase db) throws Exception {
+                    return Thread.currentThread().getName();
+                }
+            }).get();
+            Assert.assertTrue(threadName.startsWith("SQLDatabaseQueue - "));
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void groupCommitTasksFailIndependently() throws Exception {
+        queue.setGroupCommitSize(10);
+        CountDownLatch release = blockWriter();
+        Future<Void> a = queue.submitTransaction(insertCallable("a", false));
+        Future<Void> failing = queue.submitTransaction(insertCallable("x", true));
+        Future<Void> b = queue.submitTransaction(insertCallable("b", false));
+        release.countDown();
+
+        a.get(30, TimeUnit.SECONDS);
+        b.get(30, TimeUnit.SECONDS);
+        try {
+            failing.get(30, TimeUnit.SECONDS);
+            Assert.fail("Expected task to fail");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("failed after insert", e.getCause().getMessage());
+        }
+        Assert.assertEquals(2, countRows());
+    }
+
+    @Test
+    public void groupCommitNestedFailureOnlyRollsBackItsTask() throws Exception {
+        queue.setGroupCommitSize(10);
+        CountDownLatch release = blockWriter();
+        Future<Void> a = queue.submitTransaction(insertCallable("a", false));
+        Future<Void> nested = queue.submitTransaction(new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                db.beginTransaction();
+                try {
+                    ContentValues values = new ContentValues();
+                    values.put("value", "x");
+                    db.insert("test", values);
+                    // not marked successful, so the task's changes are rolled back
+                } finally {
+                    db.endTransaction();
+                }
+                return null;
+            }
+        });
+        Future<Void> b = queue.submitTransaction(insertCallable("b", false));
+        release.countDown();
+
+        a.get(30, TimeUnit.SECONDS);
+        nested.get(30, TimeUnit.SECONDS);
+        b.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(2, countRows());
+    }
+
+    @Test
+    public void groupCommitRunsTasksIndividuallyAfterTransactionIsLost() throws Exception {
+        queue.setGroupCommitSize(10);
+        CountDownLatch release = blockWriter();
+        Future<Void> a = queue.submitTransaction(insertCallable("a", false));
+        Future<Void> aborting = queue.submitTransaction(new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                ContentValues values = new ContentValues();
+                values.put("value", "x");
+                db.insert("test", values);
+                // as SQLite does itself after errors such as SQLITE_FULL
+                db.execSQL("ROLLBACK;");
+                throw new IllegalStateException("transaction rolled back");
+            }
+        });
+        Future<Void> b = queue.submitTransaction(insertCallable("b", false));
+        release.countDown();
+
+        a.get(30, TimeUnit.SECONDS);
+        b.get(30, TimeUnit.SECONDS);
+        try {
+            aborting.get(30, TimeUnit.SECONDS);
+            Assert.fail("Expected task to fail");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        Assert.assertEquals(2, countRows());
+        // later transactions are unaffected
+        insertRow("c");
+        Assert.assertEquals(3, countRows());
+    }
+
+    @Test
+    public void groupCommitSkipsGroupWithEveryTaskCancelled() throws Exception {
+        queue.setGroupCommitSize(10);
+        CountDownLatch release = blockWriter();
+        Future<Void> a = queue.submitTransaction(insertCallable("a", false));
+        Future<Void> b = queue.submitTransaction(insertCallable("b", false));
+        Assert.assertTrue(a.cancel(false));
+        Assert.assertTrue(b.cancel(false));
+        release.countDown();
+
+        insertRow("c");
+        Assert.assertEquals(1, countRows());
+    }
+
+    @Test
+    public void groupCommitDoesNotReorderTasks() throws Exception {
+        queue.setGroupCommitSize(10);
+        CountDownLatch release = blockWriter();
+        Future<Void> a = queue.submitTransaction(insertCallable("a", false));
+        Future<Integer> count = queue.submit(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM test", null);
+                try {
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        });
+        Future<Void> b = queue.submitTransaction(insertCallable("b", false));
+        release.countDown();
+
+        a.get(30, TimeUnit.SECONDS);
+        b.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(1, count.get(30, TimeUnit.SECONDS).intValue());
+        Assert.assertEquals(2, countRows());
+    }
+
+    @Test
+    public void interactiveTasksOvertakeHeldBackBackgroundTasks() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch release = blockWriter();
+        List<Future<Void>> background = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 3; i++) {
+            background.add(queue.submit(recordingCallable(order, "background-" + i),
+                    SQLDatabaseQueue.Priority.BACKGROUND));
+        }
+        Future<Void> interactive = queue.submit(recordingCallable(order, "interactive"));
+        release.countDown();
+
+        interactive.get(30, TimeUnit.SECONDS);
+        for (Future<Void> f : background) {
+            f.get(30, TimeUnit.SECONDS);
+        }
+        // only the first background task was queued ahead of the interactive one
+        Assert.assertEquals(Arrays.asList("background-0", "interactive", "background-1",
+                "background-2"), order);
+    }
+
+    @Test
+    public void threadPriorityAppliesToSubmitWithoutPriority() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch release = blockWriter();
+        SQLDatabaseQueue.Priority previous =
+                SQLDatabaseQueue.setThreadPriority(SQLDatabaseQueue.Priority.BACKGROUND);
+        Future<Void> first;
+        Future<Void> second;
+        try {
+            first = queue.submit(recordingCallable(order, "background-0"));
+            second = queue.submitTransaction(recordingCallable(order, "background-1"));
+        } finally {
+            SQLDatabaseQueue.setThreadPriority(previous);
+        }
+        Assert.assertEquals(SQLDatabaseQueue.Priority.INTERACTIVE,
+                SQLDatabaseQueue.getThreadPriority());
+        Future<Void> interactive = queue.submit(recordingCallable(order, "interactive"));
+        release.countDown();
+
+        first.get(30, TimeUnit.SECONDS);
+        second.get(30, TimeUnit.SECONDS);
+        interactive.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(Arrays.asList("background-0", "interactive", "background-1"),
+                order);
+    }
+
+    @Test
+    public void shutdownRunsHeldBackBackgroundTasks() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch release = blockWriter();
+        List<Future<Void>> background = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 3; i++) {
+            background.add(queue.submit(recordingCallable(order, "background-" + i),
+                    SQLDatabaseQueue.Priority.BACKGROUND));
+        }
+        Thread shutdown = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.shutdown();
+            }
+        });
+        shutdown.start();
+        // give shutdown the chance to start before the writer is released
+        Thread.sleep(100);
+        release.countDown();
+        shutdown.join(30000);
+
+        for (Future<Void> f : background) {
+            f.get(30, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(3, order.size());
+    }
+
+    @Test
+    public void metricsSeparateWaitFromExecution() throws Exception {
+        QueueStatistics statistics = new QueueStatistics();
+        queue.setQueueMetrics(statistics);
+        CountDownLatch release = blockWriter();
+        Future<Void> insert = queue.submitTransaction(insertCallable("a", false));
+        Thread.sleep(50);
+        release.countDown();
+        insert.get(30, TimeUnit.SECONDS);
+
+        Assert.assertEquals(Long.valueOf(1),
+                statistics.getTaskCounts().get("SQLDatabaseQueueTest.insertCallable"));
+        Assert.assertTrue(statistics.getWaitTimes().getMax(TimeUnit.MILLISECONDS) >= 50);
+        Assert.assertEquals(1, statistics.getTransactionExecutionTimes().getCount());
+        Assert.assertEquals(0, statistics.getFailureCount());
+    }
+
+    @Test
+    public void metricsCountFailures() throws Exception {
+        QueueStatistics statistics = new QueueStatistics();
+        queue.setQueueMetrics(statistics);
+        try {
+            queue.submitTransaction(insertCallable("x", true)).get(30, TimeUnit.SECONDS);
+            Assert.fail("Expected task to fail");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        Assert.assertEquals(1, statistics.getFailureCount());
+    }
+
+    @Test
+    public void queueDepthAndLongestRunningTask() throws Exception {
+        Assert.assertNull(queue.getLongestRunningTask());
+        CountDownLatch release = blockWriter();
+        Future<Void> a = queue.submitTransaction(insertCallable("a", false));
+        Future<Void> b = queue.submit(insertCallable("b", false),
+                SQLDatabaseQueue.Priority.BACKGROUND);
+        Assert.assertEquals(2, queue.getQueueDepth());
+
+        TaskMetrics longest = queue.getLongestRunningTask();
+        Assert.assertEquals("SQLDatabaseQueueTest.blockWriter", longest.getName());
+        Assert.assertFalse(longest.isCompleted());
+
+        release.countDown();
+        a.get(30, TimeUnit.SECONDS);
+        b.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(0, queue.getQueueDepth());
+    }
+
+    @Test
+    public void rejectedTasksDoNotCountTowardsQueueDepth() throws Exception {
+        queue.shutdown();
+        try {
+            queue.submit(recordingCallable(new ArrayList<String>(), "rejected"));
+            Assert.fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        try {
+            queue.submitTransaction(insertCallable("rejected", false));
+            Assert.fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        Assert.assertEquals(0, queue.getQueueDepth());
+    }
+
+    @Test
+    public void slowTasksAreLogged() throws Exception {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                messages.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(SQLDatabase.class.getCanonicalName());
+        Level level = logger.getLevel();
+        logger.setLevel(Level.WARNING);
+        logger.addHandler(handler);
+        try {
+            queue.setSlowTaskThreshold(0, TimeUnit.MILLISECONDS);
+            insertRow("a");
+        } finally {
+            logger.removeHandler(handler);
+            logger.setLevel(level);
+        }
+        Assert.assertEquals(1, messages.size());
+        Assert.assertTrue(messages.get(0), messages.get(0).startsWith(
+                "Slow database task SQLDatabaseQueueTest.insertRow (transaction, interactive)"));
+    }
+
+    private static SQLQueueCallable<Void> recordingCallable(final List<String> order,
+                                                            final String name) {
+        return new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                order.add(name);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Queues a task which holds the writer until the returned latch is released,
+     * so that tasks submitted meanwhile wait in the queue together.
+     */
+    private CountDownLatch blockWriter() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        queue.submit(new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                started.countDown();
+                release.await(30, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+        Assert.assertTrue(started.await(30, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static SQLQueueCallable<Void> insertCallable(final String value,
+                                                         final boolean fail) {
+        return new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                ContentValues values = new ContentValues();
+                values.put("value", value);
+                db.insert("test", values);
+                if (fail) {
+                    throw new IllegalStateException("failed after insert");
+                }
+                return null;
+            }
+        };
+    }
+
+    private void insertRow(final String value) throws Exception {
+        queue.submitTransaction(new SQLQueueCallable<Void>() {
+            @Override
+            public Void call(SQLDatabase db) throws Exception {
+                ContentValues values = new ContentValues();
+                values.put("value", value);
+                db.insert("test", values);
+                return null;
+            }
+        }).get();
+    }
+
+    private int countRows() throws Exception {
+        return queue.submitRead(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM test", null);
+                try {
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get(30, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StatementCacheTest {
+
+    private List<String> disposed;
+    private StatementCache<String> cache;
+
+    @Before
+    public void setUp() {
+        disposed = new ArrayList<String>();
+        cache = new StatementCache<String>(2) {
+            @Override
+            protected void dispose(String statement) {
+                disposed.add(statement);
+            }
+        };
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        Assert.assertNull(cache.get("a"));
+        cache.put("a", "stmt-a");
+        Assert.assertEquals("stmt-a", cache.get("a"));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void statementInUseIsNotHandedOutTwice() {
+        cache.put("a", "stmt-a");
+        Assert.assertEquals("stmt-a", cache.get("a"));
+        Assert.assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        cache.put("a", "stmt-a");
+        cache.put("b", "stmt-b");
+        // use a so b becomes the least recently used
+        cache.put("a", cache.get("a"));
+        cache.put("c", "stmt-c");
+        Assert.assertEquals(Arrays.asList("stmt-b"), disposed);
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void shrinkingDisposesStatements() {
+        cache.put("a", "stmt-a");
+        cache.put("b", "stmt-b");
+        cache.setMaxSize(0);
+        Assert.assertEquals(Arrays.asList("stmt-a", "stmt-b"), disposed);
+        cache.put("c", "stmt-c");
+        Assert.assertEquals(0, cache.size());
+        Assert.assertTrue(disposed.contains("stmt-c"));
+    }
+
+    @Test
+    public void clearDisposesStatements() {
+        cache.put("a", "stmt-a");
+        cache.put("b", "stmt-b");
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(2, disposed.size());
+    }
+}
@@ -18,13 +18,18 @@ import com.almworks.sqlite4java.SQLiteConnection;
 import com.almworks.sqlite4java.SQLiteException;
 import com.almworks.sqlite4java.SQLiteStatement;
 import com.cloudant.android.ContentValues;
+import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.StatementCache;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
 import java.io.File;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -45,6 +50,11 @@ public class SQLiteWrapper extends SQLDatabase {
 
     private final String databaseFilePath;
 
+    /**
+     * Whether connections are opened read-only.
+     */
+    private final boolean readOnly;
+
     private SQLiteConnection localConnection;
 
     /**
@@ -61,8 +71,34 @@ public class SQLiteWrapper extends SQLDatabase {
      */
     private Stack<Boolean> transactionStack = new Stack<Boolean>();
 
+    /**
+     * Cursors returned by {@link #rawQuery(String, String[])} which are still
+     * stepping their statement. They are materialized before this connection
+     * modifies the database so the change cannot alter a result set which is
+     * being iterated.
+     */
+    private final Set<StreamingSQLiteCursor> streamingCursors =
+            new LinkedHashSet<StreamingSQLiteCursor>();
+
+    /**
+     * Compiled statements used by insert, update and delete, keyed by the
+     * generated SQL.
+     */
+    private final StatementCache<SQLiteStatement> statementCache =
+            new StatementCache<SQLiteStatement>(StatementCache.DEFAULT_SIZE) {
+                @Override
+                protected void dispose(SQLiteStatement statement) {
+                    SQLiteWrapperUtils.disposeQuietly(statement);
+                }
+            };
+
     public SQLiteWrapper(String databaseFilePath) {
+        this(databaseFilePath, false);
+    }
+
+    public SQLiteWrapper(String databaseFilePath, boolean readOnly) {
         this.databaseFilePath = databaseFilePath;
+        this.readOnly = readOnly;
     }
 
     public static SQLiteWrapper openSQLiteWrapper(String databaseFilePath) {
@@ -71,6 +107,12 @@ public class SQLiteWrapper extends SQLDatabase {
         return db;
     }
 
+    public static SQLiteWrapper openReadOnlySQLiteWrapper(String databaseFilePath) {
+        SQLiteWrapper db = new SQLiteWrapper(databaseFilePath, true);
+        db.open();
+        return db;
+    }
+
     public String getDatabaseFile() {
         return this.databaseFilePath;
     }
@@ -86,7 +128,11 @@ public class SQLiteWrapper extends SQLDatabase {
     SQLiteConnection createNewConnection() {
         try {
             SQLiteConnection conn = new SQLiteConnection(new File(this.databaseFilePath));
-            conn.open();
+            if (readOnly) {
+                conn.openReadonly();
+            } else {
+                conn.open();
+            }
             conn.setBusyTimeout(30*1000);
             return conn;
         } catch (SQLiteException ex) {
@@ -203,14 +249,29 @@ public class SQLiteWrapper extends SQLDatabase {
         // for the same thread as us
         SQLiteConnection conn = localConnection;
         if (conn != null && !conn.isDisposed()) {
+            statementCache.clear();
             conn.dispose();
         }
     }
 
+    @Override
+    public void setStatementCacheSize(int size) {
+        statementCache.setMaxSize(size);
+    }
+
+    /**
+     * @return the cache of compiled statements for this connection
+     */
+    @Override
+    public StatementCache<SQLiteStatement> getStatementCache() {
+        return statementCache;
+    }
+
     @Override
     public void execSQL(String sql) throws SQLException {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(sql.trim()),
                 "Input SQL can not be empty String.");
+        materializeStreamingCursors();
         try {
             getConnection().exec(sql);
         } catch (SQLiteException e) {
@@ -222,6 +283,7 @@ public class SQLiteWrapper extends SQLDatabase {
     public void execSQL(String sql, Object[] bindArgs) throws SQLException {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(sql.trim()),
                 "Input SQL can not be empty String.");
+        materializeStreamingCursors();
         SQLiteStatement stmt = null;
         try {
             stmt = this.getConnection().prepare(sql);
@@ -254,14 +316,39 @@ public class SQLiteWrapper extends SQLDatabase {
     }
 
     @Override
-    public SQLiteCursor rawQuery(String sql, String[] bindArgs) throws SQLException {
+    public Cursor rawQuery(String sql, String[] bindArgs) throws SQLException {
+        SQLiteStatement stmt = null;
         try {
-            return SQLiteWrapperUtils.buildSQLiteCursor(getConnection(), sql, bindArgs);
+            stmt = SQLiteWrapperUtils.bindArguments(getConnection().prepare(sql), bindArgs);
+            StreamingSQLiteCursor cursor = new StreamingSQLiteCursor(this, stmt);
+            if (cursor.isStreaming()) {
+                streamingCursors.add(cursor);
+            }
+            return cursor;
         } catch (SQLiteException e) {
+            SQLiteWrapperUtils.disposeQuietly(stmt);
             throw new SQLException(e);
         }
     }
 
+    /**
+     * Called by a {@link StreamingSQLiteCursor} once its statement is no longer
+     * being stepped.
+     */
+    void cursorFinished(StreamingSQLiteCursor cursor) {
+        streamingCursors.remove(cursor);
+    }
+
+    private void materializeStreamingCursors() {
+        if (!streamingCursors.isEmpty()) {
+            // materialize() calls cursorFinished so iterate over a copy
+            for (StreamingSQLiteCursor cursor :
+                    new ArrayList<StreamingSQLiteCursor>(streamingCursors)) {
+                cursor.materialize();
+            }
+        }
+    }
+
     @Override
     public int delete(String table, String whereClause, String[] whereArgs) {
         try {
@@ -326,9 +413,33 @@ public class SQLiteWrapper extends SQLDatabase {
     }
 
     private void executeSQLStatement(String sql, Object[] values) throws SQLiteException{
-        SQLiteStatement stmt = getConnection().prepare(sql);
-        stmt = SQLiteWrapperUtils.bindArguments(stmt, values);
-        while (stmt.step()) {
+        materializeStreamingCursors();
+        SQLiteStatement stmt = statementCache.get(sql);
+        if (stmt == null || stmt.isDisposed()) {
+            // the connection's own statement cache is bypassed as the statement is
+            // kept in ours rather than disposed after use
+            stmt = getConnection().prepare(sql, false);
+        }
+        try {
+            stmt = SQLiteWrapperUtils.bindArguments(stmt, values);
+            while (stmt.step()) {
+            }
+        } finally {
+            releaseStatement(sql, stmt);
+        }
+    }
+
+    /**
+     * Resets a statement, clearing its bindings so bound values are not retained,
+     * and returns it to the statement cache.
+     */
+    private void releaseStatement(String sql, SQLiteStatement stmt) {
+        try {
+            stmt.reset(true);
+            statementCache.put(sql, stmt);
+        } catch (SQLiteException e) {
+            logger.log(Level.FINE, "Failed to reset statement, not caching it", e);
+            SQLiteWrapperUtils.disposeQuietly(stmt);
         }
     }
 }
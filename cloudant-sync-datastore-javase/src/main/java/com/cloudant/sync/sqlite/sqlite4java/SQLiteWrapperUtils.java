@@ -148,9 +148,7 @@ public class SQLiteWrapperUtils {
                     columnNames = getColumnNames(stmt);
                 }
 
-                Tuple t = getDataRow(stmt);
-                logger.finest("Tuple: "+ t.toString());
-                resultSet.add(t);
+                resultSet.add(getDataRow(stmt));
             }
             return new SQLiteCursor(columnNames, resultSet);
         } finally {
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2016 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite.sqlite4java;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import com.cloudant.sync.sqlite.Cursor;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Forward-only {@link Cursor} reading rows directly from a live
+ * {@link SQLiteStatement}.</p>
+ *
+ * <p>Rows are not copied while iterating with {@link #moveToNext()}, so memory use
+ * is constant however large the result set is. {@link #getCount()} and
+ * {@link #moveToPosition(int)} copy the current row and the rows after it from the
+ * live statement into a {@link SQLiteCursor}. Rows before the current one have been
+ * discarded, so moving back to them throws {@link UnsupportedOperationException}:
+ * running the statement again could see a different snapshot of the database.</p>
+ *
+ * <p>The statement is reset as soon as the last row has been read, and disposed
+ * when the cursor is closed. Like the statement itself, the cursor can only be
+ * used on the thread owning the connection.</p>
+ *
+ * @api_private
+ */
+public class StreamingSQLiteCursor implements Cursor {
+
+    private final SQLiteWrapper database;
+    private final SQLiteStatement stmt;
+    private final List<String> names;
+
+    private int position = -1;
+
+    /**
+     * True if the statement has been stepped to the row at {@code position + 1}
+     * but the cursor has not moved there yet.
+     */
+    private boolean pendingRow;
+
+    /**
+     * Number of rows in the result, known once the statement has no more rows,
+     * -1 until then.
+     */
+    private int count = -1;
+
+    /**
+     * Set when random access is needed, after which all calls are delegated.
+     * Holds the rows from {@code offset} onwards.
+     */
+    private SQLiteCursor materialized = null;
+    private int offset = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a cursor over a prepared and bound statement which has not been
+     * stepped yet. The first row is fetched immediately so errors executing the
+     * statement are reported to the caller of {@code rawQuery}.
+     */
+    StreamingSQLiteCursor(SQLiteWrapper database, SQLiteStatement stmt) throws SQLiteException {
+        this.database = database;
+        this.stmt = stmt;
+        this.names = SQLiteWrapperUtils.getColumnNames(stmt);
+        this.pendingRow = stmt.step();
+        if (!pendingRow) {
+            finish(0);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        if (materialized == null && count >= 0) {
+            // every row has been seen, so the count is known without buffering
+            return count;
+        }
+        int remaining = materialize().getCount();
+        return offset + remaining;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return names.size();
+    }
+
+    @Override
+    public int columnType(int index) {
+        if (materialized != null) {
+            return materialized.columnType(index);
+        }
+        try {
+            return SQLiteWrapperUtils.mapColumnType(currentRow().columnType(index));
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column type", e);
+        }
+    }
+
+    @Override
+    public String columnName(int index) {
+        return names.get(index);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        if (materialized == null && position == -1) {
+            return moveToNext();
+        }
+        if (materialized == null && position == 0 && count < 0) {
+            return true;
+        }
+        if (materialized == null && count == 0) {
+            return false;
+        }
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        if (materialized == null && position == this.position + 1) {
+            return moveToNext();
+        }
+        SQLiteCursor rows = materialize();
+        if (position < offset && (position >= 0 || offset > 0)) {
+            throw new UnsupportedOperationException(String.format(
+                    "Cannot move back to row %d, rows before %d have been discarded",
+                    position, offset));
+        }
+        return rows.moveToPosition(position - offset);
+    }
+
+    @Override
+    public String getString(int index) {
+        if (materialized != null) {
+            return materialized.getString(index);
+        }
+        try {
+            return currentRow().columnString(index);
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column", e);
+        }
+    }
+
+    @Override
+    public int getInt(int index) {
+        if (materialized != null) {
+            return materialized.getInt(index);
+        }
+        return (int) getLong(index);
+    }
+
+    @Override
+    public long getLong(int index) {
+        if (materialized != null) {
+            return materialized.getLong(index);
+        }
+        try {
+            return currentRow().columnLong(index);
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column", e);
+        }
+    }
+
+    @Override
+    public float getFloat(int index) {
+        if (materialized != null) {
+            return materialized.getFloat(index);
+        }
+        try {
+            return Double.valueOf(currentRow().columnDouble(index)).floatValue();
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column", e);
+        }
+    }
+
+    @Override
+    public byte[] getBlob(int index) {
+        if (materialized != null) {
+            return materialized.getBlob(index);
+        }
+        try {
+            return currentRow().columnBlob(index);
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column", e);
+        }
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        if (materialized != null) {
+            return materialized.isAfterLast();
+        }
+        return count >= 0 && position >= count;
+    }
+
+    @Override
+    public boolean moveToNext() {
+        if (materialized != null) {
+            return materialized.moveToNext();
+        }
+        if (isAfterLast()) {
+            return false;
+        }
+        position++;
+        if (pendingRow) {
+            pendingRow = false;
+            return true;
+        }
+        if (count >= 0) {
+            return false;
+        }
+        try {
+            if (stmt.step()) {
+                return true;
+            }
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to step statement", e);
+        }
+        finish(position);
+        return false;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            database.cursorFinished(this);
+            SQLiteWrapperUtils.disposeQuietly(stmt);
+        }
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return names.indexOf(columnName);
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) throws IllegalArgumentException {
+        int i = getColumnIndex(columnName);
+        if (i < 0) {
+            throw new IllegalArgumentException("Can not find column: " + columnName);
+        } else {
+            return i;
+        }
+    }
+
+    /**
+     * @return true while the statement may still have unread rows
+     */
+    boolean isStreaming() {
+        return materialized == null && count < 0 && !closed;
+    }
+
+    /**
+     * <p>Copies the current row and every row after it from the live statement,
+     * keeping the current position.</p>
+     *
+     * <p>Called by {@link SQLiteWrapper} before the connection modifies the database
+     * so an in-progress iteration is not affected by the modification. The rows come
+     * from the statement's own read, never from running it again, so they are from
+     * the same snapshot as the rows already returned.</p>
+     */
+    SQLiteCursor materialize() {
+        if (materialized == null) {
+            Preconditions.checkState(!closed, "Cursor is closed");
+            List<Tuple> rows = new ArrayList<Tuple>();
+            if (count >= 0) {
+                // every row has been read and the statement reset
+                offset = count;
+            } else {
+                // the statement is positioned on the current row, or on the first
+                // row before moveToNext has been called
+                offset = Math.max(position, 0);
+                try {
+                    do {
+                        rows.add(SQLiteWrapperUtils.getDataRow(stmt));
+                    } while (stmt.step());
+                    stmt.reset(false);
+                } catch (SQLiteException e) {
+                    throw new IllegalStateException("Failed to materialize cursor", e);
+                }
+            }
+            materialized = new SQLiteCursor(names, rows);
+            materialized.moveToPosition(position - offset);
+            database.cursorFinished(this);
+        }
+        return materialized;
+    }
+
+    private SQLiteStatement currentRow() {
+        Preconditions.checkState(!closed, "Cursor is closed");
+        Preconditions.checkState(position >= 0 && !pendingRow && count < 0,
+                "Cursor is not positioned on a row");
+        return stmt;
+    }
+
+    private void finish(int count) {
+        this.count = count;
+        try {
+            // release the statement's read lock without losing the bindings
+            stmt.reset(false);
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to reset statement", e);
+        }
+        database.cursorFinished(this);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("StreamingSQLiteCursor: ");
+        sb.append("position ").append(position);
+        sb.append(", columnCount ").append(this.getColumnCount());
+        sb.append(", names ").append(this.names);
+        return sb.toString();
+    }
+}
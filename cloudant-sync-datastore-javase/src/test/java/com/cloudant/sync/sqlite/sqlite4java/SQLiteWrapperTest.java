@@ -471,7 +471,7 @@ public class SQLiteWrapperTest {
     public void rawQuery() throws Exception {
         prepareDatabaseForTesting();
 
-        SQLiteCursor cursor = database.rawQuery("SELECT * FROM docs WHERE doc_name = ?",
+        Cursor cursor = database.rawQuery("SELECT * FROM docs WHERE doc_name = ?",
                 new String[]{"haha"});
 
         Assert.assertTrue(cursor.getCount() == 2);
@@ -501,12 +501,149 @@ public class SQLiteWrapperTest {
     public void rawQuery_inClause() throws Exception {
         prepareDatabaseForTesting();
 
-        SQLiteCursor cursor = database.rawQuery("SELECT * FROM docs WHERE doc_name IN ( ?, ?, ?)",
+        Cursor cursor = database.rawQuery("SELECT * FROM docs WHERE doc_name IN ( ?, ?, ?)",
                 new String[]{"haha", "hihi", "hehe"});
 
         Assert.assertEquals(4, cursor.getCount());
     }
 
+    @Test
+    public void rawQuery_streamsRows() throws Exception {
+        prepareDatabaseForTesting();
+
+        Cursor cursor = database.rawQuery("SELECT doc_id FROM docs WHERE doc_name IN ( ?, ?, ?) " +
+                "ORDER BY doc_id", new String[]{"haha", "hihi", "hehe"});
+        try {
+            Assert.assertTrue(cursor instanceof StreamingSQLiteCursor);
+            int rows = 0;
+            long lastId = -1;
+            while (cursor.moveToNext()) {
+                Assert.assertTrue(cursor.getLong(0) > lastId);
+                lastId = cursor.getLong(0);
+                rows++;
+            }
+            Assert.assertEquals(4, rows);
+            Assert.assertTrue(cursor.isAfterLast());
+            // the count is known once every row has been read
+            Assert.assertEquals(4, cursor.getCount());
+            // the rows read have been discarded rather than kept to move back to
+            try {
+                cursor.moveToFirst();
+                Assert.fail("Expected UnsupportedOperationException");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void rawQuery_emptyResult() throws Exception {
+        prepareDatabaseForTesting();
+
+        Cursor cursor = database.rawQuery("SELECT * FROM docs WHERE doc_name = ?",
+                new String[]{"nothing"});
+        try {
+            Assert.assertEquals(5, cursor.getColumnCount());
+            Assert.assertFalse(cursor.isAfterLast());
+            Assert.assertFalse(cursor.moveToFirst());
+            Assert.assertEquals(0, cursor.getCount());
+            Assert.assertFalse(cursor.moveToNext());
+            Assert.assertTrue(cursor.isAfterLast());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void rawQuery_moveToPosition() throws Exception {
+        prepareDatabaseForTesting();
+
+        Cursor cursor = database.rawQuery("SELECT doc_id FROM docs WHERE doc_name = ? " +
+                "ORDER BY doc_id", new String[]{"haha"});
+        try {
+            Assert.assertTrue(cursor.moveToPosition(1));
+            Assert.assertEquals(2, cursor.getInt(0));
+            Assert.assertTrue(cursor.moveToPosition(0));
+            Assert.assertEquals(1, cursor.getInt(0));
+            Assert.assertEquals(2, cursor.getCount());
+            Assert.assertFalse(cursor.moveToPosition(2));
+            Assert.assertTrue(cursor.isAfterLast());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void rawQuery_countKeepsPositionInStreamedRows() throws Exception {
+        prepareDatabaseForTesting();
+
+        Cursor cursor = database.rawQuery("SELECT doc_id FROM docs ORDER BY doc_id", null);
+        try {
+            Assert.assertTrue(cursor.moveToNext());
+            Assert.assertTrue(cursor.moveToNext());
+            long second = cursor.getLong(0);
+            // buffers the rows from the current one without running the query again
+            int count = cursor.getCount();
+            Assert.assertEquals(second, cursor.getLong(0));
+            Assert.assertTrue(cursor.moveToPosition(1));
+            Assert.assertEquals(second, cursor.getLong(0));
+            int rows = 2;
+            while (cursor.moveToNext()) {
+                Assert.assertTrue(cursor.getLong(0) > second);
+                rows++;
+            }
+            Assert.assertEquals(count, rows);
+            try {
+                cursor.moveToPosition(0);
+                Assert.fail("Expected UnsupportedOperationException");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void rawQuery_writeDuringIterationDoesNotChangeResult() throws Exception {
+        prepareDatabaseForTesting();
+
+        Cursor cursor = database.rawQuery("SELECT doc_id FROM docs ORDER BY doc_id", null);
+        try {
+            Assert.assertTrue(cursor.moveToNext());
+            int rows = 1;
+            // rows inserted while iterating must not appear in the result
+            ContentValues cv = new ContentValues();
+            cv.put("doc_id", 1000);
+            cv.put("doc_name", "later");
+            cv.put("balance", 1.0);
+            Assert.assertEquals(1000, database.insert(doc_table_name, cv));
+            while (cursor.moveToNext()) {
+                Assert.assertTrue(cursor.getLong(0) < 1000);
+                rows++;
+            }
+            Assert.assertEquals(rows, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void rawQuery_cursorDoesNotBlockVacuum() throws Exception {
+        prepareDatabaseForTesting();
+
+        Cursor cursor = database.rawQuery("SELECT doc_id FROM docs", null);
+        try {
+            Assert.assertTrue(cursor.moveToNext());
+            database.compactDatabase();
+            Assert.assertTrue(cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+    }
+
     @Test
     public void delete() {
         prepareDatabaseForTesting();
@@ -562,6 +699,53 @@ public class SQLiteWrapperTest {
         }
     }
 
+    @Test
+    public void insert_reusesCachedStatement() {
+        prepareDatabaseForTesting();
+        long hits = database.getStatementCache().getHits();
+
+        for (int i = 0; i < 10; i++) {
+            ContentValues cv = new ContentValues();
+            cv.put("doc_id", 300 + i);
+            cv.put("doc_name", "cached");
+            cv.put("balance", i);
+            Assert.assertEquals(300 + i, database.insert(doc_table_name, cv));
+        }
+
+        // the first insert of this shape compiles the statement, the rest reuse it
+        Assert.assertTrue(database.getStatementCache().getHits() - hits >= 9);
+        Assert.assertEquals(10, database.delete(doc_table_name, "doc_name = ?",
+                new String[]{"cached"}));
+    }
+
+    @Test
+    public void insert_constraintFailureLeavesStatementUsable() {
+        prepareDatabaseForTesting();
+
+        ContentValues cv = new ContentValues();
+        cv.put("doc_id", 400);
+        cv.put("doc_name", "unique");
+        cv.put("balance", 1);
+        Assert.assertEquals(400, database.insert(doc_table_name, cv));
+        Assert.assertEquals(-1, database.insert(doc_table_name, cv));
+
+        cv.put("doc_id", 401);
+        Assert.assertEquals(401, database.insert(doc_table_name, cv));
+    }
+
+    @Test
+    public void setStatementCacheSize_zeroDisablesCache() {
+        prepareDatabaseForTesting();
+        database.setStatementCacheSize(0);
+
+        ContentValues cv = new ContentValues();
+        cv.put("doc_id", 500);
+        cv.put("doc_name", "uncached");
+        cv.put("balance", 1);
+        Assert.assertEquals(500, database.insert(doc_table_name, cv));
+        Assert.assertEquals(0, database.getStatementCache().size());
+    }
+
     @Test(expected = SQLException.class)
     public void close_queryAfterClose() throws SQLException {
         this.database.close();